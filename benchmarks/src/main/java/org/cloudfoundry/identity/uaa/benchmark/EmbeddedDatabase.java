@@ -0,0 +1,52 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.benchmark;
+
+import org.cloudfoundry.identity.uaa.rest.jdbc.JdbcPagingListFactory;
+import org.flywaydb.core.Flyway;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.web.context.support.XmlWebApplicationContext;
+
+import javax.sql.DataSource;
+
+/**
+ * Starts the same migrated in memory HSQLDB database that the unit tests use,
+ * from <code>spring/env.xml</code> and <code>spring/data-source.xml</code>.
+ */
+public class EmbeddedDatabase {
+
+    private XmlWebApplicationContext context;
+
+    public void start() {
+        context = new XmlWebApplicationContext();
+        context.setConfigLocations(new String[] {"classpath:spring/env.xml", "classpath:spring/data-source.xml"});
+        context.refresh();
+    }
+
+    public void stop() {
+        context.getBean(Flyway.class).clean();
+        context.destroy();
+    }
+
+    public DataSource getDataSource() {
+        return context.getBean(DataSource.class);
+    }
+
+    public JdbcTemplate getJdbcTemplate() {
+        return context.getBean(JdbcTemplate.class);
+    }
+
+    public JdbcPagingListFactory getPagingListFactory() {
+        return context.getBean(JdbcPagingListFactory.class);
+    }
+}
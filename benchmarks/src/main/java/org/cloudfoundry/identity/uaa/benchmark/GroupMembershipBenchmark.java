@@ -0,0 +1,113 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.benchmark;
+
+import org.cloudfoundry.identity.uaa.authentication.Origin;
+import org.cloudfoundry.identity.uaa.scim.ScimGroup;
+import org.cloudfoundry.identity.uaa.scim.ScimUser;
+import org.cloudfoundry.identity.uaa.scim.jdbc.JdbcScimGroupMembershipManager;
+import org.cloudfoundry.identity.uaa.scim.jdbc.JdbcScimGroupProvisioning;
+import org.cloudfoundry.identity.uaa.scim.jdbc.JdbcScimUserProvisioning;
+import org.cloudfoundry.identity.uaa.zone.IdentityZone;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resolves the groups of a user at the bottom of a group hierarchy of
+ * <code>levels</code> times <code>width</code> groups, where each group is a
+ * member of two groups one level up.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GroupMembershipBenchmark {
+
+    @Param({"100"})
+    public int levels;
+
+    @Param({"100"})
+    public int width;
+
+    private EmbeddedDatabase database = new EmbeddedDatabase();
+
+    private JdbcScimGroupMembershipManager membershipManager;
+
+    private String userId;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        database.start();
+        JdbcScimUserProvisioning userProvisioning = new JdbcScimUserProvisioning(database.getJdbcTemplate(), database.getPagingListFactory());
+        JdbcScimGroupProvisioning groupProvisioning = new JdbcScimGroupProvisioning(database.getJdbcTemplate(), database.getPagingListFactory());
+        membershipManager = new JdbcScimGroupMembershipManager(database.getJdbcTemplate(), database.getPagingListFactory());
+        membershipManager.setScimUserProvisioning(userProvisioning);
+        membershipManager.setScimGroupProvisioning(groupProvisioning);
+
+        ScimUser user = new ScimUser(null, "marissa", "Marissa", "Bloggs");
+        user.addEmail("marissa@test.org");
+        userId = userProvisioning.createUser(user, "koala").getId();
+
+        List<Object[]> groups = new ArrayList<>();
+        List<Object[]> members = new ArrayList<>();
+        for (int level = 0; level < levels; level++) {
+            for (int i = 0; i < width; i++) {
+                groups.add(new Object[] {groupId(level, i), "group." + level + "." + i, IdentityZone.getUaa().getId()});
+                if (level + 1 < levels) {
+                    members.add(new Object[] {groupId(level + 1, i), groupId(level, i), "GROUP", "READER", Origin.UAA});
+                    members.add(new Object[] {groupId(level + 1, (i + 1) % width), groupId(level, i), "GROUP", "READER", Origin.UAA});
+                }
+            }
+        }
+        members.add(new Object[] {groupId(0, 0), userId, "USER", "READER", Origin.UAA});
+        database.getJdbcTemplate().batchUpdate("insert into " + JdbcScimGroupProvisioning.GROUP_TABLE + " (id, displayName, identity_zone_id) values (?,?,?)", groups);
+        database.getJdbcTemplate().batchUpdate("insert into " + JdbcScimGroupMembershipManager.MEMBERSHIP_TABLE + " (group_id, member_id, member_type, authorities, origin) values (?,?,?,?,?)", members);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        database.stop();
+    }
+
+    @Benchmark
+    public Set<ScimGroup> getGroupsWithMember() {
+        return membershipManager.getGroupsWithMember(userId, false);
+    }
+
+    @Benchmark
+    public Set<ScimGroup> getGroupsWithMemberTransitive() {
+        return membershipManager.getGroupsWithMember(userId, true);
+    }
+
+    private String groupId(int level, int i) {
+        return "group-" + level + "-" + i;
+    }
+}
@@ -0,0 +1,86 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.benchmark;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import org.cloudfoundry.identity.uaa.scim.ScimUser;
+import org.cloudfoundry.identity.uaa.util.JsonUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes and reads back a SCIM user and a set of access token claims with
+ * {@link JsonUtils}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonUtilsBenchmark {
+
+    private ScimUser user;
+
+    private Map<String, Object> claims;
+
+    @Setup
+    public void setUp() {
+        user = new ScimUser(UUID.randomUUID().toString(), "marissa", "Marissa", "Bloggs");
+        user.addEmail("marissa@test.org");
+
+        long now = System.currentTimeMillis() / 1000;
+        claims = new LinkedHashMap<>();
+        claims.put("jti", UUID.randomUUID().toString());
+        claims.put("sub", user.getId());
+        claims.put("scope", Arrays.asList("openid", "cloud_controller.read", "scim.userids"));
+        claims.put("client_id", "app");
+        claims.put("cid", "app");
+        claims.put("azp", "app");
+        claims.put("grant_type", "password");
+        claims.put("user_id", user.getId());
+        claims.put("origin", "uaa");
+        claims.put("user_name", "marissa");
+        claims.put("email", "marissa@test.org");
+        claims.put("rev_sig", "5b4a3a1f");
+        claims.put("iat", now);
+        claims.put("exp", now + 43200);
+        claims.put("iss", "http://localhost:8080/uaa/oauth/token");
+        claims.put("zid", "uaa");
+        claims.put("aud", Arrays.asList("app", "cloud_controller", "scim", "openid"));
+    }
+
+    @Benchmark
+    public ScimUser scimUserRoundTrip() {
+        return JsonUtils.readValue(JsonUtils.writeValueAsString(user), ScimUser.class);
+    }
+
+    @Benchmark
+    public Map<String, Object> claimsRoundTrip() {
+        return JsonUtils.readValue(JsonUtils.writeValueAsString(claims), new TypeReference<Map<String, Object>>() {});
+    }
+}
@@ -0,0 +1,134 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.benchmark;
+
+import org.cloudfoundry.identity.uaa.oauth.token.JwtWriter;
+import org.cloudfoundry.identity.uaa.oauth.token.SignerProvider;
+import org.cloudfoundry.identity.uaa.util.JsonUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.security.jwt.JwtHelper;
+import org.springframework.security.jwt.crypto.sign.Signer;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes the claims of an access token and an id token the way
+ * <code>UaaTokenServices</code> did before, with a map of claims serialized
+ * by <code>JsonUtils</code> and encoded by <code>JwtHelper</code>, and with
+ * a <code>JwtWriter</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JwtWriterBenchmark {
+
+    private static final String ISSUER = "http://localhost:8080/uaa/oauth/token";
+
+    @Param({"MAC", "RSA"})
+    public String keyType;
+
+    private Signer signer;
+
+    private JwtWriter jwtWriter = new JwtWriter();
+
+    private Set<String> authorities = new HashSet<>(Arrays.asList("uaa.user", "openid", "cloud_controller.read", "scim.userids"));
+
+    private Set<String> scopes = new HashSet<>(Arrays.asList("openid", "cloud_controller.read", "scim.userids"));
+
+    private Set<String> resourceIds = new HashSet<>(Arrays.asList("cloud_controller", "scim", "openid"));
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        SignerProvider signerProvider = new SignerProvider();
+        if ("RSA".equals(keyType)) {
+            signerProvider.setSigningKey(TokenServicesBenchmark.RSA_SIGNING_KEY);
+            signerProvider.setVerifierKey(TokenServicesBenchmark.RSA_VERIFIER_KEY);
+        }
+        signerProvider.afterPropertiesSet();
+        signer = signerProvider.getSigner();
+    }
+
+    @Benchmark
+    public void mapAndJwtHelper(Blackhole blackhole) {
+        Map<String, Object> claims = new LinkedHashMap<>();
+        String jti = UUID.randomUUID().toString();
+        claims.put("jti", jti);
+        claims.put("sub", "user-id");
+        claims.put("authorities", authorities);
+        claims.put("scope", scopes);
+        claims.put("client_id", "app");
+        claims.put("cid", "app");
+        claims.put("azp", "app");
+        claims.put("grant_type", "password");
+        claims.put("user_id", "user-id");
+        claims.put("origin", "uaa");
+        claims.put("user_name", "marissa");
+        claims.put("email", "marissa@test.org");
+        claims.put("iat", System.currentTimeMillis() / 1000);
+        claims.put("exp", System.currentTimeMillis() / 1000 + 43200);
+        claims.put("iss", ISSUER);
+        claims.put("zid", "uaa");
+        claims.put("aud", resourceIds);
+        blackhole.consume(JwtHelper.encode(JsonUtils.writeValueAsString(claims), signer).getEncoded());
+
+        Map<String, Object> clone = new HashMap<>(claims);
+        clone.remove("authorities");
+        clone.put("scope", Collections.singleton("openid"));
+        clone.put("aud", Collections.singleton("app"));
+        blackhole.consume(JwtHelper.encode(JsonUtils.writeValueAsString(clone), signer).getEncoded());
+    }
+
+    @Benchmark
+    public void jwtWriter(Blackhole blackhole) {
+        String jti = UUID.randomUUID().toString();
+        byte[] shared = JwtWriter.merge(jwtWriter.payload()
+            .put("jti", jti)
+            .put("sub", "user-id")
+            .put("grant_type", "password")
+            .put("user_id", "user-id")
+            .put("origin", "uaa")
+            .put("user_name", "marissa")
+            .put("email", "marissa@test.org")
+            .put("iat", System.currentTimeMillis() / 1000)
+            .put("exp", System.currentTimeMillis() / 1000 + 43200)
+            .toJson(), jwtWriter.getClientClaims("app"), jwtWriter.getIssuerClaims(ISSUER, "uaa"));
+        byte[] accessToken = jwtWriter.payload().put("authorities", authorities).put("scope", scopes).put("aud", resourceIds).toJson();
+        blackhole.consume(jwtWriter.encode(JwtWriter.merge(shared, accessToken), signer));
+
+        byte[] idToken = jwtWriter.payload().put("scope", Collections.singleton("openid")).put("aud", Collections.singleton("app")).toJson();
+        blackhole.consume(jwtWriter.encode(JwtWriter.merge(shared, idToken), signer));
+    }
+}
@@ -0,0 +1,81 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.benchmark;
+
+import org.cloudfoundry.identity.uaa.util.CachingPasswordEncoder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Matches client secrets through a warmed up {@link CachingPasswordEncoder},
+ * from a single thread and from many threads sharing the same cache. Secrets
+ * are encoded with a low BCrypt strength to keep the setup short, cache hits
+ * do not depend on the strength.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PasswordEncoderBenchmark {
+
+    @Param({"1", "100"})
+    public int secrets;
+
+    private CachingPasswordEncoder passwordEncoder;
+
+    private String[] rawSecrets;
+
+    private String[] encodedSecrets;
+
+    @Setup
+    public void setUp() throws Exception {
+        passwordEncoder = new CachingPasswordEncoder();
+        passwordEncoder.setPasswordEncoder(new BCryptPasswordEncoder(4));
+        rawSecrets = new String[secrets];
+        encodedSecrets = new String[secrets];
+        for (int i = 0; i < secrets; i++) {
+            rawSecrets[i] = "secret" + i;
+            encodedSecrets[i] = passwordEncoder.encode(rawSecrets[i]);
+            passwordEncoder.matches(rawSecrets[i], encodedSecrets[i]);
+        }
+    }
+
+    @Benchmark
+    public boolean matches() {
+        int i = ThreadLocalRandom.current().nextInt(secrets);
+        return passwordEncoder.matches(rawSecrets[i], encodedSecrets[i]);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public boolean matchesContended() {
+        int i = ThreadLocalRandom.current().nextInt(secrets);
+        return passwordEncoder.matches(rawSecrets[i], encodedSecrets[i]);
+    }
+}
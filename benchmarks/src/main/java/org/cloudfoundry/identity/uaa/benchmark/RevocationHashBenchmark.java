@@ -0,0 +1,60 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.benchmark;
+
+import org.cloudfoundry.identity.uaa.oauth.token.SignerProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Computes the revocation hash of a user token from the same salts
+ * {@link org.cloudfoundry.identity.uaa.oauth.token.UaaTokenServices} uses.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RevocationHashBenchmark {
+
+    private SignerProvider signerProvider = new SignerProvider();
+
+    //client id, client secret, user id, user password, user salt, user email, user name
+    private List<String> salts = Arrays.asList(
+        "app",
+        "$2a$10$HoWPAUn9zqmmb0b.2TBZWe6cjQcxyo8TDwTX.5G46PBL347N3/0zO",
+        UUID.randomUUID().toString(),
+        "$2a$10$7lmF2fKlQBJMYy6AWQ5N3eO9m5UEbD2P6nNS5.ua3u4vFUvrdqOei",
+        UUID.randomUUID().toString(),
+        "marissa@test.org",
+        "marissa"
+    );
+
+    @Benchmark
+    public String getRevocationHash() {
+        return signerProvider.getRevocationHash(salts);
+    }
+}
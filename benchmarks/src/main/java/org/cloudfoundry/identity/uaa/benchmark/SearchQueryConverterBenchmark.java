@@ -0,0 +1,67 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.benchmark;
+
+import org.cloudfoundry.identity.uaa.rest.jdbc.SimpleSearchQueryConverter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Converts SCIM filters, as sent to <code>/Users</code> and
+ * <code>/Groups</code>, into SQL where clauses. Every call has other literal
+ * values in the same filter shape, with and without cached filter plans.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SearchQueryConverterBenchmark {
+
+    @Param({
+        "userName eq \"marissa%d\"",
+        "id eq \"a%d\" or id eq \"b\" or id eq \"c\" or id eq \"d\"",
+        "(userName sw \"mar%d\" or email co \"test.org\") and active eq true and meta.lastModified gt \"2015-01-01T00:00:00.000Z\""
+    })
+    public String filter;
+
+    @Param({"0", "1000"})
+    public int maxPlans;
+
+    private SimpleSearchQueryConverter converter = new SimpleSearchQueryConverter();
+
+    private final AtomicInteger counter = new AtomicInteger();
+
+    @Setup
+    public void setUp() {
+        converter.setMaxPlans(maxPlans);
+    }
+
+    @Benchmark
+    public Object convert() {
+        return converter.convert(String.format(filter, counter.incrementAndGet()), "userName", true);
+    }
+}
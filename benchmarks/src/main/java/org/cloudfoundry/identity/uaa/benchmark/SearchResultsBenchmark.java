@@ -0,0 +1,101 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.benchmark;
+
+import org.cloudfoundry.identity.uaa.rest.AttributeNameMapper;
+import org.cloudfoundry.identity.uaa.rest.SearchResultsFactory;
+import org.cloudfoundry.identity.uaa.rest.SimpleAttributeNameMapper;
+import org.cloudfoundry.identity.uaa.scim.ScimCore;
+import org.cloudfoundry.identity.uaa.scim.ScimUser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.expression.Expression;
+import org.springframework.expression.spel.standard.SpelExpressionParser;
+import org.springframework.expression.spel.support.StandardEvaluationContext;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Projects a page of users onto the requested attributes, the way
+ * <code>/Users?attributes=...</code> builds its response, compared with
+ * evaluating SpEL for every attribute of every user.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SearchResultsBenchmark {
+
+    @Param({"id,userName", "id,userName,emails.value,name.givenName,name.familyName,active"})
+    public String attributes;
+
+    @Param({"100"})
+    public int count;
+
+    private List<ScimUser> users;
+
+    private AttributeNameMapper mapper = new SimpleAttributeNameMapper(Collections.<String, String> singletonMap(
+                    "emails\\.(.*)", "emails.![$1]"));
+
+    @Setup
+    public void setUp() {
+        users = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            ScimUser user = new ScimUser(UUID.randomUUID().toString(), "user" + i, "Given" + i, "Family" + i);
+            user.addEmail("user" + i + "@test.org");
+            users.add(user);
+        }
+    }
+
+    @Benchmark
+    public Object buildSearchResultFrom() {
+        return SearchResultsFactory.buildSearchResultFrom(users, 1, count, count, attributes.split(","), mapper,
+                        Arrays.asList(ScimCore.SCHEMAS));
+    }
+
+    @Benchmark
+    public Object evaluateSpel() {
+        Map<String, Expression> expressions = new LinkedHashMap<String, Expression>();
+        for (String attribute : attributes.split(",")) {
+            expressions.put(attribute, new SpelExpressionParser().parseExpression(mapper.mapToInternal(attribute)));
+        }
+        StandardEvaluationContext context = new StandardEvaluationContext();
+        List<Map<String, Object>> results = new ArrayList<Map<String, Object>>();
+        for (ScimUser user : users) {
+            Map<String, Object> map = new LinkedHashMap<String, Object>();
+            for (Map.Entry<String, Expression> entry : expressions.entrySet()) {
+                map.put(entry.getKey(), entry.getValue().getValue(context, user));
+            }
+            results.add(map);
+        }
+        return results;
+    }
+}
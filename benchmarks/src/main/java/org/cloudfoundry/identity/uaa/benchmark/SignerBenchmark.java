@@ -0,0 +1,103 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.benchmark;
+
+import org.cloudfoundry.identity.uaa.oauth.token.SignerProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.security.jwt.crypto.sign.MacSigner;
+import org.springframework.security.jwt.crypto.sign.RsaSigner;
+import org.springframework.security.jwt.crypto.sign.RsaVerifier;
+import org.springframework.security.jwt.crypto.sign.SignatureVerifier;
+import org.springframework.security.jwt.crypto.sign.Signer;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Signs and verifies a token sized payload with the signer and verifier of
+ * {@link SignerProvider}, which keep an initialized signature per thread, and
+ * with the Spring Security JWT signers for comparison.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(8)
+public class SignerBenchmark {
+
+    @Param({"MAC", "RSA"})
+    public String keyType;
+
+    private Signer signer;
+
+    private SignatureVerifier verifier;
+
+    private Signer springSigner;
+
+    private SignatureVerifier springVerifier;
+
+    private byte[] content = new byte[700];
+
+    private byte[] signature;
+
+    @Setup
+    public void setUp() throws Exception {
+        SignerProvider signerProvider = new SignerProvider();
+        if ("RSA".equals(keyType)) {
+            signerProvider.setSigningKey(TokenServicesBenchmark.RSA_SIGNING_KEY);
+            signerProvider.setVerifierKey(TokenServicesBenchmark.RSA_VERIFIER_KEY);
+            springSigner = new RsaSigner(TokenServicesBenchmark.RSA_SIGNING_KEY);
+            springVerifier = new RsaVerifier(TokenServicesBenchmark.RSA_VERIFIER_KEY);
+        } else {
+            MacSigner macSigner = new MacSigner(signerProvider.getSigningKey());
+            springSigner = macSigner;
+            springVerifier = macSigner;
+        }
+        signerProvider.afterPropertiesSet();
+        signer = signerProvider.getSigner();
+        verifier = signerProvider.getVerifier();
+        signature = signer.sign(content);
+    }
+
+    @Benchmark
+    public byte[] sign() {
+        return signer.sign(content);
+    }
+
+    @Benchmark
+    public byte[] springSign() {
+        return springSigner.sign(content);
+    }
+
+    @Benchmark
+    public void verify() {
+        verifier.verify(content, signature);
+    }
+
+    @Benchmark
+    public void springVerify() {
+        springVerifier.verify(content, signature);
+    }
+}
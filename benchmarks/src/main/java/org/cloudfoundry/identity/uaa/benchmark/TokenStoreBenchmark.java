@@ -0,0 +1,128 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.benchmark;
+
+import org.cloudfoundry.identity.uaa.authentication.Origin;
+import org.cloudfoundry.identity.uaa.authentication.UaaAuthentication;
+import org.cloudfoundry.identity.uaa.authentication.UaaAuthenticationDetails;
+import org.cloudfoundry.identity.uaa.authentication.UaaPrincipal;
+import org.cloudfoundry.identity.uaa.oauth.token.UaaTokenStore;
+import org.cloudfoundry.identity.uaa.user.UaaAuthority;
+import org.cloudfoundry.identity.uaa.zone.IdentityZone;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.OAuth2Request;
+
+import javax.sql.DataSource;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serializes the authentication stored with an authorization code, on its own
+ * and as part of creating and consuming a code in the embedded database.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TokenStoreBenchmark {
+
+    private EmbeddedDatabase database = new EmbeddedDatabase();
+
+    private BenchmarkTokenStore tokenStore;
+
+    private OAuth2Authentication authentication;
+
+    private byte[] serialized;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        database.start();
+        tokenStore = new BenchmarkTokenStore(database.getDataSource());
+
+        Map<String, String> parameters = new HashMap<>();
+        parameters.put("response_type", "code");
+        parameters.put("client_id", "app");
+        parameters.put("redirect_uri", "http://localhost:8080/app/");
+        parameters.put("scope", "openid cloud_controller.read");
+        parameters.put("state", "af0ifjsldkj");
+        OAuth2Request request = new OAuth2Request(
+            parameters,
+            "app",
+            UaaAuthority.USER_AUTHORITIES,
+            true,
+            new HashSet<>(Arrays.asList("openid", "cloud_controller.read")),
+            new HashSet<>(Arrays.asList("openid", "cloud_controller")),
+            "http://localhost:8080/app/",
+            new HashSet<>(Arrays.asList("code")),
+            new HashMap<String, Serializable>()
+        );
+        UaaPrincipal principal = new UaaPrincipal(UUID.randomUUID().toString(), "marissa", "marissa@test.org", Origin.UAA, null, IdentityZone.getUaa().getId());
+        UaaAuthentication userAuthentication = new UaaAuthentication(principal, UaaAuthority.USER_AUTHORITIES, UaaAuthenticationDetails.UNKNOWN);
+        authentication = new OAuth2Authentication(request, userAuthentication);
+        serialized = tokenStore.serialize(authentication);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        database.stop();
+    }
+
+    @Benchmark
+    public byte[] serialize() {
+        return tokenStore.serialize(authentication);
+    }
+
+    @Benchmark
+    public OAuth2Authentication deserialize() {
+        return tokenStore.deserialize(serialized);
+    }
+
+    @Benchmark
+    public OAuth2Authentication createAndConsumeCode() {
+        return tokenStore.consumeAuthorizationCode(tokenStore.createAuthorizationCode(authentication));
+    }
+
+    private static class BenchmarkTokenStore extends UaaTokenStore {
+
+        BenchmarkTokenStore(DataSource dataSource) {
+            super(dataSource);
+        }
+
+        byte[] serialize(OAuth2Authentication authentication) {
+            return serializeOauth2Authentication(authentication);
+        }
+
+        OAuth2Authentication deserialize(byte[] data) {
+            return deserializeOauth2Authentication(data);
+        }
+    }
+}
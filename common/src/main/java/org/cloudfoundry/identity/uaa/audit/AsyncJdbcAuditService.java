@@ -0,0 +1,307 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.audit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.jmx.support.MetricType;
+import org.springframework.util.Assert;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Audit service that takes the database write off the request thread. Events
+ * are put on a bounded queue and a writer thread hands them to a
+ * {@link JdbcAuditService} in batches, either once a full batch is waiting or
+ * when the flush interval has passed.
+ * <p>
+ * When the queue is full the {@link OverflowPolicy} decides whether the caller
+ * waits, the event is dropped or the caller writes the queued events itself.
+ * Queued events are written when the service is destroyed.
+ * <p>
+ * Events are written in the order they were queued. {@link #find(String, long)}
+ * returns the matching events that are still queued ahead of the written ones,
+ * so a lockout policy reading through this service counts failed logins before
+ * they reach the database.
+ */
+@ManagedResource
+public class AsyncJdbcAuditService implements UaaAuditService, InitializingBean, DisposableBean {
+
+    public enum OverflowPolicy {
+        BLOCK, DROP, SYNCHRONOUS
+    }
+
+    private final Log logger = LogFactory.getLog(getClass());
+
+    private final JdbcAuditService delegate;
+
+    private int queueSize = 10000;
+
+    private int batchSize = 100;
+
+    private long flushIntervalMillis = 100;
+
+    private long shutdownTimeoutMillis = 5000;
+
+    private OverflowPolicy overflowPolicy = OverflowPolicy.SYNCHRONOUS;
+
+    private BlockingQueue<AuditEvent> queue;
+
+    //batches are drained and written under this lock to keep them in order
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    private volatile boolean running = false;
+
+    private Thread writer;
+
+    private final AtomicInteger droppedCount = new AtomicInteger();
+
+    private final AtomicInteger synchronousWriteCount = new AtomicInteger();
+
+    private final AtomicInteger batchCount = new AtomicInteger();
+
+    private final AtomicInteger writeFailureCount = new AtomicInteger();
+
+    private final AtomicLong writtenCount = new AtomicLong();
+
+    private volatile int lastBatchSize = 0;
+
+    private volatile long lastFlushMillis = 0;
+
+    private final AtomicLong totalFlushMillis = new AtomicLong();
+
+    public AsyncJdbcAuditService(JdbcAuditService delegate) {
+        Assert.notNull(delegate);
+        this.delegate = delegate;
+    }
+
+    @Override
+    public List<AuditEvent> find(String principal, long after) {
+        if (!running) {
+            return delegate.find(principal, after);
+        }
+        //read the queue and the database under the write lock so that a batch
+        //being written is neither missed nor counted twice
+        writeLock.lock();
+        try {
+            List<AuditEvent> events = new ArrayList<>();
+            for (AuditEvent event : queue) {
+                if (principal.equals(event.getPrincipalId()) && event.getTime() > after) {
+                    events.add(event);
+                }
+            }
+            //queued events are the newest and in the order they were logged
+            Collections.reverse(events);
+            events.addAll(delegate.find(principal, after));
+            return events;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void log(AuditEvent auditEvent) {
+        if (!running) {
+            delegate.log(auditEvent);
+            return;
+        }
+        if (queue.offer(auditEvent)) {
+            if (queue.size() >= batchSize) {
+                LockSupport.unpark(writer);
+            }
+            return;
+        }
+        switch (overflowPolicy) {
+            case BLOCK:
+                try {
+                    queue.put(auditEvent);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    droppedCount.incrementAndGet();
+                }
+                break;
+            case DROP:
+                droppedCount.incrementAndGet();
+                logger.debug("Audit queue is full, dropping event:" + auditEvent.getType());
+                break;
+            case SYNCHRONOUS:
+            default:
+                synchronousWriteCount.incrementAndGet();
+                flush(auditEvent);
+                break;
+        }
+    }
+
+    /**
+     * Writes all queued events, followed by the given one if not null, on the
+     * calling thread.
+     */
+    protected void flush(AuditEvent last) {
+        writeLock.lock();
+        try {
+            List<AuditEvent> batch = new ArrayList<>(batchSize);
+            while (queue.drainTo(batch, batchSize) > 0) {
+                write(batch);
+                batch.clear();
+            }
+            if (last != null) {
+                batch.add(last);
+                write(batch);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private boolean writeNextBatch() {
+        writeLock.lock();
+        try {
+            List<AuditEvent> batch = new ArrayList<>(batchSize);
+            queue.drainTo(batch, batchSize);
+            write(batch);
+            return batch.size() >= batchSize;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void write(List<AuditEvent> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        try {
+            delegate.logBatch(batch);
+            writtenCount.addAndGet(batch.size());
+        } catch (Exception x) {
+            writeFailureCount.incrementAndGet();
+            logger.error("Unable to write " + batch.size() + " audit events:", x);
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        batchCount.incrementAndGet();
+        lastBatchSize = batch.size();
+        lastFlushMillis = elapsed;
+        totalFlushMillis.addAndGet(elapsed);
+    }
+
+    private class Writer implements Runnable {
+        @Override
+        public void run() {
+            while (running) {
+                //keep going while full batches are waiting, otherwise wait for the next flush
+                if (!writeNextBatch()) {
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis));
+                }
+            }
+        }
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        queue = new LinkedBlockingQueue<>(queueSize);
+        running = true;
+        writer = new Thread(new Writer(), "AsyncJdbcAuditService.Writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    @Override
+    public void destroy() throws InterruptedException {
+        if (!running) {
+            return;
+        }
+        running = false;
+        LockSupport.unpark(writer);
+        writer.join(shutdownTimeoutMillis);
+        flush(null);
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Audit Queue Depth")
+    public int getQueueDepth() {
+        return queue == null ? 0 : queue.size();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Audit Events Written")
+    public long getWrittenCount() {
+        return writtenCount.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Audit Events Dropped")
+    public int getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Audit Queue Overflows Written Synchronously")
+    public int getSynchronousWriteCount() {
+        return synchronousWriteCount.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Audit Batch Write Failures")
+    public int getWriteFailureCount() {
+        return writeFailureCount.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Audit Batches Written")
+    public int getBatchCount() {
+        return batchCount.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Audit Last Batch Size")
+    public int getLastBatchSize() {
+        return lastBatchSize;
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Audit Last Flush Latency (ms)")
+    public long getLastFlushMillis() {
+        return lastFlushMillis;
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Audit Average Flush Latency (ms)")
+    public long getAverageFlushMillis() {
+        int batches = batchCount.get();
+        return batches == 0 ? 0 : totalFlushMillis.get() / batches;
+    }
+
+    public void setQueueSize(int queueSize) {
+        this.queueSize = queueSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public void setFlushIntervalMillis(long flushIntervalMillis) {
+        this.flushIntervalMillis = flushIntervalMillis;
+    }
+
+    public void setShutdownTimeoutMillis(long shutdownTimeoutMillis) {
+        this.shutdownTimeoutMillis = shutdownTimeoutMillis;
+    }
+
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+}
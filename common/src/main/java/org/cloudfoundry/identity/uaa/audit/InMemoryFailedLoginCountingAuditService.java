@@ -0,0 +1,192 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.audit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.jmx.support.MetricType;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * An audit service that keeps the same data as
+ * {@link JdbcFailedLoginCountingAuditService}, the failed logins of each user
+ * since their last successful login or password change, in memory instead of
+ * in the <code>sec_audit</code> table.
+ * <p>
+ * Failures older than the save data period are removed by a background sweep
+ * rather than on the login path. The failures are only known to the server that
+ * recorded them, use {@link JdbcFailedLoginCountingAuditService} when the
+ * count has to be shared between servers.
+ */
+@ManagedResource
+public class InMemoryFailedLoginCountingAuditService implements UaaAuditService, InitializingBean, DisposableBean {
+
+    private final Log logger = LogFactory.getLog(getClass());
+
+    private final ConcurrentMap<String, LinkedList<AuditEvent>> failures = new ConcurrentHashMap<>();
+
+    private int saveDataPeriodMillis = 2 * 3600 * 1000; // 2hr
+
+    private int maxFailuresPerPrincipal = 100;
+
+    private long sweepIntervalMillis = 60 * 1000;
+
+    private Timer timer;
+
+    @Override
+    public List<AuditEvent> find(String principal, long after) {
+        LinkedList<AuditEvent> events = failures.get(principal);
+        if (events == null) {
+            return Collections.emptyList();
+        }
+        List<AuditEvent> result = new ArrayList<>();
+        synchronized (events) {
+            for (AuditEvent event : events) {
+                if (event.getTime() <= after) {
+                    break;
+                }
+                result.add(event);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void log(AuditEvent auditEvent) {
+        switch (auditEvent.getType()) {
+            case UserAuthenticationSuccess:
+            case PasswordChangeSuccess:
+                failures.remove(auditEvent.getPrincipalId());
+                break;
+            case UserAuthenticationFailure:
+                addFailure(auditEvent);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void addFailure(AuditEvent auditEvent) {
+        while (true) {
+            LinkedList<AuditEvent> events = failures.get(auditEvent.getPrincipalId());
+            if (events == null) {
+                events = new LinkedList<>();
+                LinkedList<AuditEvent> existing = failures.putIfAbsent(auditEvent.getPrincipalId(), events);
+                if (existing != null) {
+                    events = existing;
+                }
+            }
+            synchronized (events) {
+                //the list may have been removed by a success or a sweep in the meantime
+                if (failures.get(auditEvent.getPrincipalId()) != events) {
+                    continue;
+                }
+                //most recent first, the order in which find returns events
+                events.addFirst(auditEvent);
+                while (events.size() > maxFailuresPerPrincipal) {
+                    events.removeLast();
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Removes the failures older than the save data period, together with the
+     * principals that have no failures left.
+     */
+    public void removeExpiredFailures() {
+        long expired = System.currentTimeMillis() - saveDataPeriodMillis;
+        for (Iterator<Map.Entry<String, LinkedList<AuditEvent>>> it = failures.entrySet().iterator(); it.hasNext();) {
+            LinkedList<AuditEvent> events = it.next().getValue();
+            synchronized (events) {
+                while (!events.isEmpty() && events.getLast().getTime() < expired) {
+                    events.removeLast();
+                }
+                if (events.isEmpty()) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        if (sweepIntervalMillis > 0) {
+            timer = new Timer("InMemoryFailedLoginCountingAuditService.Sweep", true);
+            timer.schedule(new SweepTask(), sweepIntervalMillis, sweepIntervalMillis);
+        }
+    }
+
+    @Override
+    public void destroy() {
+        if (timer != null) {
+            timer.cancel();
+            timer = null;
+        }
+    }
+
+    private class SweepTask extends TimerTask {
+        @Override
+        public void run() {
+            try {
+                removeExpiredFailures();
+            } catch (Exception x) {
+                logger.error("Unable to remove expired login failures:", x);
+            }
+        }
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Principals With Failed Logins")
+    public int getPrincipalCount() {
+        return failures.size();
+    }
+
+    /**
+     * @param saveDataPeriodMillis the period in milliseconds to set
+     */
+    public void setSaveDataPeriodMillis(int saveDataPeriodMillis) {
+        this.saveDataPeriodMillis = saveDataPeriodMillis;
+    }
+
+    /**
+     * @param maxFailuresPerPrincipal the number of most recent failures kept
+     * for each principal, must not be lower than any configured
+     * <code>lockoutAfterFailures</code>
+     */
+    public void setMaxFailuresPerPrincipal(int maxFailuresPerPrincipal) {
+        this.maxFailuresPerPrincipal = maxFailuresPerPrincipal;
+    }
+
+    /**
+     * @param sweepIntervalMillis how often expired failures are removed, 0
+     * disables the background sweep
+     */
+    public void setSweepIntervalMillis(long sweepIntervalMillis) {
+        this.sweepIntervalMillis = sweepIntervalMillis;
+    }
+}
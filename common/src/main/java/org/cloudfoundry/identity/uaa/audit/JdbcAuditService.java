@@ -15,6 +15,7 @@ package org.cloudfoundry.identity.uaa.audit;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.util.ArrayList;
 import java.util.List;
 
 import javax.sql.DataSource;
@@ -58,6 +59,26 @@ public class JdbcAuditService implements UaaAuditService {
                         auditEvent.getData(), auditEvent.getIdentityZoneId());
     }
 
+    /**
+     * Writes several events with a single batch insert. The created column is
+     * set from the time of each event, so events written later by an
+     * {@link AsyncJdbcAuditService} keep the time at which they happened.
+     *
+     * @param auditEvents the audit events to log
+     */
+    public void logBatch(List<AuditEvent> auditEvents) {
+        if (auditEvents.isEmpty()) {
+            return;
+        }
+        List<Object[]> batchArgs = new ArrayList<>(auditEvents.size());
+        for (AuditEvent auditEvent : auditEvents) {
+            batchArgs.add(new Object[] {auditEvent.getPrincipalId(), auditEvent.getType().getCode(), auditEvent.getOrigin(),
+                            auditEvent.getData(), auditEvent.getIdentityZoneId(), new Timestamp(auditEvent.getTime())});
+        }
+        template.batchUpdate("insert into sec_audit (principal_id, event_type, origin, event_data, identity_zone_id, created) values (?,?,?,?,?,?)",
+                        batchArgs);
+    }
+
     private class AuditEventRowMapper implements RowMapper<AuditEvent> {
         @Override
         public AuditEvent mapRow(ResultSet rs, int rowNum) throws SQLException {
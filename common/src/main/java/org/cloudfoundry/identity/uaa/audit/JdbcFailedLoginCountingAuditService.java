@@ -13,20 +13,38 @@
 package org.cloudfoundry.identity.uaa.audit;
 
 import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
 
 import javax.sql.DataSource;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
 /**
  * An audit service that subscribes to audit events but only saves enough data
  * to answer queries about consecutive
  * failed logins.
+ * <p>
+ * Data older than the save data period is deleted by a background sweep
+ * rather than on every failed login.
  * 
  * @author Dave Syer
  */
-public class JdbcFailedLoginCountingAuditService extends JdbcAuditService {
+public class JdbcFailedLoginCountingAuditService extends JdbcAuditService implements InitializingBean, DisposableBean {
+
+    private final Log logger = LogFactory.getLog(getClass());
 
     private int saveDataPeriodMillis = 2 * 3600 * 1000; // 2hr
 
+    private long sweepIntervalMillis = 60 * 1000;
+
+    private Timer timer;
+
     public JdbcFailedLoginCountingAuditService(DataSource dataSource) {
         super(dataSource);
     }
@@ -38,6 +56,14 @@ public class JdbcFailedLoginCountingAuditService extends JdbcAuditService {
         this.saveDataPeriodMillis = saveDataPeriodMillis;
     }
 
+    /**
+     * @param sweepIntervalMillis how often old data is deleted, 0 disables
+     * the background sweep
+     */
+    public void setSweepIntervalMillis(long sweepIntervalMillis) {
+        this.sweepIntervalMillis = sweepIntervalMillis;
+    }
+
     @Override
     public void log(AuditEvent auditEvent) {
         switch (auditEvent.getType()) {
@@ -46,9 +72,6 @@ public class JdbcFailedLoginCountingAuditService extends JdbcAuditService {
                 getJdbcTemplate().update("delete from sec_audit where principal_id=?", auditEvent.getPrincipalId());
                 break;
             case UserAuthenticationFailure:
-                getJdbcTemplate().update("delete from sec_audit where created < ?",
-                                new Timestamp(System.currentTimeMillis()
-                                                - saveDataPeriodMillis));
                 super.log(auditEvent);
                 break;
             default:
@@ -56,4 +79,65 @@ public class JdbcFailedLoginCountingAuditService extends JdbcAuditService {
         }
     }
 
+    /**
+     * Applies the events in order, failures are inserted in batches and a
+     * success or password change deletes the failures logged before it.
+     */
+    @Override
+    public void logBatch(List<AuditEvent> auditEvents) {
+        List<AuditEvent> failures = new ArrayList<>();
+        for (AuditEvent auditEvent : auditEvents) {
+            switch (auditEvent.getType()) {
+                case UserAuthenticationSuccess:
+                case PasswordChangeSuccess:
+                    super.logBatch(failures);
+                    failures.clear();
+                    getJdbcTemplate().update("delete from sec_audit where principal_id=?", auditEvent.getPrincipalId());
+                    break;
+                case UserAuthenticationFailure:
+                    failures.add(auditEvent);
+                    break;
+                default:
+                    break;
+            }
+        }
+        super.logBatch(failures);
+    }
+
+    /**
+     * Deletes the data older than the save data period.
+     */
+    public void deleteExpiredData() {
+        getJdbcTemplate().update("delete from sec_audit where created < ?",
+                        new Timestamp(System.currentTimeMillis()
+                                        - saveDataPeriodMillis));
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        if (sweepIntervalMillis > 0) {
+            timer = new Timer("JdbcFailedLoginCountingAuditService.Sweep", true);
+            timer.schedule(new SweepTask(), sweepIntervalMillis, sweepIntervalMillis);
+        }
+    }
+
+    @Override
+    public void destroy() {
+        if (timer != null) {
+            timer.cancel();
+            timer = null;
+        }
+    }
+
+    private class SweepTask extends TimerTask {
+        @Override
+        public void run() {
+            try {
+                deleteExpiredData();
+            } catch (Exception x) {
+                logger.error("Unable to delete expired audit data:", x);
+            }
+        }
+    }
+
 }
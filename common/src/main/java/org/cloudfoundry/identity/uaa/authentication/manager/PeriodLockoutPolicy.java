@@ -76,14 +76,15 @@ public class PeriodLockoutPolicy implements AccountLoginPolicy {
 
     /**
      * Counts the number of failures that occurred without an intervening
-     * successful login.
+     * successful login or password change.
      */
     private int sequentialFailureCount(List<AuditEvent> events) {
         int failureCount = 0;
         for (AuditEvent event : events) {
             if (event.getType() == AuditEventType.UserAuthenticationFailure) {
                 failureCount++;
-            } else if (event.getType() == AuditEventType.UserAuthenticationSuccess) {
+            } else if (event.getType() == AuditEventType.UserAuthenticationSuccess
+                            || event.getType() == AuditEventType.PasswordChangeSuccess) {
                 // Successful authentication occurred within last allowable
                 // failures, so ignore
                 break;
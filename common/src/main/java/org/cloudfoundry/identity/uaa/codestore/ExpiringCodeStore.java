@@ -44,5 +44,13 @@ public interface ExpiringCodeStore {
      */
     void setGenerator(RandomValueStringGenerator generator);
 
+    /**
+     * Retrieve the code with the latest expiry date whose data has the given
+     * email and client_id, and delete it if it exists.
+     *
+     * @param email the email in the data of the code
+     * @param clientId the client_id in the data of the code
+     * @return code or null if no code is found or the latest code has expired
+     */
     ExpiringCode retrieveLatest(String email, String clientId);
 }
@@ -1,5 +1,5 @@
 /*******************************************************************************
- *     Cloud Foundry 
+ *     Cloud Foundry
  *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
  *
  *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
@@ -15,23 +15,68 @@ package org.cloudfoundry.identity.uaa.codestore;
 import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.ListIterator;
 import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.cloudfoundry.identity.uaa.util.JsonUtils;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
 import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.jmx.support.MetricType;
 import org.springframework.security.oauth2.common.util.RandomValueStringGenerator;
 
-public class InMemoryExpiringCodeStore implements ExpiringCodeStore {
+/**
+ * Keeps expiring codes in memory, for single server deployments.
+ * <p>
+ * Codes are put in the slot of a hashed timer wheel for the tick they expire
+ * in, and a background task removes the codes of the slots it has passed.
+ * Codes whose data has an <code>email</code> and a <code>client_id</code> are
+ * also indexed by those, so {@link #retrieveLatest(String, String)} does not
+ * have to look at the other codes. The number of codes is bounded by
+ * <code>maxCodes</code>, new codes are refused once the store is full of
+ * codes that have not expired.
+ */
+@ManagedResource
+public class InMemoryExpiringCodeStore implements ExpiringCodeStore, InitializingBean, DisposableBean {
+
+    private final Log logger = LogFactory.getLog(getClass());
 
     private RandomValueStringGenerator generator = new RandomValueStringGenerator(6);
 
-    private ConcurrentMap<String, ExpiringCode> store = new ConcurrentHashMap<String, ExpiringCode>();
+    private final ConcurrentMap<String, Entry> store = new ConcurrentHashMap<String, Entry>();
+
+    //codes with the same email and client_id, the latest expiry last
+    private final ConcurrentMap<List<String>, LinkedList<Entry>> latest = new ConcurrentHashMap<List<String>, LinkedList<Entry>>();
+
+    private int maxCodes = 100000;
+
+    private long tickMillis = 1000;
+
+    private int wheelSize = 512;
+
+    private volatile List<Set<String>> wheel;
+
+    //guarded by the wheel
+    private long lastTick = -1;
+
+    private Timer timer;
+
+    private final AtomicInteger expiredCount = new AtomicInteger();
+
+    private final AtomicInteger rejectedCount = new AtomicInteger();
 
     @Override
     public ExpiringCode generateCode(String data, Timestamp expiresAt) {
@@ -43,14 +88,25 @@ public class InMemoryExpiringCodeStore implements ExpiringCodeStore {
             throw new IllegalArgumentException();
         }
 
+        if (store.size() >= maxCodes) {
+            removeExpiredCodes();
+            if (store.size() >= maxCodes) {
+                rejectedCount.incrementAndGet();
+                throw new IllegalStateException("Expiring code store is full, " + maxCodes + " codes have not expired yet.");
+            }
+        }
+
         String code = generator.generate();
 
         ExpiringCode expiringCode = new ExpiringCode(code, expiresAt, data);
+        Entry entry = new Entry(expiringCode, getIndexKey(data));
 
-        ExpiringCode duplicate = store.putIfAbsent(code, expiringCode);
+        Entry duplicate = store.putIfAbsent(code, entry);
         if (duplicate != null) {
             throw new DataIntegrityViolationException("Duplicate code: " + code);
         }
+        getSlot(expiresAt.getTime()).add(code);
+        index(entry);
 
         return expiringCode;
     }
@@ -61,13 +117,11 @@ public class InMemoryExpiringCodeStore implements ExpiringCodeStore {
             throw new NullPointerException();
         }
 
-        ExpiringCode expiringCode = store.remove(code);
-
-        if (expiringCode == null || expiringCode.getExpiresAt().getTime() < System.currentTimeMillis()) {
-            expiringCode = null;
+        Entry entry = store.get(code);
+        if (entry == null || !remove(entry)) {
+            return null;
         }
-
-        return expiringCode;
+        return isExpired(entry) ? null : entry.code;
     }
 
     @Override
@@ -77,20 +131,229 @@ public class InMemoryExpiringCodeStore implements ExpiringCodeStore {
 
     @Override
     public ExpiringCode retrieveLatest(String email, String clientId) {
-        List<ExpiringCode> expiringCodes = new ArrayList<>(store.values());
-        Collections.sort(expiringCodes, new Comparator<ExpiringCode>() {
-            @Override
-            public int compare(ExpiringCode o1, ExpiringCode o2) {
-                return o1.getExpiresAt().compareTo(o2.getExpiresAt());
+        List<String> key = Arrays.asList(email, clientId);
+        while (true) {
+            LinkedList<Entry> entries = latest.get(key);
+            if (entries == null) {
+                return null;
+            }
+            Entry entry;
+            synchronized (entries) {
+                if (entries.isEmpty()) {
+                    return null;
+                }
+                entry = entries.getLast();
+            }
+            if (remove(entry)) {
+                return isExpired(entry) ? null : entry.code;
+            }
+            //retrieved by someone else in the meantime
+            unindex(entry);
+        }
+    }
+
+    /**
+     * Removes the codes in the slots of the ticks that have fully passed
+     * since the last call.
+     *
+     * @return the number of expired codes that were removed
+     */
+    public int removeExpiredCodes() {
+        long now = System.currentTimeMillis();
+        long currentTick = now / tickMillis;
+        int expired = 0;
+        synchronized (getWheel()) {
+            //a slot holds the codes of every wheelSize-th tick, so one turn is enough
+            long from = Math.max(lastTick + 1, currentTick - wheelSize);
+            for (long tick = from; tick < currentTick; tick++) {
+                for (Iterator<String> it = getWheel().get((int) (tick % wheelSize)).iterator(); it.hasNext();) {
+                    Entry entry = store.get(it.next());
+                    if (entry == null) {
+                        it.remove();
+                    } else if (isExpired(entry, now)) {
+                        it.remove();
+                        if (remove(entry)) {
+                            expired++;
+                        }
+                    }
+                }
+            }
+            lastTick = currentTick - 1;
+        }
+        expiredCount.addAndGet(expired);
+        return expired;
+    }
+
+    private boolean remove(Entry entry) {
+        if (!store.remove(entry.code.getCode(), entry)) {
+            return false;
+        }
+        getSlot(entry.code.getExpiresAt().getTime()).remove(entry.code.getCode());
+        unindex(entry);
+        return true;
+    }
+
+    private void index(Entry entry) {
+        if (entry.indexKey == null) {
+            return;
+        }
+        while (true) {
+            LinkedList<Entry> entries = latest.get(entry.indexKey);
+            if (entries == null) {
+                entries = new LinkedList<Entry>();
+                LinkedList<Entry> existing = latest.putIfAbsent(entry.indexKey, entries);
+                if (existing != null) {
+                    entries = existing;
+                }
             }
-        }.reversed());
+            synchronized (entries) {
+                //the list may have been removed when its last code was retrieved
+                if (latest.get(entry.indexKey) != entries) {
+                    continue;
+                }
+                //codes are usually generated in expiry order
+                ListIterator<Entry> it = entries.listIterator(entries.size());
+                while (it.hasPrevious()) {
+                    if (it.previous().code.getExpiresAt().getTime() <= entry.code.getExpiresAt().getTime()) {
+                        it.next();
+                        break;
+                    }
+                }
+                it.add(entry);
+                return;
+            }
+        }
+    }
+
+    private void unindex(Entry entry) {
+        if (entry.indexKey == null) {
+            return;
+        }
+        LinkedList<Entry> entries = latest.get(entry.indexKey);
+        if (entries == null) {
+            return;
+        }
+        synchronized (entries) {
+            entries.remove(entry);
+            if (entries.isEmpty()) {
+                latest.remove(entry.indexKey, entries);
+            }
+        }
+    }
 
-        for (ExpiringCode code : expiringCodes) {
-            Map data = JsonUtils.readValue(code.getData(), Map.class);
-            if (data.get("email").equals(email) && data.get("client_id").equals(clientId)) {
-                return code;
+    private List<String> getIndexKey(String data) {
+        if (!data.startsWith("{")) {
+            return null;
+        }
+        try {
+            Map<?, ?> map = JsonUtils.readValue(data, Map.class);
+            Object email = map.get("email");
+            Object clientId = map.get("client_id");
+            if (email instanceof String && clientId instanceof String) {
+                return Arrays.asList((String) email, (String) clientId);
             }
+        } catch (JsonUtils.JsonUtilException x) {
+            logger.debug("Expiring code data is not a JSON object, it will not be indexed.");
         }
         return null;
     }
+
+    private boolean isExpired(Entry entry) {
+        return isExpired(entry, System.currentTimeMillis());
+    }
+
+    private boolean isExpired(Entry entry, long now) {
+        return entry.code.getExpiresAt().getTime() < now;
+    }
+
+    private Set<String> getSlot(long expiresAt) {
+        return getWheel().get((int) ((expiresAt / tickMillis) % wheelSize));
+    }
+
+    private List<Set<String>> getWheel() {
+        if (wheel == null) {
+            synchronized (this) {
+                if (wheel == null) {
+                    List<Set<String>> slots = new ArrayList<Set<String>>(wheelSize);
+                    for (int i = 0; i < wheelSize; i++) {
+                        slots.add(ConcurrentHashMap.<String> newKeySet());
+                    }
+                    wheel = slots;
+                }
+            }
+        }
+        return wheel;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        timer = new Timer("InMemoryExpiringCodeStore.Expiry", true);
+        timer.schedule(new ExpiryTask(), tickMillis, tickMillis);
+    }
+
+    @Override
+    public void destroy() {
+        if (timer != null) {
+            timer.cancel();
+            timer = null;
+        }
+    }
+
+    private class ExpiryTask extends TimerTask {
+        @Override
+        public void run() {
+            try {
+                removeExpiredCodes();
+            } catch (Exception x) {
+                logger.error("Unable to remove expired codes:", x);
+            }
+        }
+    }
+
+    private static class Entry {
+        private final ExpiringCode code;
+        private final List<String> indexKey;
+
+        private Entry(ExpiringCode code, List<String> indexKey) {
+            this.code = code;
+            this.indexKey = indexKey;
+        }
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Expiring Codes")
+    public int getCodeCount() {
+        return store.size();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Expiring Codes Removed After Expiry")
+    public int getExpiredCount() {
+        return expiredCount.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Expiring Codes Refused When Full")
+    public int getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    public int getMaxCodes() {
+        return maxCodes;
+    }
+
+    public void setMaxCodes(int maxCodes) {
+        this.maxCodes = maxCodes;
+    }
+
+    /**
+     * @param tickMillis the time covered by one slot of the timer wheel and
+     * how often expired codes are removed
+     */
+    public void setTickMillis(long tickMillis) {
+        this.tickMillis = tickMillis;
+        this.wheel = null;
+    }
+
+    public void setWheelSize(int wheelSize) {
+        this.wheelSize = wheelSize;
+        this.wheel = null;
+    }
 }
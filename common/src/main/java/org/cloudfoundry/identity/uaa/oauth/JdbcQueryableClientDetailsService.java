@@ -19,6 +19,7 @@ import java.util.Map;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.cloudfoundry.identity.uaa.rest.CursorPage;
 import org.cloudfoundry.identity.uaa.rest.QueryableResourceManager;
 import org.cloudfoundry.identity.uaa.rest.jdbc.AbstractQueryable;
 import org.cloudfoundry.identity.uaa.rest.jdbc.JdbcPagingListFactory;
@@ -63,11 +64,26 @@ public class JdbcQueryableClientDetailsService extends AbstractQueryable<ClientD
 
     @Override
     public List<ClientDetails> query(String filter, String sortBy, boolean ascending) {
-    	if (StringUtils.hasText(filter)) {
+        return super.query(addZoneFilter(filter), sortBy, ascending);
+    }
+
+    @Override
+    public CursorPage<ClientDetails> queryPage(String filter, String sortBy, boolean ascending, String cursor, int count) {
+        return super.queryPage(addZoneFilter(filter), sortBy, ascending, cursor, count);
+    }
+
+    @Override
+    protected String getIdColumn() {
+        return "client_id";
+    }
+
+    private String addZoneFilter(String filter) {
+        if (StringUtils.hasText(filter)) {
             filter += " and";
+        } else {
+            filter = "";
         }
-        filter += " identity_zone_id eq \""+IdentityZoneHolder.get().getId()+"\"";
-    	return super.query(filter, sortBy, ascending);
+        return filter + " identity_zone_id eq \""+IdentityZoneHolder.get().getId()+"\"";
     }
 
     @Override
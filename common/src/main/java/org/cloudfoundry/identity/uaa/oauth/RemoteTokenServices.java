@@ -18,17 +18,28 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
+import com.fasterxml.jackson.core.type.TypeReference;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.cloudfoundry.identity.uaa.oauth.token.SignerProvider;
 import org.cloudfoundry.identity.uaa.util.JsonUtils;
+import org.cloudfoundry.identity.uaa.util.LazyCache;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.security.jwt.Jwt;
+import org.springframework.security.jwt.JwtHelper;
+import org.springframework.security.jwt.crypto.sign.InvalidSignatureException;
+import org.springframework.security.jwt.crypto.sign.SignatureVerifier;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.AuthenticationException;
 import org.springframework.security.core.GrantedAuthority;
@@ -52,6 +63,15 @@ import org.springframework.web.client.RestTemplate;
  *
  * If the endpoint returns a 400 response, this indicates that the token is
  * invalid.
+ * <p>
+ * With local verification the keys of the UAA are fetched from its
+ * /token_keys endpoint instead, and access tokens are verified in process:
+ * their signature, expiry and, if set, issuer. Tokens signed with a key id
+ * that the UAA did not list, tokens whose signature does not match its
+ * keys even after fetching them again, and tokens with a revocation
+ * sensitive scope, are still checked with /check_token, as only the UAA
+ * knows whether a token was revoked or its keys have changed. Tokens
+ * verified locally are kept for a short while.
  *
  * @author Dave Syer
  * @author Luke Taylor
@@ -71,6 +91,20 @@ public class RemoteTokenServices implements ResourceServerTokenServices {
 
     private boolean storeClaims = false;
 
+    private boolean localVerification = false;
+
+    private String tokenKeysEndpointUrl;
+
+    private String issuer;
+
+    private Set<String> revocationSensitiveScopes = Collections.emptySet();
+
+    private int tokenKeysRefreshSeconds = 300;
+
+    private volatile TokenKeys tokenKeys;
+
+    private final LazyCache<String, Map<String, Object>> verifiedTokens = new LazyCache<>(1000, 60);
+
     public RemoteTokenServices() {
         restTemplate = new RestTemplate();
         ((RestTemplate) restTemplate).setErrorHandler(new DefaultResponseErrorHandler() {
@@ -113,9 +147,77 @@ public class RemoteTokenServices implements ResourceServerTokenServices {
         this.clientSecret = clientSecret;
     }
 
+    public boolean isLocalVerification() {
+        return localVerification;
+    }
+
+    /**
+     * Set to true to verify access tokens with the keys of the UAA, instead
+     * of asking the UAA /check_token endpoint for every token.
+     * @param localVerification true to verify tokens locally
+     */
+    public void setLocalVerification(boolean localVerification) {
+        this.localVerification = localVerification;
+    }
+
+    /**
+     * @param tokenKeysEndpointUrl the UAA /token_keys endpoint, by default
+     * the one next to the /check_token endpoint
+     */
+    public void setTokenKeysEndpointUrl(String tokenKeysEndpointUrl) {
+        this.tokenKeysEndpointUrl = tokenKeysEndpointUrl;
+    }
+
+    /**
+     * @param issuer the <code>iss</code> claim that locally verified tokens
+     * must have, not checked if null
+     */
+    public void setIssuer(String issuer) {
+        this.issuer = issuer;
+    }
+
+    /**
+     * @param revocationSensitiveScopes scopes for which tokens are always
+     * checked with /check_token, so that revoked tokens are refused at once
+     */
+    public void setRevocationSensitiveScopes(Set<String> revocationSensitiveScopes) {
+        this.revocationSensitiveScopes = revocationSensitiveScopes != null ? revocationSensitiveScopes : Collections.<String>emptySet();
+    }
+
+    /**
+     * @param tokenKeysRefreshSeconds how long the keys of the UAA are used
+     * before they are fetched again
+     */
+    public void setTokenKeysRefreshSeconds(int tokenKeysRefreshSeconds) {
+        this.tokenKeysRefreshSeconds = tokenKeysRefreshSeconds;
+    }
+
+    /**
+     * @param maxVerifiedTokens how many locally verified tokens are kept,
+     * 0 to keep none
+     */
+    public void setMaxVerifiedTokens(int maxVerifiedTokens) {
+        verifiedTokens.setMaxEntries(maxVerifiedTokens);
+    }
+
+    /**
+     * @param verifiedTokenTtlSeconds how long locally verified tokens are
+     * kept, never past their expiry
+     */
+    public void setVerifiedTokenTtlSeconds(int verifiedTokenTtlSeconds) {
+        verifiedTokens.setTimeToLiveSeconds(verifiedTokenTtlSeconds);
+    }
+
     @Override
     public OAuth2Authentication loadAuthentication(String accessToken) throws AuthenticationException {
+        Map<String, Object> map = localVerification ? verifyLocally(accessToken) : null;
+        if (map == null) {
+            map = checkToken(accessToken);
+        }
+        return getAuthentication(map);
+    }
 
+    private Map<String, Object> checkToken(String accessToken) {
         MultiValueMap<String, String> formData = new LinkedMultiValueMap<String, String>();
         formData.add("token", accessToken);
         HttpHeaders headers = new HttpHeaders();
@@ -126,7 +228,149 @@ public class RemoteTokenServices implements ResourceServerTokenServices {
             logger.debug("check_token returned error: " + map.get("error"));
             throw new InvalidTokenException(accessToken);
         }
+        return map;
+    }
+
+    /**
+     * @return the claims of the token, or null if it has to be checked with
+     * /check_token
+     */
+    private Map<String, Object> verifyLocally(String accessToken) {
+        Map<String, Object> claims = verifiedTokens.get(accessToken);
+        if (claims != null) {
+            checkExpiry(claims, accessToken);
+            return claims;
+        }
+
+        String keyId = SignerProvider.getKeyId(accessToken);
+        SignatureVerifier verifier = getVerifier(keyId);
+        if (verifier == null) {
+            logger.debug("No local key for key id " + keyId + ", using check_token");
+            return null;
+        }
+
+        Jwt jwt = decodeAndVerify(accessToken, verifier);
+        if (jwt == null) {
+            //the key may have changed since it was fetched, e.g. a rotated key without a key id
+            SignatureVerifier refreshed = getRefreshedVerifier(keyId);
+            if (refreshed != null && refreshed != verifier) {
+                jwt = decodeAndVerify(accessToken, refreshed);
+            }
+            if (jwt == null) {
+                logger.debug("Invalid signature for key id " + keyId + ", using check_token");
+                return null;
+            }
+        }
+        try {
+            claims = JsonUtils.readValue(jwt.getClaims(), new TypeReference<Map<String, Object>>() {
+            });
+        } catch (JsonUtils.JsonUtilException e) {
+            throw new InvalidTokenException(accessToken);
+        }
+        checkExpiry(claims, accessToken);
+        if (issuer != null && !issuer.equals(claims.get(Claims.ISS))) {
+            logger.debug("Invalid issuer for token: " + claims.get(Claims.ISS));
+            throw new InvalidTokenException(accessToken);
+        }
+
+        Object scope = claims.get(Claims.SCOPE);
+        if (scope instanceof Collection && !Collections.disjoint((Collection<?>) scope, revocationSensitiveScopes)) {
+            return null;
+        }
+        verifiedTokens.put(accessToken, claims);
+        return claims;
+    }
 
+    /**
+     * @return the decoded token, or null if its signature does not match
+     */
+    private Jwt decodeAndVerify(String accessToken, SignatureVerifier verifier) {
+        try {
+            return JwtHelper.decodeAndVerify(accessToken, verifier);
+        } catch (InvalidSignatureException e) {
+            return null;
+        } catch (RuntimeException e) {
+            logger.debug("Invalid token (could not decode)");
+            throw new InvalidTokenException(accessToken);
+        }
+    }
+
+    private void checkExpiry(Map<String, Object> claims, String accessToken) {
+        Object exp = claims.get(Claims.EXP);
+        if (!(exp instanceof Number) || TimeUnit.SECONDS.toMillis(((Number) exp).longValue()) <= System.currentTimeMillis()) {
+            logger.debug("Token has expired");
+            throw new InvalidTokenException(accessToken);
+        }
+    }
+
+    /**
+     * @param keyId the key id of a token, null for the signing key of the UAA
+     * @return the verifier for the key, or null if the UAA did not list it or
+     * its keys cannot be fetched
+     */
+    private SignatureVerifier getVerifier(String keyId) {
+        TokenKeys keys = tokenKeys;
+        long now = System.currentTimeMillis();
+        if (keys == null || keys.isStale(now, TimeUnit.SECONDS.toMillis(tokenKeysRefreshSeconds))
+                        || (!keys.contains(keyId) && keys.isStale(now, TokenKeys.MIN_REFRESH_MILLIS))) {
+            keys = refreshTokenKeys(keys);
+        }
+        return keys != null ? keys.get(keyId) : null;
+    }
+
+    /**
+     * @return the verifier for the key after fetching the keys again, at most
+     * as often as for unknown key ids, or null if the keys were fetched too
+     * recently or the UAA did not list it
+     */
+    private SignatureVerifier getRefreshedVerifier(String keyId) {
+        TokenKeys keys = tokenKeys;
+        if (keys == null || !keys.isStale(System.currentTimeMillis(), TokenKeys.MIN_REFRESH_MILLIS)) {
+            return null;
+        }
+        keys = refreshTokenKeys(keys);
+        return keys != null ? keys.get(keyId) : null;
+    }
+
+    private synchronized TokenKeys refreshTokenKeys(TokenKeys expected) {
+        TokenKeys keys = tokenKeys;
+        if (keys != expected) {
+            //another thread refreshed them
+            return keys;
+        }
+        HttpHeaders headers = new HttpHeaders();
+        headers.set("Authorization", getAuthorizationHeader(clientId, clientSecret));
+        headers.setAccept(Collections.singletonList(MediaType.APPLICATION_JSON));
+        if (keys != null && keys.etag != null) {
+            headers.setIfNoneMatch(keys.etag);
+        }
+        try {
+            @SuppressWarnings("rawtypes")
+            ResponseEntity<Map> response = restTemplate.exchange(getTokenKeysEndpointUrl(), HttpMethod.GET,
+                            new HttpEntity<Void>(headers), Map.class);
+            if (keys != null && response.getStatusCode() == HttpStatus.NOT_MODIFIED) {
+                keys = new TokenKeys(keys.signingVerifier, keys.legacyVerifier, keys.verifiers, keys.etag);
+            } else {
+                keys = new TokenKeys(response.getBody(), response.getHeaders().getETag());
+            }
+        } catch (RuntimeException e) {
+            logger.warn("Unable to fetch token keys from " + getTokenKeysEndpointUrl() + ", using check_token", e);
+            //try again later, and use check_token meanwhile
+            keys = new TokenKeys(null, null, Collections.<String, SignatureVerifier>emptyMap(), null);
+        }
+        tokenKeys = keys;
+        return keys;
+    }
+
+    private String getTokenKeysEndpointUrl() {
+        if (tokenKeysEndpointUrl == null && checkTokenEndpointUrl != null && checkTokenEndpointUrl.endsWith("/check_token")) {
+            return checkTokenEndpointUrl.substring(0, checkTokenEndpointUrl.length() - "/check_token".length()) + "/token_keys";
+        }
+        Assert.state(tokenKeysEndpointUrl != null, "A token keys endpoint URL is needed for local verification");
+        return tokenKeysEndpointUrl;
+    }
+
+    private OAuth2Authentication getAuthentication(Map<String, Object> map) {
         Assert.state(map.containsKey("client_id"), "Client id must be present in response from auth server");
         String remoteClientId = (String) map.get("client_id");
 
@@ -202,6 +446,80 @@ public class RemoteTokenServices implements ResourceServerTokenServices {
         return new RemoteUserAuthentication(id, username, email, userAuthorities);
     }
 
+    /**
+     * The keys of the UAA as listed by its /token_keys endpoint.
+     */
+    private static class TokenKeys {
+
+        /**
+         * Unknown key ids fetch the keys again at most this often.
+         */
+        static final long MIN_REFRESH_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+        private final SignatureVerifier signingVerifier;
+
+        /**
+         * The first key without a key id: the signing key if it has none,
+         * otherwise the legacy key for tokens signed before key ids.
+         */
+        private final SignatureVerifier legacyVerifier;
+
+        private final Map<String, SignatureVerifier> verifiers;
+
+        private final String etag;
+
+        private final long fetched = System.currentTimeMillis();
+
+        private TokenKeys(SignatureVerifier signingVerifier, SignatureVerifier legacyVerifier, Map<String, SignatureVerifier> verifiers, String etag) {
+            this.signingVerifier = signingVerifier;
+            this.legacyVerifier = legacyVerifier;
+            this.verifiers = verifiers;
+            this.etag = etag;
+        }
+
+        @SuppressWarnings("unchecked")
+        private TokenKeys(Map<String, Object> response, String etag) {
+            Map<String, SignatureVerifier> verifiers = new HashMap<>();
+            SignatureVerifier signingVerifier = null;
+            SignatureVerifier legacyVerifier = null;
+            List<Map<String, String>> keys = response != null ? (List<Map<String, String>>) response.get("keys") : null;
+            if (keys != null) {
+                for (Map<String, String> key : keys) {
+                    String keyId = key.get("kid");
+                    SignatureVerifier verifier = SignerProvider.createVerifier(keyId, key.get("value"), null, null);
+                    //the signing key comes first
+                    if (signingVerifier == null) {
+                        signingVerifier = verifier;
+                    }
+                    if (keyId != null) {
+                        verifiers.put(keyId, verifier);
+                    } else if (legacyVerifier == null) {
+                        legacyVerifier = verifier;
+                    }
+                }
+            }
+            this.signingVerifier = signingVerifier;
+            this.legacyVerifier = legacyVerifier;
+            this.verifiers = verifiers;
+            this.etag = etag;
+        }
+
+        private boolean contains(String keyId) {
+            return get(keyId) != null;
+        }
+
+        private SignatureVerifier get(String keyId) {
+            if (keyId == null) {
+                return legacyVerifier != null ? legacyVerifier : signingVerifier;
+            }
+            return verifiers.get(keyId);
+        }
+
+        private boolean isStale(long now, long maxAgeMillis) {
+            return now - fetched >= maxAgeMillis;
+        }
+    }
+
     @Override
     public OAuth2AccessToken readAccessToken(String accessToken) {
         throw new UnsupportedOperationException("Not supported: read access token");
@@ -0,0 +1,157 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.oauth;
+
+import org.cloudfoundry.identity.uaa.user.UaaUser;
+import org.cloudfoundry.identity.uaa.user.UaaUserDatabase;
+import org.cloudfoundry.identity.uaa.zone.IdentityZoneHolder;
+import org.cloudfoundry.identity.uaa.zone.MultitenantJdbcClientDetailsService;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.jmx.support.MetricType;
+import org.springframework.security.core.userdetails.UsernameNotFoundException;
+import org.springframework.security.oauth2.provider.ClientDetails;
+import org.springframework.security.oauth2.provider.ClientDetailsService;
+import org.springframework.security.oauth2.provider.ClientRegistrationException;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loads each user and client at most once per HTTP request, for the
+ * components on the token issuing path that look them up several times per
+ * grant.
+ * <p>
+ * Lookups are kept in a request attribute, outside of a request every lookup
+ * goes to the delegates. Lookups that fail are not kept. Clients are copied
+ * for every caller, because some callers modify them.
+ */
+@ManagedResource
+public class RequestScopedIdentityContext implements UaaUserDatabase, ClientDetailsService {
+
+    static final String ATTRIBUTE = RequestScopedIdentityContext.class.getName() + ".LOOKUPS";
+
+    private final UaaUserDatabase userDatabase;
+
+    private final ClientDetailsService clientDetailsService;
+
+    private final AtomicLong lookupCount = new AtomicLong();
+
+    private final AtomicLong savedLookupCount = new AtomicLong();
+
+    private final AtomicLong requestCount = new AtomicLong();
+
+    public RequestScopedIdentityContext(UaaUserDatabase userDatabase, ClientDetailsService clientDetailsService) {
+        this.userDatabase = userDatabase;
+        this.clientDetailsService = clientDetailsService;
+    }
+
+    @Override
+    public UaaUser retrieveUserByName(String username, String origin) throws UsernameNotFoundException {
+        Map<String, Object> lookups = getLookups();
+        String key = "name:" + IdentityZoneHolder.get().getId() + ":" + origin + ":" + username.toLowerCase();
+        UaaUser user = (UaaUser) get(lookups, key);
+        if (user == null) {
+            user = userDatabase.retrieveUserByName(username, origin);
+            put(lookups, key, user);
+            put(lookups, getUserKey(user.getId()), user);
+        }
+        return user;
+    }
+
+    @Override
+    public UaaUser retrieveUserById(String id) throws UsernameNotFoundException {
+        Map<String, Object> lookups = getLookups();
+        String key = getUserKey(id);
+        UaaUser user = (UaaUser) get(lookups, key);
+        if (user == null) {
+            user = userDatabase.retrieveUserById(id);
+            put(lookups, key, user);
+        }
+        return user;
+    }
+
+    @Override
+    public ClientDetails loadClientByClientId(String clientId) throws ClientRegistrationException {
+        Map<String, Object> lookups = getLookups();
+        String key = "client:" + IdentityZoneHolder.get().getId() + ":" + clientId;
+        ClientDetails client = (ClientDetails) get(lookups, key);
+        if (client == null) {
+            client = clientDetailsService.loadClientByClientId(clientId);
+            put(lookups, key, client);
+        }
+        return client != null ? MultitenantJdbcClientDetailsService.copyOf(client) : null;
+    }
+
+    private String getUserKey(String id) {
+        return "id:" + IdentityZoneHolder.get().getId() + ":" + id;
+    }
+
+    /**
+     * @return the lookups of the current request, or null outside of a
+     * request
+     */
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> getLookups() {
+        RequestAttributes attributes = RequestContextHolder.getRequestAttributes();
+        if (attributes == null) {
+            return null;
+        }
+        Map<String, Object> lookups = (Map<String, Object>) attributes.getAttribute(ATTRIBUTE, RequestAttributes.SCOPE_REQUEST);
+        if (lookups == null) {
+            lookups = new HashMap<String, Object>();
+            attributes.setAttribute(ATTRIBUTE, lookups, RequestAttributes.SCOPE_REQUEST);
+            requestCount.incrementAndGet();
+        }
+        return lookups;
+    }
+
+    private Object get(Map<String, Object> lookups, String key) {
+        lookupCount.incrementAndGet();
+        Object result = lookups != null ? lookups.get(key) : null;
+        if (result != null) {
+            savedLookupCount.incrementAndGet();
+        }
+        return result;
+    }
+
+    private void put(Map<String, Object> lookups, String key, Object value) {
+        if (lookups != null && value != null) {
+            lookups.put(key, value);
+        }
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Identity Lookup Count")
+    public long getLookupCount() {
+        return lookupCount.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Identity Lookups Saved")
+    public long getSavedLookupCount() {
+        return savedLookupCount.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Identity Lookup Request Count")
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Identity Lookups Saved Per Request")
+    public double getSavedLookupsPerRequest() {
+        long requests = requestCount.get();
+        return requests == 0 ? 0 : (double) savedLookupCount.get() / requests;
+    }
+}
@@ -12,7 +12,11 @@
  *******************************************************************************/
 package org.cloudfoundry.identity.uaa.oauth.approval;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public interface ApprovalStore {
 
@@ -25,4 +29,17 @@ public interface ApprovalStore {
     public List<Approval> getApprovals(String filter);
 
     public List<Approval> getApprovals(String userId, String clientId);
+
+    /**
+     * Retrieve the approvals of several users at once.
+     *
+     * @return the approvals of each user, by user id
+     */
+    public default Map<String, List<Approval>> getApprovalsForUsers(Collection<String> userIds) {
+        Map<String, List<Approval>> approvals = new HashMap<>();
+        for (String userId : userIds) {
+            approvals.put(userId, new ArrayList<>(getApprovals(String.format("user_id eq \"%s\"", userId))));
+        }
+        return approvals;
+    }
 }
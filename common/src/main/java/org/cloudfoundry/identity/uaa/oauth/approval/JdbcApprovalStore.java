@@ -18,7 +18,10 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -38,6 +41,7 @@ import org.springframework.dao.EmptyResultDataAccessException;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.PreparedStatementSetter;
 import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
 import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContextHolder;
@@ -68,6 +72,10 @@ public class JdbcApprovalStore implements ApprovalStore, ApplicationEventPublish
 
     private static final String GET_AUTHZ_SQL = String.format("select %s from %s", FIELDS, TABLE_NAME);
 
+    private static final String GET_AUTHZ_BY_USERS_SQL = String.format("select %s from %s where user_id in (:ids)", FIELDS, TABLE_NAME);
+
+    private static final int MAX_IDS_PER_QUERY = 500;
+
     private static final String DELETE_AUTHZ_SQL = String.format("delete from %s", TABLE_NAME);
 
     private static final String EXPIRE_AUTHZ_SQL = String.format("update %s set expiresAt = :expiry", TABLE_NAME);
@@ -201,6 +209,24 @@ public class JdbcApprovalStore implements ApprovalStore, ApplicationEventPublish
         return getApprovals(String.format("user_id eq \"%s\" and client_id eq \"%s\"", userId, clientId));
     }
 
+    @Override
+    public Map<String, List<Approval>> getApprovalsForUsers(Collection<String> userIds) {
+        List<String> idList = new ArrayList<>(userIds);
+        Map<String, List<Approval>> approvals = new HashMap<>();
+        for (String userId : idList) {
+            approvals.put(userId, new ArrayList<Approval>());
+        }
+        NamedParameterJdbcTemplate template = new NamedParameterJdbcTemplate(jdbcTemplate);
+        for (int i = 0; i < idList.size(); i += MAX_IDS_PER_QUERY) {
+            MapSqlParameterSource params = new MapSqlParameterSource()
+                .addValue("ids", idList.subList(i, Math.min(i + MAX_IDS_PER_QUERY, idList.size())));
+            for (Approval approval : template.query(GET_AUTHZ_BY_USERS_SQL, params, rowMapper)) {
+                approvals.get(approval.getUserId()).add(approval);
+            }
+        }
+        return approvals;
+    }
+
     @Override
     public void setApplicationEventPublisher(ApplicationEventPublisher applicationEventPublisher) {
         this.applicationEventPublisher = applicationEventPublisher;
@@ -0,0 +1,239 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.oauth.token;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.core.util.ByteArrayBuilder;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.springframework.security.jwt.JwtHelper;
+import org.springframework.security.jwt.crypto.sign.Signer;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.cloudfoundry.identity.uaa.oauth.Claims.AZP;
+import static org.cloudfoundry.identity.uaa.oauth.Claims.CID;
+import static org.cloudfoundry.identity.uaa.oauth.Claims.CLIENT_ID;
+import static org.cloudfoundry.identity.uaa.oauth.Claims.ISS;
+import static org.cloudfoundry.identity.uaa.oauth.Claims.ZONE_ID;
+
+/**
+ * Writes JWTs from claims serialized straight to JSON bytes, without a map of
+ * claims or a JSON string in between. Headers have the key id of the signer
+ * if it has one.
+ * <p>
+ * Claims are written as JSON objects that can be merged, so that claims
+ * shared by several tokens are written once. The claims of a client and of
+ * an issuer, and the header of a signer, are kept once written.
+ */
+public class JwtWriter {
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private static final JsonFactory factory = mapper.getFactory();
+
+    private static final Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+
+    private final Cache<String, byte[]> fragments = CacheBuilder.newBuilder().maximumSize(1000).build();
+
+    private volatile Header header;
+
+    /**
+     * @return an empty JSON object to write claims into
+     */
+    public Payload payload() {
+        return new Payload();
+    }
+
+    /**
+     * @return the <code>client_id</code>, <code>cid</code> and
+     * <code>azp</code> claims of the client
+     */
+    public byte[] getClientClaims(String clientId) {
+        String key = "client " + clientId;
+        byte[] result = fragments.getIfPresent(key);
+        if (result == null) {
+            result = payload().put(CLIENT_ID, clientId).put(CID, clientId).put(AZP, clientId).toJson();
+            fragments.put(key, result);
+        }
+        return result;
+    }
+
+    /**
+     * @return the <code>iss</code> and <code>zid</code> claims of the issuer
+     */
+    public byte[] getIssuerClaims(String issuer, String zoneId) {
+        String key = "issuer " + zoneId + " " + issuer;
+        byte[] result = fragments.getIfPresent(key);
+        if (result == null) {
+            result = payload().put(ISS, issuer).put(ZONE_ID, zoneId).toJson();
+            fragments.put(key, result);
+        }
+        return result;
+    }
+
+    /**
+     * @return one JSON object with the members of all the given objects,
+     * which must not share any names
+     */
+    public static byte[] merge(byte[]... objects) {
+        int length = 2;
+        for (byte[] object : objects) {
+            length += object.length - 1;
+        }
+        byte[] result = new byte[length];
+        int position = 0;
+        result[position++] = '{';
+        for (byte[] object : objects) {
+            //without its braces
+            int members = object.length - 2;
+            if (members > 0) {
+                if (position > 1) {
+                    result[position++] = ',';
+                }
+                System.arraycopy(object, 1, result, position, members);
+                position += members;
+            }
+        }
+        result[position++] = '}';
+        return position == result.length ? result : Arrays.copyOf(result, position);
+    }
+
+    /**
+     * @return the signed JWT of the claims, a JSON object
+     */
+    public String encode(byte[] claims, Signer signer) {
+        byte[] encodedHeader = getHeader(signer);
+        byte[] encodedClaims = encoder.encode(claims);
+        byte[] content = new byte[encodedHeader.length + 1 + encodedClaims.length];
+        System.arraycopy(encodedHeader, 0, content, 0, encodedHeader.length);
+        content[encodedHeader.length] = '.';
+        System.arraycopy(encodedClaims, 0, content, encodedHeader.length + 1, encodedClaims.length);
+        byte[] signature = encoder.encode(signer.sign(content));
+        StringBuilder result = new StringBuilder(content.length + 1 + signature.length);
+        appendAscii(result, content);
+        result.append('.');
+        appendAscii(result, signature);
+        return result.toString();
+    }
+
+    private static void appendAscii(StringBuilder builder, byte[] bytes) {
+        for (byte b : bytes) {
+            builder.append((char) b);
+        }
+    }
+
+    /**
+     * @return the encoded header that {@link JwtHelper} writes for the
+     * signer, with the <code>kid</code> of a {@link PooledSigner} that has one
+     */
+    private byte[] getHeader(Signer signer) {
+        Header result = header;
+        if (result == null || result.signer != signer) {
+            String encoded = JwtHelper.encode("{}", signer).getEncoded();
+            encoded = encoded.substring(0, encoded.indexOf('.'));
+            String keyId = signer instanceof PooledSigner ? ((PooledSigner) signer).getKeyId() : null;
+            if (keyId != null) {
+                try {
+                    Map<String, Object> fields = mapper.readValue(Base64.getUrlDecoder().decode(encoded), new TypeReference<LinkedHashMap<String, Object>>() {});
+                    fields.put("kid", keyId);
+                    encoded = encoder.encodeToString(mapper.writeValueAsBytes(fields));
+                } catch (IOException e) {
+                    throw new IllegalStateException("Cannot write header", e);
+                }
+            }
+            result = new Header(signer, encoded.getBytes(StandardCharsets.US_ASCII));
+            header = result;
+        }
+        return result.encoded;
+    }
+
+    private static class Header {
+        private final Signer signer;
+        private final byte[] encoded;
+
+        private Header(Signer signer, byte[] encoded) {
+            this.signer = signer;
+            this.encoded = encoded;
+        }
+    }
+
+    /**
+     * A JSON object of claims, written as they are put.
+     */
+    public static class Payload {
+        private final ByteArrayBuilder bytes = new ByteArrayBuilder(512);
+        private final JsonGenerator generator;
+
+        private Payload() {
+            try {
+                generator = factory.createGenerator(bytes);
+                generator.writeStartObject();
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot write claims", e);
+            }
+        }
+
+        public Payload put(String name, String value) {
+            try {
+                generator.writeStringField(name, value);
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot write claim " + name, e);
+            }
+            return this;
+        }
+
+        public Payload put(String name, long value) {
+            try {
+                generator.writeNumberField(name, value);
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot write claim " + name, e);
+            }
+            return this;
+        }
+
+        /**
+         * @param value any value that Jackson can write, like collections
+         * and maps
+         */
+        public Payload put(String name, Object value) {
+            try {
+                generator.writeObjectField(name, value);
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot write claim " + name, e);
+            }
+            return this;
+        }
+
+        /**
+         * @return the JSON object, no more claims can be put
+         */
+        public byte[] toJson() {
+            try {
+                generator.writeEndObject();
+                generator.close();
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot write claims", e);
+            }
+            return bytes.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,246 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.oauth.token;
+
+import org.cloudfoundry.identity.uaa.util.LatencyHistogram;
+import org.springframework.security.jwt.crypto.sign.InvalidSignatureException;
+import org.springframework.security.jwt.crypto.sign.SignatureVerifier;
+import org.springframework.security.jwt.crypto.sign.Signer;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.MessageDigest;
+import java.security.Signature;
+import java.security.interfaces.RSAPrivateKey;
+import java.security.interfaces.RSAPublicKey;
+
+/**
+ * Signs and verifies with a parsed key and one initialized
+ * {@link Signature} or {@link Mac} per thread, instead of looking up and
+ * initializing a new one for every token like <code>RsaSigner</code>,
+ * <code>RsaVerifier</code> and <code>MacSigner</code> do.
+ * <p>
+ * Algorithm names are the ones of the Spring Security JWT classes, so that
+ * <code>JwtHelper</code> writes the same headers. The key id, if any, is
+ * written in the headers by {@link JwtWriter}. Latencies are recorded in the
+ * histograms given, which may be null.
+ */
+public abstract class PooledSigner implements Signer, SignatureVerifier {
+
+    private final String algorithm;
+
+    private final String keyId;
+
+    private final LatencyHistogram signingLatency;
+
+    private final LatencyHistogram verificationLatency;
+
+    private PooledSigner(String algorithm, String keyId, LatencyHistogram signingLatency, LatencyHistogram verificationLatency) {
+        this.algorithm = algorithm;
+        this.keyId = keyId;
+        this.signingLatency = signingLatency;
+        this.verificationLatency = verificationLatency;
+    }
+
+    /**
+     * @param privateKey the key to sign with, null for a verifier
+     * @param publicKey the key to verify with, null for a signer
+     * @param keyId the <code>kid</code> of the key, may be null
+     */
+    public static PooledSigner rsa(RSAPrivateKey privateKey, RSAPublicKey publicKey, String keyId, LatencyHistogram signingLatency, LatencyHistogram verificationLatency) {
+        return new Rsa(privateKey, publicKey, keyId, signingLatency, verificationLatency);
+    }
+
+    /**
+     * @param keyId the <code>kid</code> of the key, may be null
+     */
+    public static PooledSigner mac(String key, String keyId, LatencyHistogram signingLatency, LatencyHistogram verificationLatency) {
+        return new Hmac(new SecretKeySpec(key.getBytes(StandardCharsets.UTF_8), Hmac.ALGORITHM), keyId, signingLatency, verificationLatency);
+    }
+
+    @Override
+    public String algorithm() {
+        return algorithm;
+    }
+
+    /**
+     * @return the <code>kid</code> of the key, or null
+     */
+    public String getKeyId() {
+        return keyId;
+    }
+
+    /**
+     * @return the key signatures are verified with
+     */
+    public abstract Key getVerifierKey();
+
+    @Override
+    public byte[] sign(byte[] bytes) {
+        long start = System.nanoTime();
+        try {
+            return doSign(bytes);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            record(signingLatency, start);
+        }
+    }
+
+    @Override
+    public void verify(byte[] content, byte[] signature) {
+        long start = System.nanoTime();
+        boolean verified;
+        try {
+            verified = doVerify(content, signature);
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        } finally {
+            record(verificationLatency, start);
+        }
+        if (!verified) {
+            throw new InvalidSignatureException("Calculated signature did not match actual value");
+        }
+    }
+
+    private static void record(LatencyHistogram histogram, long start) {
+        if (histogram != null) {
+            histogram.record(System.nanoTime() - start);
+        }
+    }
+
+    protected abstract byte[] doSign(byte[] bytes) throws GeneralSecurityException;
+
+    protected abstract boolean doVerify(byte[] content, byte[] signature) throws GeneralSecurityException;
+
+    private static class Rsa extends PooledSigner {
+
+        static final String ALGORITHM = "SHA256withRSA";
+
+        private final RSAPublicKey publicKey;
+
+        private final ThreadLocal<Signature> signers;
+
+        private final ThreadLocal<Signature> verifiers;
+
+        private Rsa(final RSAPrivateKey privateKey, final RSAPublicKey publicKey, String keyId, LatencyHistogram signingLatency, LatencyHistogram verificationLatency) {
+            super(ALGORITHM, keyId, signingLatency, verificationLatency);
+            this.publicKey = publicKey;
+            this.signers = new ThreadLocal<Signature>() {
+                @Override
+                protected Signature initialValue() {
+                    if (privateKey == null) {
+                        throw new UnsupportedOperationException("No private key to sign with");
+                    }
+                    try {
+                        Signature result = Signature.getInstance(ALGORITHM);
+                        result.initSign(privateKey);
+                        return result;
+                    } catch (GeneralSecurityException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            };
+            this.verifiers = new ThreadLocal<Signature>() {
+                @Override
+                protected Signature initialValue() {
+                    if (publicKey == null) {
+                        throw new UnsupportedOperationException("No public key to verify with");
+                    }
+                    try {
+                        Signature result = Signature.getInstance(ALGORITHM);
+                        result.initVerify(publicKey);
+                        return result;
+                    } catch (GeneralSecurityException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            };
+        }
+
+        @Override
+        public Key getVerifierKey() {
+            return publicKey;
+        }
+
+        @Override
+        protected byte[] doSign(byte[] bytes) throws GeneralSecurityException {
+            Signature signature = signers.get();
+            try {
+                //signing resets the signature for the next use
+                signature.update(bytes);
+                return signature.sign();
+            } catch (GeneralSecurityException e) {
+                signers.remove();
+                throw e;
+            }
+        }
+
+        @Override
+        protected boolean doVerify(byte[] content, byte[] signature) throws GeneralSecurityException {
+            Signature verifier = verifiers.get();
+            try {
+                verifier.update(content);
+                return verifier.verify(signature);
+            } catch (GeneralSecurityException e) {
+                verifiers.remove();
+                throw e;
+            }
+        }
+    }
+
+    private static class Hmac extends PooledSigner {
+
+        static final String ALGORITHM = "HMACSHA256";
+
+        private final SecretKeySpec key;
+
+        private final ThreadLocal<Mac> macs;
+
+        private Hmac(final SecretKeySpec key, String keyId, LatencyHistogram signingLatency, LatencyHistogram verificationLatency) {
+            super(ALGORITHM, keyId, signingLatency, verificationLatency);
+            this.key = key;
+            this.macs = new ThreadLocal<Mac>() {
+                @Override
+                protected Mac initialValue() {
+                    try {
+                        Mac result = Mac.getInstance(ALGORITHM);
+                        result.init(key);
+                        return result;
+                    } catch (GeneralSecurityException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            };
+        }
+
+        @Override
+        public Key getVerifierKey() {
+            return key;
+        }
+
+        @Override
+        protected byte[] doSign(byte[] bytes) {
+            //doFinal resets the mac for the next use
+            return macs.get().doFinal(bytes);
+        }
+
+        @Override
+        protected boolean doVerify(byte[] content, byte[] signature) {
+            return MessageDigest.isEqual(doSign(content), signature);
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.oauth.token;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.cloudfoundry.identity.uaa.audit.AuditEvent;
+import org.cloudfoundry.identity.uaa.audit.event.AbstractUaaEvent;
+import org.cloudfoundry.identity.uaa.util.LazyCache;
+import org.cloudfoundry.identity.uaa.zone.IdentityZoneHolder;
+import org.springframework.context.ApplicationListener;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.jmx.support.MetricType;
+
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In memory store of the current token revocation hash for each
+ * (zone, client, user) combination, so that validating a revocable token
+ * does not have to load the client and the user from the database.
+ * <p>
+ * Entries are refreshed whenever a new hash is computed and are invalidated
+ * when this node publishes a password, email, username or client secret change.
+ * Changes made by other nodes are picked up once an entry reaches its time to live,
+ * so until then tokens revoked through another node are still accepted here. The
+ * store is therefore disabled unless enabled explicitly, and then every token is
+ * checked against the database.
+ */
+@ManagedResource
+public class RevocationHashStore implements ApplicationListener<AbstractUaaEvent> {
+
+    private final Log logger = LogFactory.getLog(getClass());
+
+    private boolean enabled = false;
+
+    private final LazyCache<Key, String> cache = new LazyCache<>(10000, 60);
+
+    private final AtomicInteger invalidationCount = new AtomicInteger();
+
+    /**
+     * @return the current revocation hash or null if it has to be computed
+     */
+    public String get(String clientId, String userId) {
+        if (!isEnabled()) {
+            return null;
+        }
+        return cache.get(new Key(IdentityZoneHolder.get().getId(), clientId, userId));
+    }
+
+    public void put(String clientId, String userId, String hash) {
+        if (!isEnabled() || clientId == null || hash == null) {
+            return;
+        }
+        cache.put(new Key(IdentityZoneHolder.get().getId(), clientId, userId), hash);
+    }
+
+    public void invalidateUser(String userId) {
+        if (userId == null) {
+            return;
+        }
+        for (Iterator<Key> it = cache.asMap().keySet().iterator(); it.hasNext();) {
+            if (userId.equals(it.next().userId)) {
+                it.remove();
+            }
+        }
+        invalidationCount.incrementAndGet();
+    }
+
+    public void invalidateClient(String clientId) {
+        if (clientId == null) {
+            return;
+        }
+        for (Iterator<Key> it = cache.asMap().keySet().iterator(); it.hasNext();) {
+            if (clientId.equals(it.next().clientId)) {
+                it.remove();
+            }
+        }
+        invalidationCount.incrementAndGet();
+    }
+
+    public void clear() {
+        cache.invalidateAll();
+    }
+
+    @Override
+    public void onApplicationEvent(AbstractUaaEvent event) {
+        AuditEvent auditEvent = event.getAuditEvent();
+        if (auditEvent == null || auditEvent.getType() == null) {
+            return;
+        }
+        switch (auditEvent.getType()) {
+            case PasswordChangeSuccess:
+            case UserModifiedEvent:
+            case UserDeletedEvent:
+            case EmailChangedEvent:
+                logger.debug("Invalidating revocation hashes for user:" + auditEvent.getPrincipalId());
+                invalidateUser(auditEvent.getPrincipalId());
+                break;
+            case SecretChangeSuccess:
+            case ClientUpdateSuccess:
+            case ClientDeleteSuccess:
+                logger.debug("Invalidating revocation hashes for client:" + auditEvent.getPrincipalId());
+                invalidateClient(auditEvent.getPrincipalId());
+                break;
+            default:
+                break;
+        }
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Revocation Hash Hit Count")
+    public int getHitCount() {
+        return cache.getHitCount();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Revocation Hash Miss Count")
+    public int getMissCount() {
+        return cache.getMissCount();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Revocation Hash Invalidation Count")
+    public int getInvalidationCount() {
+        return invalidationCount.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Revocation Hash Entries")
+    public long getSize() {
+        return cache.size();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public int getMaxEntries() {
+        return cache.getMaxEntries();
+    }
+
+    public void setMaxEntries(int maxEntries) {
+        cache.setMaxEntries(maxEntries);
+    }
+
+    public int getTimeToLiveSeconds() {
+        return cache.getTimeToLiveSeconds();
+    }
+
+    public void setTimeToLiveSeconds(int timeToLiveSeconds) {
+        cache.setTimeToLiveSeconds(timeToLiveSeconds);
+    }
+
+    private static class Key {
+        private final String zoneId;
+        private final String clientId;
+        private final String userId;
+
+        private Key(String zoneId, String clientId, String userId) {
+            this.zoneId = zoneId;
+            this.clientId = clientId;
+            this.userId = userId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return eq(zoneId, key.zoneId) && eq(clientId, key.clientId) && eq(userId, key.userId);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = zoneId != null ? zoneId.hashCode() : 0;
+            result = 31 * result + (clientId != null ? clientId.hashCode() : 0);
+            result = 31 * result + (userId != null ? userId.hashCode() : 0);
+            return result;
+        }
+
+        private static boolean eq(String a, String b) {
+            return a == null ? b == null : a.equals(b);
+        }
+    }
+}
@@ -12,92 +12,217 @@
  *******************************************************************************/
 package org.cloudfoundry.identity.uaa.oauth.token;
 
-import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.cloudfoundry.identity.uaa.util.JsonUtils;
+import org.cloudfoundry.identity.uaa.util.LatencyHistogram;
 import org.springframework.beans.factory.InitializingBean;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.jmx.support.MetricType;
 import org.springframework.security.jwt.crypto.sign.InvalidSignatureException;
-import org.springframework.security.jwt.crypto.sign.MacSigner;
 import org.springframework.security.jwt.crypto.sign.RsaSigner;
 import org.springframework.security.jwt.crypto.sign.RsaVerifier;
 import org.springframework.security.jwt.crypto.sign.SignatureVerifier;
 import org.springframework.security.jwt.crypto.sign.Signer;
 import org.springframework.security.oauth2.common.util.RandomValueStringGenerator;
 import org.springframework.util.Assert;
+import org.springframework.util.StringUtils;
 
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.security.interfaces.RSAPrivateKey;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
 
 /**
  * A class that knows how to provide the signing and verification keys
- *
- *
+ * <p>
+ * Keys are parsed once, signers and verifiers keep an initialized
+ * <code>Signature</code> or <code>Mac</code> per thread (see
+ * {@link PooledSigner}). The keys, signer and verifier are replaced together
+ * when a key changes, and the latencies of signing and verifying are
+ * published as histograms.
+ * <p>
+ * The signing key can have a key id, written as <code>kid</code> in the
+ * headers of the tokens it signs. More verification keys, typically the
+ * previous signing keys, can be added by key id so that their tokens stay
+ * valid while a new signing key is rolled out. Tokens with the key id of the
+ * signing key are verified with the key of the signing key. Tokens without a
+ * key id are verified with the legacy verification key if one is set and the
+ * signing key has a key id, otherwise with the key of the signing key.
  */
+@ManagedResource
 public class SignerProvider implements InitializingBean {
 
+    /**
+     * Key ids are kept simple, <code>JwtHelper</code> cannot read headers
+     * with commas or colons in their values.
+     */
+    private static final Pattern KEY_ID = Pattern.compile("[A-Za-z0-9._-]+");
+
     private final Log logger = LogFactory.getLog(getClass());
-    private String verifierKey = new RandomValueStringGenerator().generate();
-    private String signingKey = verifierKey;
-    private Signer signer = new MacSigner(verifierKey);
-    private String type = "MAC";
+    private final LatencyHistogram signingLatency = new LatencyHistogram();
+    private final LatencyHistogram verificationLatency = new LatencyHistogram();
+    private volatile Keys keys = createKeys(new RandomValueStringGenerator().generate(), null, null,
+                    Collections.<String, String>emptyMap(), Collections.<String, SignatureVerifier>emptyMap());
+    private volatile String legacyVerificationKey;
+    private volatile SignatureVerifier legacyVerifier;
 
     @Override
     public void afterPropertiesSet() throws Exception {
-        if (signer instanceof RsaSigner) {
-            type = "RSA";
-            RsaVerifier verifier;
+        Keys current = keys;
+        if (current.isAssymetric()) {
+            SignatureVerifier verifier;
             try {
-                verifier = new RsaVerifier(verifierKey);
+                verifier = getVerifier(current);
             } catch (Exception e) {
                 throw new RuntimeException("Unable to create an RSA verifier from verifierKey", e);
             }
 
             byte[] test = "test".getBytes();
             try {
-                verifier.verify(test, signer.sign(test));
+                verifier.verify(test, current.signer.sign(test));
                 logger.debug("Signing and verification RSA keys match");
             } catch (InvalidSignatureException e) {
                 throw new RuntimeException("Signing and verification RSA keys do not match", e);
             }
         }
         else {
-            Assert.state(this.signingKey == this.verifierKey,
+            Assert.state(current.signingKey == current.verifierKey,
                             "For MAC signing you do not need to specify the verifier key separately, and if you do it must match the signing key");
         }
     }
 
     public Signer getSigner() {
-        return signer;
+        return keys.signer;
     }
 
     /**
      * @return the verifierKey
      */
     public String getVerifierKey() {
-        return verifierKey;
+        return keys.verifierKey;
     }
 
     public String getSigningKey() {
-        return signingKey;
+        return keys.signingKey;
     }
 
     public String getType() {
-        return type;
+        return keys.isAssymetric() ? "RSA" : "MAC";
+    }
+
+    /**
+     * @return the key id of the signing key, or null
+     */
+    public String getKeyId() {
+        return keys.keyId;
     }
 
     /**
      * @return true if the signer represents a public (asymmetric) key pair
      */
     public boolean isPublic() {
-        return verifierKey.startsWith("-----BEGIN");
+        return isAssymetricKey(keys.verifierKey);
+    }
+
+    /**
+     * @return the verification keys besides the one of the signing key, by
+     *         key id
+     */
+    public Map<String, String> getVerificationKeys() {
+        return keys.verificationKeys;
     }
 
+    /**
+     * Returns the verifier for the configured keys. The verifier is built once
+     * per key and reused until either the signing or verifier key changes, so
+     * callers can rely on its identity to detect key rotation.
+     */
     public SignatureVerifier getVerifier() {
-        if (isAssymetricKey(signingKey)) {
-            return new RsaVerifier(verifierKey);
+        return getVerifier(keys);
+    }
+
+    /**
+     * @param keyId the key id of a token, may be null
+     * @return the verifier of the key, the verifier for tokens without a key
+     *         id if it is null, or null if there is no such key
+     */
+    public SignatureVerifier getVerifier(String keyId) {
+        Keys current = keys;
+        if (keyId == null) {
+            SignatureVerifier legacy = legacyVerifier;
+            //tokens of a signing key without a key id have none either
+            return legacy != null && current.keyId != null ? legacy : getVerifier(current);
         }
-        else {
-            return new MacSigner(verifierKey);
+        if (keyId.equals(current.keyId)) {
+            return getVerifier(current);
+        }
+        return current.verifiers.get(keyId);
+    }
+
+    /**
+     * @return the <code>kid</code> in the header of the token, or null if
+     *         it has none or cannot be read
+     */
+    public static String getKeyId(String token) {
+        int index = token.indexOf('.');
+        if (index <= 0) {
+            return null;
         }
+        try {
+            String header = new String(Base64.getUrlDecoder().decode(token.substring(0, index)), StandardCharsets.UTF_8);
+            Map<?, ?> fields = JsonUtils.readValue(header, Map.class);
+            Object keyId = fields != null ? fields.get("kid") : null;
+            return keyId instanceof String ? (String) keyId : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        } catch (JsonUtils.JsonUtilException e) {
+            return null;
+        }
+    }
+
+    private SignatureVerifier getVerifier(Keys current) {
+        SignatureVerifier result = current.verifier;
+        if (result == null) {
+            if (current.isAssymetric()) {
+                RsaVerifier rsaVerifier = new RsaVerifier(current.verifierKey);
+                RSAPublicKey publicKey = getKey(rsaVerifier, RSAPublicKey.class);
+                result = publicKey != null ? PooledSigner.rsa(null, publicKey, current.keyId, signingLatency, verificationLatency) : rsaVerifier;
+            }
+            else {
+                result = PooledSigner.mac(current.verifierKey, current.keyId, signingLatency, verificationLatency);
+            }
+            current.verifier = result;
+        }
+        return result;
+    }
+
+    private SignatureVerifier createVerifier(String keyId, String verifierKey) {
+        return createVerifier(keyId, verifierKey, signingLatency, verificationLatency);
+    }
+
+    /**
+     * @param verifierKey an RSA public key or a MAC key
+     * @param keyId the key id of the key, may be null
+     * @param signingLatency may be null
+     * @param verificationLatency may be null
+     * @return a verifier for the key
+     */
+    public static SignatureVerifier createVerifier(String keyId, String verifierKey, LatencyHistogram signingLatency, LatencyHistogram verificationLatency) {
+        if (isAssymetricKey(verifierKey)) {
+            RsaVerifier rsaVerifier = new RsaVerifier(verifierKey);
+            RSAPublicKey publicKey = getKey(rsaVerifier, RSAPublicKey.class);
+            return publicKey != null ? PooledSigner.rsa(null, publicKey, keyId, signingLatency, verificationLatency) : rsaVerifier;
+        }
+        return PooledSigner.mac(verifierKey, keyId, signingLatency, verificationLatency);
     }
 
     public String getRevocationHash(List<String> salts) {
@@ -116,27 +241,133 @@ public class SignerProvider implements InitializingBean {
      *
      * @param key the key to be used for signing JWTs.
      */
-    public void setSigningKey(String key) {
+    public synchronized void setSigningKey(String key) {
         Assert.hasText(key);
         key = key.trim();
 
-        this.signingKey = key;
-
+        Keys current = keys;
         if (isAssymetricKey(key)) {
-            signer = new RsaSigner(key);
+            keys = createKeys(key, current.verifierKey, current.keyId, current.verificationKeys, current.verifiers);
             logger.debug("Configured with RSA signing key");
         }
         else {
             // Assume it's an HMAC key
-            this.verifierKey = key;
-            signer = new MacSigner(key);
+            keys = createKeys(key, null, current.keyId, current.verificationKeys, current.verifiers);
+        }
+    }
+
+    /**
+     * Sets the key id of the signing key, written in the headers of the
+     * tokens it signs. Without a key id tokens have none, as before key ids
+     * were supported.
+     *
+     * @param keyId the key id, or null
+     */
+    public synchronized void setKeyId(String keyId) {
+        if (StringUtils.hasText(keyId)) {
+            Assert.isTrue(KEY_ID.matcher(keyId).matches(), "Invalid key id " + keyId);
+        }
+        Keys current = keys;
+        keys = createKeys(current.signingKey, current.verifierKey, StringUtils.hasText(keyId) ? keyId : null, current.verificationKeys, current.verifiers);
+    }
+
+    /**
+     * Sets the keys, besides the one of the signing key, that tokens with
+     * their key id are verified with. These are typically the verification
+     * keys of previous signing keys, kept until the tokens they signed
+     * expire, or the verification key of the next signing key, published
+     * before tokens are signed with it.
+     *
+     * @param verificationKeys RSA public keys or MAC keys by key id
+     */
+    public synchronized void setVerificationKeys(Map<String, String> verificationKeys) {
+        Map<String, String> values = new LinkedHashMap<>();
+        Map<String, SignatureVerifier> verifiers = new LinkedHashMap<>();
+        if (verificationKeys != null) {
+            for (Map.Entry<String, String> entry : verificationKeys.entrySet()) {
+                Assert.hasText(entry.getKey(), "Verification keys need a key id");
+                Assert.isTrue(KEY_ID.matcher(entry.getKey()).matches(), "Invalid key id " + entry.getKey());
+                Assert.hasText(entry.getValue(), "No verification key for key id " + entry.getKey());
+                String value = entry.getValue().trim();
+                try {
+                    verifiers.put(entry.getKey(), createVerifier(entry.getKey(), value));
+                } catch (Exception e) {
+                    throw new IllegalArgumentException("Unable to create a verifier for key id " + entry.getKey(), e);
+                }
+                values.put(entry.getKey(), value);
+            }
+        }
+        Keys current = keys;
+        keys = new Keys(current.signingKey, current.verifierKey, current.keyId, current.signer,
+                        Collections.unmodifiableMap(values), Collections.unmodifiableMap(verifiers));
+    }
+
+    /**
+     * Sets the key that tokens without a key id are verified with once the
+     * signing key has a key id. Tokens signed before key ids were configured
+     * have none, so when the signing key is first given a key id or replaced
+     * this is set to the verification key of the old signing key until its
+     * tokens expire.
+     *
+     * @param legacyVerificationKey an RSA public key or a MAC key, or null
+     */
+    public synchronized void setLegacyVerificationKey(String legacyVerificationKey) {
+        if (!StringUtils.hasText(legacyVerificationKey)) {
+            this.legacyVerifier = null;
+            this.legacyVerificationKey = null;
+            return;
+        }
+        String value = legacyVerificationKey.trim();
+        try {
+            this.legacyVerifier = createVerifier(null, value);
+        } catch (Exception e) {
+            throw new IllegalArgumentException("Unable to create a verifier for the legacy verification key", e);
+        }
+        this.legacyVerificationKey = value;
+    }
+
+    /**
+     * @return the key that tokens without a key id are verified with, or null
+     */
+    public String getLegacyVerificationKey() {
+        return legacyVerificationKey;
+    }
+
+    /**
+     * @param verifierKey the verifier key for an RSA signing key, ignored for
+     *            a MAC key, which is its own verifier key
+     */
+    private Keys createKeys(String signingKey, String verifierKey, String keyId, Map<String, String> verificationKeys, Map<String, SignatureVerifier> verifiers) {
+        if (isAssymetricKey(signingKey)) {
+            RsaSigner rsaSigner = new RsaSigner(signingKey);
+            RSAPrivateKey privateKey = getKey(rsaSigner, RSAPrivateKey.class);
+            Signer signer = privateKey != null ? PooledSigner.rsa(privateKey, null, keyId, signingLatency, verificationLatency) : rsaSigner;
+            return new Keys(signingKey, verifierKey, keyId, signer, verificationKeys, verifiers);
+        }
+        return new Keys(signingKey, signingKey, keyId, PooledSigner.mac(signingKey, keyId, signingLatency, verificationLatency), verificationKeys, verifiers);
+    }
+
+    /**
+     * @return the parsed key of a Spring Security JWT signer or verifier, or
+     * null if it cannot be read
+     */
+    static <T> T getKey(Object signerOrVerifier, Class<T> type) {
+        try {
+            Field field = signerOrVerifier.getClass().getDeclaredField("key");
+            field.setAccessible(true);
+            Object key = field.get(signerOrVerifier);
+            return type.isInstance(key) ? type.cast(key) : null;
+        } catch (NoSuchFieldException e) {
+            return null;
+        } catch (IllegalAccessException e) {
+            return null;
         }
     }
 
     /**
      * @return true if the key has a public verifier
      */
-    private boolean isAssymetricKey(String key) {
+    private static boolean isAssymetricKey(String key) {
         return key.startsWith("-----BEGIN");
     }
 
@@ -153,7 +384,7 @@ public class SignerProvider implements InitializingBean {
      * @param verifierKey the signature verification key (typically an RSA
      *            public key)
      */
-    public void setVerifierKey(String verifierKey) {
+    public synchronized void setVerifierKey(String verifierKey) {
         boolean valid = false;
         try {
             new RsaSigner(verifierKey);
@@ -164,7 +395,76 @@ public class SignerProvider implements InitializingBean {
         if (!valid) {
             throw new IllegalArgumentException("Private key cannot be set as verifierKey property");
         }
-        this.verifierKey = verifierKey;
+        Keys current = keys;
+        keys = new Keys(current.signingKey, verifierKey, current.keyId, current.signer, current.verificationKeys, current.verifiers);
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Token Signing Count")
+    public long getSigningCount() {
+        return signingLatency.getCount();
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Token Signing Mean Latency (us)")
+    public double getSigningMeanLatency() {
+        return signingLatency.getMeanMicros();
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Token Signing 99th Percentile Latency (us)")
+    public long getSigning99thPercentileLatency() {
+        return signingLatency.getPercentileMicros(99);
+    }
+
+    @ManagedAttribute(description = "Token signing latencies by bucket")
+    public String getSigningLatencyHistogram() {
+        return signingLatency.toString();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Token Verification Count")
+    public long getVerificationCount() {
+        return verificationLatency.getCount();
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Token Verification Mean Latency (us)")
+    public double getVerificationMeanLatency() {
+        return verificationLatency.getMeanMicros();
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Token Verification 99th Percentile Latency (us)")
+    public long getVerification99thPercentileLatency() {
+        return verificationLatency.getPercentileMicros(99);
+    }
+
+    @ManagedAttribute(description = "Token verification latencies by bucket")
+    public String getVerificationLatencyHistogram() {
+        return verificationLatency.toString();
+    }
+
+    /**
+     * The keys and what was built from them, replaced as a whole when a key
+     * changes.
+     */
+    private static class Keys {
+        private final String signingKey;
+        private final String verifierKey;
+        private final String keyId;
+        private final Signer signer;
+        private final Map<String, String> verificationKeys;
+        private final Map<String, SignatureVerifier> verifiers;
+        private volatile SignatureVerifier verifier;
+
+        private Keys(String signingKey, String verifierKey, String keyId, Signer signer,
+                        Map<String, String> verificationKeys, Map<String, SignatureVerifier> verifiers) {
+            this.signingKey = signingKey;
+            this.verifierKey = verifierKey;
+            this.keyId = keyId;
+            this.signer = signer;
+            this.verificationKeys = verificationKeys;
+            this.verifiers = verifiers;
+        }
+
+        private boolean isAssymetric() {
+            return isAssymetricKey(signingKey);
+        }
     }
 
     /**
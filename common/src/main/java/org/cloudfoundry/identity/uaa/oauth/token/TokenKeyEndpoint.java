@@ -12,18 +12,24 @@
  *******************************************************************************/
 package org.cloudfoundry.identity.uaa.oauth.token;
 
-import java.lang.reflect.Field;
+import java.io.IOException;
 import java.math.BigInteger;
 import java.security.Principal;
 import java.security.interfaces.RSAPublicKey;
-import java.util.Collections;
+import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.cloudfoundry.identity.uaa.util.JsonUtils;
 import org.springframework.beans.factory.InitializingBean;
+import org.springframework.http.MediaType;
 import org.springframework.security.access.AccessDeniedException;
 import org.springframework.security.authentication.AnonymousAuthenticationToken;
 import org.springframework.security.crypto.codec.Base64;
@@ -33,11 +39,14 @@ import org.springframework.stereotype.Controller;
 import org.springframework.util.Assert;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
-import org.springframework.web.bind.annotation.ResponseBody;
 
 /**
  * OAuth2 token services that produces JWT encoded token values.
- * 
+ * <p>
+ * The keys are serialized once per key change, responses have an
+ * <code>ETag</code> and a <code>Cache-Control</code> header so that
+ * resource servers can cache them.
+ *
  * @author Dave Syer
  * @author Luke Taylor
  * @author Joel D'sa
@@ -49,6 +58,10 @@ public class TokenKeyEndpoint implements InitializingBean {
 
     private SignerProvider signerProvider;
 
+    private int maxAgeSeconds = 300;
+
+    private volatile Responses responses;
+
     /**
      * @param signerProvider the signerProvider to set
      */
@@ -56,76 +69,204 @@ public class TokenKeyEndpoint implements InitializingBean {
         this.signerProvider = signerProvider;
     }
 
+    /**
+     * @param maxAgeSeconds how long clients may cache public keys without
+     *            revalidating them
+     */
+    public void setMaxAgeSeconds(int maxAgeSeconds) {
+        this.maxAgeSeconds = maxAgeSeconds;
+    }
+
     /**
      * Get the verification key for the token signatures. The principal has to
      * be provided only if the key is secret
      * (shared not public).
      * 
      * @param principal the currently authenticated user if there is one
-     * @return the key used to verify tokens
      */
     @RequestMapping(value = "/token_key", method = RequestMethod.GET)
-    @ResponseBody
+    public void getKey(Principal principal, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        checkAccess(principal, false);
+        getResponses().key.write(request, response);
+    }
+
+    /**
+     * Get the verification keys for the token signatures wrapped into keys
+     * array, the key of the signing key first. Once the signing key has a key
+     * id, the legacy verification key for tokens without one is listed
+     * without a key id. Wrapping done for
+     * compatibility with some clients expecting this even for single key,
+     * like mod_auth_openidc. The principal has to be provided only if a key
+     * is secret (shared not public).
+     *
+     * @param principal the currently authenticated user if there is one
+     */
+    @RequestMapping(value = "/token_keys", method = RequestMethod.GET)
+    public void getKeys(Principal principal, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        checkAccess(principal, true);
+        getResponses().keys.write(request, response);
+    }
+
+    /**
+     * @param principal the currently authenticated user if there is one
+     * @return the key used to verify tokens
+     */
     public Map<String, String> getKey(Principal principal) {
-        if ((principal == null || principal instanceof AnonymousAuthenticationToken) && !signerProvider.isPublic()) {
-            throw new AccessDeniedException("You need to authenticate to see a shared key");
+        checkAccess(principal, false);
+        return getKey();
+    }
+
+    private Map<String, String> getKey() {
+        return getKey(signerProvider.getKeyId(), signerProvider.getVerifierKey(), signerProvider.getType(), signerProvider.getVerifier());
+    }
+
+    /**
+     * @param principal the currently authenticated user if there is one
+     * @return the keys used to verify tokens, wrapped in keys array
+     */
+    public Map<String, List<Map<String, String>>> getKeys(Principal principal) {
+        checkAccess(principal, true);
+        return getKeys();
+    }
+
+    private Map<String, List<Map<String, String>>> getKeys() {
+        List<Map<String, String>> keys = new ArrayList<>();
+        keys.add(getKey());
+        for (Map.Entry<String, String> entry : signerProvider.getVerificationKeys().entrySet()) {
+            if (entry.getKey().equals(signerProvider.getKeyId())) {
+                //the signing key wins
+                continue;
+            }
+            String type = isPublic(entry.getValue()) ? "RSA" : "MAC";
+            keys.add(getKey(entry.getKey(), entry.getValue(), type, signerProvider.getVerifier(entry.getKey())));
+        }
+        String legacyKey = signerProvider.getLegacyVerificationKey();
+        if (legacyKey != null && signerProvider.getKeyId() != null) {
+            keys.add(getKey(null, legacyKey, isPublic(legacyKey) ? "RSA" : "MAC", signerProvider.getVerifier(null)));
         }
+        Map<String, List<Map<String, String>>> result = new LinkedHashMap<>();
+        result.put("keys", keys);
+        return result;
+    }
+
+    private Map<String, String> getKey(String keyId, String value, String type, SignatureVerifier verifier) {
         Map<String, String> result = new LinkedHashMap<String, String>();
-        result.put("alg", signerProvider.getSigner().algorithm());
-        result.put("value", signerProvider.getVerifierKey());
+        result.put("alg", verifier.algorithm());
+        result.put("value", value);
         //new values per OpenID and JWK spec
-        result.put("kty", signerProvider.getType());
+        result.put("kty", type);
         result.put("use", "sig");
-        if (signerProvider.isPublic() && "RSA".equals(signerProvider.getType())) {
-            SignatureVerifier verifier = signerProvider.getVerifier();
-            if (verifier!=null && verifier instanceof RsaVerifier) {
-                RSAPublicKey rsaKey = extractRsaPublicKey((RsaVerifier) verifier) ;
-                if (rsaKey!=null) {
-                    String n = new String(Base64.encode(rsaKey.getModulus().toByteArray()));
-                    String e = new String(Base64.encode(rsaKey.getPublicExponent().toByteArray()));
-                    result.put("n", n);
-                    result.put("e", e);
-                }
+        if (isPublic(value) && "RSA".equals(type)) {
+            RSAPublicKey rsaKey = null;
+            if (verifier instanceof PooledSigner && ((PooledSigner) verifier).getVerifierKey() instanceof RSAPublicKey) {
+                rsaKey = (RSAPublicKey) ((PooledSigner) verifier).getVerifierKey();
+            } else if (verifier instanceof RsaVerifier) {
+                rsaKey = SignerProvider.getKey(verifier, RSAPublicKey.class);
             }
+            if (rsaKey!=null) {
+                String n = new String(Base64.encode(rsaKey.getModulus().toByteArray()));
+                String e = new String(Base64.encode(rsaKey.getPublicExponent().toByteArray()));
+                result.put("n", n);
+                result.put("e", e);
+            }
+        }
+        if (keyId != null) {
+            result.put("kid", keyId);
         }
         return result;
     }
 
+    private boolean isPublic(String value) {
+        return value.startsWith("-----BEGIN");
+    }
+
     /**
-     * Get the verification key for the token signatures wrapped into keys array.
-     * Wrapping done for compatibility with some clients expecting this even for single key, like mod_auth_openidc.
-     * The principal has to be provided only if the key is secret
-     * (shared not public).
-     *
-     * @param principal the currently authenticated user if there is one
-     * @return the key used to verify tokens, wrapped in keys array
+     * @param all true to check all keys, false for the key of the signing key
      */
-    @RequestMapping(value = "/token_keys", method = RequestMethod.GET)
-    @ResponseBody
-    public Map<String, List<Map<String, String>>> getKeys(Principal principal) {
-        Map<String, List<Map<String, String>>> result = new LinkedHashMap<>();
-        result.put("keys", Collections.singletonList(getKey(principal)));
-        return result;
+    private void checkAccess(Principal principal, boolean all) {
+        if ((principal == null || principal instanceof AnonymousAuthenticationToken) && !isPublic(all)) {
+            throw new AccessDeniedException("You need to authenticate to see a shared key");
+        }
     }
 
-
-    private RSAPublicKey extractRsaPublicKey(RsaVerifier verifier) {
-        try {
-            Field f = verifier.getClass().getDeclaredField("key");
-            if (f != null) {
-                f.setAccessible(true);
-                if (f.get(verifier) instanceof RSAPublicKey) {
-                    return (RSAPublicKey) f.get(verifier);
+    private boolean isPublic(boolean all) {
+        if (!signerProvider.isPublic()) {
+            return false;
+        }
+        if (all) {
+            for (String value : signerProvider.getVerificationKeys().values()) {
+                if (!isPublic(value)) {
+                    return false;
                 }
             }
-        } catch (NoSuchFieldException e) {
+            String legacyKey = signerProvider.getLegacyVerificationKey();
+            if (legacyKey != null && !isPublic(legacyKey)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the serialized keys, serialized again when the keys change
+     */
+    private Responses getResponses() {
+        Responses result = responses;
+        //a new verifier is built whenever a key changes
+        SignatureVerifier verifier = signerProvider.getVerifier();
+        SignatureVerifier legacyVerifier = signerProvider.getVerifier(null);
+        if (result == null || result.verifier != verifier || result.legacyVerifier != legacyVerifier) {
+            result = new Responses(verifier, legacyVerifier,
+                            new Response(JsonUtils.writeValueAsBytes(getKey()), getCacheControl(false)),
+                            new Response(JsonUtils.writeValueAsBytes(getKeys()), getCacheControl(true)));
+            responses = result;
+        }
+        return result;
+    }
+
+    /**
+     * Shared keys are secrets that should not be stored, only revalidated.
+     */
+    private String getCacheControl(boolean all) {
+        return isPublic(all) ? "public, max-age=" + maxAgeSeconds : "no-store";
+    }
 
-        } catch (IllegalAccessException e) {
+    private static class Responses {
+        private final SignatureVerifier verifier;
+        private final SignatureVerifier legacyVerifier;
+        private final Response key;
+        private final Response keys;
 
-        } catch (ClassCastException x) {
+        private Responses(SignatureVerifier verifier, SignatureVerifier legacyVerifier, Response key, Response keys) {
+            this.verifier = verifier;
+            this.legacyVerifier = legacyVerifier;
+            this.key = key;
+            this.keys = keys;
+        }
+    }
 
+    private static class Response {
+        private final byte[] body;
+        private final String etag;
+        private final String cacheControl;
+
+        private Response(byte[] body, String cacheControl) {
+            this.body = body;
+            this.etag = "\"" + DigestUtils.sha1Hex(body) + "\"";
+            this.cacheControl = cacheControl;
+        }
+
+        private void write(HttpServletRequest request, HttpServletResponse response) throws IOException {
+            response.setHeader("ETag", etag);
+            response.setHeader("Cache-Control", cacheControl);
+            if (etag.equals(request.getHeader("If-None-Match"))) {
+                response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                return;
+            }
+            response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+            response.setContentLength(body.length);
+            response.getOutputStream().write(body);
         }
-        return null;
     }
 
     @Override
@@ -41,6 +41,7 @@ import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.security.core.userdetails.UsernameNotFoundException;
 import org.springframework.security.jwt.Jwt;
 import org.springframework.security.jwt.JwtHelper;
+import org.springframework.security.jwt.crypto.sign.SignatureVerifier;
 import org.springframework.security.oauth2.client.resource.OAuth2AccessDeniedException;
 import org.springframework.security.oauth2.common.DefaultExpiringOAuth2RefreshToken;
 import org.springframework.security.oauth2.common.DefaultOAuth2RefreshToken;
@@ -68,7 +69,6 @@ import org.springframework.util.StringUtils;
 import org.springframework.web.util.UriComponentsBuilder;
 
 import java.net.URI;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
@@ -125,6 +125,12 @@ public class UaaTokenServices implements AuthorizationServerTokenServices, Resou
 
     private SignerProvider signerProvider = new SignerProvider();
 
+    private VerifiedTokenCache verifiedTokenCache = new VerifiedTokenCache();
+
+    private final JwtWriter jwtWriter = new JwtWriter();
+
+    private RevocationHashStore revocationHashStore = null;
+
     private String issuer = null;
 
     private String tokenEndpoint = null;
@@ -195,7 +201,7 @@ public class UaaTokenServices implements AuthorizationServerTokenServices, Resou
         }
 
         @SuppressWarnings("unchecked")
-        ArrayList<String> tokenScopes = (ArrayList<String>) claims.get(SCOPE);
+        List<String> tokenScopes = (List<String>) claims.get(SCOPE);
 
         // default request scopes to what is in the refresh token
         Set<String> requestedScopes = request.getScope();
@@ -235,7 +241,7 @@ public class UaaTokenServices implements AuthorizationServerTokenServices, Resou
             }
         }
 
-        Set<String> audience = new HashSet<>((ArrayList<String>)claims.get(AUD));
+        Set<String> audience = new HashSet<>((List<String>)claims.get(AUD));
 
         OAuth2AccessToken accessToken =
             createAccessToken(
@@ -342,91 +348,84 @@ public class UaaTokenServices implements AuthorizationServerTokenServices, Resou
         }
         accessToken.setAdditionalInformation(info);
 
-        String content;
-        Map<String, ?> jwtAccessToken = createJWTAccessToken(
+        byte[] sharedClaims = createJWTAccessToken(
             accessToken,
             userId,
             origin,
             username,
             userEmail,
             userAuthenticationTime,
-            clientScopes,
-            requestedScopes,
             clientId,
-            resourceIds,
             grantType,
-            refreshToken,
             revocableHashSignature
         );
-        try {
-            content = JsonUtils.writeValueAsString(jwtAccessToken);
-        } catch (JsonUtils.JsonUtilException e) {
-            throw new IllegalStateException("Cannot convert access token to JSON", e);
+        JwtWriter.Payload accessTokenClaims = jwtWriter.payload();
+        if (null != clientScopes) {
+            accessTokenClaims.put(AUTHORITIES, AuthorityUtils.authorityListToSet(clientScopes));
         }
-        String token = JwtHelper.encode(content, signerProvider.getSigner()).getEncoded();
+        accessTokenClaims.put(OAuth2AccessToken.SCOPE, requestedScopes);
+        // TODO: different values for audience in the AT and RT. Need to sync
+        // them up
+        accessTokenClaims.put(AUD, resourceIds);
+        String token = jwtWriter.encode(JwtWriter.merge(sharedClaims, accessTokenClaims.toJson()), signerProvider.getSigner());
         // This setter copies the value and returns. Don't change.
         accessToken.setValue(token);
-        populateIdToken(accessToken, jwtAccessToken, requestedScopes, responseTypes, clientId, forceIdTokenCreation);
+        populateIdToken(accessToken, sharedClaims, requestedScopes, responseTypes, clientId, forceIdTokenCreation);
         publish(new TokenIssuedEvent(accessToken, SecurityContextHolder.getContext().getAuthentication()));
 
         return accessToken;
     }
 
+    /**
+     * @param sharedClaims the claims of the access token that the id token
+     * has as well
+     */
     private void populateIdToken(OpenIdToken token,
-                                 Map<String, ?> accessTokenValues,
+                                 byte[] sharedClaims,
                                  Set<String> scopes,
                                  Set<String> responseTypes,
                                  String aud,
                                  boolean forceIdTokenCreation) {
         if (forceIdTokenCreation || (scopes.contains("openid") && responseTypes.contains(OpenIdToken.ID_TOKEN))) {
-            try {
-                Map<String, Object> clone = new HashMap<>(accessTokenValues);
-                clone.remove(AUTHORITIES);
-                Set<String> idTokenScopes = new HashSet<>();
-                for (String sc : scopes) {
-                    if (validIdTokenScopes!=null && validIdTokenScopes.contains(sc)) {
-                        idTokenScopes.add(sc);
-                    }
+            Set<String> idTokenScopes = new HashSet<>();
+            for (String sc : scopes) {
+                if (validIdTokenScopes!=null && validIdTokenScopes.contains(sc)) {
+                    idTokenScopes.add(sc);
                 }
-                clone.put(SCOPE, idTokenScopes);
-                clone.put(AUD, new HashSet(Arrays.asList(aud)));
-                String content = JsonUtils.writeValueAsString(clone);
-                String encoded = JwtHelper.encode(content, signerProvider.getSigner()).getEncoded();
-                token.setIdTokenValue(encoded);
-            } catch (JsonUtils.JsonUtilException e) {
-                throw new IllegalStateException("Cannot convert ID token to JSON", e);
             }
+            byte[] idTokenClaims = jwtWriter.payload()
+                .put(SCOPE, idTokenScopes)
+                .put(AUD, new HashSet<>(Arrays.asList(aud)))
+                .toJson();
+            String encoded = jwtWriter.encode(JwtWriter.merge(sharedClaims, idTokenClaims), signerProvider.getSigner());
+            token.setIdTokenValue(encoded);
         }
     }
 
-    private Map<String, ?> createJWTAccessToken(OAuth2AccessToken token,
-                                                String userId,
-                                                String origin,
-                                                String username,
-                                                String userEmail,
-                                                Date userAuthenticationTime,
-                                                Collection<GrantedAuthority> clientScopes,
-                                                Set<String> requestedScopes,
-                                                String clientId,
-                                                Set<String> resourceIds,
-                                                String grantType,
-                                                String refreshToken,
-                                                String revocableHashSignature) {
-
-        Map<String, Object> response = new LinkedHashMap<String, Object>();
-
-        response.put(JTI, token.getAdditionalInformation().get(JTI));
-        response.putAll(token.getAdditionalInformation());
-
-        response.put(SUB, userId);
-        if (null != clientScopes) {
-            response.put(AUTHORITIES, AuthorityUtils.authorityListToSet(clientScopes));
+    /**
+     * @return the claims of the access token, without the authorities,
+     * scope and aud claims that the id token has different values for
+     */
+    private byte[] createJWTAccessToken(OAuth2AccessToken token,
+                                        String userId,
+                                        String origin,
+                                        String username,
+                                        String userEmail,
+                                        Date userAuthenticationTime,
+                                        String clientId,
+                                        String grantType,
+                                        String revocableHashSignature) {
+
+        JwtWriter.Payload response = jwtWriter.payload();
+
+        response.put(JTI, (String) token.getAdditionalInformation().get(JTI));
+        for (Map.Entry<String, Object> entry : token.getAdditionalInformation().entrySet()) {
+            if (!JTI.equals(entry.getKey())) {
+                response.put(entry.getKey(), entry.getValue());
+            }
         }
 
-        response.put(OAuth2AccessToken.SCOPE, requestedScopes);
-        response.put(CLIENT_ID, clientId);
-        response.put(CID, clientId);
-        response.put(AZP, clientId); //openId Connect
+        response.put(SUB, userId);
 
         if (null != grantType) {
             response.put(GRANT_TYPE, grantType);
@@ -452,16 +451,13 @@ public class UaaTokenServices implements AuthorizationServerTokenServices, Resou
             response.put(EXP, token.getExpiration().getTime() / 1000);
         }
 
-        if (getTokenEndpoint() != null) {
-            response.put(ISS, getTokenEndpoint());
-            response.put(ZONE_ID,IdentityZoneHolder.get().getId());
+        //client_id, cid and the openId Connect azp
+        byte[] clientClaims = jwtWriter.getClientClaims(clientId);
+        String tokenEndpoint = getTokenEndpoint();
+        if (tokenEndpoint != null) {
+            return JwtWriter.merge(response.toJson(), clientClaims, jwtWriter.getIssuerClaims(tokenEndpoint, IdentityZoneHolder.get().getId()));
         }
-
-        // TODO: different values for audience in the AT and RT. Need to sync
-        // them up
-        response.put(AUD, resourceIds);
-
-        return response;
+        return JwtWriter.merge(response.toJson(), clientClaims);
     }
 
     @Override
@@ -615,9 +611,9 @@ public class UaaTokenServices implements AuthorizationServerTokenServices, Resou
 
         UaaUser user = userDatabase.retrieveUserById(userId);
 
-        String content;
+        byte[] content;
         try {
-            content = JsonUtils.writeValueAsString(
+            content = JsonUtils.writeValueAsBytes(
                 createJWTRefreshToken(
                     token, user, authentication.getOAuth2Request().getScope(),
                     authentication.getOAuth2Request().getClientId(),
@@ -628,7 +624,7 @@ public class UaaTokenServices implements AuthorizationServerTokenServices, Resou
         } catch (JsonUtils.JsonUtilException e) {
             throw new IllegalStateException("Cannot convert access token to JSON", e);
         }
-        String jwtToken = JwtHelper.encode(content, signerProvider.getSigner()).getEncoded();
+        String jwtToken = jwtWriter.encode(content, signerProvider.getSigner());
 
         ExpiringOAuth2RefreshToken refreshToken = new DefaultExpiringOAuth2RefreshToken(jwtToken, token.getExpiration());
 
@@ -652,7 +648,11 @@ public class UaaTokenServices implements AuthorizationServerTokenServices, Resou
                 saltlist.add(s);
             }
         }
-        return signerProvider.getRevocationHash(saltlist);
+        String result = signerProvider.getRevocationHash(saltlist);
+        if (revocationHashStore != null) {
+            revocationHashStore.put(client.getClientId(), user == null ? null : user.getId(), result);
+        }
+        return result;
     }
 
     protected String getUserId(OAuth2Authentication authentication) {
@@ -779,12 +779,12 @@ public class UaaTokenServices implements AuthorizationServerTokenServices, Resou
 
 
         @SuppressWarnings("unchecked")
-        ArrayList<String> scopes = (ArrayList<String>) claims.get(SCOPE);
+        List<String> scopes = (List<String>) claims.get(SCOPE);
 
         AuthorizationRequest authorizationRequest = new AuthorizationRequest((String) claims.get(CLIENT_ID),
                         scopes);
 
-        ArrayList<String> rids = (ArrayList<String>) claims.get(AUD);
+        List<String> rids = (List<String>) claims.get(AUD);
         //TODO - Fix null resource IDs for a client_credentials request to /oauth/token
         Set<String> resourceIds = Collections.unmodifiableSet(rids==null?new HashSet<String>():new HashSet<>(rids));
         authorizationRequest.setResourceIds(resourceIds);
@@ -838,7 +838,7 @@ public class UaaTokenServices implements AuthorizationServerTokenServices, Resou
         }
 
         @SuppressWarnings("unchecked")
-        ArrayList<String> scopes = (ArrayList<String>) claims.get(SCOPE);
+        List<String> scopes = (List<String>) claims.get(SCOPE);
         if (null != scopes && scopes.size() > 0) {
             token.setScope(new HashSet<String>(scopes));
         }
@@ -866,7 +866,7 @@ public class UaaTokenServices implements AuthorizationServerTokenServices, Resou
             ClientDetails client = clientDetailsService.loadClientByClientId(clientId);
 
             @SuppressWarnings("unchecked")
-            ArrayList<String> tokenScopes = (ArrayList<String>) claims.get(SCOPE);
+            List<String> tokenScopes = (List<String>) claims.get(SCOPE);
             Set<String> autoApprovedScopes = getAutoApprovedScopes(claims.get(GRANT_TYPE), tokenScopes, client);
             if (autoApprovedScopes.containsAll(tokenScopes)) {
                 return token;
@@ -902,20 +902,14 @@ public class UaaTokenServices implements AuthorizationServerTokenServices, Resou
     }
 
     private Map<String, Object> getClaimsForToken(String token) {
-        Jwt tokenJwt = null;
-        try {
-            tokenJwt = JwtHelper.decodeAndVerify(token, signerProvider.getVerifier());
-        } catch (Throwable t) {
-            logger.debug("Invalid token (could not decode)");
-            throw new InvalidTokenException("Invalid token (could not decode): " + token);
+        SignatureVerifier verifier = signerProvider.getVerifier(SignerProvider.getKeyId(token));
+        if (verifier == null) {
+            logger.debug("Invalid token (unknown key id)");
+            throw new InvalidTokenException("Invalid token (unknown key id): " + token);
         }
-
-        Map<String, Object> claims = null;
-        try {
-            claims = JsonUtils.readValue(tokenJwt.getClaims(), new TypeReference<Map<String, Object>>() {
-            });
-        } catch (JsonUtils.JsonUtilException e) {
-            throw new IllegalStateException("Cannot read token claims", e);
+        Map<String, Object> claims = verifiedTokenCache.get(token, verifier);
+        if (claims == null) {
+            claims = verifiedTokenCache.put(token, verifier, decodeAndVerifyClaims(token, verifier));
         }
 
         if (getTokenEndpoint()!=null && !getTokenEndpoint().equals(claims.get(ISS))) {
@@ -926,13 +920,9 @@ public class UaaTokenServices implements AuthorizationServerTokenServices, Resou
         if (signature!=null) { //this ensures backwards compatibility during upgrade
             String clientId = (String) claims.get(Claims.CID);
             String userId = (String) claims.get(Claims.USER_ID);
-            UaaUser user = null;
-            ClientDetails client = clientDetailsService.loadClientByClientId(clientId);
-            try {
-                user = userDatabase.retrieveUserById(userId);
-            } catch (UsernameNotFoundException x) {
-            }
-            if (signature != null && !signature.equals(getRevocableTokenSignature(client, user))) {
+            String currentSignature = revocationHashStore == null ? null : revocationHashStore.get(clientId, userId);
+            //a mismatch against the stored hash is always confirmed against the database
+            if (!signature.equals(currentSignature) && !signature.equals(loadRevocableTokenSignature(clientId, userId))) {
                 throw new TokenRevokedException(token);
             }
         }
@@ -940,6 +930,33 @@ public class UaaTokenServices implements AuthorizationServerTokenServices, Resou
         return claims;
     }
 
+    private String loadRevocableTokenSignature(String clientId, String userId) {
+        UaaUser user = null;
+        ClientDetails client = clientDetailsService.loadClientByClientId(clientId);
+        try {
+            user = userDatabase.retrieveUserById(userId);
+        } catch (UsernameNotFoundException x) {
+        }
+        return getRevocableTokenSignature(client, user);
+    }
+
+    private Map<String, Object> decodeAndVerifyClaims(String token, SignatureVerifier verifier) {
+        Jwt tokenJwt = null;
+        try {
+            tokenJwt = JwtHelper.decodeAndVerify(token, verifier);
+        } catch (Throwable t) {
+            logger.debug("Invalid token (could not decode)");
+            throw new InvalidTokenException("Invalid token (could not decode): " + token);
+        }
+
+        try {
+            return JsonUtils.readValue(tokenJwt.getClaims(), new TypeReference<Map<String, Object>>() {
+            });
+        } catch (JsonUtils.JsonUtilException e) {
+            throw new IllegalStateException("Cannot read token claims", e);
+        }
+    }
+
     /**
      * This method is implemented only to support older API calls that assume
      * the presence of a token store
@@ -973,6 +990,18 @@ public class UaaTokenServices implements AuthorizationServerTokenServices, Resou
         this.signerProvider = signerProvider;
     }
 
+    public void setVerifiedTokenCache(VerifiedTokenCache verifiedTokenCache) {
+        this.verifiedTokenCache = verifiedTokenCache;
+    }
+
+    /**
+     * Optional store used to validate revocable tokens without loading the
+     * client and user. When not set every validation reads both from the database.
+     */
+    public void setRevocationHashStore(RevocationHashStore revocationHashStore) {
+        this.revocationHashStore = revocationHashStore;
+    }
+
     public void setDefaultUserAuthorities(Set<String> defaultUserAuthorities) {
         this.defaultUserAuthorities = defaultUserAuthorities;
     }
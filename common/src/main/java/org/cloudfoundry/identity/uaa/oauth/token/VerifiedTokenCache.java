@@ -0,0 +1,152 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.oauth.token;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.cloudfoundry.identity.uaa.util.LazyCache;
+import org.springframework.security.jwt.crypto.sign.SignatureVerifier;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.cloudfoundry.identity.uaa.oauth.Claims.EXP;
+
+/**
+ * Bounded cache of token claims whose signature has already been verified.
+ * Entries are keyed by a SHA-256 digest of the encoded token and are dropped
+ * once the token's <code>exp</code> claim has passed, or when the verifier
+ * that validated them is no longer the active one (key rotation).
+ *
+ * The cached claims, including the lists and maps nested in them, are read
+ * only, as they are shared by every request with the same token.
+ *
+ * Only the signature check and claim parsing are skipped on a hit; issuer,
+ * expiry and revocation checks remain the responsibility of the caller.
+ */
+public class VerifiedTokenCache {
+
+    private boolean enabled = true;
+
+    private final LazyCache<String, Entry> cache = new LazyCache<>(10000, 300);
+
+    public Map<String, Object> get(String token, SignatureVerifier verifier) {
+        if (!isEnabled()) {
+            return null;
+        }
+        String key = getKey(token);
+        Entry entry = cache.peek(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.verifier != verifier || entry.isExpired(System.currentTimeMillis())) {
+            cache.invalidate(key);
+            return null;
+        }
+        return entry.claims;
+    }
+
+    public Map<String, Object> put(String token, SignatureVerifier verifier, Map<String, Object> claims) {
+        Map<String, Object> result = readOnlyCopy(claims);
+        if (isEnabled()) {
+            cache.put(getKey(token), new Entry(verifier, result, getExpiresAt(claims)));
+        }
+        return result;
+    }
+
+    private static Map<String, Object> readOnlyCopy(Map<String, ?> map) {
+        Map<String, Object> result = new LinkedHashMap<>();
+        for (Map.Entry<String, ?> entry : map.entrySet()) {
+            result.put(entry.getKey(), readOnlyCopy(entry.getValue()));
+        }
+        return Collections.unmodifiableMap(result);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object readOnlyCopy(Object value) {
+        if (value instanceof Map) {
+            return readOnlyCopy((Map<String, ?>) value);
+        }
+        if (value instanceof Collection) {
+            List<Object> result = new ArrayList<>(((Collection<?>) value).size());
+            for (Object element : (Collection<?>) value) {
+                result.add(readOnlyCopy(element));
+            }
+            return Collections.unmodifiableList(result);
+        }
+        return value;
+    }
+
+    public void clear() {
+        cache.invalidateAll();
+    }
+
+    public long size() {
+        return cache.size();
+    }
+
+    protected String getKey(String token) {
+        return DigestUtils.sha256Hex(token);
+    }
+
+    private long getExpiresAt(Map<String, Object> claims) {
+        Object exp = claims.get(EXP);
+        if (exp instanceof Number) {
+            return ((Number) exp).longValue() * 1000l;
+        }
+        return Long.MAX_VALUE;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public int getMaxEntries() {
+        return cache.getMaxEntries();
+    }
+
+    public void setMaxEntries(int maxEntries) {
+        cache.setMaxEntries(maxEntries);
+    }
+
+    public int getMaxTimeToLiveSeconds() {
+        return cache.getTimeToLiveSeconds();
+    }
+
+    public void setMaxTimeToLiveSeconds(int maxTimeToLiveSeconds) {
+        cache.setTimeToLiveSeconds(maxTimeToLiveSeconds);
+    }
+
+    private static class Entry {
+        private final SignatureVerifier verifier;
+        private final Map<String, Object> claims;
+        private final long expiresAt;
+
+        private Entry(SignatureVerifier verifier, Map<String, Object> claims, long expiresAt) {
+            this.verifier = verifier;
+            this.claims = claims;
+            this.expiresAt = expiresAt;
+        }
+
+        private boolean isExpired(long now) {
+            return expiresAt <= now;
+        }
+    }
+}
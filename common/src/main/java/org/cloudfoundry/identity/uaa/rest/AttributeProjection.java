@@ -0,0 +1,209 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.rest;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.springframework.beans.BeanUtils;
+import org.springframework.expression.EvaluationContext;
+import org.springframework.expression.Expression;
+import org.springframework.expression.spel.SpelCompilerMode;
+import org.springframework.expression.spel.SpelParserConfiguration;
+import org.springframework.expression.spel.standard.SpelExpressionParser;
+import org.springframework.expression.spel.support.StandardEvaluationContext;
+
+import java.beans.PropertyDescriptor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Projects objects onto a list of attributes, each given as a SpEL
+ * expression after mapping.
+ * <p>
+ * Property paths like <code>name.givenName</code> and projections of them like
+ * <code>emails.![value]</code> are read with their getters. Other expressions,
+ * and values the getters cannot resolve, are evaluated with compiled SpEL, so
+ * the results and errors are the same as with plain SpEL. Projections are
+ * compiled once per list of expressions and cached.
+ */
+public class AttributeProjection {
+
+    private static final Pattern PROPERTY_PATH = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*(\\.[A-Za-z_][A-Za-z0-9_]*)*");
+
+    private static final Pattern COLLECTION_PROJECTION = Pattern.compile("(" + PROPERTY_PATH.pattern() + ")\\.!\\[("
+                    + PROPERTY_PATH.pattern() + ")\\]");
+
+    private static final Object UNRESOLVED = new Object();
+
+    private static final SpelExpressionParser parser = new SpelExpressionParser(new SpelParserConfiguration(
+                    SpelCompilerMode.MIXED, AttributeProjection.class.getClassLoader()));
+
+    private static final Cache<List<String>, AttributeProjection> projections = CacheBuilder.newBuilder()
+                    .maximumSize(1000).build();
+
+    private final Map<String, Accessor> accessors;
+
+    private AttributeProjection(String[] attributes, String[] expressions) {
+        accessors = new LinkedHashMap<String, Accessor>();
+        for (int i = 0; i < attributes.length; i++) {
+            accessors.put(attributes[i], new Accessor(expressions[i]));
+        }
+    }
+
+    /**
+     * @return the projection of the attributes, mapped to SpEL expressions
+     * with the mapper
+     * @throws org.springframework.expression.ParseException if an attribute
+     * is not a valid expression
+     */
+    public static AttributeProjection compile(String[] attributes, AttributeNameMapper mapper) {
+        String[] expressions = new String[attributes.length];
+        for (int i = 0; i < attributes.length; i++) {
+            expressions[i] = mapper != null ? mapper.mapToInternal(attributes[i]) : attributes[i];
+        }
+        List<String> key = new ArrayList<String>(Arrays.asList(attributes));
+        key.addAll(Arrays.asList(expressions));
+        AttributeProjection projection = projections.getIfPresent(key);
+        if (projection == null) {
+            projection = new AttributeProjection(attributes, expressions);
+            projections.put(key, projection);
+        }
+        return projection;
+    }
+
+    /**
+     * @return the values of the attributes of the object, in the order of
+     * the attributes
+     * @throws org.springframework.expression.EvaluationException if an
+     * attribute cannot be read from the object
+     */
+    public Map<String, Object> project(Object object, EvaluationContext context) {
+        Map<String, Object> result = new LinkedHashMap<String, Object>();
+        for (Map.Entry<String, Accessor> entry : accessors.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().getValue(object, context));
+        }
+        return result;
+    }
+
+    public Map<String, Object> project(Object object) {
+        return project(object, new StandardEvaluationContext());
+    }
+
+    private static class Accessor {
+        private final Expression expression;
+        private final PropertyPath path;
+        private final PropertyPath elementPath;
+
+        private Accessor(String spel) {
+            expression = parser.parseExpression(spel);
+            Matcher projection = COLLECTION_PROJECTION.matcher(spel);
+            if (PROPERTY_PATH.matcher(spel).matches()) {
+                path = new PropertyPath(spel);
+                elementPath = null;
+            } else if (projection.matches()) {
+                path = new PropertyPath(projection.group(1));
+                elementPath = new PropertyPath(projection.group(3));
+            } else {
+                path = null;
+                elementPath = null;
+            }
+        }
+
+        private Object getValue(Object object, EvaluationContext context) {
+            Object value = path != null ? path.getValue(object) : UNRESOLVED;
+            if (value != UNRESOLVED && elementPath != null) {
+                value = project(value);
+            }
+            return value != UNRESOLVED ? value : expression.getValue(context, object);
+        }
+
+        private Object project(Object value) {
+            if (!(value instanceof Collection)) {
+                return UNRESOLVED;
+            }
+            List<Object> result = new ArrayList<Object>(((Collection<?>) value).size());
+            for (Object element : (Collection<?>) value) {
+                Object elementValue = elementPath.getValue(element);
+                if (elementValue == UNRESOLVED) {
+                    return UNRESOLVED;
+                }
+                result.add(elementValue);
+            }
+            return result;
+        }
+    }
+
+    private static class PropertyPath {
+        private final Getter[] getters;
+
+        private PropertyPath(String path) {
+            String[] names = path.split("\\.");
+            getters = new Getter[names.length];
+            for (int i = 0; i < names.length; i++) {
+                getters[i] = new Getter(names[i]);
+            }
+        }
+
+        /**
+         * @return the value, or {@link #UNRESOLVED} if a property is missing
+         * or an intermediate value is null, which SpEL reports as errors
+         */
+        private Object getValue(Object object) {
+            Object value = object;
+            for (Getter getter : getters) {
+                if (value == null) {
+                    return UNRESOLVED;
+                }
+                value = getter.getValue(value);
+                if (value == UNRESOLVED) {
+                    return UNRESOLVED;
+                }
+            }
+            return value;
+        }
+    }
+
+    private static class Getter {
+        private final String name;
+        private volatile Method method;
+
+        private Getter(String name) {
+            this.name = name;
+        }
+
+        private Object getValue(Object object) {
+            Method method = this.method;
+            if (method == null || !method.getDeclaringClass().isInstance(object)) {
+                PropertyDescriptor descriptor = BeanUtils.getPropertyDescriptor(object.getClass(), name);
+                method = descriptor != null ? descriptor.getReadMethod() : null;
+                if (method == null) {
+                    return UNRESOLVED;
+                }
+                this.method = method;
+            }
+            try {
+                return method.invoke(object);
+            } catch (Exception e) {
+                //not accessible or failed, SpEL reports it
+                return UNRESOLVED;
+            }
+        }
+    }
+}
@@ -0,0 +1,43 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.rest;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A page of query results and the cursor that continues after it.
+ */
+public class CursorPage<T> {
+
+    private final List<T> resources;
+
+    private final String nextCursor;
+
+    public CursorPage(List<T> resources, String nextCursor) {
+        this.resources = new ArrayList<T>(resources);
+        this.nextCursor = nextCursor;
+    }
+
+    public List<T> getResources() {
+        return resources;
+    }
+
+    /**
+     * @return an opaque cursor for the next page, or null if this is the
+     *         last page
+     */
+    public String getNextCursor() {
+        return nextCursor;
+    }
+}
@@ -13,6 +13,7 @@
 package org.cloudfoundry.identity.uaa.rest;
 
 import java.util.List;
+import java.util.function.Consumer;
 
 public interface Queryable<T> {
 
@@ -20,6 +21,43 @@ public interface Queryable<T> {
 
     List<T> query(String filter, String sortBy, boolean ascending);
 
+    /**
+     * Queries one page of results, seeking past the last result of the
+     * previous page instead of skipping a number of rows, and without
+     * counting all results. By default all results are queried and the
+     * cursor is the index of the next result.
+     *
+     * @param cursor the next cursor of the previous page, or null for the
+     *            first page
+     * @param count the maximum number of results in the page
+     */
+    default CursorPage<T> queryPage(String filter, String sortBy, boolean ascending, String cursor, int count) {
+        List<T> results = query(filter, sortBy, ascending);
+        int start = cursor == null || cursor.isEmpty() ? 0 : Integer.parseInt(cursor);
+        if (start < 0 || count < 1) {
+            throw new IllegalArgumentException("Invalid cursor or page size");
+        }
+        int end = (int) Math.min((long) start + count, results.size());
+        if (start >= end) {
+            return new CursorPage<T>(results.subList(0, 0), null);
+        }
+        return new CursorPage<T>(results.subList(start, end), end < results.size() ? String.valueOf(end) : null);
+    }
+
+    /**
+     * Hands all results to the handler one at a time. Implementations that
+     * read from a database hand each result over as its row is read instead
+     * of loading all results first.
+     *
+     * @param fetchSize the number of rows to fetch from the database at a
+     *            time
+     */
+    default void stream(String filter, String sortBy, boolean ascending, int fetchSize, Consumer<T> handler) {
+        for (T result : query(filter, sortBy, ascending)) {
+            handler.accept(result);
+        }
+    }
+
     int delete(String filter);
 
 }
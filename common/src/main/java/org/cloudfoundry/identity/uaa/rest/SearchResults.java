@@ -15,6 +15,8 @@ package org.cloudfoundry.identity.uaa.rest;
 import java.util.ArrayList;
 import java.util.Collection;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
+
 /**
  * @author Dave Syer
  *
@@ -26,6 +28,7 @@ public class SearchResults<T> {
     private int itemsPerPage;
     private int totalResults;
     private Collection<String> schemas;
+    private String nextCursor;
 
     public SearchResults() {}
     public SearchResults(Collection<String> schemas, Collection<T> resources, int startIndex, int itemsPerPage,
@@ -57,6 +60,19 @@ public class SearchResults<T> {
         return resources;
     }
 
+    /**
+     * @return the cursor of the next page when paging with cursors, null
+     *         otherwise or on the last page
+     */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    public void setNextCursor(String nextCursor) {
+        this.nextCursor = nextCursor;
+    }
+
     @Override
     public String toString() {
         StringBuilder builder = new StringBuilder("SearchResults[schemas:");
@@ -12,15 +12,44 @@
  *******************************************************************************/
 package org.cloudfoundry.identity.uaa.rest.jdbc;
 
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Base64;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.sql.DataSource;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.cloudfoundry.identity.uaa.rest.CursorPage;
 import org.cloudfoundry.identity.uaa.rest.Queryable;
+import org.cloudfoundry.identity.uaa.util.JsonUtils;
 import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.ArgumentPreparedStatementSetter;
+import org.springframework.jdbc.core.ConnectionCallback;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
 import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.core.namedparam.NamedParameterUtils;
+import org.springframework.jdbc.core.namedparam.ParsedSql;
+import org.springframework.jdbc.datasource.ConnectionHolder;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.util.Assert;
+import org.springframework.util.ObjectUtils;
+import org.springframework.util.StringUtils;
+
+import com.fasterxml.jackson.core.type.TypeReference;
 
 public abstract class AbstractQueryable<T> implements Queryable<T> {
 
@@ -36,6 +65,9 @@ public abstract class AbstractQueryable<T> implements Queryable<T> {
 
     private int pageSize = 200;
 
+    //the order by clause that SimpleSearchQueryConverter appends to the filter
+    private static final Pattern ORDER_BY = Pattern.compile("(.*) ORDER BY (\\S+) (ASC|DESC)", Pattern.DOTALL);
+
     protected AbstractQueryable(JdbcTemplate jdbcTemplate, JdbcPagingListFactory pagingListFactory,
                     RowMapper<T> rowMapper) {
         this.jdbcTemplate = new NamedParameterJdbcTemplate(jdbcTemplate);
@@ -84,23 +116,207 @@ public abstract class AbstractQueryable<T> implements Queryable<T> {
     public List<T> query(String filter, String sortBy, boolean ascending) {
         SearchQueryConverter.ProcessedFilter where = queryConverter.convert(filter, sortBy, ascending);
         logger.debug("Filtering groups with SQL: " + where);
-        List<T> result;
         try {
-            String completeSql = getQuerySQL(filter, where);
-            logger.debug("complete sql: " + completeSql + ", params: " + where.getParams());
-            if (pageSize > 0 && pageSize < Integer.MAX_VALUE) {
-                result = pagingListFactory.createJdbcPagingList(completeSql, where.getParams(), rowMapper, pageSize);
+            return query(getQuerySQL(filter, where), where.getParams());
+        } catch (DataAccessException e) {
+            logger.debug("Filter '" + filter + "' generated invalid SQL", e);
+            throw new IllegalArgumentException("Invalid filter: " + filter);
+        }
+    }
+
+    /**
+     * Runs a complete query, fetching the results in pages of
+     * <code>pageSize</code>.
+     */
+    protected List<T> query(String completeSql, Map<String, Object> params) {
+        logger.debug("complete sql: " + completeSql + ", params: " + params);
+        if (pageSize > 0 && pageSize < Integer.MAX_VALUE) {
+            return pagingListFactory.createJdbcPagingList(completeSql, params, rowMapper, pageSize);
+        }
+        else {
+            return jdbcTemplate.query(completeSql, params, rowMapper);
+        }
+    }
+
+    @Override
+    public void stream(String filter, String sortBy, boolean ascending, int fetchSize, Consumer<T> handler) {
+        SearchQueryConverter.ProcessedFilter where = StringUtils.hasText(filter) ?
+                        queryConverter.convert(filter, sortBy, ascending) :
+                        new SearchQueryConverter.ProcessedFilter(null, new HashMap<String, Object>());
+        final boolean[] started = new boolean[1];
+        try {
+            stream(getQuerySQL(filter, where), where.getParams(), fetchSize, new Consumer<T>() {
+                @Override
+                public void accept(T result) {
+                    started[0] = true;
+                    handler.accept(result);
+                }
+            });
+        } catch (DataAccessException e) {
+            if (started[0]) {
+                throw e;
+            }
+            logger.debug("Filter '" + filter + "' generated invalid SQL", e);
+            throw new IllegalArgumentException("Invalid filter: " + filter);
+        }
+    }
+
+    /**
+     * Runs a complete query with a forward only result set and hands each
+     * row to the handler as it is read, so only <code>fetchSize</code> rows
+     * are held in memory at a time. Auto commit is turned off while reading
+     * because some drivers (e.g. PostgreSQL) read all rows at once
+     * otherwise; MySQL only honours the fetch size with
+     * <code>useCursorFetch=true</code> in the connection URL.
+     * <p>
+     * The connection is bound to the thread while the rows are read, so that
+     * queries the handler makes through the same data source run on it
+     * instead of waiting for a second connection from the pool.
+     */
+    protected void stream(String completeSql, Map<String, Object> params, final int fetchSize, final Consumer<T> handler) {
+        logger.debug("stream sql: " + completeSql + ", params: " + params + ", fetch size: " + fetchSize);
+        ParsedSql parsedSql = NamedParameterUtils.parseSqlStatement(completeSql);
+        MapSqlParameterSource source = new MapSqlParameterSource(params);
+        final String sql = NamedParameterUtils.substituteNamedParameters(parsedSql, source);
+        final Object[] args = NamedParameterUtils.buildValueArray(parsedSql, source, null);
+        final DataSource dataSource = ((JdbcTemplate) jdbcTemplate.getJdbcOperations()).getDataSource();
+        jdbcTemplate.getJdbcOperations().execute(new ConnectionCallback<Void>() {
+            @Override
+            public Void doInConnection(Connection con) throws SQLException {
+                //already bound when called within a transaction
+                boolean bind = !TransactionSynchronizationManager.hasResource(dataSource);
+                if (bind) {
+                    TransactionSynchronizationManager.bindResource(dataSource, new ConnectionHolder(con));
+                }
+                boolean autoCommit = con.getAutoCommit();
+                if (autoCommit) {
+                    con.setAutoCommit(false);
+                }
+                try (PreparedStatement ps = con.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+                    if (fetchSize > 0) {
+                        ps.setFetchSize(fetchSize);
+                    }
+                    new ArgumentPreparedStatementSetter(args).setValues(ps);
+                    try (ResultSet rs = ps.executeQuery()) {
+                        int rowNum = 0;
+                        while (rs.next()) {
+                            handler.accept(rowMapper.mapRow(rs, rowNum++));
+                        }
+                    }
+                } finally {
+                    if (autoCommit) {
+                        con.setAutoCommit(true);
+                    }
+                    if (bind) {
+                        TransactionSynchronizationManager.unbindResource(dataSource);
+                    }
+                }
+                return null;
             }
-            else {
-                result = jdbcTemplate.query(completeSql, where.getParams(), rowMapper);
+        });
+    }
+
+    @Override
+    public CursorPage<T> queryPage(String filter, String sortBy, boolean ascending, String cursor, int count) {
+        return queryPage(filter, sortBy, ascending, cursor, count, null, null);
+    }
+
+    /**
+     * Queries one page of results that also meet the given SQL condition.
+     */
+    protected CursorPage<T> queryPage(String filter, String sortBy, boolean ascending, String cursor, int count, String condition, Map<String, Object> conditionParams) {
+        //without a filter the converter still maps the sort attribute, getQuerySQL leaves out the condition
+        SearchQueryConverter.ProcessedFilter where = StringUtils.hasText(filter) ?
+                        queryConverter.convert(filter, sortBy, ascending) :
+                        StringUtils.hasText(sortBy) ?
+                        queryConverter.convert(getIdColumn() + " pr", sortBy, ascending) :
+                        new SearchQueryConverter.ProcessedFilter(null, new HashMap<String, Object>());
+        String sortColumn = null;
+        String whereSql = where.getSql();
+        if (whereSql != null) {
+            Matcher matcher = ORDER_BY.matcher(whereSql);
+            if (matcher.matches()) {
+                whereSql = matcher.group(1);
+                sortColumn = matcher.group(2);
             }
-            return result;
+        }
+        SearchQueryConverter.ProcessedFilter filterOnly = new SearchQueryConverter.ProcessedFilter(whereSql, where.getParams());
+        String sql = getQuerySQL(filter, filterOnly);
+        Map<String, Object> params = new HashMap<String, Object>(where.getParams());
+        if (condition != null) {
+            sql += (sql.toLowerCase().contains(" where ") ? " and " : " where ") + condition;
+            params.putAll(conditionParams);
+        }
+        try {
+            return queryPage(sql, params, sortColumn, ascending, cursor, count);
         } catch (DataAccessException e) {
             logger.debug("Filter '" + filter + "' generated invalid SQL", e);
             throw new IllegalArgumentException("Invalid filter: " + filter);
         }
     }
 
+    /**
+     * Runs a complete query without an order by clause one page at a time,
+     * ordered by the sort column and then by {@link #getIdColumn()}. Instead
+     * of an offset the query starts after the sort column value and id of
+     * the last row of the previous page, which the cursor holds, so late
+     * pages cost the same as the first one as long as the columns are
+     * indexed. Rows with a null sort column value cannot be paged past.
+     */
+    protected CursorPage<T> queryPage(String completeSql, Map<String, Object> params, final String sortColumn, boolean ascending, String cursor, final int count) {
+        Assert.isTrue(count > 0, "The page size must be positive");
+        Map<String, Object> pageParams = new HashMap<String, Object>(params);
+        String sql = completeSql;
+        String comparison = ascending ? " > " : " < ";
+        if (StringUtils.hasText(cursor)) {
+            Cursor position = Cursor.decode(cursor, sortColumn);
+            sql += (sql.toLowerCase().contains(" where ") ? " and " : " where ");
+            if (sortColumn == null) {
+                sql += getIdColumn() + comparison + ":seek_id";
+            } else {
+                sql += "(" + sortColumn + comparison + ":seek_sort or (" + sortColumn + " = :seek_sort and " + getIdColumn() + comparison + ":seek_id))";
+                pageParams.put("seek_sort", position.sortValue);
+            }
+            pageParams.put("seek_id", position.id);
+        }
+        String direction = ascending ? " ASC" : " DESC";
+        sql += " ORDER BY " + (sortColumn == null ? "" : sortColumn + direction + ", ") + getIdColumn() + direction;
+        sql = pagingListFactory.getLimitSqlAdapter().getLimitSql(sql, 0, count + 1);
+        logger.debug("page sql: " + sql + ", params: " + pageParams);
+
+        //fetches one row more than needed to know whether there is a next page
+        final Object[] lastKey = new Object[2];
+        List<T> results = jdbcTemplate.query(sql, pageParams, new RowMapper<T>() {
+            @Override
+            public T mapRow(ResultSet rs, int rowNum) throws SQLException {
+                if (rowNum == count - 1) {
+                    lastKey[0] = sortColumn == null ? null : rs.getObject(getColumnLabel(sortColumn));
+                    lastKey[1] = rs.getString(getColumnLabel(getIdColumn()));
+                }
+                return rowMapper.mapRow(rs, rowNum);
+            }
+        });
+        if (results.size() <= count) {
+            return new CursorPage<T>(results, null);
+        }
+        if (sortColumn != null && lastKey[0] == null) {
+            throw new IllegalArgumentException("Cannot page past a null value of " + sortColumn);
+        }
+        return new CursorPage<T>(results.subList(0, count), new Cursor(sortColumn, lastKey[0], (String) lastKey[1]).encode());
+    }
+
+    private String getColumnLabel(String column) {
+        return column.substring(column.lastIndexOf('.') + 1);
+    }
+
+    /**
+     * @return the column that identifies a row, used to order rows with the
+     *         same sort column value
+     */
+    protected String getIdColumn() {
+        return "id";
+    }
+
     protected String getQuerySQL(String filter, SearchQueryConverter.ProcessedFilter where) {
         return filter == null || filter.trim().length()==0 ?
         getBaseSqlQuery() :
@@ -113,4 +329,62 @@ public abstract class AbstractQueryable<T> implements Queryable<T> {
     public SearchQueryConverter getQueryConverter() {
         return queryConverter;
     }
+
+    /**
+     * The position after the last row of a page, encoded as URL safe base64
+     * of a JSON object. The sort column is kept so that a cursor is not used
+     * with another sort order.
+     */
+    private static final class Cursor {
+        private final String sortColumn;
+        private final Object sortValue;
+        private final String id;
+
+        private Cursor(String sortColumn, Object sortValue, String id) {
+            this.sortColumn = sortColumn;
+            this.sortValue = sortValue;
+            this.id = id;
+        }
+
+        private String encode() {
+            Map<String, String> values = new HashMap<String, String>();
+            values.put("c", sortColumn);
+            values.put("i", id);
+            if (sortValue instanceof Timestamp) {
+                values.put("t", "timestamp");
+            } else if (sortValue instanceof Number) {
+                values.put("t", "number");
+            } else if (sortValue instanceof Boolean) {
+                values.put("t", "boolean");
+            }
+            values.put("v", sortValue == null ? null : sortValue.toString());
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(JsonUtils.writeValueAsString(values).getBytes(StandardCharsets.UTF_8));
+        }
+
+        private static Cursor decode(String cursor, String sortColumn) {
+            Map<String, String> values;
+            try {
+                values = JsonUtils.readValue(Base64.getUrlDecoder().decode(cursor), new TypeReference<Map<String, String>>() {});
+            } catch (IllegalArgumentException | JsonUtils.JsonUtilException e) {
+                throw new IllegalArgumentException("Invalid cursor: " + cursor);
+            }
+            if (values == null || values.get("i") == null || !ObjectUtils.nullSafeEquals(sortColumn, values.get("c"))) {
+                throw new IllegalArgumentException("Invalid cursor: " + cursor);
+            }
+            String value = values.get("v");
+            Object sortValue = value;
+            try {
+                if ("timestamp".equals(values.get("t"))) {
+                    sortValue = Timestamp.valueOf(value);
+                } else if ("number".equals(values.get("t"))) {
+                    sortValue = new BigDecimal(value);
+                } else if ("boolean".equals(values.get("t"))) {
+                    sortValue = Boolean.valueOf(value);
+                }
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Invalid cursor: " + cursor);
+            }
+            return new Cursor(sortColumn, sortValue, values.get("i"));
+        }
+    }
 }
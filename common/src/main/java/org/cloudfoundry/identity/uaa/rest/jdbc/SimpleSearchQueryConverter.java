@@ -16,9 +16,13 @@ package org.cloudfoundry.identity.uaa.rest.jdbc;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.regex.Pattern;
 
 import com.unboundid.scim.sdk.SCIMException;
 import com.unboundid.scim.sdk.SCIMFilter;
@@ -26,26 +30,91 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.cloudfoundry.identity.uaa.rest.AttributeNameMapper;
 import org.cloudfoundry.identity.uaa.rest.SimpleAttributeNameMapper;
+import org.cloudfoundry.identity.uaa.util.LazyCache;
 import org.springframework.security.oauth2.common.util.RandomValueStringGenerator;
 import org.springframework.util.StringUtils;
 
+/**
+ * Converts SCIM filters into SQL where clauses.
+ * <p>
+ * The SQL of a filter only depends on its shape, the filter with its literal
+ * values taken out. Converted shapes are kept as plans, a filter with a known
+ * shape only has its literal values bound to the parameters of the plan and
+ * is not parsed again.
+ * <p>
+ * On PostgreSQL, <code>sw</code> filters whose value ends in a lower case
+ * letter or a digit also get a byte wise range next to the <code>LIKE</code>,
+ * so that the <code>text_pattern_ops</code> indexes on the lower case columns
+ * are used even by generic plans of prepared statements.
+ */
 public class SimpleSearchQueryConverter implements SearchQueryConverter {
 
     private static Log logger = LogFactory.getLog(SimpleSearchQueryConverter.class);
+
+    private static final RandomValueStringGenerator generator = new RandomValueStringGenerator();
+
+    private static final Pattern NUMBER = Pattern.compile("-?[0-9]+(\\.[0-9]+)?");
+
+    //values without LIKE wildcards whose next prefix lower cases the same way in every locale
+    private static final Pattern PREFIX_RANGE = Pattern.compile("[^%_\\\\]*[0-9a-z]");
+
+    private static final String POSTGRESQL = "postgresql";
+
+    private static final List<String> COMPARISON_OPERATORS = Arrays.asList("eq", "co", "sw", "gt", "ge", "lt", "le");
+
+    //the parts of a filter term, in the order they are expected in
+    private static final int ATTRIBUTE = 0;
+    private static final int OPERATOR = 1;
+    private static final int VALUE = 2;
+    private static final int LOGICAL_OPERATOR = 3;
+
     private AttributeNameMapper mapper = new SimpleAttributeNameMapper(Collections.<String, String> emptyMap());
 
     private boolean dbCaseInsensitive = false;
 
+    private String platform;
+
+    private final String paramPrefix = "__" + generator.generate().toLowerCase() + "_";
+
+    private final LazyCache<PlanKey, Plan> plans = new LazyCache<>(1000, 0);
+
     public boolean isDbCaseInsensitive() {
         return dbCaseInsensitive;
     }
 
     public void setDbCaseInsensitive(boolean caseInsensitive) {
         this.dbCaseInsensitive = caseInsensitive;
+        plans.invalidateAll();
+    }
+
+    public String getPlatform() {
+        return platform;
+    }
+
+    /**
+     * @param platform the database platform, as in the <code>platform</code>
+     * bean of the database profiles
+     */
+    public void setPlatform(String platform) {
+        this.platform = platform;
+        plans.invalidateAll();
     }
 
     public void setAttributeNameMapper(AttributeNameMapper mapper) {
         this.mapper = mapper;
+        plans.invalidateAll();
+    }
+
+    public int getMaxPlans() {
+        return plans.getMaxEntries();
+    }
+
+    /**
+     * @param maxPlans the number of filter shapes whose SQL is kept, 0
+     * converts every filter from scratch
+     */
+    public void setMaxPlans(int maxPlans) {
+        plans.setMaxEntries(maxPlans);
     }
 
     @Override
@@ -55,9 +124,38 @@ public class SimpleSearchQueryConverter implements SearchQueryConverter {
 
     @Override
     public ProcessedFilter convert(String filter, String sortBy, boolean ascending, AttributeNameMapper mapper) {
-        String paramPrefix = generateParameterPrefix(filter);
+        if (!StringUtils.hasText(filter)) {
+            return convert(filter, sortBy, ascending, mapper, paramPrefix, null);
+        }
+        if (filter.contains(paramPrefix)) {
+            return convert(filter, sortBy, ascending, mapper, generateParameterPrefix(filter), null);
+        }
+        Shape shape = getMaxPlans() > 0 ? getShape(filter) : null;
+        if (shape == null) {
+            return convert(filter, sortBy, ascending, mapper, paramPrefix, null);
+        }
+
+        PlanKey key = new PlanKey(shape.key, sortBy, ascending, mapper);
+        Plan plan = plans.get(key);
+        if (plan != null) {
+            ProcessedFilter pf = new ProcessedFilter(plan.sql, plan.bind(shape));
+            pf.setParamPrefix(paramPrefix);
+            return pf;
+        }
+        List<Slot> slots = new ArrayList<Slot>();
+        ProcessedFilter pf = convert(filter, sortBy, ascending, mapper, paramPrefix, slots);
+        plan = new Plan(pf.getSql(), slots);
+        if (pf.getParams().equals(plan.bind(shape))) {
+            plans.put(key, plan);
+        } else {
+            logger.debug("Filter shape of [" + filter + "] does not match its parameters, it will not be cached");
+        }
+        return pf;
+    }
+
+    private ProcessedFilter convert(String filter, String sortBy, boolean ascending, AttributeNameMapper mapper, String paramPrefix, List<Slot> slots) {
         Map<String, Object> values = new HashMap<String, Object>();
-        String where = StringUtils.hasText(filter) ? getWhereClause(filter, sortBy, ascending, values, mapper, paramPrefix) : null;
+        String where = StringUtils.hasText(filter) ? getWhereClause(filter, sortBy, ascending, values, mapper, paramPrefix, slots) : null;
         ProcessedFilter pf = new ProcessedFilter(where, values);
         pf.setParamPrefix(paramPrefix);
         return pf;
@@ -65,18 +163,18 @@ public class SimpleSearchQueryConverter implements SearchQueryConverter {
 
     protected String generateParameterPrefix(String filter) {
         while (true) {
-            String s = new RandomValueStringGenerator().generate().toLowerCase();
+            String s = generator.generate().toLowerCase();
             if (!filter.contains(s)) {
                 return "__"+s+"_";
             }
         }
     }
 
-    private String getWhereClause(String filter, String sortBy, boolean ascending, Map<String, Object> values, AttributeNameMapper mapper, String paramPrefix) {
+    private String getWhereClause(String filter, String sortBy, boolean ascending, Map<String, Object> values, AttributeNameMapper mapper, String paramPrefix, List<Slot> slots) {
 
         try {
             SCIMFilter scimFilter = scimFilter(filter);
-            String whereClause = createFilter(scimFilter, values, mapper, paramPrefix);
+            String whereClause = createFilter(scimFilter, values, mapper, paramPrefix, slots);
             if (sortBy != null) {
                 sortBy = mapper.mapToInternal(sortBy);
                 // Need to add "asc" or "desc" explicitly to ensure that the pattern
@@ -102,32 +200,82 @@ public class SimpleSearchQueryConverter implements SearchQueryConverter {
         return scimFilter;
     }
 
-    private String createFilter(SCIMFilter filter, Map<String,Object> values, AttributeNameMapper mapper, String paramPrefix) {
+    private String createFilter(SCIMFilter filter, Map<String,Object> values, AttributeNameMapper mapper, String paramPrefix, List<Slot> slots) {
         switch (filter.getFilterType()) {
             case AND:
-                return "(" + createFilter(filter.getFilterComponents().get(0), values, mapper, paramPrefix) + " AND " + createFilter(filter.getFilterComponents().get(1), values, mapper, paramPrefix) + ")";
+                return "(" + createFilter(filter.getFilterComponents().get(0), values, mapper, paramPrefix, slots) + " AND " + createFilter(filter.getFilterComponents().get(1), values, mapper, paramPrefix, slots) + ")";
             case OR:
-                return "(" + createFilter(filter.getFilterComponents().get(0), values, mapper, paramPrefix) + " OR " + createFilter(filter.getFilterComponents().get(1), values, mapper, paramPrefix) + ")";
+                return "(" + createFilter(filter.getFilterComponents().get(0), values, mapper, paramPrefix, slots) + " OR " + createFilter(filter.getFilterComponents().get(1), values, mapper, paramPrefix, slots) + ")";
             case EQUALITY:
-                return comparisonClause(filter, "=", values, "", "", paramPrefix);
+                return comparisonClause(filter, "=", values, "", "", paramPrefix, slots);
             case CONTAINS:
-                return comparisonClause(filter, "LIKE", values, "%", "%", paramPrefix);
+                return comparisonClause(filter, "LIKE", values, "%", "%", paramPrefix, slots);
             case STARTS_WITH:
-                return comparisonClause(filter, "LIKE", values, "", "%", paramPrefix);
+                if (filter.isQuoteFilterValue() && filter.getFilterValue() != null
+                                && getStringOrDate(filter.getFilterValue()) instanceof String
+                                && isPrefixRange(filter.getFilterValue())) {
+                    return prefixRangeClause(filter, values, paramPrefix, slots);
+                }
+                return comparisonClause(filter, "LIKE", values, "", "%", paramPrefix, slots);
             case PRESENCE:
                 return getAttributeName(filter, mapper) + " IS NOT NULL";
             case GREATER_THAN:
-                return comparisonClause(filter, ">", values, "", "", paramPrefix);
+                return comparisonClause(filter, ">", values, "", "", paramPrefix, slots);
             case GREATER_OR_EQUAL:
-                return comparisonClause(filter, ">=", values, "", "", paramPrefix);
+                return comparisonClause(filter, ">=", values, "", "", paramPrefix, slots);
             case LESS_THAN:
-                return comparisonClause(filter, "<", values, "", "", paramPrefix);
+                return comparisonClause(filter, "<", values, "", "", paramPrefix, slots);
             case LESS_OR_EQUAL:
-                return comparisonClause(filter, "<=", values, "", "", paramPrefix);
+                return comparisonClause(filter, "<=", values, "", "", paramPrefix, slots);
         }
         return null;
     }
 
+    /**
+     * Records which parameter the value of the comparison went to, and how it
+     * was decorated, so that the plan can bind other values the same way.
+     */
+    private String comparisonClause(SCIMFilter filter, String comparator, Map<String, Object> values, String valuePrefix, String valueSuffix, String paramPrefix, List<Slot> slots) {
+        String pName = getParamName(filter, values, paramPrefix);
+        String clause = comparisonClause(filter, comparator, values, valuePrefix, valueSuffix, paramPrefix);
+        if (slots != null && values.containsKey(pName)) {
+            slots.add(new Slot(pName, valuePrefix, valueSuffix, null, null));
+        }
+        return clause;
+    }
+
+    /**
+     * The <code>~>=~</code> and <code>~<~</code> operators compare byte wise,
+     * like the <code>text_pattern_ops</code> indexes. The <code>LIKE</code>
+     * stays, the range only has to contain all of its matches.
+     */
+    private String prefixRangeClause(SCIMFilter filter, Map<String, Object> values, String paramPrefix, List<Slot> slots) {
+        String pName = getParamName(filter, values, paramPrefix);
+        String like = comparisonClause(filter, "LIKE", values, "", "%", paramPrefix);
+        String from = getParamName(filter, values, paramPrefix);
+        values.put(from, filter.getFilterValue());
+        String to = getParamName(filter, values, paramPrefix);
+        values.put(to, getRangeEnd(filter.getFilterValue()));
+        if (slots != null) {
+            slots.add(new Slot(pName, "", "%", from, to));
+        }
+        //the same column as in the LIKE
+        String attribute = "LOWER(" + getAttributeName(filter, this.mapper) + ")";
+        return "(" + like + " AND " + attribute + " ~>=~ LOWER(:" + from + ") AND " + attribute + " ~<~ LOWER(:" + to + "))";
+    }
+
+    private boolean isPrefixRange(String value) {
+        return POSTGRESQL.equals(getPlatform()) && !isDbCaseInsensitive() && PREFIX_RANGE.matcher(value).matches();
+    }
+
+    /**
+     * @return the value with its last character incremented, the smallest
+     * value that sorts after every value starting with it
+     */
+    private static String getRangeEnd(String value) {
+        return value.substring(0, value.length() - 1) + (char) (value.charAt(value.length() - 1) + 1);
+    }
+
     protected String comparisonClause(SCIMFilter filter, String comparator, Map<String, Object> values, String valuePrefix, String valueSuffix, String paramPrefix) {
         String pName = getParamName(filter, values, paramPrefix);
         String paramName = ":"+pName;
@@ -179,6 +327,10 @@ public class SimpleSearchQueryConverter implements SearchQueryConverter {
     }
 
     protected Object getStringOrDate(String s) {
+        //every timestamp has the separators of HH:mm:ss
+        if (s.indexOf(':') < 0) {
+            return s;
+        }
         try {
             DateFormat TIMESTAMP_FORMAT = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
             return TIMESTAMP_FORMAT.parse(s);
@@ -187,6 +339,190 @@ public class SimpleSearchQueryConverter implements SearchQueryConverter {
         }
     }
 
+    /**
+     * Takes the literal values out of a filter without parsing it, following
+     * <code>attribute operator value</code> terms joined by <code>and</code>
+     * and <code>or</code>.
+     *
+     * @return the shape of the filter, or <code>null</code> if the filter is
+     * not simple enough to be sure that other values would give the same SQL
+     */
+    private Shape getShape(String filter) {
+        //legacy filters quote their values with single quotes
+        char quote = filter.indexOf('"') >= 0 ? '"' : '\'';
+        StringBuilder key = new StringBuilder(filter.length());
+        List<Object> literals = new ArrayList<Object>();
+        int expected = ATTRIBUTE;
+        String operator = null;
+        int i = 0;
+        while (i < filter.length()) {
+            char c = filter.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (c == '(' || c == ')') {
+                if (expected != (c == '(' ? ATTRIBUTE : LOGICAL_OPERATOR)) {
+                    return null;
+                }
+                key.append(c);
+                i++;
+            } else if (expected == VALUE && c == quote) {
+                int end = filter.indexOf(quote, i + 1);
+                if (end < 0) {
+                    return null;
+                }
+                String value = filter.substring(i + 1, end);
+                if (value.indexOf('\\') >= 0) {
+                    return null;
+                }
+                Object stringOrDate = getStringOrDate(value);
+                //dates are compared without lower, and prefix ranges have extra parameters, so they are part of the shape
+                if (!(stringOrDate instanceof String)) {
+                    key.append(" \"d\"");
+                } else if ("sw".equals(operator) && isPrefixRange(value)) {
+                    key.append(" \"r\"");
+                } else {
+                    key.append(" \"s\"");
+                }
+                literals.add(stringOrDate instanceof String ? value : stringOrDate);
+                expected = LOGICAL_OPERATOR;
+                i = end + 1;
+            } else {
+                int end = endOfWord(filter, i);
+                String word = filter.substring(i, end);
+                if (word.indexOf('"') >= 0 || word.indexOf('\'') >= 0) {
+                    return null;
+                }
+                if (expected == ATTRIBUTE) {
+                    key.append(' ').append(word);
+                    expected = OPERATOR;
+                } else if (expected == OPERATOR) {
+                    operator = word.toLowerCase();
+                    if ("pr".equals(operator)) {
+                        expected = LOGICAL_OPERATOR;
+                    } else if (COMPARISON_OPERATORS.contains(operator)) {
+                        expected = VALUE;
+                    } else {
+                        return null;
+                    }
+                    key.append(' ').append(word);
+                } else if (expected == VALUE) {
+                    if (NUMBER.matcher(word).matches()) {
+                        key.append(" n");
+                        literals.add(Double.parseDouble(word));
+                    } else if ("true".equals(word) || "false".equals(word)) {
+                        key.append(" b");
+                        literals.add(Boolean.valueOf(word));
+                    } else {
+                        return null;
+                    }
+                    expected = LOGICAL_OPERATOR;
+                } else if ("and".equalsIgnoreCase(word) || "or".equalsIgnoreCase(word)) {
+                    key.append(' ').append(word);
+                    expected = ATTRIBUTE;
+                } else {
+                    return null;
+                }
+                i = end;
+            }
+        }
+        return expected == LOGICAL_OPERATOR ? new Shape(key.toString(), literals) : null;
+    }
+
+    private int endOfWord(String filter, int start) {
+        int end = start;
+        while (end < filter.length() && !Character.isWhitespace(filter.charAt(end)) && filter.charAt(end) != '('
+                        && filter.charAt(end) != ')') {
+            end++;
+        }
+        return end;
+    }
 
+    private static class Shape {
+        private final String key;
+        private final List<Object> literals;
 
+        private Shape(String key, List<Object> literals) {
+            this.key = key;
+            this.literals = literals;
+        }
+    }
+
+    private static class Slot {
+        private final String name;
+        private final String valuePrefix;
+        private final String valueSuffix;
+        private final String rangeFrom;
+        private final String rangeTo;
+
+        private Slot(String name, String valuePrefix, String valueSuffix, String rangeFrom, String rangeTo) {
+            this.name = name;
+            this.valuePrefix = valuePrefix;
+            this.valueSuffix = valueSuffix;
+            this.rangeFrom = rangeFrom;
+            this.rangeTo = rangeTo;
+        }
+
+        private void bind(Object literal, Map<String, Object> values) {
+            values.put(name, literal instanceof String ? valuePrefix + literal + valueSuffix : literal);
+            if (rangeFrom != null) {
+                values.put(rangeFrom, literal);
+                values.put(rangeTo, getRangeEnd((String) literal));
+            }
+        }
+    }
+
+    private static class Plan {
+        private final String sql;
+        private final List<Slot> slots;
+
+        private Plan(String sql, List<Slot> slots) {
+            this.sql = sql;
+            this.slots = slots;
+        }
+
+        /**
+         * @return the parameters of the filter with the literals of the
+         * shape, the plan is only kept if they are the parameters the filter
+         * was converted with
+         */
+        private Map<String, Object> bind(Shape shape) {
+            Map<String, Object> values = new HashMap<String, Object>();
+            for (int i = 0; i < slots.size() && i < shape.literals.size(); i++) {
+                slots.get(i).bind(shape.literals.get(i), values);
+            }
+            return slots.size() == shape.literals.size() ? values : null;
+        }
+    }
+
+    private static class PlanKey {
+        private final String shape;
+        private final String sortBy;
+        private final boolean ascending;
+        private final AttributeNameMapper mapper;
+
+        private PlanKey(String shape, String sortBy, boolean ascending, AttributeNameMapper mapper) {
+            this.shape = shape;
+            this.sortBy = sortBy;
+            this.ascending = ascending;
+            this.mapper = mapper;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof PlanKey)) {
+                return false;
+            }
+            PlanKey other = (PlanKey) o;
+            return shape.equals(other.shape) && (sortBy == null ? other.sortBy == null : sortBy.equals(other.sortBy))
+                            && ascending == other.ascending && mapper == other.mapper;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = shape.hashCode();
+            result = 31 * result + (sortBy == null ? 0 : sortBy.hashCode());
+            result = 31 * result + (ascending ? 1 : 0);
+            return 31 * result + System.identityHashCode(mapper);
+        }
+    }
 }
@@ -15,11 +15,16 @@ package org.cloudfoundry.identity.uaa.util;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static org.springframework.security.crypto.util.EncodingUtils.concatenate;
+
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.jmx.support.MetricType;
 import org.springframework.security.crypto.bcrypt.BCrypt;
 import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
 import org.springframework.security.crypto.codec.Hex;
@@ -32,19 +37,37 @@ import org.springframework.security.oauth2.common.util.RandomValueStringGenerato
 /**
  * Wrapper around a slow password encoder that does a fast translation in memory only
  * This uses a hash to as a key to store a list of
+ * <p>
+ * The keys are held in a segmented LRU cache, when it is full the least recently
+ * used keys of a segment are evicted one at a time. Each thread uses its own
+ * message digest to compute the keys.
  */
+@ManagedResource
 public class CachingPasswordEncoder implements PasswordEncoder {
 
-    private final MessageDigest messageDigest;
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+
+    private final ThreadLocal<MessageDigest> messageDigest = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance(DIGEST_ALGORITHM);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
     private final byte[] secret;
     private final byte[] salt;
     private final BytesKeyGenerator saltGenerator;
     private final int iterations;
 
-    private int maxKeys = 1000;
     private int maxEncodedPasswords = 5;
     private boolean enabled = true;
 
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
     public boolean isEnabled() {
         return enabled;
     }
@@ -53,12 +76,13 @@ public class CachingPasswordEncoder implements PasswordEncoder {
         this.enabled = enabled;
     }
 
-    private final ConcurrentHashMap<CharSequence, Set<String>> cache = new ConcurrentHashMap<>();
+    private final LazyCache<String, Set<String>> cache = new LazyCache<>(1000, 0);
 
     private BCryptPasswordEncoder passwordEncoder;
 
     public CachingPasswordEncoder() throws NoSuchAlgorithmException {
-        messageDigest = MessageDigest.getInstance("SHA-256");
+        //fail early if the algorithm is not available
+        MessageDigest.getInstance(DIGEST_ALGORITHM);
         this.secret = Utf8.encode(new RandomValueStringGenerator().generate());
         this.saltGenerator = KeyGenerators.secureRandom();
         this.salt = saltGenerator.generateKey();
@@ -90,35 +114,45 @@ public class CachingPasswordEncoder implements PasswordEncoder {
     }
 
     private Set<String> getOrCreateHashList(String cacheKey) {
-        cache.putIfAbsent(cacheKey, Collections.synchronizedSet(new LinkedHashSet<String>()));
-        if (cache.size()>getMaxKeys()) {
-            //this should not happen if properly tuned.
-            cache.clear();
+        Set<String> result = cache.peek(cacheKey);
+        if (result == null) {
+            cache.asMap().putIfAbsent(cacheKey, Collections.synchronizedSet(new LinkedHashSet<String>()));
+            result = cache.peek(cacheKey);
         }
-        Set<String> result = cache.get(cacheKey);
         return result;
     }
 
     private boolean internalMatches(String cacheKey, CharSequence rawPassword, String encodedPassword) {
-        Set<String> cacheValue = cache.get(cacheKey);
+        Set<String> cacheValue = cache.peek(cacheKey);
         boolean result = false;
-        for (String encoded : cacheValue!=null ? cacheValue : Collections.<String>emptyList()) {
-            if (hashesEquals(encoded, encodedPassword)) {
-                result = true;
-                break;
+        if (cacheValue != null) {
+            synchronized (cacheValue) {
+                for (String encoded : cacheValue) {
+                    if (hashesEquals(encoded, encodedPassword)) {
+                        result = true;
+                        break;
+                    }
+                }
             }
         }
-        if (!result) {
-            String encoded = BCrypt.hashpw(rawPassword.toString(), encodedPassword);
-            if (hashesEquals(encoded, encodedPassword)) {
-                result = true;
-                cacheValue = getOrCreateHashList(cacheKey);
-                if (cacheValue!=null) {
+        if (result) {
+            hitCount.incrementAndGet();
+            return true;
+        }
+        missCount.incrementAndGet();
+        String encoded = BCrypt.hashpw(rawPassword.toString(), encodedPassword);
+        if (hashesEquals(encoded, encodedPassword)) {
+            result = true;
+            cacheValue = getOrCreateHashList(cacheKey);
+            if (cacheValue!=null) {
+                synchronized (cacheValue) {
                     cacheValue.add(encoded);
                     //this list should never grow very long.
                     //Only if you store multiple versions of the same password more than once
-                    if (cacheValue.size() > getMaxEncodedPasswords()) {
-                        cacheValue.clear();
+                    Iterator<String> oldest = cacheValue.iterator();
+                    while (cacheValue.size() > getMaxEncodedPasswords() && oldest.hasNext()) {
+                        oldest.next();
+                        oldest.remove();
                     }
                 }
             }
@@ -138,12 +172,11 @@ public class CachingPasswordEncoder implements PasswordEncoder {
     }
 
     private byte[] digest(byte[] value) {
-        synchronized (messageDigest) {
-            for (int i = 0; i < iterations; i++) {
-                value = messageDigest.digest(value);
-            }
-            return value;
+        MessageDigest digest = messageDigest.get();
+        for (int i = 0; i < iterations; i++) {
+            value = digest.digest(value);
         }
+        return value;
     }
 
     private boolean hashesEquals(String a, String b) {
@@ -161,12 +194,16 @@ public class CachingPasswordEncoder implements PasswordEncoder {
         return ret == 0;
     }
 
+    LazyCache<String, Set<String>> getCache() {
+        return cache;
+    }
+
     public int getMaxKeys() {
-        return maxKeys;
+        return cache.getMaxEntries();
     }
 
     public void setMaxKeys(int maxKeys) {
-        this.maxKeys = maxKeys;
+        cache.setMaxEntries(maxKeys);
     }
 
     public int getMaxEncodedPasswords() {
@@ -177,7 +214,30 @@ public class CachingPasswordEncoder implements PasswordEncoder {
         this.maxEncodedPasswords = maxEncodedPasswords;
     }
 
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Password Cache Keys")
     public int getNumberOfKeys() {
-        return cache.size();
+        return (int) cache.size();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Password Cache Hit Count")
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Password Cache BCrypt Fallback Count")
+    public long getBcryptFallbackCount() {
+        return missCount.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Password Cache Eviction Count")
+    public long getEvictionCount() {
+        return cache.getEvictionCount();
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Password Cache Hit Rate")
+    public double getHitRate() {
+        long hits = hitCount.get();
+        long total = hits + missCount.get();
+        return total == 0 ? 0.0 : (double) hits / total;
     }
 }
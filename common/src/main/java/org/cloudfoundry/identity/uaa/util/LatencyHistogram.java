@@ -0,0 +1,115 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts latencies in buckets of powers of two microseconds, so that
+ * recording is a couple of atomic increments and needs no locking.
+ * Percentiles are the upper bound of the bucket they fall in.
+ */
+public class LatencyHistogram {
+
+    /**
+     * Bucket 0 counts latencies under 1us, bucket i latencies under 2^i us,
+     * the last bucket everything slower.
+     */
+    static final int BUCKETS = 32;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    private final AtomicLong totalNanos = new AtomicLong();
+
+    public void record(long nanos) {
+        long micros = TimeUnit.NANOSECONDS.toMicros(Math.max(nanos, 0));
+        int bucket = micros == 0 ? 0 : Math.min(64 - Long.numberOfLeadingZeros(micros), BUCKETS - 1);
+        counts.incrementAndGet(bucket);
+        totalNanos.addAndGet(nanos);
+    }
+
+    public long getCount() {
+        long result = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            result += counts.get(i);
+        }
+        return result;
+    }
+
+    public double getMeanMicros() {
+        long count = getCount();
+        return count == 0 ? 0 : totalNanos.get() / 1000.0 / count;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the upper bound in microseconds of the bucket the percentile
+     * falls in, 0 if nothing was recorded
+     */
+    public long getPercentileMicros(double percentile) {
+        long[] snapshot = getCounts();
+        long count = 0;
+        for (long c : snapshot) {
+            count += c;
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(count * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank && snapshot[i] > 0) {
+                return getUpperBoundMicros(i);
+            }
+        }
+        return getUpperBoundMicros(BUCKETS - 1);
+    }
+
+    /**
+     * @return the counts of all buckets, from the fastest to the slowest
+     */
+    public long[] getCounts() {
+        long[] result = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            result[i] = counts.get(i);
+        }
+        return result;
+    }
+
+    static long getUpperBoundMicros(int bucket) {
+        return 1L << bucket;
+    }
+
+    /**
+     * @return the buckets that counted anything, as
+     * <code>&lt;upper bound&gt;us=&lt;count&gt;</code>
+     */
+    @Override
+    public String toString() {
+        StringBuilder result = new StringBuilder();
+        long[] snapshot = getCounts();
+        for (int i = 0; i < BUCKETS; i++) {
+            if (snapshot[i] > 0) {
+                if (result.length() > 0) {
+                    result.append(' ');
+                }
+                result.append(i == BUCKETS - 1 ? ">" + getUpperBoundMicros(i - 1) : "<" + getUpperBoundMicros(i));
+                result.append("us=").append(snapshot[i]);
+            }
+        }
+        return result.toString();
+    }
+}
@@ -0,0 +1,165 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.util;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded Guava cache that is built on first use, so that its size and
+ * time to live can be set as bean properties, and built again, empty, when
+ * either changes. Hits, misses and evictions are counted for the managed
+ * metrics of the class that owns it.
+ */
+public class LazyCache<K, V> {
+
+    private volatile int maxEntries;
+
+    private volatile int timeToLiveSeconds;
+
+    private volatile Cache<K, V> cache = null;
+
+    private final AtomicInteger hitCount = new AtomicInteger();
+
+    private final AtomicInteger missCount = new AtomicInteger();
+
+    private final AtomicInteger evictionCount = new AtomicInteger();
+
+    /**
+     * @param timeToLiveSeconds how long entries are kept once written, 0 or
+     *            less to keep them until they are evicted
+     */
+    public LazyCache(int maxEntries, int timeToLiveSeconds) {
+        this.maxEntries = maxEntries;
+        this.timeToLiveSeconds = timeToLiveSeconds;
+    }
+
+    /**
+     * @return the cached value or null, counted as a hit or a miss
+     */
+    public V get(K key) {
+        V result = getCache().getIfPresent(key);
+        if (result == null) {
+            missCount.incrementAndGet();
+        } else {
+            hitCount.incrementAndGet();
+        }
+        return result;
+    }
+
+    /**
+     * @return the cached value or null, without counting it
+     */
+    public V peek(K key) {
+        return getCache().getIfPresent(key);
+    }
+
+    public void put(K key, V value) {
+        getCache().put(key, value);
+    }
+
+    public void invalidate(K key) {
+        Cache<K, V> result = cache;
+        if (result != null) {
+            result.invalidate(key);
+        }
+    }
+
+    public void invalidateAll() {
+        Cache<K, V> result = cache;
+        if (result != null) {
+            result.invalidateAll();
+        }
+    }
+
+    /**
+     * @return a view of the entries, changes to it change the cache
+     */
+    public ConcurrentMap<K, V> asMap() {
+        return getCache().asMap();
+    }
+
+    public long size() {
+        Cache<K, V> result = cache;
+        return result == null ? 0 : result.size();
+    }
+
+    public void recordHit() {
+        hitCount.incrementAndGet();
+    }
+
+    public void recordMiss() {
+        missCount.incrementAndGet();
+    }
+
+    public int getHitCount() {
+        return hitCount.get();
+    }
+
+    public int getMissCount() {
+        return missCount.get();
+    }
+
+    public int getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public void setMaxEntries(int maxEntries) {
+        this.maxEntries = maxEntries;
+        this.cache = null;
+    }
+
+    public int getTimeToLiveSeconds() {
+        return timeToLiveSeconds;
+    }
+
+    public void setTimeToLiveSeconds(int timeToLiveSeconds) {
+        this.timeToLiveSeconds = timeToLiveSeconds;
+        this.cache = null;
+    }
+
+    private Cache<K, V> getCache() {
+        Cache<K, V> result = cache;
+        if (result == null) {
+            synchronized (this) {
+                result = cache;
+                if (result == null) {
+                    CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder().maximumSize(maxEntries);
+                    if (timeToLiveSeconds > 0) {
+                        builder.expireAfterWrite(timeToLiveSeconds, TimeUnit.SECONDS);
+                    }
+                    result = builder.removalListener(new RemovalListener<K, V>() {
+                        @Override
+                        public void onRemoval(RemovalNotification<K, V> notification) {
+                            if (notification.wasEvicted()) {
+                                evictionCount.incrementAndGet();
+                            }
+                        }
+                    }).build();
+                    cache = result;
+                }
+            }
+        }
+        return result;
+    }
+}
@@ -14,6 +14,7 @@ package org.cloudfoundry.identity.uaa.zone;
 
 import javax.validation.constraints.NotNull;
 import java.util.Date;
+import java.util.concurrent.ConcurrentMap;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
@@ -51,6 +52,13 @@ public class IdentityProvider {
 
     private boolean allowInternalUserManagement = true;
 
+    /**
+     * Deserialized config values shared by the copies of a cached provider,
+     * null when the config has to be parsed on every call.
+     */
+    @JsonIgnore
+    private ConcurrentMap<Class<?>, Object> configValues;
+
     public Date getCreated() {
         return created;
     }
@@ -96,9 +104,36 @@ public class IdentityProvider {
         return this;
     }
 
+    /**
+     * Returns the config deserialized as the given type. Providers handed out
+     * by a caching {@link IdentityProviderProvisioning} share one value per
+     * type, deserialized once per provider version, so it must be treated as
+     * read only. Callers that change it deserialize their own copy of
+     * {@link #getConfig()}.
+     */
     @JsonIgnore
     public <T> T getConfigValue(Class<T> clazz) {
-        return JsonUtils.readValue(getConfig(), clazz);
+        ConcurrentMap<Class<?>, Object> values = configValues;
+        if (values == null) {
+            return JsonUtils.readValue(getConfig(), clazz);
+        }
+        Object value = values.get(clazz);
+        if (value == null) {
+            value = JsonUtils.readValue(getConfig(), clazz);
+            if (value == null) {
+                return null;
+            }
+            Object existing = values.putIfAbsent(clazz, value);
+            if (existing != null) {
+                value = existing;
+            }
+        }
+        return clazz.cast(value);
+    }
+
+    IdentityProvider setConfigValues(ConcurrentMap<Class<?>, Object> configValues) {
+        this.configValues = configValues;
+        return this;
     }
 
     @JsonIgnore
@@ -112,6 +147,7 @@ public class IdentityProvider {
 
     public IdentityProvider setConfig(String config) {
         this.config = config;
+        this.configValues = null;
         return this;
     }
 
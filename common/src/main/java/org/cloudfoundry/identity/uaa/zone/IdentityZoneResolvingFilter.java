@@ -12,7 +12,14 @@
  *******************************************************************************/
 package org.cloudfoundry.identity.uaa.zone;
 
+import org.cloudfoundry.identity.uaa.util.LazyCache;
+import org.cloudfoundry.identity.uaa.zone.event.IdentityZoneModifiedEvent;
+import org.springframework.context.ApplicationListener;
 import org.springframework.dao.EmptyResultDataAccessException;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.jmx.support.MetricType;
 import org.springframework.web.filter.OncePerRequestFilter;
 
 import javax.servlet.FilterChain;
@@ -20,8 +27,9 @@ import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
-import java.util.Arrays;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -29,12 +37,24 @@ import java.util.Set;
  * by hostname. If the hostname doesn't match an identity zone, a 404 error is
  * sent.
  *
+ * Resolved zones are kept in a bounded cache with a time to live. Entries are
+ * invalidated when this server publishes an {@link IdentityZoneModifiedEvent},
+ * zones updated on other servers are picked up once the entry expires.
+ * Subdomains that do not match any zone are only cached if enabled, in a
+ * separate smaller cache with a shorter time to live, so that zones created on
+ * other servers are found soon and unknown subdomains cannot push out zones.
  */
-public class IdentityZoneResolvingFilter extends OncePerRequestFilter {
+@ManagedResource
+public class IdentityZoneResolvingFilter extends OncePerRequestFilter implements ApplicationListener<IdentityZoneModifiedEvent> {
 
     private IdentityZoneProvisioning dao;
     private Set<String> defaultZoneHostnames = new HashSet<>();
 
+    private boolean cacheEnabled = false;
+    private final LazyCache<String, IdentityZone> cache = new LazyCache<>(1000, 30);
+    private boolean notFoundCacheEnabled = false;
+    private final LazyCache<String, Boolean> notFoundCache = new LazyCache<>(100, 5);
+
     @Override
     protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
             throws ServletException, IOException {
@@ -42,12 +62,7 @@ public class IdentityZoneResolvingFilter extends OncePerRequestFilter {
         String hostname = request.getServerName();
         String subdomain = getSubdomain(hostname);
         if (subdomain != null) {
-            try {
-                identityZone = dao.retrieveBySubdomain(subdomain);
-            } catch (EmptyResultDataAccessException ex) {
-            } catch (Exception ex) {
-                throw ex;
-            }
+            identityZone = resolveZone(subdomain);
         }
         if (identityZone == null) {
             response.sendError(HttpServletResponse.SC_NOT_FOUND, "Cannot find identity zone for subdomain " + subdomain);
@@ -61,18 +76,148 @@ public class IdentityZoneResolvingFilter extends OncePerRequestFilter {
         }
     }
 
+    private IdentityZone resolveZone(String subdomain) {
+        if (!isCacheEnabled()) {
+            return retrieveZone(subdomain);
+        }
+        IdentityZone identityZone = cache.get(subdomain);
+        if (identityZone != null) {
+            return identityZone;
+        }
+        if (isNotFoundCacheEnabled() && notFoundCache.get(subdomain) != null) {
+            return null;
+        }
+        identityZone = retrieveZone(subdomain);
+        if (identityZone != null) {
+            cache.put(subdomain, identityZone);
+        } else if (isNotFoundCacheEnabled()) {
+            notFoundCache.put(subdomain, Boolean.TRUE);
+        }
+        return identityZone;
+    }
+
+    private IdentityZone retrieveZone(String subdomain) {
+        try {
+            return dao.retrieveBySubdomain(subdomain);
+        } catch (EmptyResultDataAccessException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Checks each suffix of the hostname that starts after a dot against the
+     * configured hostnames, from the longest to the shortest. The cost depends
+     * on the number of labels in the hostname, not on the number of hostnames.
+     */
     private String getSubdomain(String hostname) {
         if (defaultZoneHostnames.contains(hostname)) {
             return "";
         }
-        for (String internalHostname : defaultZoneHostnames) {
-            if (hostname.endsWith("." + internalHostname)) {
-                return hostname.substring(0, hostname.length() - internalHostname.length() - 1);
+        for (int dot = hostname.indexOf('.'); dot >= 0; dot = hostname.indexOf('.', dot + 1)) {
+            if (defaultZoneHostnames.contains(hostname.substring(dot + 1))) {
+                return hostname.substring(0, dot);
             }
         }
         return null;
     }
 
+    @Override
+    public void onApplicationEvent(IdentityZoneModifiedEvent event) {
+        if (!(event.getSource() instanceof IdentityZone)) {
+            return;
+        }
+        IdentityZone identityZone = (IdentityZone) event.getSource();
+        //an update may have changed the subdomain, so drop the old one as well
+        for (Iterator<Map.Entry<String, IdentityZone>> it = cache.asMap().entrySet().iterator(); it.hasNext();) {
+            IdentityZone cached = it.next().getValue();
+            if (cached.getId() != null && cached.getId().equals(identityZone.getId())) {
+                it.remove();
+            }
+        }
+        if (identityZone.getSubdomain() != null) {
+            cache.invalidate(identityZone.getSubdomain());
+            notFoundCache.invalidate(identityZone.getSubdomain());
+        }
+    }
+
+    @ManagedOperation(description = "Removes all zones from the zone cache")
+    public void clearCache() {
+        cache.invalidateAll();
+        notFoundCache.invalidateAll();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Zone Cache Hit Count")
+    public int getCacheHitCount() {
+        return cache.getHitCount();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Zone Cache Miss Count")
+    public int getCacheMissCount() {
+        return cache.getMissCount();
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Zone Cache Size")
+    public long getCacheSize() {
+        return cache.size();
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Zone Not Found Cache Size")
+    public long getNotFoundCacheSize() {
+        return notFoundCache.size();
+    }
+
+    public boolean isCacheEnabled() {
+        return cacheEnabled;
+    }
+
+    public void setCacheEnabled(boolean cacheEnabled) {
+        this.cacheEnabled = cacheEnabled;
+    }
+
+    public int getCacheMaxEntries() {
+        return cache.getMaxEntries();
+    }
+
+    public void setCacheMaxEntries(int cacheMaxEntries) {
+        cache.setMaxEntries(cacheMaxEntries);
+    }
+
+    public int getCacheTimeToLiveSeconds() {
+        return cache.getTimeToLiveSeconds();
+    }
+
+    public void setCacheTimeToLiveSeconds(int cacheTimeToLiveSeconds) {
+        cache.setTimeToLiveSeconds(cacheTimeToLiveSeconds);
+    }
+
+    public boolean isNotFoundCacheEnabled() {
+        return notFoundCacheEnabled;
+    }
+
+    /**
+     * @param notFoundCacheEnabled true to also cache subdomains that do not
+     *            match any zone, which only takes effect with the zone cache
+     */
+    public void setNotFoundCacheEnabled(boolean notFoundCacheEnabled) {
+        this.notFoundCacheEnabled = notFoundCacheEnabled;
+    }
+
+    public int getNotFoundCacheMaxEntries() {
+        return notFoundCache.getMaxEntries();
+    }
+
+    public void setNotFoundCacheMaxEntries(int notFoundCacheMaxEntries) {
+        notFoundCache.setMaxEntries(notFoundCacheMaxEntries);
+    }
+
+    public int getNotFoundCacheTimeToLiveSeconds() {
+        return notFoundCache.getTimeToLiveSeconds();
+    }
+
+    public void setNotFoundCacheTimeToLiveSeconds(int notFoundCacheTimeToLiveSeconds) {
+        notFoundCache.setTimeToLiveSeconds(notFoundCacheTimeToLiveSeconds);
+    }
+
     public void setIdentityZoneProvisioning(IdentityZoneProvisioning dao) {
         this.dao = dao;
     }
@@ -15,11 +15,16 @@ package org.cloudfoundry.identity.uaa.zone;
 import org.cloudfoundry.identity.uaa.authentication.Origin;
 import org.cloudfoundry.identity.uaa.login.saml.SamlIdentityProviderDefinition;
 import org.cloudfoundry.identity.uaa.util.JsonUtils;
+import org.cloudfoundry.identity.uaa.util.LazyCache;
 import org.springframework.dao.DataIntegrityViolationException;
 import org.springframework.dao.DuplicateKeyException;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.PreparedStatementSetter;
 import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.jmx.support.MetricType;
 import org.springframework.util.Assert;
 import org.springframework.util.StringUtils;
 
@@ -30,7 +35,17 @@ import java.sql.Timestamp;
 import java.util.Date;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
+/**
+ * Optionally keeps the providers returned by {@link #retrieveByOrigin(String, String)}
+ * in a cache keyed by zone and origin, together with their parsed config.
+ * Once an entry reaches its time to live only the version column is read, the
+ * provider is loaded and parsed again only when its version changed.
+ * Callers always receive a copy of the cached provider.
+ */
+@ManagedResource
 public class JdbcIdentityProviderProvisioning implements IdentityProviderProvisioning {
 
     public static final String ID_PROVIDER_FIELDS = "id,version,created,lastmodified,name,origin_key,type,config,identity_zone_id,active,allow_internal_user_management";
@@ -41,18 +56,28 @@ public class JdbcIdentityProviderProvisioning implements IdentityProviderProvisi
 
     public static final String IDENTITY_ACTIVE_PROVIDERS_QUERY = IDENTITY_PROVIDERS_QUERY + " and active";
 
-    public static final String ID_PROVIDER_UPDATE_FIELDS = "version,lastmodified,name,type,config,active,allow_internal_user_management".replace(",","=?,")+"=?";
+    public static final String ID_PROVIDER_UPDATE_FIELDS = "lastmodified,name,type,config,active,allow_internal_user_management".replace(",","=?,")+"=?";
 
-    public static final String UPDATE_IDENTITY_PROVIDER_SQL = "update identity_provider set " + ID_PROVIDER_UPDATE_FIELDS + " where id=?";
+    //the version is bumped by the database so that concurrent updates each get their own version
+    public static final String UPDATE_IDENTITY_PROVIDER_SQL = "update identity_provider set version=version+1," + ID_PROVIDER_UPDATE_FIELDS + " where id=?";
 
     public static final String IDENTITY_PROVIDER_BY_ID_QUERY = "select " + ID_PROVIDER_FIELDS + " from identity_provider " + "where id=?";
 
     public static final String IDENTITY_PROVIDER_BY_ORIGIN_QUERY = "select " + ID_PROVIDER_FIELDS + " from identity_provider " + "where origin_key=? and identity_zone_id=? ";
 
+    public static final String IDENTITY_PROVIDER_VERSION_BY_ORIGIN_QUERY = "select version from identity_provider where origin_key=? and identity_zone_id=?";
+
     protected final JdbcTemplate jdbcTemplate;
 
     private final RowMapper<IdentityProvider> mapper = new IdentityProviderRowMapper();
 
+    private boolean cacheEnabled = false;
+
+    private int cacheTimeToLiveSeconds = 10;
+
+    //entries are revalidated against the version column instead of expiring
+    private final LazyCache<String, CachedProvider> cache = new LazyCache<>(1000, 0);
+
     public JdbcIdentityProviderProvisioning(JdbcTemplate jdbcTemplate) {
         Assert.notNull(jdbcTemplate);
         this.jdbcTemplate = jdbcTemplate;
@@ -80,8 +105,30 @@ public class JdbcIdentityProviderProvisioning implements IdentityProviderProvisi
 
     @Override
     public IdentityProvider retrieveByOrigin(String origin, String zoneId) {
-        IdentityProvider identityProvider = jdbcTemplate.queryForObject(IDENTITY_PROVIDER_BY_ORIGIN_QUERY, mapper, origin, zoneId);
-        return identityProvider;
+        if (!isCacheEnabled()) {
+            return jdbcTemplate.queryForObject(IDENTITY_PROVIDER_BY_ORIGIN_QUERY, mapper, origin, zoneId);
+        }
+        String key = getCacheKey(origin, zoneId);
+        long now = System.currentTimeMillis();
+        CachedProvider cached = cache.peek(key);
+        if (cached != null && cached.validUntil <= now) {
+            List<Integer> versions = jdbcTemplate.queryForList(IDENTITY_PROVIDER_VERSION_BY_ORIGIN_QUERY, Integer.class, origin, zoneId);
+            if (versions.size() == 1 && versions.get(0) == cached.provider.getVersion()) {
+                cached = new CachedProvider(cached.provider, cached.configValues, now + getCacheTimeToLiveSeconds() * 1000l);
+                cache.put(key, cached);
+            } else {
+                cached = null;
+            }
+        }
+        if (cached == null) {
+            cache.recordMiss();
+            IdentityProvider identityProvider = jdbcTemplate.queryForObject(IDENTITY_PROVIDER_BY_ORIGIN_QUERY, mapper, origin, zoneId);
+            cached = new CachedProvider(identityProvider, new ConcurrentHashMap<Class<?>, Object>(), now + getCacheTimeToLiveSeconds() * 1000l);
+            cache.put(key, cached);
+        } else {
+            cache.recordHit();
+        }
+        return cached.copy();
     }
 
     @Override
@@ -108,6 +155,8 @@ public class JdbcIdentityProviderProvisioning implements IdentityProviderProvisi
             });
         } catch (DuplicateKeyException e) {
             throw new IdpAlreadyExistsException(e.getMostSpecificCause().getMessage());
+        } finally {
+            evictFromCache(identityProvider.getOriginKey(), identityProvider.getIdentityZoneId());
         }
         return retrieve(id);
     }
@@ -119,7 +168,6 @@ public class JdbcIdentityProviderProvisioning implements IdentityProviderProvisi
             @Override
             public void setValues(PreparedStatement ps) throws SQLException {
             int pos = 1;
-            ps.setInt(pos++, identityProvider.getVersion() + 1);
             ps.setTimestamp(pos++, new Timestamp(new Date().getTime()));
             ps.setString(pos++, identityProvider.getName());
             ps.setString(pos++, identityProvider.getType());
@@ -129,7 +177,61 @@ public class JdbcIdentityProviderProvisioning implements IdentityProviderProvisi
             ps.setString(pos++, identityProvider.getId().trim());
             }
         });
-        return retrieve(identityProvider.getId());
+        IdentityProvider result = retrieve(identityProvider.getId());
+        evictFromCache(result.getOriginKey(), result.getIdentityZoneId());
+        return result;
+    }
+
+    private String getCacheKey(String origin, String zoneId) {
+        return zoneId + ":" + origin;
+    }
+
+    private void evictFromCache(String origin, String zoneId) {
+        cache.invalidate(getCacheKey(origin, zoneId));
+    }
+
+    @ManagedOperation(description = "Removes all providers from the identity provider cache")
+    public void clearCache() {
+        cache.invalidateAll();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Identity Provider Cache Hit Count")
+    public int getCacheHitCount() {
+        return cache.getHitCount();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Identity Provider Cache Miss Count")
+    public int getCacheMissCount() {
+        return cache.getMissCount();
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Identity Provider Cache Size")
+    public long getCacheSize() {
+        return cache.size();
+    }
+
+    public boolean isCacheEnabled() {
+        return cacheEnabled;
+    }
+
+    public void setCacheEnabled(boolean cacheEnabled) {
+        this.cacheEnabled = cacheEnabled;
+    }
+
+    public int getCacheMaxEntries() {
+        return cache.getMaxEntries();
+    }
+
+    public void setCacheMaxEntries(int cacheMaxEntries) {
+        cache.setMaxEntries(cacheMaxEntries);
+    }
+
+    public int getCacheTimeToLiveSeconds() {
+        return cacheTimeToLiveSeconds;
+    }
+
+    public void setCacheTimeToLiveSeconds(int cacheTimeToLiveSeconds) {
+        this.cacheTimeToLiveSeconds = cacheTimeToLiveSeconds;
     }
 
     protected void validate(IdentityProvider provider) {
@@ -141,7 +243,8 @@ public class JdbcIdentityProviderProvisioning implements IdentityProviderProvisi
         }
         //ensure that SAML IDPs have reduntant fields synchronized
         if (Origin.SAML.equals(provider.getType()) && provider.getConfig()!=null) {
-            SamlIdentityProviderDefinition saml = provider.getConfigValue(SamlIdentityProviderDefinition.class);
+            //a private copy, the value of a cached provider is shared
+            SamlIdentityProviderDefinition saml = JsonUtils.readValue(provider.getConfig(), SamlIdentityProviderDefinition.class);
             saml.setIdpEntityAlias(provider.getOriginKey());
             saml.setZoneId(provider.getIdentityZoneId());
             provider.setConfig(JsonUtils.writeValueAsString(saml));
@@ -168,6 +271,34 @@ public class JdbcIdentityProviderProvisioning implements IdentityProviderProvisi
         }
     }
 
+    private static final class CachedProvider {
+        private final IdentityProvider provider;
+        private final ConcurrentMap<Class<?>, Object> configValues;
+        private final long validUntil;
+
+        private CachedProvider(IdentityProvider provider, ConcurrentMap<Class<?>, Object> configValues, long validUntil) {
+            this.provider = provider;
+            this.configValues = configValues;
+            this.validUntil = validUntil;
+        }
+
+        private IdentityProvider copy() {
+            IdentityProvider result = new IdentityProvider();
+            result.setId(provider.getId());
+            result.setVersion(provider.getVersion());
+            result.setCreated(provider.getCreated());
+            result.setLastModified(provider.getLastModified());
+            result.setName(provider.getName());
+            result.setOriginKey(provider.getOriginKey());
+            result.setType(provider.getType());
+            result.setConfig(provider.getConfig());
+            result.setIdentityZoneId(provider.getIdentityZoneId());
+            result.setActive(provider.isActive());
+            result.setAllowInternalUserManagement(provider.isAllowInternalUserManagement());
+            return result.setConfigValues(configValues);
+        }
+    }
+
 
 
 }
@@ -16,11 +16,16 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.cloudfoundry.identity.uaa.rest.ResourceMonitor;
 import org.cloudfoundry.identity.uaa.util.JsonUtils;
+import org.cloudfoundry.identity.uaa.util.LazyCache;
 import org.springframework.dao.DuplicateKeyException;
 import org.springframework.dao.EmptyResultDataAccessException;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.RowMapper;
 import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.jmx.support.MetricType;
 import org.springframework.security.crypto.password.NoOpPasswordEncoder;
 import org.springframework.security.crypto.password.PasswordEncoder;
 import org.springframework.security.oauth2.common.exceptions.InvalidClientException;
@@ -48,7 +53,12 @@ import java.util.Set;
 
 /**
  * A copy of JdbcClientDetailsService but with IdentityZone awareness
+ *
+ * Optionally keeps a bounded, zone aware cache of loaded clients. The cache is
+ * invalidated by every write that goes through this class, entries written by
+ * other servers are picked up once they reach their time to live.
  */
+@ManagedResource
 public class MultitenantJdbcClientDetailsService extends JdbcClientDetailsService implements ClientDetailsService,
         ClientRegistrationService, ResourceMonitor<ClientDetails> {
 
@@ -100,6 +110,10 @@ public class MultitenantJdbcClientDetailsService extends JdbcClientDetailsServic
 
     private JdbcListFactory listFactory;
 
+    private boolean cacheEnabled = false;
+
+    private final LazyCache<String, ClientDetails> cache = new LazyCache<>(1000, 30);
+
     public MultitenantJdbcClientDetailsService(DataSource dataSource) {
         super(dataSource);
         Assert.notNull(dataSource, "DataSource required");
@@ -116,6 +130,20 @@ public class MultitenantJdbcClientDetailsService extends JdbcClientDetailsServic
     }
 
     public ClientDetails loadClientByClientId(String clientId) throws InvalidClientException {
+        if (!isCacheEnabled()) {
+            return retrieveClientByClientId(clientId);
+        }
+        String key = getCacheKey(clientId);
+        ClientDetails details = cache.get(key);
+        if (details == null) {
+            details = retrieveClientByClientId(clientId);
+            cache.put(key, details);
+        }
+        //callers are allowed to modify the client they receive
+        return copyOf(details);
+    }
+
+    protected ClientDetails retrieveClientByClientId(String clientId) throws InvalidClientException {
         ClientDetails details;
         try {
             details = jdbcTemplate.queryForObject(selectClientDetailsSql, new ClientDetailsRowMapper(), clientId, IdentityZoneHolder.get().getId());
@@ -127,6 +155,7 @@ public class MultitenantJdbcClientDetailsService extends JdbcClientDetailsServic
     }
 
     public void addClientDetails(ClientDetails clientDetails) throws ClientAlreadyExistsException {
+        evictFromCache(clientDetails.getClientId());
         try {
             jdbcTemplate.update(insertClientDetailsSql, getFields(clientDetails));
         } catch (DuplicateKeyException e) {
@@ -136,6 +165,7 @@ public class MultitenantJdbcClientDetailsService extends JdbcClientDetailsServic
 
     public void updateClientDetails(ClientDetails clientDetails) throws NoSuchClientException {
         int count = jdbcTemplate.update(updateClientDetailsSql, getFieldsForUpdate(clientDetails));
+        evictFromCache(clientDetails.getClientId());
         if (count != 1) {
             throw new NoSuchClientException("No client found with id = " + clientDetails.getClientId() + " in identity zone "+IdentityZoneHolder.get().getName());
         }
@@ -143,6 +173,7 @@ public class MultitenantJdbcClientDetailsService extends JdbcClientDetailsServic
 
     public void updateClientSecret(String clientId, String secret) throws NoSuchClientException {
         int count = jdbcTemplate.update(updateClientSecretSql, passwordEncoder.encode(secret), clientId, IdentityZoneHolder.get().getId());
+        evictFromCache(clientId);
         if (count != 1) {
             throw new NoSuchClientException("No client found with id = " + clientId);
         }
@@ -150,6 +181,7 @@ public class MultitenantJdbcClientDetailsService extends JdbcClientDetailsServic
 
     public void removeClientDetails(String clientId) throws NoSuchClientException {
         int count = jdbcTemplate.update(deleteClientDetailsSql, clientId, IdentityZoneHolder.get().getId());
+        evictFromCache(clientId);
         if (count != 1) {
             throw new NoSuchClientException("No client found with id = " + clientId);
         }
@@ -159,6 +191,67 @@ public class MultitenantJdbcClientDetailsService extends JdbcClientDetailsServic
         return listFactory.getList(findClientDetailsSql, Collections.<String, Object> singletonMap("identityZoneId",IdentityZoneHolder.get().getId()), rowMapper);
     }
 
+    private String getCacheKey(String clientId) {
+        return IdentityZoneHolder.get().getId() + ":" + clientId;
+    }
+
+    private void evictFromCache(String clientId) {
+        cache.invalidate(getCacheKey(clientId));
+    }
+
+    public static ClientDetails copyOf(ClientDetails details) {
+        BaseClientDetails result = new BaseClientDetails(details);
+        result.setAdditionalInformation(details.getAdditionalInformation());
+        if (details instanceof BaseClientDetails && ((BaseClientDetails) details).getAutoApproveScopes() != null) {
+            result.setAutoApproveScopes(((BaseClientDetails) details).getAutoApproveScopes());
+        }
+        return result;
+    }
+
+    @ManagedOperation(description = "Removes all clients from the client cache")
+    public void clearCache() {
+        cache.invalidateAll();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Client Cache Hit Count")
+    public int getCacheHitCount() {
+        return cache.getHitCount();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Client Cache Miss Count")
+    public int getCacheMissCount() {
+        return cache.getMissCount();
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Client Cache Size")
+    public long getCacheSize() {
+        return cache.size();
+    }
+
+    public boolean isCacheEnabled() {
+        return cacheEnabled;
+    }
+
+    public void setCacheEnabled(boolean cacheEnabled) {
+        this.cacheEnabled = cacheEnabled;
+    }
+
+    public int getCacheMaxEntries() {
+        return cache.getMaxEntries();
+    }
+
+    public void setCacheMaxEntries(int cacheMaxEntries) {
+        cache.setMaxEntries(cacheMaxEntries);
+    }
+
+    public int getCacheTimeToLiveSeconds() {
+        return cache.getTimeToLiveSeconds();
+    }
+
+    public void setCacheTimeToLiveSeconds(int cacheTimeToLiveSeconds) {
+        cache.setTimeToLiveSeconds(cacheTimeToLiveSeconds);
+    }
+
     private Object[] getFields(ClientDetails clientDetails) {
         Object[] fieldsForUpdate = getFieldsForUpdate(clientDetails);
         Object[] fields = new Object[fieldsForUpdate.length + 1];
@@ -0,0 +1,18 @@
+--
+-- Cloud Foundry
+-- Copyright (c) [2015] Pivotal Software, Inc. All Rights Reserved.
+--
+-- This product is licensed to you under the Apache License, Version 2.0 (the "License").
+-- You may not use this product except in compliance with the License.
+--
+-- This product includes a number of subcomponents with
+-- separate copyright notices and license terms. Your use of these
+-- subcomponents is subject to the terms and conditions of the
+-- subcomponent's license, as noted in the LICENSE file.
+--
+
+
+-- in mysql we turn off lower function during queries, the case insensitive
+-- collation lets eq and sw filters use a plain index. co filters have no
+-- index, full text indexes match words and not substrings
+CREATE INDEX user_perf_username ON users(username);
@@ -0,0 +1,33 @@
+--
+-- Cloud Foundry
+-- Copyright (c) [2015] Pivotal Software, Inc. All Rights Reserved.
+--
+-- This product is licensed to you under the Apache License, Version 2.0 (the "License").
+-- You may not use this product except in compliance with the License.
+--
+-- This product includes a number of subcomponents with
+-- separate copyright notices and license terms. Your use of these
+-- subcomponents is subject to the terms and conditions of the
+-- subcomponent's license, as noted in the LICENSE file.
+--
+
+
+-- case folded filters on users compare LOWER(column), text_pattern_ops also
+-- serves the byte wise ranges of sw filters, = works with both operator classes
+CREATE INDEX user_perf_username_pattern ON users(LOWER(username) text_pattern_ops);
+CREATE INDEX user_perf_email_pattern ON users(LOWER(email) text_pattern_ops);
+
+-- user_perf_email from V2_3_1 indexes LOWER(email) as well and only serves =
+DROP INDEX IF EXISTS user_perf_email;
+
+-- trigram indexes serve co filters, pg_trgm is an extension the uaa database
+-- user may not be allowed to create, co filters then keep scanning the table
+DO $$
+BEGIN
+  CREATE EXTENSION IF NOT EXISTS pg_trgm;
+  CREATE INDEX user_perf_username_trgm ON users USING gin (LOWER(username) gin_trgm_ops);
+  CREATE INDEX user_perf_email_trgm ON users USING gin (LOWER(email) gin_trgm_ops);
+EXCEPTION WHEN OTHERS THEN
+  RAISE NOTICE 'Not creating trigram indexes on users: %', SQLERRM;
+END
+$$;
@@ -0,0 +1,217 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.audit;
+
+import org.cloudfoundry.identity.uaa.authentication.manager.PeriodLockoutPolicy;
+import org.cloudfoundry.identity.uaa.config.LockoutPolicy;
+import org.cloudfoundry.identity.uaa.test.JdbcTestBase;
+import org.cloudfoundry.identity.uaa.user.UaaUser;
+import org.cloudfoundry.identity.uaa.zone.IdentityProvider;
+import org.cloudfoundry.identity.uaa.zone.IdentityProviderProvisioning;
+import org.cloudfoundry.identity.uaa.zone.IdentityZone;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.core.Authentication;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.cloudfoundry.identity.uaa.audit.AuditEventType.ClientAuthenticationSuccess;
+import static org.cloudfoundry.identity.uaa.audit.AuditEventType.PasswordChangeSuccess;
+import static org.cloudfoundry.identity.uaa.audit.AuditEventType.UserAuthenticationFailure;
+import static org.cloudfoundry.identity.uaa.audit.AuditEventType.UserAuthenticationSuccess;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class AsyncJdbcAuditServiceTests extends JdbcTestBase {
+
+    private AsyncJdbcAuditService auditService;
+
+    @Before
+    public void createService() throws Exception {
+        jdbcTemplate.execute("DELETE FROM sec_audit WHERE principal_id='1' or principal_id='clientA'");
+    }
+
+    @After
+    public void stopService() throws Exception {
+        if (auditService != null) {
+            auditService.destroy();
+        }
+    }
+
+    @Test
+    public void eventsAreWrittenInBatches() throws Exception {
+        auditService = new AsyncJdbcAuditService(new JdbcAuditService(dataSource));
+        auditService.setBatchSize(5);
+        auditService.setFlushIntervalMillis(10000);
+        auditService.afterPropertiesSet();
+        //let the writer find the empty queue and wait for the flush interval
+        Thread.sleep(100);
+        long time = System.currentTimeMillis() - 60000;
+        for (int i = 0; i < 5; i++) {
+            auditService.log(getAuditEvent(ClientAuthenticationSuccess, "clientA", time + i));
+        }
+        waitForWrittenCount(5);
+        assertEquals(1, auditService.getBatchCount());
+        assertEquals(5, auditService.getLastBatchSize());
+        List<AuditEvent> events = auditService.find("clientA", 0);
+        assertEquals(5, events.size());
+        //the time of the event is kept even though it was written later
+        assertEquals(time + 4, events.get(0).getTime());
+    }
+
+    @Test
+    public void partialBatchesAreWrittenAfterFlushInterval() throws Exception {
+        auditService = new AsyncJdbcAuditService(new JdbcAuditService(dataSource));
+        auditService.setFlushIntervalMillis(10);
+        auditService.afterPropertiesSet();
+        auditService.log(getAuditEvent(ClientAuthenticationSuccess, "clientA", System.currentTimeMillis()));
+        waitForWrittenCount(1);
+        assertEquals(1, auditService.find("clientA", 0).size());
+    }
+
+    @Test
+    public void queuedEventsAreWrittenOnShutdown() throws Exception {
+        auditService = new AsyncJdbcAuditService(new JdbcAuditService(dataSource));
+        auditService.setFlushIntervalMillis(10000);
+        auditService.afterPropertiesSet();
+        for (int i = 0; i < 3; i++) {
+            auditService.log(getAuditEvent(ClientAuthenticationSuccess, "clientA", System.currentTimeMillis()));
+        }
+        auditService.destroy();
+        assertEquals(0, auditService.getQueueDepth());
+        assertEquals(3, auditService.find("clientA", 0).size());
+    }
+
+    @Test
+    public void overflowIsDropped() throws Exception {
+        auditService = new AsyncJdbcAuditService(new JdbcAuditService(dataSource));
+        auditService.setQueueSize(2);
+        auditService.setBatchSize(100);
+        auditService.setFlushIntervalMillis(10000);
+        auditService.setOverflowPolicy(AsyncJdbcAuditService.OverflowPolicy.DROP);
+        auditService.afterPropertiesSet();
+        for (int i = 0; i < 5; i++) {
+            auditService.log(getAuditEvent(ClientAuthenticationSuccess, "clientA", System.currentTimeMillis()));
+        }
+        assertTrue(auditService.getDroppedCount() >= 3);
+    }
+
+    @Test
+    public void overflowIsWrittenSynchronously() throws Exception {
+        auditService = new AsyncJdbcAuditService(new JdbcAuditService(dataSource));
+        auditService.setQueueSize(2);
+        auditService.setBatchSize(100);
+        auditService.setFlushIntervalMillis(10000);
+        auditService.setOverflowPolicy(AsyncJdbcAuditService.OverflowPolicy.SYNCHRONOUS);
+        auditService.afterPropertiesSet();
+        for (int i = 0; i < 5; i++) {
+            auditService.log(getAuditEvent(ClientAuthenticationSuccess, "clientA", System.currentTimeMillis()));
+        }
+        assertEquals(0, auditService.getDroppedCount());
+        assertTrue(auditService.getSynchronousWriteCount() >= 1);
+        auditService.destroy();
+        assertEquals(5, auditService.find("clientA", 0).size());
+    }
+
+    @Test
+    public void failedLoginCountingKeepsEventOrder() throws Exception {
+        auditService = new AsyncJdbcAuditService(new JdbcFailedLoginCountingAuditService(dataSource));
+        auditService.setFlushIntervalMillis(10000);
+        auditService.afterPropertiesSet();
+        long now = System.currentTimeMillis();
+        auditService.log(getAuditEvent(UserAuthenticationFailure, "1", now - 3));
+        auditService.log(getAuditEvent(UserAuthenticationFailure, "1", now - 2));
+        auditService.log(getAuditEvent(UserAuthenticationSuccess, "1", now - 1));
+        auditService.log(getAuditEvent(UserAuthenticationFailure, "1", now));
+        auditService.destroy();
+        List<AuditEvent> events = auditService.find("1", 0);
+        assertEquals(1, events.size());
+        assertEquals(now, events.get(0).getTime());
+    }
+
+    @Test
+    public void failedLoginsLockTheUserOutWithoutWaitingForAFlush() throws Exception {
+        auditService = new AsyncJdbcAuditService(new JdbcFailedLoginCountingAuditService(dataSource));
+        auditService.setFlushIntervalMillis(10000);
+        auditService.afterPropertiesSet();
+        IdentityProviderProvisioning providerProvisioning = mock(IdentityProviderProvisioning.class);
+        when(providerProvisioning.retrieveByOrigin(anyString(), anyString())).thenReturn(new IdentityProvider());
+        LockoutPolicy lockoutPolicy = new LockoutPolicy();
+        lockoutPolicy.setLockoutAfterFailures(5);
+        lockoutPolicy.setCountFailuresWithin(3600);
+        lockoutPolicy.setLockoutPeriodSeconds(300);
+        PeriodLockoutPolicy policy = new PeriodLockoutPolicy(auditService, providerProvisioning);
+        policy.setLockoutPolicy(lockoutPolicy);
+        UaaUser user = mock(UaaUser.class);
+        when(user.getId()).thenReturn("1");
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 5; i++) {
+            assertTrue(policy.isAllowed(user, mock(Authentication.class)));
+            auditService.log(getAuditEvent(UserAuthenticationFailure, "1", now + i));
+        }
+        assertFalse(policy.isAllowed(user, mock(Authentication.class)));
+        assertEquals(5, auditService.getQueueDepth());
+        //a queued password change resets the count as well
+        auditService.log(getAuditEvent(PasswordChangeSuccess, "1", now + 5));
+        assertTrue(policy.isAllowed(user, mock(Authentication.class)));
+    }
+
+    @Test
+    public void loginEventsAreNotWrittenOnTheCallingThread() throws Exception {
+        final Set<Thread> writers = Collections.synchronizedSet(new HashSet<Thread>());
+        auditService = new AsyncJdbcAuditService(new JdbcFailedLoginCountingAuditService(dataSource) {
+            @Override
+            public void log(AuditEvent auditEvent) {
+                writers.add(Thread.currentThread());
+                super.log(auditEvent);
+            }
+
+            @Override
+            public void logBatch(List<AuditEvent> events) {
+                writers.add(Thread.currentThread());
+                super.logBatch(events);
+            }
+        });
+        auditService.setFlushIntervalMillis(10);
+        auditService.afterPropertiesSet();
+        long now = System.currentTimeMillis();
+        auditService.log(getAuditEvent(UserAuthenticationFailure, "1", now));
+        auditService.log(getAuditEvent(UserAuthenticationSuccess, "1", now + 1));
+        auditService.log(getAuditEvent(UserAuthenticationFailure, "1", now + 2));
+        waitForWrittenCount(3);
+        assertEquals(1, writers.size());
+        assertFalse(writers.contains(Thread.currentThread()));
+        assertEquals(1, auditService.find("1", 0).size());
+    }
+
+    private void waitForWrittenCount(long count) throws InterruptedException {
+        long timeout = System.currentTimeMillis() + 5000;
+        while (auditService.getWrittenCount() < count && System.currentTimeMillis() < timeout) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, auditService.getWrittenCount());
+    }
+
+    private AuditEvent getAuditEvent(AuditEventType type, String principal, long time) {
+        return new AuditEvent(type, principal, "1.1.1.1", "joe", time, IdentityZone.getUaa().getId());
+    }
+
+}
@@ -0,0 +1,130 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.audit;
+
+import org.cloudfoundry.identity.uaa.authentication.manager.PeriodLockoutPolicy;
+import org.cloudfoundry.identity.uaa.config.LockoutPolicy;
+import org.cloudfoundry.identity.uaa.user.UaaUser;
+import org.cloudfoundry.identity.uaa.zone.IdentityProvider;
+import org.cloudfoundry.identity.uaa.zone.IdentityProviderProvisioning;
+import org.cloudfoundry.identity.uaa.zone.IdentityZone;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.core.Authentication;
+
+import java.util.List;
+
+import static org.cloudfoundry.identity.uaa.audit.AuditEventType.PasswordChangeSuccess;
+import static org.cloudfoundry.identity.uaa.audit.AuditEventType.UserAuthenticationFailure;
+import static org.cloudfoundry.identity.uaa.audit.AuditEventType.UserAuthenticationSuccess;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class InMemoryFailedLoginCountingAuditServiceTests {
+
+    private InMemoryFailedLoginCountingAuditService auditService;
+
+    private long now;
+
+    @Before
+    public void createService() throws Exception {
+        auditService = new InMemoryFailedLoginCountingAuditService();
+        now = System.currentTimeMillis();
+    }
+
+    @Test
+    public void failuresAreReturnedMostRecentFirst() throws Exception {
+        auditService.log(getAuditEvent(UserAuthenticationFailure, "1", now - 2));
+        auditService.log(getAuditEvent(UserAuthenticationFailure, "1", now - 1));
+        auditService.log(getAuditEvent(UserAuthenticationFailure, "2", now - 1));
+        List<AuditEvent> events = auditService.find("1", 0);
+        assertEquals(2, events.size());
+        assertEquals(now - 1, events.get(0).getTime());
+        assertEquals(now - 2, events.get(1).getTime());
+        assertEquals("1.1.1.1", events.get(0).getOrigin());
+    }
+
+    @Test
+    public void findMethodOnlyReturnsEventsWithinRequestedPeriod() throws Exception {
+        auditService.log(getAuditEvent(UserAuthenticationFailure, "1", now - 3600 * 1000));
+        auditService.log(getAuditEvent(UserAuthenticationFailure, "1", now));
+        assertEquals(1, auditService.find("1", now - 120 * 1000).size());
+    }
+
+    @Test
+    public void userAuthenticationSuccessResetsData() throws Exception {
+        auditService.log(getAuditEvent(UserAuthenticationFailure, "1", now));
+        auditService.log(getAuditEvent(UserAuthenticationSuccess, "1", now));
+        assertEquals(0, auditService.find("1", 0).size());
+        assertEquals(0, auditService.getPrincipalCount());
+    }
+
+    @Test
+    public void userPasswordChangeSuccessResetsData() throws Exception {
+        auditService.log(getAuditEvent(UserAuthenticationFailure, "1", now));
+        auditService.log(getAuditEvent(PasswordChangeSuccess, "1", now));
+        assertEquals(0, auditService.find("1", 0).size());
+    }
+
+    @Test
+    public void sweepRemovesOldData() throws Exception {
+        auditService.log(getAuditEvent(UserAuthenticationFailure, "1", now - 3 * 3600 * 1000));
+        auditService.log(getAuditEvent(UserAuthenticationFailure, "1", now));
+        auditService.log(getAuditEvent(UserAuthenticationFailure, "2", now - 3 * 3600 * 1000));
+        assertEquals(2, auditService.getPrincipalCount());
+        auditService.removeExpiredFailures();
+        assertEquals(1, auditService.find("1", 0).size());
+        assertEquals(1, auditService.getPrincipalCount());
+    }
+
+    @Test
+    public void failuresPerPrincipalAreBounded() throws Exception {
+        auditService.setMaxFailuresPerPrincipal(3);
+        for (int i = 0; i < 10; i++) {
+            auditService.log(getAuditEvent(UserAuthenticationFailure, "1", now - 10 + i));
+        }
+        List<AuditEvent> events = auditService.find("1", 0);
+        assertEquals(3, events.size());
+        assertEquals(now - 1, events.get(0).getTime());
+    }
+
+    @Test
+    public void lockoutDecisionsMatchTheJdbcStore() throws Exception {
+        IdentityProviderProvisioning providerProvisioning = mock(IdentityProviderProvisioning.class);
+        when(providerProvisioning.retrieveByOrigin(anyString(), anyString())).thenReturn(new IdentityProvider());
+        PeriodLockoutPolicy policy = new PeriodLockoutPolicy(auditService, providerProvisioning);
+        LockoutPolicy lockoutPolicy = new LockoutPolicy();
+        lockoutPolicy.setLockoutAfterFailures(2);
+        lockoutPolicy.setCountFailuresWithin(3600);
+        lockoutPolicy.setLockoutPeriodSeconds(3600);
+        policy.setLockoutPolicy(lockoutPolicy);
+        UaaUser joe = mock(UaaUser.class);
+        when(joe.getId()).thenReturn("1");
+
+        auditService.log(getAuditEvent(UserAuthenticationFailure, "1", now - 2));
+        assertTrue(policy.isAllowed(joe, mock(Authentication.class)));
+        auditService.log(getAuditEvent(UserAuthenticationFailure, "1", now - 1));
+        assertFalse(policy.isAllowed(joe, mock(Authentication.class)));
+        auditService.log(getAuditEvent(UserAuthenticationSuccess, "1", now));
+        assertTrue(policy.isAllowed(joe, mock(Authentication.class)));
+    }
+
+    private AuditEvent getAuditEvent(AuditEventType type, String principal, long time) {
+        return new AuditEvent(type, principal, "1.1.1.1", "joe", time, IdentityZone.getUaa().getId());
+    }
+
+}
@@ -51,13 +51,16 @@ public class JdbcFailedLoginCountingAuditServiceTests extends JdbcTestBase {
     }
 
     @Test
-    public void userAuthenticationFailureDeletesOldData() throws Exception {
+    public void sweepDeletesOldData() throws Exception {
         long now = System.currentTimeMillis();
         auditService.log(getAuditEvent(UserAuthenticationFailure, "1", "joe"));
         assertEquals(1, jdbcTemplate.queryForInt("select count(*) from sec_audit where principal_id='1'"));
         // Set the created column to 3 hours past
         jdbcTemplate.update("update sec_audit set created=?", new Timestamp(now - 3 * 3600 * 1000));
         auditService.log(getAuditEvent(UserAuthenticationFailure, "1", "joe"));
+        // Old data is no longer deleted on the login path
+        assertEquals(2, jdbcTemplate.queryForInt("select count(*) from sec_audit where principal_id='1'"));
+        auditService.deleteExpiredData();
         assertEquals(1, jdbcTemplate.queryForInt("select count(*) from sec_audit where principal_id='1'"));
     }
 
@@ -0,0 +1,113 @@
+/*******************************************************************************
+ *     Cloud Foundry 
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.codestore;
+
+import java.sql.Timestamp;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.cloudfoundry.identity.uaa.util.JsonUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class InMemoryExpiringCodeStoreTests {
+
+    private InMemoryExpiringCodeStore store;
+
+    @Before
+    public void createStore() {
+        store = new InMemoryExpiringCodeStore();
+        store.setTickMillis(10);
+        store.setWheelSize(16);
+    }
+
+    @Test
+    public void expiredCodesAreRemovedWithoutBeingRetrieved() throws Exception {
+        store.generateCode("{}", new Timestamp(System.currentTimeMillis() + 50));
+        ExpiringCode later = store.generateCode("{}", new Timestamp(System.currentTimeMillis() + 60000));
+        assertEquals(2, store.getCodeCount());
+        Thread.sleep(100);
+        assertEquals(1, store.removeExpiredCodes());
+        assertEquals(1, store.getCodeCount());
+        assertEquals(1, store.getExpiredCount());
+        assertEquals(later, store.retrieveCode(later.getCode()));
+    }
+
+    @Test
+    public void codesExpiringAfterATurnOfTheWheelAreKept() throws Exception {
+        //16 slots of 10ms cover 160ms
+        ExpiringCode code = store.generateCode("{}", new Timestamp(System.currentTimeMillis() + 500));
+        Thread.sleep(200);
+        assertEquals(0, store.removeExpiredCodes());
+        assertEquals(code, store.retrieveCode(code.getCode()));
+    }
+
+    @Test
+    public void fullStoreRefusesNewCodes() throws Exception {
+        store.setMaxCodes(2);
+        store.generateCode("{}", new Timestamp(System.currentTimeMillis() + 60000));
+        store.generateCode("{}", new Timestamp(System.currentTimeMillis() + 60000));
+        try {
+            store.generateCode("{}", new Timestamp(System.currentTimeMillis() + 60000));
+            fail("Store is full");
+        } catch (IllegalStateException expected) {
+        }
+        assertEquals(1, store.getRejectedCount());
+    }
+
+    @Test
+    public void fullStoreMakesRoomByRemovingExpiredCodes() throws Exception {
+        store.setMaxCodes(2);
+        store.generateCode("{}", new Timestamp(System.currentTimeMillis() + 20));
+        store.generateCode("{}", new Timestamp(System.currentTimeMillis() + 60000));
+        Thread.sleep(50);
+        store.generateCode("{}", new Timestamp(System.currentTimeMillis() + 60000));
+        assertEquals(2, store.getCodeCount());
+    }
+
+    @Test
+    public void retrieveLatestConsumesCodesLatestFirst() throws Exception {
+        long future = System.currentTimeMillis() + 60000;
+        ExpiringCode first = store.generateCode(getData("test@email.com", "app"), new Timestamp(future + 20000));
+        ExpiringCode second = store.generateCode(getData("test@email.com", "app"), new Timestamp(future));
+        ExpiringCode third = store.generateCode(getData("test@email.com", "app"), new Timestamp(future + 10000));
+        store.generateCode(getData("test@email.com", "other"), new Timestamp(future + 30000));
+
+        assertEquals(first, store.retrieveLatest("test@email.com", "app"));
+        assertEquals(third, store.retrieveLatest("test@email.com", "app"));
+        assertNull(store.retrieveCode(third.getCode()));
+        assertEquals(second, store.retrieveCode(second.getCode()));
+        assertNull(store.retrieveLatest("test@email.com", "app"));
+        assertEquals(1, store.getCodeCount());
+    }
+
+    @Test
+    public void retrieveLatestReturnsNullForExpiredCode() throws Exception {
+        store.generateCode(getData("test@email.com", "app"), new Timestamp(System.currentTimeMillis() + 20));
+        Thread.sleep(50);
+        assertNull(store.retrieveLatest("test@email.com", "app"));
+        assertEquals(0, store.getCodeCount());
+    }
+
+    private String getData(String email, String clientId) {
+        Map<String, Object> data = new HashMap<>();
+        data.put("email", email);
+        data.put("client_id", clientId);
+        data.put("redirect_uri", "http://localhost/redirect");
+        return JsonUtils.writeValueAsString(data);
+    }
+}
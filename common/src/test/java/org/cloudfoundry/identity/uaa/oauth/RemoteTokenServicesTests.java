@@ -15,11 +15,17 @@ package org.cloudfoundry.identity.uaa.oauth;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
+import org.cloudfoundry.identity.uaa.oauth.token.JwtWriter;
+import org.cloudfoundry.identity.uaa.oauth.token.PooledSigner;
 import org.cloudfoundry.identity.uaa.util.JsonUtils;
 import org.junit.Test;
 import org.springframework.http.HttpEntity;
@@ -27,6 +33,8 @@ import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.security.jwt.crypto.sign.Signer;
+import org.springframework.security.oauth2.common.exceptions.InvalidTokenException;
 import org.springframework.security.oauth2.provider.OAuth2Authentication;
 import org.springframework.web.client.RestClientException;
 import org.springframework.web.client.RestTemplate;
@@ -45,6 +53,12 @@ public class RemoteTokenServicesTests {
 
     private HttpStatus status = HttpStatus.OK;
 
+    private Map<String, Object> tokenKeys = new HashMap<String, Object>();
+
+    private int checkTokenCount = 0;
+
+    private int tokenKeysCount = 0;
+
     public RemoteTokenServicesTests() {
         services.setClientId("client");
         services.setClientSecret("secret");
@@ -58,6 +72,11 @@ public class RemoteTokenServicesTests {
             @Override
             public <T> ResponseEntity<T> exchange(String url, HttpMethod method, HttpEntity<?> requestEntity,
                             Class<T> responseType, Object... uriVariables) throws RestClientException {
+                if (url != null && url.endsWith("/token_keys")) {
+                    tokenKeysCount++;
+                    return new ResponseEntity<T>((T) tokenKeys, HttpStatus.OK);
+                }
+                checkTokenCount++;
                 return new ResponseEntity<T>((T) body, headers, status);
             }
         });
@@ -113,4 +132,108 @@ public class RemoteTokenServicesTests {
         assertEquals(JsonUtils.writeValueAsString(additionalAuthorizationAttributesMap), result.getOAuth2Request()
                         .getRequestParameters().get(Claims.ADDITIONAL_AZ_ATTR));
     }
+
+    @Test
+    public void testLocalVerification() throws Exception {
+        setUpLocalVerification();
+        String token = createToken(PooledSigner.mac("tokenkey", "key-1", null, null), 3600, "openid");
+        OAuth2Authentication result = services.loadAuthentication(token);
+        assertEquals("remote", result.getOAuth2Request().getClientId());
+        assertEquals("olds", result.getUserAuthentication().getName());
+        assertEquals("HDGFJSHGDF", ((RemoteUserAuthentication) result.getUserAuthentication()).getId());
+        assertEquals(Collections.singleton("openid"), result.getOAuth2Request().getScope());
+        services.loadAuthentication(token);
+        assertEquals(0, checkTokenCount);
+        assertEquals(1, tokenKeysCount);
+    }
+
+    @Test
+    public void testLocalVerificationWithoutKeyId() throws Exception {
+        setUpLocalVerification();
+        services.loadAuthentication(createToken(PooledSigner.mac("tokenkey", null, null, null), 3600, "openid"));
+        assertEquals(0, checkTokenCount);
+    }
+
+    @Test
+    public void testLocalVerificationOfTokensWithoutKeyIdUsesTheLegacyKey() throws Exception {
+        setUpLocalVerification();
+        Map<String, String> legacyKey = new HashMap<String, String>();
+        legacyKey.put("kty", "MAC");
+        legacyKey.put("alg", "HS256");
+        legacyKey.put("value", "legacykey");
+        @SuppressWarnings("unchecked")
+        List<Map<String, String>> keys = new ArrayList<Map<String, String>>((List<Map<String, String>>) tokenKeys.get("keys"));
+        keys.add(legacyKey);
+        tokenKeys.put("keys", keys);
+        services.loadAuthentication(createToken(PooledSigner.mac("legacykey", null, null, null), 3600, "openid"));
+        assertEquals(0, checkTokenCount);
+        assertEquals(1, tokenKeysCount);
+    }
+
+    @Test
+    public void testLocalVerificationRejectsInvalidTokens() throws Exception {
+        setUpLocalVerification();
+        assertInvalid(createToken(PooledSigner.mac("tokenkey", "key-1", null, null), -1, "openid"));
+        services.setIssuer("http://other.issuer.com");
+        assertInvalid(createToken(PooledSigner.mac("tokenkey", "key-1", null, null), 3600, "openid"));
+        assertEquals(0, checkTokenCount);
+    }
+
+    @Test
+    public void testLocalVerificationChecksSignatureMismatchesRemotely() throws Exception {
+        setUpLocalVerification();
+        String token = createToken(PooledSigner.mac("otherkey", "key-1", null, null), 3600, "openid");
+        services.loadAuthentication(token);
+        assertEquals(1, checkTokenCount);
+        body.put("error", "invalid_token");
+        assertInvalid(token);
+        assertEquals(2, checkTokenCount);
+        //the keys were fetched too recently to fetch them again
+        assertEquals(1, tokenKeysCount);
+    }
+
+    @Test
+    public void testLocalVerificationChecksUnknownKeyIdsAndSensitiveScopesRemotely() throws Exception {
+        setUpLocalVerification();
+        services.setRevocationSensitiveScopes(Collections.singleton("scim.write"));
+        services.loadAuthentication(createToken(PooledSigner.mac("newkey", "key-2", null, null), 3600, "openid"));
+        assertEquals(1, checkTokenCount);
+        String token = createToken(PooledSigner.mac("tokenkey", "key-1", null, null), 3600, "openid", "scim.write");
+        services.loadAuthentication(token);
+        services.loadAuthentication(token);
+        assertEquals(3, checkTokenCount);
+    }
+
+    private void setUpLocalVerification() {
+        services.setCheckTokenEndpointUrl("http://localhost:8080/uaa/check_token");
+        services.setLocalVerification(true);
+        Map<String, String> key = new HashMap<String, String>();
+        key.put("kty", "MAC");
+        key.put("alg", "HS256");
+        key.put("value", "tokenkey");
+        key.put("kid", "key-1");
+        tokenKeys.put("keys", Collections.singletonList(key));
+    }
+
+    private String createToken(Signer signer, long expiresInSeconds, String... scopes) {
+        JwtWriter writer = new JwtWriter();
+        byte[] claims = writer.payload()
+            .put(Claims.CLIENT_ID, "remote")
+            .put(Claims.USER_NAME, "olds")
+            .put(Claims.EMAIL, "olds@vmware.com")
+            .put(Claims.USER_ID, "HDGFJSHGDF")
+            .put(Claims.ISS, "http://some.issuer.com")
+            .put(Claims.SCOPE, Arrays.asList(scopes))
+            .put(Claims.EXP, System.currentTimeMillis() / 1000 + expiresInSeconds)
+            .toJson();
+        return writer.encode(claims, signer);
+    }
+
+    private void assertInvalid(String token) {
+        try {
+            services.loadAuthentication(token);
+            fail("Expected the token to be invalid");
+        } catch (InvalidTokenException e) {
+        }
+    }
 }
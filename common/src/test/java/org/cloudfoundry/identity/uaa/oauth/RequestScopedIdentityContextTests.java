@@ -0,0 +1,124 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.oauth;
+
+import org.cloudfoundry.identity.uaa.authentication.Origin;
+import org.cloudfoundry.identity.uaa.user.UaaAuthority;
+import org.cloudfoundry.identity.uaa.user.UaaUser;
+import org.cloudfoundry.identity.uaa.user.UaaUserDatabase;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.security.core.userdetails.UsernameNotFoundException;
+import org.springframework.security.oauth2.provider.ClientDetails;
+import org.springframework.security.oauth2.provider.ClientDetailsService;
+import org.springframework.security.oauth2.provider.NoSuchClientException;
+import org.springframework.security.oauth2.provider.client.BaseClientDetails;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class RequestScopedIdentityContextTests {
+
+    private UaaUserDatabase userDatabase = mock(UaaUserDatabase.class);
+
+    private ClientDetailsService clientDetailsService = mock(ClientDetailsService.class);
+
+    private RequestScopedIdentityContext context = new RequestScopedIdentityContext(userDatabase, clientDetailsService);
+
+    private UaaUser user = new UaaUser("user-id", "Marissa", "", "marissa@test.org", UaaAuthority.USER_AUTHORITIES, "", "", null, null, Origin.UAA, null, true, "uaa", null, null);
+
+    @Before
+    public void setUp() {
+        RequestContextHolder.setRequestAttributes(new ServletRequestAttributes(new MockHttpServletRequest()));
+        when(userDatabase.retrieveUserById("user-id")).thenReturn(user);
+        when(userDatabase.retrieveUserByName("Marissa", Origin.UAA)).thenReturn(user);
+        when(clientDetailsService.loadClientByClientId("app")).thenReturn(new BaseClientDetails("app", null, "openid", "password", null));
+    }
+
+    @After
+    public void tearDown() {
+        RequestContextHolder.resetRequestAttributes();
+    }
+
+    @Test
+    public void loadsUsersOncePerRequest() {
+        assertSame(user, context.retrieveUserByName("Marissa", Origin.UAA));
+        assertSame(user, context.retrieveUserByName("marissa", Origin.UAA));
+        assertSame(user, context.retrieveUserById("user-id"));
+        verify(userDatabase, times(1)).retrieveUserByName("Marissa", Origin.UAA);
+        verify(userDatabase, times(0)).retrieveUserById("user-id");
+        assertEquals(3, context.getLookupCount());
+        assertEquals(2, context.getSavedLookupCount());
+
+        RequestContextHolder.setRequestAttributes(new ServletRequestAttributes(new MockHttpServletRequest()));
+        context.retrieveUserById("user-id");
+        context.retrieveUserById("user-id");
+        verify(userDatabase, times(1)).retrieveUserById("user-id");
+        assertEquals(2, context.getRequestCount());
+        assertEquals(1.5, context.getSavedLookupsPerRequest(), 0.001);
+    }
+
+    @Test
+    public void loadsClientsOncePerRequestAsCopies() {
+        ClientDetails client = context.loadClientByClientId("app");
+        ((BaseClientDetails) client).setResourceIds(Collections.singleton("changed"));
+        ClientDetails other = context.loadClientByClientId("app");
+        assertNotSame(client, other);
+        assertEquals(Collections.emptySet(), other.getResourceIds());
+        verify(clientDetailsService, times(1)).loadClientByClientId("app");
+    }
+
+    @Test
+    public void doesNotKeepLookupsOutsideOfRequests() {
+        RequestContextHolder.resetRequestAttributes();
+        context.retrieveUserById("user-id");
+        context.retrieveUserById("user-id");
+        context.loadClientByClientId("app");
+        context.loadClientByClientId("app");
+        verify(userDatabase, times(2)).retrieveUserById("user-id");
+        verify(clientDetailsService, times(2)).loadClientByClientId("app");
+        assertEquals(0, context.getSavedLookupCount());
+    }
+
+    @Test
+    public void doesNotKeepFailedLookups() {
+        when(userDatabase.retrieveUserById("unknown")).thenThrow(new UsernameNotFoundException("unknown"));
+        when(clientDetailsService.loadClientByClientId("unknown")).thenThrow(new NoSuchClientException("unknown"));
+        for (int i = 0; i < 2; i++) {
+            try {
+                context.retrieveUserById("unknown");
+                fail();
+            } catch (UsernameNotFoundException expected) {
+            }
+            try {
+                context.loadClientByClientId("unknown");
+                fail();
+            } catch (NoSuchClientException expected) {
+            }
+        }
+        verify(userDatabase, times(2)).retrieveUserById("unknown");
+        verify(clientDetailsService, times(2)).loadClientByClientId("unknown");
+    }
+}
@@ -0,0 +1,86 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.oauth.token;
+
+import org.cloudfoundry.identity.uaa.util.JsonUtils;
+import org.junit.Test;
+import org.springframework.security.jwt.Jwt;
+import org.springframework.security.jwt.JwtHelper;
+import org.springframework.security.jwt.crypto.sign.MacSigner;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class JwtWriterTests {
+
+    private final JwtWriter writer = new JwtWriter();
+
+    private final MacSigner signer = new MacSigner("tokenkey");
+
+    @Test
+    public void writesTheSameTokenAsJwtHelper() {
+        byte[] claims = writer.payload().put("jti", "id").put("iat", 1437000000L).put("scope", Arrays.asList("openid")).toJson();
+        String expected = JwtHelper.encode(new String(claims, StandardCharsets.UTF_8), signer).getEncoded();
+        assertEquals(expected, writer.encode(claims, signer));
+    }
+
+    @Test
+    public void tokensCanBeVerified() {
+        byte[] claims = JwtWriter.merge(
+            writer.payload().put("user_name", "Marissa \u00e9\"").put("az_attr", Collections.singletonMap("external_group", "domain\\group1")).toJson(),
+            writer.getClientClaims("app"),
+            writer.getIssuerClaims("http://localhost:8080/uaa/oauth/token", "uaa"));
+        Jwt jwt = JwtHelper.decodeAndVerify(writer.encode(claims, signer), signer);
+        Map<String, Object> decoded = JsonUtils.readValue(jwt.getClaims(), Map.class);
+        assertEquals("Marissa \u00e9\"", decoded.get("user_name"));
+        assertEquals(Collections.singletonMap("external_group", "domain\\group1"), decoded.get("az_attr"));
+        assertEquals("app", decoded.get("client_id"));
+        assertEquals("app", decoded.get("cid"));
+        assertEquals("app", decoded.get("azp"));
+        assertEquals("http://localhost:8080/uaa/oauth/token", decoded.get("iss"));
+        assertEquals("uaa", decoded.get("zid"));
+    }
+
+    @Test
+    public void writesTheKeyIdInTheHeader() {
+        PooledSigner pooledSigner = PooledSigner.mac("tokenkey", "key-1", null, null);
+        byte[] claims = writer.payload().put("jti", "id").toJson();
+        String token = writer.encode(claims, pooledSigner);
+        String header = new String(Base64.getUrlDecoder().decode(token.substring(0, token.indexOf('.'))), StandardCharsets.UTF_8);
+        Map<String, Object> fields = JsonUtils.readValue(header, Map.class);
+        assertEquals("HS256", fields.get("alg"));
+        assertEquals("key-1", fields.get("kid"));
+        assertEquals("{\"jti\":\"id\"}", JwtHelper.decodeAndVerify(token, signer).getClaims());
+    }
+
+    @Test
+    public void mergesObjects() {
+        byte[] empty = writer.payload().toJson();
+        assertEquals("{}", new String(JwtWriter.merge(), StandardCharsets.UTF_8));
+        assertEquals("{}", new String(JwtWriter.merge(empty, empty), StandardCharsets.UTF_8));
+        assertEquals("{\"a\":1,\"b\":\"2\"}", new String(JwtWriter.merge(empty, writer.payload().put("a", 1L).toJson(), empty,
+            writer.payload().put("b", "2").toJson()), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void keepsClientAndIssuerClaims() {
+        assertSame(writer.getClientClaims("app"), writer.getClientClaims("app"));
+        assertSame(writer.getIssuerClaims("http://localhost:8080/uaa/oauth/token", "uaa"), writer.getIssuerClaims("http://localhost:8080/uaa/oauth/token", "uaa"));
+    }
+}
@@ -0,0 +1,221 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.oauth.token;
+
+import org.cloudfoundry.identity.uaa.audit.event.UserModifiedEvent;
+import org.cloudfoundry.identity.uaa.authentication.Origin;
+import org.cloudfoundry.identity.uaa.authentication.UaaPrincipal;
+import org.cloudfoundry.identity.uaa.oauth.approval.InMemoryApprovalStore;
+import org.cloudfoundry.identity.uaa.user.InMemoryUaaUserDatabase;
+import org.cloudfoundry.identity.uaa.user.UaaAuthority;
+import org.cloudfoundry.identity.uaa.user.UaaUser;
+import org.cloudfoundry.identity.uaa.zone.IdentityZone;
+import org.cloudfoundry.identity.uaa.zone.IdentityZoneHolder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+import org.springframework.security.oauth2.provider.AuthorizationRequest;
+import org.springframework.security.oauth2.provider.ClientDetails;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.client.BaseClientDetails;
+import org.springframework.security.oauth2.provider.client.InMemoryClientDetailsService;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class RevocationHashStoreTests {
+
+    private static final int VALIDATIONS = 10;
+
+    private RevocationHashStore store = new RevocationHashStore();
+    private UaaTokenServices tokenServices = new UaaTokenServices();
+    private final AtomicInteger userLookups = new AtomicInteger();
+    private final AtomicInteger clientLookups = new AtomicInteger();
+    private InMemoryUaaUserDatabase userDatabase;
+    private OAuth2Authentication authentication;
+
+    @Before
+    public void setUp() throws Exception {
+        IdentityZoneHolder.clear();
+        store.setEnabled(true);
+        UaaUser user = createUser("password");
+        userDatabase = new InMemoryUaaUserDatabase(Collections.singletonMap(user.getUsername(), user)) {
+            @Override
+            public UaaUser retrieveUserById(String id) {
+                userLookups.incrementAndGet();
+                return super.retrieveUserById(id);
+            }
+        };
+        InMemoryClientDetailsService clientDetailsService = new InMemoryClientDetailsService() {
+            @Override
+            public ClientDetails loadClientByClientId(String clientId) {
+                clientLookups.incrementAndGet();
+                return super.loadClientByClientId(clientId);
+            }
+        };
+        BaseClientDetails client = new BaseClientDetails("client", "scim", "read", "password", "uaa.none");
+        clientDetailsService.setClientDetailsStore(Collections.singletonMap("client", client));
+
+        tokenServices.setClientDetailsService(clientDetailsService);
+        tokenServices.setUserDatabase(userDatabase);
+        tokenServices.setIssuer("http://localhost:8080/uaa");
+        tokenServices.setApprovalStore(new InMemoryApprovalStore());
+        tokenServices.afterPropertiesSet();
+
+        AuthorizationRequest authorizationRequest = new AuthorizationRequest("client", Arrays.asList("read"));
+        Map<String, String> parameters = new HashMap<>(authorizationRequest.getRequestParameters());
+        parameters.put("grant_type", "password");
+        authorizationRequest.setRequestParameters(parameters);
+        authentication = new OAuth2Authentication(
+            authorizationRequest.createOAuth2Request(),
+            new UsernamePasswordAuthenticationToken(new UaaPrincipal(user), "n/a", null)
+        );
+    }
+
+    @After
+    public void tearDown() {
+        IdentityZoneHolder.clear();
+    }
+
+    @Test
+    public void testStoreIsZoneAware() {
+        store.put("client", "user", "hash");
+        assertEquals("hash", store.get("client", "user"));
+        IdentityZone zone = new IdentityZone();
+        zone.setId("other-zone");
+        IdentityZoneHolder.set(zone);
+        assertNull(store.get("client", "user"));
+        assertEquals(1, store.getHitCount());
+        assertEquals(1, store.getMissCount());
+    }
+
+    @Test
+    public void testStoreInvalidation() {
+        store.put("client", "user", "hash");
+        store.put("client", null, "client-hash");
+        store.put("other-client", "user", "other-hash");
+
+        store.invalidateUser("user");
+        assertNull(store.get("client", "user"));
+        assertNull(store.get("other-client", "user"));
+        assertEquals("client-hash", store.get("client", null));
+
+        store.invalidateClient("client");
+        assertNull(store.get("client", null));
+    }
+
+    @Test
+    public void testUserModifiedEventInvalidatesUser() {
+        store.put("client", "user-id", "hash");
+        store.onApplicationEvent(UserModifiedEvent.userModified("user-id", "username"));
+        assertNull(store.get("client", "user-id"));
+    }
+
+    /**
+     * Counts the user and client lookups performed while validating the
+     * same token repeatedly, with and without a revocation hash store.
+     */
+    @Test
+    public void testDatabaseReadsPerValidation() {
+        OAuth2AccessToken withoutStore = tokenServices.createAccessToken(authentication);
+        resetCounters();
+        for (int i = 0; i < VALIDATIONS; i++) {
+            tokenServices.loadAuthentication(withoutStore.getValue());
+        }
+        int userLookupsWithoutStore = userLookups.get();
+        int clientLookupsWithoutStore = clientLookups.get();
+
+        tokenServices.setRevocationHashStore(store);
+        OAuth2AccessToken withStore = tokenServices.createAccessToken(authentication);
+        resetCounters();
+        for (int i = 0; i < VALIDATIONS; i++) {
+            tokenServices.loadAuthentication(withStore.getValue());
+        }
+
+        //loadAuthentication itself reads the user once and the client twice
+        assertEquals(2 * VALIDATIONS, userLookupsWithoutStore);
+        assertEquals(3 * VALIDATIONS, clientLookupsWithoutStore);
+        assertEquals(VALIDATIONS, userLookups.get());
+        assertEquals(2 * VALIDATIONS, clientLookups.get());
+    }
+
+    @Test
+    public void testDisabledStoreKeepsNothing() {
+        store.setEnabled(false);
+        store.put("client", "user", "hash");
+        assertNull(store.get("client", "user"));
+        assertEquals(0, store.getMissCount());
+    }
+
+    @Test
+    public void testPasswordChangeRevokesTokenThroughEvent() {
+        tokenServices.setRevocationHashStore(store);
+        OAuth2AccessToken token = tokenServices.createAccessToken(authentication);
+        tokenServices.loadAuthentication(token.getValue());
+
+        UaaUser changed = createUser("changed-password");
+        userDatabase.updateUser(changed.getId(), changed);
+        store.onApplicationEvent(UserModifiedEvent.userModified(changed.getId(), changed.getUsername()));
+        try {
+            tokenServices.loadAuthentication(token.getValue());
+            fail("Token should have been revoked");
+        } catch (TokenRevokedException expected) {
+        }
+    }
+
+    @Test
+    public void testStaleHashIsConfirmedAgainstDatabase() {
+        tokenServices.setRevocationHashStore(store);
+        OAuth2AccessToken token = tokenServices.createAccessToken(authentication);
+        store.put("client", "user-id", "stale-hash");
+        resetCounters();
+        tokenServices.loadAuthentication(token.getValue());
+        tokenServices.loadAuthentication(token.getValue());
+        //only the first validation has to confirm the stale hash
+        assertEquals(2 + 1, userLookups.get());
+    }
+
+    private void resetCounters() {
+        userLookups.set(0);
+        clientLookups.set(0);
+    }
+
+    private UaaUser createUser(String password) {
+        return new UaaUser(
+            "user-id",
+            "marissa",
+            password,
+            "marissa@test.org",
+            UaaAuthority.USER_AUTHORITIES,
+            "Marissa",
+            "Bloggs",
+            new Date(System.currentTimeMillis() - 2000),
+            new Date(System.currentTimeMillis() - 2000),
+            Origin.UAA,
+            "externalId",
+            false,
+            IdentityZoneHolder.get().getId(),
+            "salt",
+            new Date(System.currentTimeMillis() - 2000));
+    }
+}
@@ -13,9 +13,17 @@
 package org.cloudfoundry.identity.uaa.oauth.token;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
 
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.cloudfoundry.identity.uaa.util.JsonUtils;
 import org.junit.Before;
 import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
 import org.springframework.security.access.AccessDeniedException;
 import org.springframework.security.authentication.AnonymousAuthenticationToken;
 import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
@@ -53,4 +61,68 @@ public class TokenKeyEndpointTests {
                                                         .createAuthorityList("ROLE_ANONYMOUS"))).toString());
     }
 
+    @Test
+    public void verificationKeysAreReturnedFromTokenKeysEndpoint() throws Exception {
+        signerProvider.setSigningKey("someKey");
+        signerProvider.setKeyId("key-2");
+        signerProvider.setVerificationKeys(Collections.singletonMap("key-1", "oldKey"));
+        assertEquals("{alg=HMACSHA256, value=someKey, kty=MAC, use=sig, kid=key-2}",
+                        tokenEnhancer.getKey(new UsernamePasswordAuthenticationToken("foo", "bar")).toString());
+        assertEquals("{keys=[{alg=HMACSHA256, value=someKey, kty=MAC, use=sig, kid=key-2}, {alg=HMACSHA256, value=oldKey, kty=MAC, use=sig, kid=key-1}]}",
+                        tokenEnhancer.getKeys(new UsernamePasswordAuthenticationToken("foo", "bar")).toString());
+    }
+
+    @Test
+    public void legacyVerificationKeyIsReturnedWithoutKeyId() throws Exception {
+        signerProvider.setSigningKey("someKey");
+        signerProvider.setLegacyVerificationKey("oldKey");
+        //without a key id on the signing key the legacy key is not used
+        assertEquals("{keys=[{alg=HMACSHA256, value=someKey, kty=MAC, use=sig}]}",
+                        tokenEnhancer.getKeys(new UsernamePasswordAuthenticationToken("foo", "bar")).toString());
+
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        tokenEnhancer.getKeys(new UsernamePasswordAuthenticationToken("foo", "bar"), new MockHttpServletRequest(), response);
+        String etag = response.getHeader("ETag");
+
+        signerProvider.setKeyId("key-2");
+        assertEquals("{keys=[{alg=HMACSHA256, value=someKey, kty=MAC, use=sig, kid=key-2}, {alg=HMACSHA256, value=oldKey, kty=MAC, use=sig}]}",
+                        tokenEnhancer.getKeys(new UsernamePasswordAuthenticationToken("foo", "bar")).toString());
+        response = new MockHttpServletResponse();
+        tokenEnhancer.getKeys(new UsernamePasswordAuthenticationToken("foo", "bar"), new MockHttpServletRequest(), response);
+        String rotatedEtag = response.getHeader("ETag");
+        assertNotEquals(etag, rotatedEtag);
+
+        signerProvider.setLegacyVerificationKey(null);
+        response = new MockHttpServletResponse();
+        tokenEnhancer.getKeys(new UsernamePasswordAuthenticationToken("foo", "bar"), new MockHttpServletRequest(), response);
+        assertNotEquals(rotatedEtag, response.getHeader("ETag"));
+        Map<String, List<Map<String, String>>> keys = JsonUtils.readValue(response.getContentAsString(), Map.class);
+        assertEquals(1, keys.get("keys").size());
+    }
+
+    @Test
+    public void keysAreServedWithAnETag() throws Exception {
+        signerProvider.setVerifierKey("someKey");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        tokenEnhancer.getKeys(new UsernamePasswordAuthenticationToken("foo", "bar"), new MockHttpServletRequest(), response);
+        assertEquals(200, response.getStatus());
+        assertEquals("no-store", response.getHeader("Cache-Control"));
+        String etag = response.getHeader("ETag");
+        Map<String, List<Map<String, String>>> keys = JsonUtils.readValue(response.getContentAsString(), Map.class);
+        assertEquals("someKey", keys.get("keys").get(0).get("value"));
+
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.addHeader("If-None-Match", etag);
+        response = new MockHttpServletResponse();
+        tokenEnhancer.getKeys(new UsernamePasswordAuthenticationToken("foo", "bar"), request, response);
+        assertEquals(304, response.getStatus());
+        assertEquals(0, response.getContentAsByteArray().length);
+
+        signerProvider.setSigningKey("otherKey");
+        response = new MockHttpServletResponse();
+        tokenEnhancer.getKeys(new UsernamePasswordAuthenticationToken("foo", "bar"), request, response);
+        assertEquals(200, response.getStatus());
+        assertNotEquals(etag, response.getHeader("ETag"));
+    }
+
 }
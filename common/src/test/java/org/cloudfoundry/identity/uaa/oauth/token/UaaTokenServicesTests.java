@@ -69,6 +69,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Mockito.mock;
 
 /**
@@ -1206,6 +1207,55 @@ public class UaaTokenServicesTests {
         assertNull(loadedAuthentication.getUserAuthentication());
     }
 
+    @Test(expected = InvalidTokenException.class)
+    public void testLoadAuthenticationAfterSigningKeyChanged() {
+        AuthorizationRequest authorizationRequest = new AuthorizationRequest(CLIENT_ID,requestedAuthScopes);
+        authorizationRequest.setResourceIds(new HashSet<>(resourceIds));
+        Map<String, String> azParameters = new HashMap<>(authorizationRequest.getRequestParameters());
+        azParameters.put(GRANT_TYPE, CLIENT_CREDENTIALS);
+        authorizationRequest.setRequestParameters(azParameters);
+
+        OAuth2Authentication authentication = new OAuth2Authentication(authorizationRequest.createOAuth2Request(), null);
+
+        OAuth2AccessToken accessToken = tokenServices.createAccessToken(authentication);
+        assertEquals(CLIENT_ID, tokenServices.loadAuthentication(accessToken.getValue()).getName());
+        assertEquals(CLIENT_ID, tokenServices.loadAuthentication(accessToken.getValue()).getName());
+
+        signerProvider.setSigningKey("a-new-signing-key");
+        tokenServices.loadAuthentication(accessToken.getValue());
+    }
+
+    @Test
+    public void testLoadAuthenticationAfterSigningKeyRotated() {
+        AuthorizationRequest authorizationRequest = new AuthorizationRequest(CLIENT_ID,requestedAuthScopes);
+        authorizationRequest.setResourceIds(new HashSet<>(resourceIds));
+        Map<String, String> azParameters = new HashMap<>(authorizationRequest.getRequestParameters());
+        azParameters.put(GRANT_TYPE, CLIENT_CREDENTIALS);
+        authorizationRequest.setRequestParameters(azParameters);
+
+        OAuth2Authentication authentication = new OAuth2Authentication(authorizationRequest.createOAuth2Request(), null);
+
+        String oldSigningKey = signerProvider.getSigningKey();
+        signerProvider.setKeyId("key-1");
+        OAuth2AccessToken accessToken = tokenServices.createAccessToken(authentication);
+        assertEquals("key-1", SignerProvider.getKeyId(accessToken.getValue()));
+
+        signerProvider.setSigningKey("a-new-signing-key");
+        signerProvider.setKeyId("key-2");
+        signerProvider.setVerificationKeys(Collections.singletonMap("key-1", oldSigningKey));
+        assertEquals(CLIENT_ID, tokenServices.loadAuthentication(accessToken.getValue()).getName());
+        OAuth2AccessToken newAccessToken = tokenServices.createAccessToken(authentication);
+        assertEquals("key-2", SignerProvider.getKeyId(newAccessToken.getValue()));
+        assertEquals(CLIENT_ID, tokenServices.loadAuthentication(newAccessToken.getValue()).getName());
+
+        signerProvider.setVerificationKeys(null);
+        try {
+            tokenServices.loadAuthentication(accessToken.getValue());
+            fail();
+        } catch (InvalidTokenException expected) {
+        }
+    }
+
     @Test(expected = InvalidTokenException.class)
     public void testLoadAuthenticationWithAnExpiredToken() throws InterruptedException {
         BaseClientDetails shortExpiryClient = defaultClient;
@@ -0,0 +1,108 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.oauth.token;
+
+import org.cloudfoundry.identity.uaa.oauth.Claims;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.jwt.crypto.sign.MacSigner;
+import org.springframework.security.jwt.crypto.sign.SignatureVerifier;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class VerifiedTokenCacheTests {
+
+    private VerifiedTokenCache cache;
+    private SignatureVerifier verifier;
+
+    @Before
+    public void setUp() {
+        cache = new VerifiedTokenCache();
+        verifier = new MacSigner("tokenkey");
+    }
+
+    @Test
+    public void testCachedClaimsAreReturned() {
+        Map<String, Object> claims = claimsExpiringIn(60);
+        Map<String, Object> stored = cache.put("token", verifier, claims);
+        assertSame(stored, cache.get("token", verifier));
+        assertEquals(claims.get(Claims.EXP), cache.get("token", verifier).get(Claims.EXP));
+        assertNull(cache.get("other-token", verifier));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testCachedClaimsAreReadOnly() {
+        cache.put("token", verifier, claimsExpiringIn(60)).put("foo", "bar");
+    }
+
+    @Test
+    public void testNestedClaimsAreCopiedAndReadOnly() {
+        Map<String, Object> claims = claimsExpiringIn(60);
+        List<String> scope = new ArrayList<>(Arrays.asList("openid"));
+        claims.put(Claims.SCOPE, scope);
+        List<?> cached = (List<?>) cache.put("token", verifier, claims).get(Claims.SCOPE);
+        scope.add("scim.write");
+        assertEquals(Arrays.asList("openid"), cache.get("token", verifier).get(Claims.SCOPE));
+        try {
+            cached.clear();
+            fail("Expected the cached scope to be read only");
+        } catch (UnsupportedOperationException e) {
+        }
+    }
+
+    @Test
+    public void testExpiredTokensAreEvicted() {
+        cache.put("token", verifier, claimsExpiringIn(-1));
+        assertEquals(1, cache.size());
+        assertNull(cache.get("token", verifier));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testEntriesAreEvictedWhenVerifierChanges() {
+        cache.put("token", verifier, claimsExpiringIn(60));
+        assertNull(cache.get("token", new MacSigner("tokenkey")));
+        assertNull(cache.get("token", verifier));
+    }
+
+    @Test
+    public void testCacheIsBounded() {
+        cache.setMaxEntries(2);
+        for (int i = 0; i < 10; i++) {
+            cache.put("token" + i, verifier, claimsExpiringIn(60));
+        }
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void testDisabledCache() {
+        cache.setEnabled(false);
+        cache.put("token", verifier, claimsExpiringIn(60));
+        assertNull(cache.get("token", verifier));
+    }
+
+    private Map<String, Object> claimsExpiringIn(int seconds) {
+        Map<String, Object> claims = new HashMap<>();
+        claims.put(Claims.EXP, (int) (System.currentTimeMillis() / 1000) + seconds);
+        return claims;
+    }
+}
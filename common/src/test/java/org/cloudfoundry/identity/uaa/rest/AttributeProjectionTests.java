@@ -0,0 +1,71 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.rest;
+
+import org.junit.Test;
+import org.springframework.expression.spel.SpelEvaluationException;
+import org.springframework.expression.spel.SpelParseException;
+import org.springframework.security.oauth2.provider.client.BaseClientDetails;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class AttributeProjectionTests {
+
+    private final BaseClientDetails client = new BaseClientDetails("foo", "", "openid", "client_credentials", "uaa.none,uaa.admin");
+
+    private final AttributeNameMapper mapper = new SimpleAttributeNameMapper(Collections.singletonMap("authorities\\.(.*)", "authorities.![$1]"));
+
+    @Test
+    public void testProjectsPropertiesAndCollections() {
+        Map<String, Object> result = AttributeProjection.compile(new String[] {"clientId", "scope", "authorities.authority", "clientSecret"}, mapper).project(client);
+        assertEquals(Arrays.asList("clientId", "scope", "authorities.authority", "clientSecret"), Arrays.asList(result.keySet().toArray()));
+        assertEquals("foo", result.get("clientId"));
+        assertEquals(client.getScope(), result.get("scope"));
+        assertEquals(Arrays.asList("uaa.none", "uaa.admin"), result.get("authorities.authority"));
+        assertNull(result.get("clientSecret"));
+    }
+
+    @Test
+    public void testEvaluatesOtherExpressionsWithSpel() {
+        Map<String, Object> result = AttributeProjection.compile(new String[] {"scope.size()", "clientId.length()"}, null).project(client);
+        assertEquals(1, result.get("scope.size()"));
+        assertEquals(3, result.get("clientId.length()"));
+    }
+
+    @Test
+    public void testCachesCompiledProjections() {
+        String[] attributes = new String[] {"clientId", "authorities.authority"};
+        assertSame(AttributeProjection.compile(attributes, mapper), AttributeProjection.compile(attributes, mapper));
+    }
+
+    @Test(expected = SpelEvaluationException.class)
+    public void testUnknownPropertyFailsLikeSpel() {
+        AttributeProjection.compile(new String[] {"clientId", "unknown"}, null).project(client);
+    }
+
+    @Test(expected = SpelEvaluationException.class)
+    public void testPropertyOfNullFailsLikeSpel() {
+        AttributeProjection.compile(new String[] {"clientSecret.length"}, null).project(client);
+    }
+
+    @Test(expected = SpelParseException.class)
+    public void testInvalidAttribute() {
+        AttributeProjection.compile(new String[] {"clientId)"}, null);
+    }
+}
@@ -12,9 +12,8 @@
  *******************************************************************************/
 package org.cloudfoundry.identity.uaa.util;
 
-import java.lang.reflect.Field;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertFalse;
@@ -26,7 +25,6 @@ import org.junit.Before;
 import org.junit.Test;
 import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
 import org.springframework.security.oauth2.common.util.RandomValueStringGenerator;
-import org.springframework.util.ReflectionUtils;
 
 public class CachingPasswordEncoderTest  {
 
@@ -127,32 +125,70 @@ public class CachingPasswordEncoderTest  {
                 assertTrue(cachingPasswordEncoder.matches(password, encoded));
             }
         }
-        assertEquals(maxkeys, cachingPasswordEncoder.getNumberOfKeys());
+        assertTrue(cachingPasswordEncoder.getNumberOfKeys() <= maxkeys);
         String password = new RandomValueStringGenerator().generate();
         String encoded = cachingPasswordEncoder.encode(password);
         assertTrue(cachingPasswordEncoder.matches(password, encoded));
-        //overflow happened
-        assertEquals(0, cachingPasswordEncoder.getNumberOfKeys());
+        //overflow evicts old keys instead of clearing the cache
+        assertTrue(cachingPasswordEncoder.getNumberOfKeys() <= maxkeys);
+        assertTrue(cachingPasswordEncoder.getNumberOfKeys() > 1);
+        assertTrue(cachingPasswordEncoder.getEvictionCount() > 0);
 
         for (int j=0; j<cachingPasswordEncoder.getMaxEncodedPasswords(); j++) {
             encoded = cachingPasswordEncoder.encode(password);
             assertTrue(cachingPasswordEncoder.matches(password, encoded));
         }
 
-        Field field = ReflectionUtils.findField(cachingPasswordEncoder.getClass(), "cache");
-        field.setAccessible(true);
-        ConcurrentHashMap<CharSequence, Set<String>> cache = (ConcurrentHashMap<CharSequence, Set<String>>)ReflectionUtils.getField(
-            field,
-            cachingPasswordEncoder
-        );
-        assertNotNull(cache);
-        Set<String> passwords = cache.get(cachingPasswordEncoder.cacheEncode(password));
+        Set<String> passwords = cachingPasswordEncoder.getCache().peek(cachingPasswordEncoder.cacheEncode(password));
         assertNotNull(passwords);
         assertEquals(maxpasswords, passwords.size());
-        cachingPasswordEncoder.matches(password, cachingPasswordEncoder.encode(password));
-        assertEquals(0, passwords.size());
+        String oldest = passwords.iterator().next();
+        encoded = cachingPasswordEncoder.encode(password);
+        cachingPasswordEncoder.matches(password, encoded);
+        //only the oldest encoded password is dropped
+        assertEquals(maxpasswords, passwords.size());
+        assertFalse(passwords.contains(oldest));
+        assertTrue(passwords.contains(encoded));
+    }
+
+    @Test
+    public void testCounters() throws Exception {
+        String password = new RandomValueStringGenerator().generate();
+        String encoded = cachingPasswordEncoder.encode(password);
+        assertTrue(cachingPasswordEncoder.matches(password, encoded));
+        assertTrue(cachingPasswordEncoder.matches(password, encoded));
+        assertTrue(cachingPasswordEncoder.matches(password, encoded));
+        assertFalse(cachingPasswordEncoder.matches("wrong", encoded));
+        assertEquals(2, cachingPasswordEncoder.getHitCount());
+        assertEquals(2, cachingPasswordEncoder.getBcryptFallbackCount());
+        assertEquals(0.5, cachingPasswordEncoder.getHitRate(), 0.0001);
     }
 
+    @Test
+    public void testConcurrentMatches() throws Exception {
+        final String password = new RandomValueStringGenerator().generate();
+        final String encoded = cachingPasswordEncoder.encode(password);
+        final AtomicInteger failures = new AtomicInteger();
+        Thread[] threads = new Thread[8];
+        for (int i=0; i<threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int j=0; j<50; j++) {
+                        if (!cachingPasswordEncoder.matches(password, encoded)) {
+                            failures.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, failures.get());
+        assertEquals(1, cachingPasswordEncoder.getNumberOfKeys());
+    }
 
     @Test
     public void testDisabledMatchesSpeedTest() throws Exception {
@@ -0,0 +1,66 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.util;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class LatencyHistogramTests {
+
+    private LatencyHistogram histogram = new LatencyHistogram();
+
+    @Test
+    public void emptyHistogram() {
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMeanMicros(), 0);
+        assertEquals(0, histogram.getPercentileMicros(99));
+        assertEquals("", histogram.toString());
+    }
+
+    @Test
+    public void countsInPowerOfTwoBuckets() {
+        histogram.record(500);
+        histogram.record(TimeUnit.MICROSECONDS.toNanos(1));
+        histogram.record(TimeUnit.MICROSECONDS.toNanos(3));
+        histogram.record(TimeUnit.MICROSECONDS.toNanos(3));
+        long[] expected = new long[LatencyHistogram.BUCKETS];
+        expected[0] = 1;
+        expected[1] = 1;
+        expected[2] = 2;
+        assertArrayEquals(expected, histogram.getCounts());
+        assertEquals(4, histogram.getCount());
+        assertEquals(1.875, histogram.getMeanMicros(), 0.001);
+        assertEquals("<1us=1 <2us=1 <4us=2", histogram.toString());
+    }
+
+    @Test
+    public void percentilesAreBucketUpperBounds() {
+        for (int i = 0; i < 99; i++) {
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(100));
+        }
+        histogram.record(TimeUnit.SECONDS.toNanos(1));
+        assertEquals(128, histogram.getPercentileMicros(50));
+        assertEquals(128, histogram.getPercentileMicros(99));
+        assertEquals(1 << 20, histogram.getPercentileMicros(100));
+    }
+
+    @Test
+    public void slowestBucketCountsEverythingSlower() {
+        histogram.record(TimeUnit.DAYS.toNanos(1));
+        assertEquals(1, histogram.getCounts()[LatencyHistogram.BUCKETS - 1]);
+    }
+}
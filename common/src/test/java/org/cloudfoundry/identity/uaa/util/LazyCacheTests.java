@@ -0,0 +1,57 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class LazyCacheTests {
+
+    private LazyCache<String, String> cache = new LazyCache<>(2, 60);
+
+    @Test
+    public void countsHitsAndMisses() {
+        assertEquals(0, cache.size());
+        assertNull(cache.get("a"));
+        cache.put("a", "1");
+        assertEquals("1", cache.get("a"));
+        assertEquals("1", cache.peek("a"));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void countsEvictions() {
+        cache.put("a", "1");
+        cache.put("b", "2");
+        cache.put("c", "3");
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictionCount());
+        cache.invalidate("c");
+        assertEquals(1, cache.getEvictionCount());
+    }
+
+    @Test
+    public void changingTheSizeEmptiesTheCache() {
+        cache.put("a", "1");
+        cache.setMaxEntries(10);
+        assertEquals(10, cache.getMaxEntries());
+        assertNull(cache.peek("a"));
+        for (int i = 0; i < 10; i++) {
+            cache.put("key" + i, "value");
+        }
+        assertEquals(10, cache.size());
+    }
+}
@@ -12,6 +12,7 @@ import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletResponse;
 
+import org.cloudfoundry.identity.uaa.zone.event.IdentityZoneModifiedEvent;
 import org.junit.Test;
 import org.mockito.Mockito;
 import org.springframework.dao.EmptyResultDataAccessException;
@@ -100,4 +101,85 @@ public class IdentityZoneResolvingFilterTest {
         Mockito.verifyZeroInteractions(chain);
     }
 
+    @Test
+    public void zonesAreCachedUntilModified() throws Exception {
+        IdentityZoneResolvingFilter filter = new IdentityZoneResolvingFilter();
+        IdentityZoneProvisioning dao = Mockito.mock(IdentityZoneProvisioning.class);
+        filter.setIdentityZoneProvisioning(dao);
+        filter.setAdditionalInternalHostnames(new HashSet<>(Arrays.asList("uaa.mycf.com")));
+        filter.setCacheEnabled(true);
+
+        IdentityZone identityZone = new IdentityZone();
+        identityZone.setId("myzone-id");
+        identityZone.setSubdomain("myzone");
+        Mockito.when(dao.retrieveBySubdomain(Mockito.eq("myzone"))).thenReturn(identityZone);
+
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setServerName("myzone.uaa.mycf.com");
+        filter.doFilter(request, new MockHttpServletResponse(), new MockFilterChain());
+        filter.doFilter(request, new MockHttpServletResponse(), new MockFilterChain());
+        Mockito.verify(dao, Mockito.times(1)).retrieveBySubdomain(Mockito.eq("myzone"));
+        assertEquals(1, filter.getCacheHitCount());
+        assertEquals(1, filter.getCacheMissCount());
+
+        filter.onApplicationEvent(IdentityZoneModifiedEvent.identityZoneModified(identityZone));
+        filter.doFilter(request, new MockHttpServletResponse(), new MockFilterChain());
+        Mockito.verify(dao, Mockito.times(2)).retrieveBySubdomain(Mockito.eq("myzone"));
+    }
+
+    @Test
+    public void unknownSubdomainsAreCachedUntilZoneIsCreated() throws Exception {
+        IdentityZoneResolvingFilter filter = new IdentityZoneResolvingFilter();
+        IdentityZoneProvisioning dao = Mockito.mock(IdentityZoneProvisioning.class);
+        filter.setIdentityZoneProvisioning(dao);
+        filter.setAdditionalInternalHostnames(new HashSet<>(Arrays.asList("uaa.mycf.com")));
+        filter.setCacheEnabled(true);
+        filter.setNotFoundCacheEnabled(true);
+        Mockito.when(dao.retrieveBySubdomain(Mockito.eq("newzone"))).thenThrow(new EmptyResultDataAccessException(1));
+
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setServerName("newzone.uaa.mycf.com");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        filter.doFilter(request, response, new MockFilterChain());
+        assertEquals(HttpServletResponse.SC_NOT_FOUND, response.getStatus());
+        response = new MockHttpServletResponse();
+        filter.doFilter(request, response, new MockFilterChain());
+        assertEquals(HttpServletResponse.SC_NOT_FOUND, response.getStatus());
+        Mockito.verify(dao, Mockito.times(1)).retrieveBySubdomain(Mockito.eq("newzone"));
+
+        IdentityZone identityZone = new IdentityZone();
+        identityZone.setId("newzone-id");
+        identityZone.setSubdomain("newzone");
+        Mockito.reset(dao);
+        Mockito.when(dao.retrieveBySubdomain(Mockito.eq("newzone"))).thenReturn(identityZone);
+        filter.onApplicationEvent(IdentityZoneModifiedEvent.identityZoneCreated(identityZone));
+
+        response = new MockHttpServletResponse();
+        filter.doFilter(request, response, new MockFilterChain());
+        assertEquals(HttpServletResponse.SC_OK, response.getStatus());
+    }
+
+    @Test
+    public void unknownSubdomainsAreNotCachedByDefault() throws Exception {
+        IdentityZoneResolvingFilter filter = new IdentityZoneResolvingFilter();
+        IdentityZoneProvisioning dao = Mockito.mock(IdentityZoneProvisioning.class);
+        filter.setIdentityZoneProvisioning(dao);
+        filter.setAdditionalInternalHostnames(new HashSet<>(Arrays.asList("uaa.mycf.com")));
+        filter.setCacheEnabled(true);
+        Mockito.when(dao.retrieveBySubdomain(Mockito.eq("newzone"))).thenThrow(new EmptyResultDataAccessException(1));
+
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setServerName("newzone.uaa.mycf.com");
+        filter.doFilter(request, new MockHttpServletResponse(), new MockFilterChain());
+        filter.doFilter(request, new MockHttpServletResponse(), new MockFilterChain());
+        Mockito.verify(dao, Mockito.times(2)).retrieveBySubdomain(Mockito.eq("newzone"));
+        assertEquals(0, filter.getCacheSize());
+        assertEquals(0, filter.getNotFoundCacheSize());
+    }
+
+    @Test
+    public void longestConfiguredHostnameWins() throws Exception {
+        assertFindsCorrectSubdomain("myzone", "myzone.login.uaa.mycf.com", "uaa.mycf.com", "login.uaa.mycf.com");
+    }
+
 }
@@ -1,7 +1,11 @@
 package org.cloudfoundry.identity.uaa.zone;
 
 import org.apache.commons.lang.RandomStringUtils;
+import org.cloudfoundry.identity.uaa.authentication.Origin;
+import org.cloudfoundry.identity.uaa.config.PasswordPolicy;
+import org.cloudfoundry.identity.uaa.login.saml.SamlIdentityProviderDefinition;
 import org.cloudfoundry.identity.uaa.test.JdbcTestBase;
+import org.cloudfoundry.identity.uaa.util.JsonUtils;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -242,4 +246,116 @@ public class JdbcIdentityProviderProvisioningTests extends JdbcTestBase {
         IdentityProvider idp1 = db.create(idp);
         db.retrieveByOrigin(idp1.getOriginKey(), identityZone2.getId());
     }
+
+    @Test
+    public void testCachedProviderIsReusedUntilVersionChanges() {
+        db.setCacheEnabled(true);
+        //entries are stale right away so every lookup checks the version column
+        db.setCacheTimeToLiveSeconds(0);
+        String originKey = RandomStringUtils.randomAlphabetic(6);
+        IdentityProvider idp = MultitenancyFixture.identityProvider(originKey, IdentityZone.getUaa().getId());
+        idp.setConfig(JsonUtils.writeValueAsString(new UaaIdentityProviderDefinition(new PasswordPolicy(10, 23, 1, 1, 1, 1, 6), null)));
+        idp = db.create(idp);
+
+        IdentityProvider first = db.retrieveByOrigin(originKey, IdentityZone.getUaa().getId());
+        IdentityProvider second = db.retrieveByOrigin(originKey, IdentityZone.getUaa().getId());
+        assertNotSame(first, second);
+        assertEquals(first, second);
+        assertEquals(1, db.getCacheMissCount());
+        assertEquals(1, db.getCacheHitCount());
+
+        IdentityProvider third = db.retrieveByOrigin(originKey, IdentityZone.getUaa().getId());
+        assertEquals(10, third.getConfigValue(UaaIdentityProviderDefinition.class).getPasswordPolicy().getMinLength());
+        assertEquals(1, db.getCacheMissCount());
+
+        //an update made elsewhere is detected through the version column
+        jdbcTemplate.update("update identity_provider set version=version+1, config=? where id=?",
+            JsonUtils.writeValueAsString(new UaaIdentityProviderDefinition(new PasswordPolicy(5, 23, 1, 1, 1, 1, 6), null)), idp.getId());
+        IdentityProvider updated = db.retrieveByOrigin(originKey, IdentityZone.getUaa().getId());
+        assertEquals(5, updated.getConfigValue(UaaIdentityProviderDefinition.class).getPasswordPolicy().getMinLength());
+        assertEquals(2, db.getCacheMissCount());
+    }
+
+    @Test
+    public void testUpdateEvictsCachedProvider() {
+        db.setCacheEnabled(true);
+        String originKey = RandomStringUtils.randomAlphabetic(6);
+        IdentityProvider idp = db.create(MultitenancyFixture.identityProvider(originKey, IdentityZone.getUaa().getId()));
+        db.retrieveByOrigin(originKey, IdentityZone.getUaa().getId());
+
+        idp.setName("updated name");
+        db.update(idp);
+        assertEquals("updated name", db.retrieveByOrigin(originKey, IdentityZone.getUaa().getId()).getName());
+    }
+
+    @Test
+    public void testChangingACachedCopyDropsSharedConfigValues() {
+        db.setCacheEnabled(true);
+        String originKey = RandomStringUtils.randomAlphabetic(6);
+        IdentityProvider idp = MultitenancyFixture.identityProvider(originKey, IdentityZone.getUaa().getId());
+        idp.setConfig(JsonUtils.writeValueAsString(new UaaIdentityProviderDefinition(new PasswordPolicy(10, 23, 1, 1, 1, 1, 6), null)));
+        db.create(idp);
+
+        IdentityProvider copy = db.retrieveByOrigin(originKey, IdentityZone.getUaa().getId());
+        copy.setConfig(JsonUtils.writeValueAsString(new UaaIdentityProviderDefinition(new PasswordPolicy(5, 23, 1, 1, 1, 1, 6), null)));
+        assertEquals(5, copy.getConfigValue(UaaIdentityProviderDefinition.class).getPasswordPolicy().getMinLength());
+        IdentityProvider cached = db.retrieveByOrigin(originKey, IdentityZone.getUaa().getId());
+        assertEquals(10, cached.getConfigValue(UaaIdentityProviderDefinition.class).getPasswordPolicy().getMinLength());
+    }
+
+    @Test
+    public void testCachedProviderDeserializesItsConfigOncePerVersion() {
+        db.setCacheEnabled(true);
+        db.setCacheTimeToLiveSeconds(0);
+        String originKey = RandomStringUtils.randomAlphabetic(6);
+        IdentityProvider idp = MultitenancyFixture.identityProvider(originKey, IdentityZone.getUaa().getId());
+        idp.setConfig(JsonUtils.writeValueAsString(new UaaIdentityProviderDefinition(new PasswordPolicy(10, 23, 1, 1, 1, 1, 6), null)));
+        idp = db.create(idp);
+
+        UaaIdentityProviderDefinition definition = db.retrieveByOrigin(originKey, IdentityZone.getUaa().getId())
+            .getConfigValue(UaaIdentityProviderDefinition.class);
+        assertSame(definition, db.retrieveByOrigin(originKey, IdentityZone.getUaa().getId())
+            .getConfigValue(UaaIdentityProviderDefinition.class));
+
+        idp.setConfig(JsonUtils.writeValueAsString(new UaaIdentityProviderDefinition(new PasswordPolicy(5, 23, 1, 1, 1, 1, 6), null)));
+        db.update(idp);
+        UaaIdentityProviderDefinition updated = db.retrieveByOrigin(originKey, IdentityZone.getUaa().getId())
+            .getConfigValue(UaaIdentityProviderDefinition.class);
+        assertNotSame(definition, updated);
+        assertEquals(5, updated.getPasswordPolicy().getMinLength());
+    }
+
+    @Test
+    public void testUpdatingACachedSamlProviderDoesNotChangeItsSharedDefinition() {
+        db.setCacheEnabled(true);
+        String originKey = RandomStringUtils.randomAlphabetic(6);
+        IdentityProvider idp = MultitenancyFixture.identityProvider(originKey, IdentityZone.getUaa().getId());
+        idp.setType(Origin.SAML);
+        SamlIdentityProviderDefinition saml = new SamlIdentityProviderDefinition();
+        saml.setMetaDataLocation("http://localhost:8080/saml/metadata");
+        saml.setIdpEntityAlias("other-alias");
+        idp.setConfig(JsonUtils.writeValueAsString(saml));
+        db.create(idp);
+        //saved definitions are synchronized with the provider
+        IdentityProvider cached = db.retrieveByOrigin(originKey, IdentityZone.getUaa().getId());
+        SamlIdentityProviderDefinition definition = cached.getConfigValue(SamlIdentityProviderDefinition.class);
+        assertEquals(originKey, definition.getIdpEntityAlias());
+
+        cached.setOriginKey(originKey + "-renamed");
+        db.update(cached);
+        assertEquals(originKey, definition.getIdpEntityAlias());
+    }
+
+    @Test
+    public void testConcurrentUpdatesEachBumpTheVersion() {
+        String originKey = RandomStringUtils.randomAlphabetic(6);
+        IdentityProvider idp = db.create(MultitenancyFixture.identityProvider(originKey, IdentityZone.getUaa().getId()));
+        int version = idp.getVersion();
+        //both callers read the same version before updating
+        idp.setName("first");
+        db.update(idp);
+        idp.setName("second");
+        IdentityProvider updated = db.update(idp);
+        assertEquals(version + 2, updated.getVersion());
+    }
 }
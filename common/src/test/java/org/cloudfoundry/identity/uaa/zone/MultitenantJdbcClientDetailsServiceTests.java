@@ -27,6 +27,7 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 
 public class MultitenantJdbcClientDetailsServiceTests {
@@ -370,6 +371,55 @@ public class MultitenantJdbcClientDetailsServiceTests {
         assertEquals(otherIdentityZone.getId(), identityZoneId.trim());
     }
 
+    @Test
+    public void testCachedClientIsReturnedUntilUpdated() {
+        service.setCacheEnabled(true);
+        BaseClientDetails clientDetails = new BaseClientDetails("cachedClient", null, "read", "password", null);
+        clientDetails.addAdditionalInformation(ClientConstants.TOKEN_SALT, "salt");
+        service.addClientDetails(clientDetails);
+
+        assertEquals("salt", service.loadClientByClientId("cachedClient").getAdditionalInformation().get(ClientConstants.TOKEN_SALT));
+        jdbcTemplate.update("update oauth_client_details set scope='write' where client_id='cachedClient'");
+        assertEquals(new HashSet<>(Arrays.asList("read")), service.loadClientByClientId("cachedClient").getScope());
+        assertEquals(1, service.getCacheMissCount());
+        assertEquals(1, service.getCacheHitCount());
+
+        clientDetails.addAdditionalInformation(ClientConstants.TOKEN_SALT, "newsalt");
+        service.updateClientDetails(clientDetails);
+        ClientDetails loaded = service.loadClientByClientId("cachedClient");
+        assertEquals("newsalt", loaded.getAdditionalInformation().get(ClientConstants.TOKEN_SALT));
+        assertEquals(new HashSet<>(Arrays.asList("read")), loaded.getScope());
+
+        service.removeClientDetails("cachedClient");
+        try {
+            service.loadClientByClientId("cachedClient");
+            fail("Removed client should not be returned from the cache");
+        } catch (NoSuchClientException expected) {
+        }
+    }
+
+    @Test
+    public void testCachedClientsAreCopies() {
+        service.setCacheEnabled(true);
+        service.addClientDetails(new BaseClientDetails("cachedClient", null, "read", "password", null));
+        BaseClientDetails loaded = (BaseClientDetails) service.loadClientByClientId("cachedClient");
+        loaded.setScope(Arrays.asList("write"));
+        loaded.addAdditionalInformation("foo", "bar");
+        ClientDetails reloaded = service.loadClientByClientId("cachedClient");
+        assertEquals(new HashSet<>(Arrays.asList("read")), reloaded.getScope());
+        assertNull(reloaded.getAdditionalInformation().get("foo"));
+    }
+
+    @Test(expected = NoSuchClientException.class)
+    public void testCacheIsZoneAware() {
+        service.setCacheEnabled(true);
+        IdentityZoneHolder.set(otherIdentityZone);
+        service.addClientDetails(new BaseClientDetails("clientInOtherZone", null, "read", "password", null));
+        assertNotNull(service.loadClientByClientId("clientInOtherZone"));
+        IdentityZoneHolder.clear();
+        service.loadClientByClientId("clientInOtherZone");
+    }
+
     @Test
     public void testAddingClientToDefaultIdentityZoneShouldHaveAnIdentityZoneId() {
         BaseClientDetails clientDetails = new BaseClientDetails();
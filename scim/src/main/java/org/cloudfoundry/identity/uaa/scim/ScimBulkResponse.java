@@ -0,0 +1,49 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.scim;
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+public class ScimBulkResponse {
+
+    private List<String> schemas = Arrays.asList(ScimCore.SCHEMAS);
+
+    @JsonProperty("Operations")
+    private List<ScimBulkOperation> operations;
+
+    public ScimBulkResponse() {
+    }
+
+    public ScimBulkResponse(List<ScimBulkOperation> operations) {
+        this.operations = operations;
+    }
+
+    public List<String> getSchemas() {
+        return schemas;
+    }
+
+    public void setSchemas(List<String> schemas) {
+        this.schemas = schemas;
+    }
+
+    public List<ScimBulkOperation> getOperations() {
+        return operations;
+    }
+
+    public void setOperations(List<ScimBulkOperation> operations) {
+        this.operations = operations;
+    }
+}
@@ -12,7 +12,10 @@
  *******************************************************************************/
 package org.cloudfoundry.identity.uaa.scim;
 
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.cloudfoundry.identity.uaa.rest.Queryable;
@@ -35,6 +38,23 @@ public interface ScimGroupMembershipManager extends Queryable<ScimGroupMember> {
     ScimGroupMember addMember(String groupId, ScimGroupMember member) throws ScimResourceNotFoundException,
                     MemberAlreadyExistsException;
 
+    /**
+     * Add several members to a group, either all of them or none
+     *
+     * @param groupId id of a valid group that already exists.
+     * @param members membership info for enrolling existing scim objects
+     * @return all members of the group
+     * @throws ScimResourceNotFoundException
+     * @throws org.cloudfoundry.identity.uaa.scim.exception.MemberAlreadyExistsException
+     */
+    default List<ScimGroupMember> addMembers(String groupId, List<ScimGroupMember> members) throws ScimResourceNotFoundException,
+                    MemberAlreadyExistsException {
+        for (ScimGroupMember member : members) {
+            addMember(groupId, member);
+        }
+        return getMembers(groupId);
+    }
+
     /**
      * Retrieve all members of a group
      *
@@ -44,6 +64,20 @@ public interface ScimGroupMembershipManager extends Queryable<ScimGroupMember> {
      */
     List<ScimGroupMember> getMembers(String groupId) throws ScimResourceNotFoundException;
 
+    /**
+     * Retrieve all members of several groups
+     *
+     * @param groupIds
+     * @return the members of each group, by group id
+     */
+    default Map<String, List<ScimGroupMember>> getMembers(Collection<String> groupIds) {
+        Map<String, List<ScimGroupMember>> members = new HashMap<>();
+        for (String groupId : groupIds) {
+            members.put(groupId, getMembers(groupId));
+        }
+        return members;
+    }
+
     /**
      * Retrieve members that have the specified authority on the group
      *
@@ -66,6 +100,22 @@ public interface ScimGroupMembershipManager extends Queryable<ScimGroupMember> {
      */
     Set<ScimGroup> getGroupsWithMember(String memberId, boolean transitive) throws ScimResourceNotFoundException;
 
+    /**
+     * Retrieve all groups that each of the given members belongs to
+     *
+     * @param memberIds
+     * @param transitive true means indirect/transitive membership is also
+     *            processed (nested groups)
+     * @return the groups of each member, by member id
+     */
+    default Map<String, Set<ScimGroup>> getGroupsWithMembers(Collection<String> memberIds, boolean transitive) {
+        Map<String, Set<ScimGroup>> groups = new HashMap<>();
+        for (String memberId : memberIds) {
+            groups.put(memberId, getGroupsWithMember(memberId, transitive));
+        }
+        return groups;
+    }
+
     /**
      * Retrieve a particular member's membership details
      *
@@ -12,8 +12,42 @@
  *******************************************************************************/
 package org.cloudfoundry.identity.uaa.scim;
 
+import org.cloudfoundry.identity.uaa.rest.CursorPage;
 import org.cloudfoundry.identity.uaa.rest.Queryable;
 import org.cloudfoundry.identity.uaa.rest.ResourceManager;
+import org.cloudfoundry.identity.uaa.scim.exception.ScimResourceNotFoundException;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 
 public interface ScimGroupProvisioning extends ResourceManager<ScimGroup>, Queryable<ScimGroup> {
+
+    /**
+     * Retrieves the groups with the given ids, ids of groups that do not exist
+     * are left out.
+     */
+    default List<ScimGroup> retrieveByIds(Collection<String> ids) {
+        List<ScimGroup> groups = new ArrayList<>();
+        for (String id : ids) {
+            try {
+                groups.add(retrieve(id));
+            } catch (ScimResourceNotFoundException ignored) {
+            }
+        }
+        return groups;
+    }
+
+    /**
+     * Queries the groups that the given member has the reader role in.
+     */
+    List<ScimGroup> queryReadableBy(String memberId, String filter, String sortBy, boolean ascending);
+
+    /**
+     * Queries one page of the groups that the given member has the reader
+     * role in.
+     *
+     * @see org.cloudfoundry.identity.uaa.rest.Queryable#queryPage(String, String, boolean, String, int)
+     */
+    CursorPage<ScimGroup> queryPageReadableBy(String memberId, String filter, String sortBy, boolean ascending, String cursor, int count);
 }
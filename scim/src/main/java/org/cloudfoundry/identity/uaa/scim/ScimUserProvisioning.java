@@ -18,6 +18,9 @@ import org.cloudfoundry.identity.uaa.scim.exception.InvalidPasswordException;
 import org.cloudfoundry.identity.uaa.scim.exception.InvalidScimResourceException;
 import org.cloudfoundry.identity.uaa.scim.exception.ScimResourceNotFoundException;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * @author Luke Taylor
  * @author Dave Syer
@@ -27,6 +30,21 @@ public interface ScimUserProvisioning extends ResourceManager<ScimUser>, Queryab
     public ScimUser createUser(ScimUser user, String password) throws InvalidPasswordException,
                     InvalidScimResourceException;
 
+    /**
+     * Creates several users, either all of them or none, with the plain text
+     * passwords they hold.
+     *
+     * @return the created users in the same order
+     */
+    public default List<ScimUser> createUsers(List<ScimUser> users) throws InvalidPasswordException,
+                    InvalidScimResourceException {
+        List<ScimUser> created = new ArrayList<ScimUser>(users.size());
+        for (ScimUser user : users) {
+            created.add(createUser(user, user.getPassword()));
+        }
+        return created;
+    }
+
     public void changePassword(String id, String oldPassword, String newPassword)
                     throws ScimResourceNotFoundException;
 
@@ -13,9 +13,11 @@
 package org.cloudfoundry.identity.uaa.scim.bootstrap;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -55,6 +57,8 @@ public class ScimGroupBootstrap implements InitializingBean {
 
     private final Log logger = LogFactory.getLog(getClass());
 
+    private int batchSize = 0;
+
     public ScimGroupBootstrap(ScimGroupProvisioning scimGroupProvisioning, ScimUserProvisioning scimUserProvisioning,
                     ScimGroupMembershipManager membershipManager) {
         this.scimGroupProvisioning = scimGroupProvisioning;
@@ -105,14 +109,152 @@ public class ScimGroupBootstrap implements InitializingBean {
         logger.debug("admins: " + groupAdmins + ", members: " + groupMembers);
     }
 
+    /**
+     * @param batchSize the number of groups or users that are looked up
+     * together at startup, 0 (the default) bootstraps the groups one by one
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
     @Override
     public void afterPropertiesSet() throws Exception {
+        long start = System.currentTimeMillis();
+        if (batchSize > 0) {
+            addGroupsAndMembers();
+        } else {
+            for (String g : groups) {
+                addGroup(g);
+            }
+            for (String g : groups) {
+                addMembers(g);
+            }
+        }
+        logger.info("Bootstrapped " + groups.size() + " groups in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    /**
+     * Adds the groups and their members in batches. The existing groups and
+     * the members are looked up with one query per batch, and the missing
+     * members of each group are added at once.
+     */
+    private void addGroupsAndMembers() {
+        Map<String, ScimGroup> existingGroups = findGroups(groups);
         for (String g : groups) {
-            addGroup(g);
+            if (!g.isEmpty() && !existingGroups.containsKey(g.toLowerCase())) {
+                logger.debug("adding group: " + g);
+                existingGroups.put(g.toLowerCase(), scimGroupProvisioning.create(new ScimGroup(null, g, IdentityZoneHolder.get().getId())));
+            }
+        }
+
+        Set<String> names = new HashSet<String>();
+        for (Set<String> members : groupMembers.values()) {
+            names.addAll(members);
+        }
+        for (Set<String> admins : groupAdmins.values()) {
+            names.addAll(admins);
+        }
+        Map<String, ScimUser> users = findUsers(names);
+        Set<String> otherGroups = new HashSet<String>();
+        for (String name : names) {
+            if (!users.containsKey(name.toLowerCase()) && !existingGroups.containsKey(name.toLowerCase())) {
+                otherGroups.add(name);
+            }
         }
+        existingGroups.putAll(findGroups(otherGroups));
+
         for (String g : groups) {
-            addMembers(g);
+            ScimGroup group = existingGroups.get(g.toLowerCase());
+            if (group == null) {
+                continue;
+            }
+            Set<String> memberIds = new HashSet<String>();
+            for (ScimGroupMember member : membershipManager.getMembers(group.getId())) {
+                memberIds.add(member.getMemberId());
+            }
+            List<ScimGroupMember> members = new ArrayList<ScimGroupMember>();
+            addMembers(members, memberIds, groupMembers.get(g), ScimGroupMember.GROUP_MEMBER, users, existingGroups);
+            addMembers(members, memberIds, groupAdmins.get(g), ScimGroupMember.GROUP_ADMIN, users, existingGroups);
+            if (members.isEmpty()) {
+                continue;
+            }
+            logger.debug("adding members: " + members + " into group: " + g);
+            try {
+                membershipManager.addMembers(group.getId(), members);
+            } catch (MemberAlreadyExistsException e) {
+                for (ScimGroupMember member : members) {
+                    try {
+                        membershipManager.addMember(group.getId(), member);
+                    } catch (MemberAlreadyExistsException ex) {
+                        logger.debug(member.getMemberId() + " already is member of group " + g);
+                    }
+                }
+            }
+        }
+    }
+
+    private void addMembers(List<ScimGroupMember> members, Set<String> memberIds, Set<String> names,
+                    List<ScimGroupMember.Role> auth, Map<String, ScimUser> users, Map<String, ScimGroup> groups) {
+        if (names == null) {
+            return;
+        }
+        for (String name : names) {
+            ScimCore member = users.get(name.toLowerCase());
+            if (member == null) {
+                member = groups.get(name.toLowerCase());
+            }
+            if (member != null && memberIds.add(member.getId())) {
+                members.add(
+                    new ScimGroupMember(
+                        member.getId(),
+                        (member instanceof ScimGroup) ? ScimGroupMember.Type.GROUP : ScimGroupMember.Type.USER,
+                        auth
+                    )
+                );
+            }
+        }
+    }
+
+    private Map<String, ScimUser> findUsers(Collection<String> names) {
+        Map<String, ScimUser> users = new HashMap<String, ScimUser>();
+        List<String> userNames = new ArrayList<String>(names);
+        for (int i = 0; i < userNames.size(); i += batchSize) {
+            String filter = getFilter(USER_BY_NAME_FILTER, userNames.subList(i, Math.min(i + batchSize, userNames.size())));
+            for (ScimUser user : scimUserProvisioning.query(filter)) {
+                if (!users.containsKey(user.getUserName().toLowerCase())) {
+                    users.put(user.getUserName().toLowerCase(), user);
+                }
+            }
+        }
+        return users;
+    }
+
+    private Map<String, ScimGroup> findGroups(Collection<String> names) {
+        Map<String, ScimGroup> result = new LinkedHashMap<String, ScimGroup>();
+        List<String> groupNames = new ArrayList<String>();
+        for (String name : names) {
+            if (!name.isEmpty()) {
+                groupNames.add(name);
+            }
+        }
+        for (int i = 0; i < groupNames.size(); i += batchSize) {
+            String filter = getFilter(GROUP_BY_NAME_FILTER, groupNames.subList(i, Math.min(i + batchSize, groupNames.size())));
+            for (ScimGroup group : scimGroupProvisioning.query(filter)) {
+                result.put(group.getDisplayName().toLowerCase(), group);
+            }
+        }
+        return result;
+    }
+
+    private String getFilter(String format, List<String> names) {
+        StringBuilder filter = new StringBuilder();
+        for (String name : names) {
+            if (filter.length() > 0) {
+                filter.append(" or ");
+            }
+            filter.append(String.format(format, name));
         }
+        return filter.toString();
     }
 
     private void addMembers(String g) {
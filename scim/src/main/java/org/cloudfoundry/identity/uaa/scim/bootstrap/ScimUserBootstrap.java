@@ -26,11 +26,14 @@ import org.cloudfoundry.identity.uaa.scim.ScimUser;
 import org.cloudfoundry.identity.uaa.scim.ScimUserProvisioning;
 import org.cloudfoundry.identity.uaa.scim.exception.MemberAlreadyExistsException;
 import org.cloudfoundry.identity.uaa.scim.exception.MemberNotFoundException;
+import org.cloudfoundry.identity.uaa.scim.exception.ScimException;
 import org.cloudfoundry.identity.uaa.scim.exception.ScimResourceNotFoundException;
 import org.cloudfoundry.identity.uaa.user.UaaUser;
+import org.cloudfoundry.identity.uaa.zone.IdentityZone;
 import org.cloudfoundry.identity.uaa.zone.IdentityZoneHolder;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.context.ApplicationListener;
+import org.springframework.core.task.AsyncTaskExecutor;
 import org.springframework.security.core.GrantedAuthority;
 import org.springframework.util.Assert;
 import org.springframework.util.StringUtils;
@@ -39,8 +42,15 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /**
  * Convenience class for provisioning user accounts from {@link UaaUser}
@@ -63,6 +73,10 @@ public class ScimUserBootstrap implements InitializingBean, ApplicationListener<
 
     private final Collection<UaaUser> users;
 
+    private int batchSize = 0;
+
+    private AsyncTaskExecutor executor;
+
     /**
      * Flag to indicate that user accounts can be updated as well as created.
      *
@@ -76,6 +90,22 @@ public class ScimUserBootstrap implements InitializingBean, ApplicationListener<
         return override;
     }
 
+    /**
+     * @param batchSize the number of users that are looked up and created
+     * together at startup, 0 (the default) bootstraps the users one by one
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @param executor runs the updates of existing users in parallel when
+     * bootstrapping in batches, their passwords are hashed concurrently
+     */
+    public void setExecutor(AsyncTaskExecutor executor) {
+        this.executor = executor;
+    }
+
     public ScimUserBootstrap(ScimUserProvisioning scimUserProvisioning, ScimGroupProvisioning scimGroupProvisioning,
                     ScimGroupMembershipManager membershipManager, Collection<UaaUser> users) {
         Assert.notNull(scimUserProvisioning, "scimUserProvisioning cannot be null");
@@ -90,9 +120,230 @@ public class ScimUserBootstrap implements InitializingBean, ApplicationListener<
 
     @Override
     public void afterPropertiesSet() throws Exception {
-        for (UaaUser u : users) {
-            addUser(u);
+        long start = System.currentTimeMillis();
+        if (batchSize > 0) {
+            addUsers(new ArrayList<UaaUser>(users));
+        } else {
+            for (UaaUser u : users) {
+                addUser(u);
+            }
+        }
+        logger.info("Bootstrapped " + users.size() + " users in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    /**
+     * Adds the users in batches. The existing users are looked up with one
+     * query per batch, the new users are created with one insert per batch
+     * and added to each of their groups at once.
+     */
+    private void addUsers(List<UaaUser> users) {
+        List<ScimUser> existingUsers = getScimUsers(users);
+        List<UaaUser> newUsers = new ArrayList<UaaUser>();
+        List<ScimUser> usersToUpdate = new ArrayList<ScimUser>();
+        List<UaaUser> updatedUsers = new ArrayList<UaaUser>();
+        for (int i = 0; i < users.size(); i++) {
+            if (existingUsers.get(i) == null) {
+                newUsers.add(users.get(i));
+            } else if (override) {
+                usersToUpdate.add(existingUsers.get(i));
+                updatedUsers.add(users.get(i));
+            } else {
+                logger.debug("Override flag not set. Not registering existing user: " + users.get(i));
+            }
         }
+        for (int i = 0; i < newUsers.size(); i += batchSize) {
+            createNewUsers(newUsers.subList(i, Math.min(i + batchSize, newUsers.size())));
+        }
+        if (!updatedUsers.isEmpty()) {
+            updateUsers(usersToUpdate, updatedUsers);
+        }
+    }
+
+    /**
+     * Looks up the existing users by origin and user name, in the order of
+     * the given users, with <code>null</code> for the users that do not
+     * exist yet.
+     */
+    private List<ScimUser> getScimUsers(List<UaaUser> users) {
+        Map<String, List<String>> userNamesByOrigin = new LinkedHashMap<String, List<String>>();
+        for (UaaUser user : users) {
+            String origin = getOrigin(user);
+            List<String> userNames = userNamesByOrigin.get(origin);
+            if (userNames == null) {
+                userNames = new ArrayList<String>();
+                userNamesByOrigin.put(origin, userNames);
+            }
+            userNames.add(user.getUsername());
+        }
+        Map<String, ScimUser> found = new HashMap<String, ScimUser>();
+        for (Map.Entry<String, List<String>> entry : userNamesByOrigin.entrySet()) {
+            List<String> userNames = entry.getValue();
+            for (int i = 0; i < userNames.size(); i += batchSize) {
+                String filter = "origin eq \"" + entry.getKey() + "\" and ("
+                                + getFilter("userName", userNames.subList(i, Math.min(i + batchSize, userNames.size()))) + ")";
+                for (ScimUser scimUser : scimUserProvisioning.query(filter)) {
+                    found.put(getKey(scimUser.getOrigin(), scimUser.getUserName()), scimUser);
+                }
+            }
+        }
+        List<ScimUser> result = new ArrayList<ScimUser>(users.size());
+        for (UaaUser user : users) {
+            ScimUser scimUser = found.get(getKey(getOrigin(user), user.getUsername()));
+            if (scimUser == null && StringUtils.hasText(user.getId())) {
+                scimUser = getScimUser(user);
+            }
+            result.add(scimUser);
+        }
+        return result;
+    }
+
+    private void createNewUsers(List<UaaUser> newUsers) {
+        List<ScimUser> scimUsers = new ArrayList<ScimUser>(newUsers.size());
+        for (UaaUser user : newUsers) {
+            logger.debug("Registering new user account: " + user);
+            ScimUser scimUser = convertToScimUser(user);
+            scimUser.setPassword(user.getPassword());
+            scimUsers.add(scimUser);
+        }
+        List<ScimUser> created;
+        try {
+            created = scimUserProvisioning.createUsers(scimUsers);
+        } catch (ScimException e) {
+            logger.debug("Unable to create " + newUsers.size() + " users at once, creating them one by one: " + e.getMessage());
+            for (UaaUser user : newUsers) {
+                addUser(user);
+            }
+            return;
+        }
+        Map<String, List<ScimGroupMember>> members = new LinkedHashMap<String, List<ScimGroupMember>>();
+        for (int i = 0; i < newUsers.size(); i++) {
+            for (String group : convertToGroups(newUsers.get(i).getAuthorities())) {
+                if (!StringUtils.hasText(group)) {
+                    continue;
+                }
+                List<ScimGroupMember> groupMembers = members.get(group);
+                if (groupMembers == null) {
+                    groupMembers = new ArrayList<ScimGroupMember>();
+                    members.put(group, groupMembers);
+                }
+                ScimGroupMember member = new ScimGroupMember(created.get(i).getId());
+                member.setOrigin(Origin.UAA);
+                groupMembers.add(member);
+            }
+        }
+        Map<String, ScimGroup> groups = getOrCreateGroups(members.keySet());
+        for (Map.Entry<String, List<ScimGroupMember>> entry : members.entrySet()) {
+            String groupId = groups.get(entry.getKey()).getId();
+            try {
+                membershipManager.addMembers(groupId, entry.getValue());
+            } catch (MemberAlreadyExistsException e) {
+                for (ScimGroupMember member : entry.getValue()) {
+                    try {
+                        membershipManager.addMember(groupId, member);
+                    } catch (MemberAlreadyExistsException ex) {
+                        // do nothing
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Updates the existing users, in parallel if there is an executor. Their
+     * groups are created up front so that the updates do not race to create
+     * them.
+     */
+    private void updateUsers(List<ScimUser> existingUsers, final List<UaaUser> updatedUsers) {
+        Set<String> groups = new LinkedHashSet<String>();
+        for (UaaUser user : updatedUsers) {
+            for (String group : convertToGroups(user.getAuthorities())) {
+                if (StringUtils.hasText(group)) {
+                    groups.add(group);
+                }
+            }
+        }
+        getOrCreateGroups(groups);
+        if (executor == null) {
+            for (int i = 0; i < updatedUsers.size(); i++) {
+                updateUser(existingUsers.get(i), updatedUsers.get(i));
+            }
+            return;
+        }
+        final IdentityZone zone = IdentityZoneHolder.get();
+        List<Future<Void>> futures = new ArrayList<Future<Void>>(updatedUsers.size());
+        for (int i = 0; i < updatedUsers.size(); i++) {
+            final ScimUser existingUser = existingUsers.get(i);
+            final UaaUser updatedUser = updatedUsers.get(i);
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    IdentityZoneHolder.set(zone);
+                    try {
+                        updateUser(existingUser, updatedUser);
+                    } finally {
+                        IdentityZoneHolder.clear();
+                    }
+                    return null;
+                }
+            }));
+        }
+        try {
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while updating users", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("Unable to update user", e.getCause());
+        }
+    }
+
+    /**
+     * Looks up the groups with the given names with one query per batch, and
+     * creates the ones that do not exist yet.
+     */
+    private Map<String, ScimGroup> getOrCreateGroups(Collection<String> names) {
+        Map<String, ScimGroup> found = new HashMap<String, ScimGroup>();
+        List<String> groupNames = new ArrayList<String>(names);
+        for (int i = 0; i < groupNames.size(); i += batchSize) {
+            String filter = getFilter("displayName", groupNames.subList(i, Math.min(i + batchSize, groupNames.size())));
+            for (ScimGroup group : scimGroupProvisioning.query(filter)) {
+                found.put(group.getDisplayName().toLowerCase(), group);
+            }
+        }
+        Map<String, ScimGroup> result = new HashMap<String, ScimGroup>();
+        for (String name : groupNames) {
+            ScimGroup group = found.get(name.toLowerCase());
+            if (group == null) {
+                group = scimGroupProvisioning.create(new ScimGroup(null, name, IdentityZoneHolder.get().getId()));
+                found.put(name.toLowerCase(), group);
+            }
+            result.put(name, group);
+        }
+        return result;
+    }
+
+    private String getFilter(String attribute, List<String> values) {
+        StringBuilder filter = new StringBuilder();
+        for (String value : values) {
+            if (filter.length() > 0) {
+                filter.append(" or ");
+            }
+            filter.append(attribute).append(" eq \"").append(value).append("\"");
+        }
+        return filter.toString();
+    }
+
+    private String getOrigin(UaaUser user) {
+        return user.getOrigin() == null ? Origin.UAA : user.getOrigin();
+    }
+
+    private String getKey(String origin, String userName) {
+        return origin + ":" + userName.toLowerCase();
     }
 
     protected ScimUser getScimUser(UaaUser user) {
@@ -0,0 +1,334 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.scim.endpoints;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.cloudfoundry.identity.uaa.error.ConvertingExceptionView;
+import org.cloudfoundry.identity.uaa.error.ExceptionReport;
+import org.cloudfoundry.identity.uaa.scim.ScimBulkOperation;
+import org.cloudfoundry.identity.uaa.scim.ScimBulkRequest;
+import org.cloudfoundry.identity.uaa.scim.ScimBulkResponse;
+import org.cloudfoundry.identity.uaa.scim.ScimGroup;
+import org.cloudfoundry.identity.uaa.scim.ScimGroupMember;
+import org.cloudfoundry.identity.uaa.scim.ScimUser;
+import org.cloudfoundry.identity.uaa.scim.exception.ScimException;
+import org.cloudfoundry.identity.uaa.util.JsonUtils;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.client.RestTemplate;
+import org.springframework.web.servlet.View;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * SCIM bulk endpoint for provisioning many users and groups in one request.
+ * Consecutive user creations are done <code>batchSize</code> at a time with
+ * one batch insert in one transaction; if a batch fails its users are
+ * created one at a time to report the error of each. Approvals are stored
+ * after the batch is committed, a user whose approvals fail is reported as
+ * created with the error, since creating it again would conflict. The other
+ * operations are delegated to the user and group endpoints one at a time.
+ *
+ * @see <a href="http://www.simplecloud.info/specs/draft-scim-api-01.html#bulk-resources">SCIM - Bulk</a>
+ */
+@Controller
+public class ScimBulkEndpoints {
+
+    private static final String BULK_ID_PREFIX = "bulkId:";
+
+    private final Log logger = LogFactory.getLog(getClass());
+
+    private final ScimUserEndpoints userEndpoints;
+
+    private final ScimGroupEndpoints groupEndpoints;
+
+    private int maxOperations = 1000;
+
+    private int batchSize = 100;
+
+    private Map<Class<? extends Exception>, HttpStatus> statuses = new HashMap<Class<? extends Exception>, HttpStatus>();
+
+    private HttpMessageConverter<?>[] messageConverters = new RestTemplate().getMessageConverters().toArray(
+                    new HttpMessageConverter<?>[0]);
+
+    public ScimBulkEndpoints(ScimUserEndpoints userEndpoints, ScimGroupEndpoints groupEndpoints) {
+        this.userEndpoints = userEndpoints;
+        this.groupEndpoints = groupEndpoints;
+    }
+
+    @RequestMapping(value = "/Bulk", method = RequestMethod.POST)
+    @ResponseBody
+    public ScimBulkResponse bulk(@RequestBody ScimBulkRequest request, HttpServletRequest httpServletRequest,
+                    HttpServletResponse httpServletResponse) {
+        List<ScimBulkOperation> operations = request.getOperations() == null ?
+                        Collections.<ScimBulkOperation> emptyList() : request.getOperations();
+        if (operations.size() > maxOperations) {
+            throw new ScimException("Too many operations, the maximum is " + maxOperations,
+                            HttpStatus.REQUEST_ENTITY_TOO_LARGE);
+        }
+
+        String baseUrl = httpServletRequest.getRequestURL().toString().replaceAll("/Bulk/?$", "");
+        Bulk bulk = new Bulk(request.getFailOnErrors(), baseUrl, httpServletResponse);
+        for (ScimBulkOperation operation : operations) {
+            if (bulk.isFailed()) {
+                break;
+            }
+            if ("POST".equalsIgnoreCase(operation.getMethod()) && "/Users".equals(operation.getPath())) {
+                bulk.addUser(operation);
+            } else {
+                bulk.createUsers();
+                bulk.perform(operation);
+            }
+        }
+        bulk.createUsers();
+        return new ScimBulkResponse(bulk.results);
+    }
+
+    /**
+     * The state of one bulk request.
+     */
+    private class Bulk {
+        private final Integer failOnErrors;
+        private final String baseUrl;
+        private final HttpServletResponse response;
+        private final List<ScimBulkOperation> results = new ArrayList<ScimBulkOperation>();
+        private final Map<String, String> ids = new HashMap<String, String>();
+        private final List<ScimBulkOperation> pendingUsers = new ArrayList<ScimBulkOperation>();
+        private int errors = 0;
+
+        private Bulk(Integer failOnErrors, String baseUrl, HttpServletResponse response) {
+            this.failOnErrors = failOnErrors;
+            this.baseUrl = baseUrl;
+            //the operations must not set the ETag of the bulk response
+            this.response = new HttpServletResponseWrapper(response) {
+                @Override
+                public void setHeader(String name, String value) {
+                }
+            };
+        }
+
+        private boolean isFailed() {
+            return failOnErrors != null && failOnErrors > 0 && errors >= failOnErrors;
+        }
+
+        private void addUser(ScimBulkOperation operation) {
+            pendingUsers.add(operation);
+            if (pendingUsers.size() >= batchSize) {
+                createUsers();
+            }
+        }
+
+        private void createUsers() {
+            if (pendingUsers.isEmpty()) {
+                return;
+            }
+            List<ScimBulkOperation> operations = new ArrayList<ScimBulkOperation>(pendingUsers);
+            pendingUsers.clear();
+            List<ScimUser> users = new ArrayList<ScimUser>(operations.size());
+            List<ScimUser> created;
+            try {
+                for (ScimBulkOperation operation : operations) {
+                    users.add(readData(operation, ScimUser.class));
+                }
+                created = userEndpoints.createUsers(users);
+            } catch (Exception e) {
+                //nothing was committed, so the users can be created again
+                logger.debug("Unable to create " + operations.size() + " users at once, creating them one at a time", e);
+                for (ScimBulkOperation operation : operations) {
+                    if (isFailed()) {
+                        break;
+                    }
+                    perform(operation);
+                }
+                return;
+            }
+            for (int i = 0; i < operations.size(); i++) {
+                ScimUser user = created.get(i);
+                ScimBulkOperation result = succeeded(operations.get(i), HttpStatus.CREATED, "/Users/", user.getId(), user.getVersion());
+                try {
+                    userEndpoints.addApprovals(user.getId(), users.get(i).getApprovals());
+                } catch (Exception e) {
+                    errors++;
+                    result.getStatus().setDescription("Created, but the approvals were not stored: " + getScimException(e).getMessage());
+                }
+            }
+        }
+
+        private void perform(ScimBulkOperation operation) {
+            String method = operation.getMethod() == null ? "" : operation.getMethod().toUpperCase();
+            String path = operation.getPath() == null ? "" : operation.getPath();
+            try {
+                if (path.equals("/Users") && method.equals("POST")) {
+                    ScimUser user = userEndpoints.createUser(readData(operation, ScimUser.class), response);
+                    succeeded(operation, HttpStatus.CREATED, "/Users/", user.getId(), user.getVersion());
+                } else if (path.equals("/Groups") && method.equals("POST")) {
+                    ScimGroup group = groupEndpoints.createGroup(readGroup(operation), response);
+                    succeeded(operation, HttpStatus.CREATED, "/Groups/", group.getId(), group.getVersion());
+                } else if (path.startsWith("/Users/") && method.equals("PUT")) {
+                    String id = resolve(path.substring("/Users/".length()));
+                    String etag = operation.getVersion() == null ? "NaN" : operation.getVersion();
+                    ScimUser user = userEndpoints.updateUser(readData(operation, ScimUser.class), id, etag, response);
+                    succeeded(operation, HttpStatus.OK, "/Users/", user.getId(), user.getVersion());
+                } else if (path.startsWith("/Groups/") && method.equals("PUT")) {
+                    String id = resolve(path.substring("/Groups/".length()));
+                    ScimGroup group = groupEndpoints.updateGroup(readGroup(operation), id, operation.getVersion(), response);
+                    succeeded(operation, HttpStatus.OK, "/Groups/", group.getId(), group.getVersion());
+                } else if (path.startsWith("/Users/") && method.equals("DELETE")) {
+                    String id = resolve(path.substring("/Users/".length()));
+                    userEndpoints.deleteUser(id, operation.getVersion(), response);
+                    succeeded(operation, HttpStatus.OK, "/Users/", id, null);
+                } else if (path.startsWith("/Groups/") && method.equals("DELETE")) {
+                    String id = resolve(path.substring("/Groups/".length()));
+                    String etag = operation.getVersion() == null ? "*" : operation.getVersion();
+                    groupEndpoints.deleteGroup(id, etag, response);
+                    succeeded(operation, HttpStatus.OK, "/Groups/", id, null);
+                } else {
+                    throw new ScimException("Unsupported bulk operation: " + method + " " + path, HttpStatus.BAD_REQUEST);
+                }
+            } catch (Exception e) {
+                failed(operation, getScimException(e));
+            }
+        }
+
+        private ScimGroup readGroup(ScimBulkOperation operation) {
+            ScimGroup group = readData(operation, ScimGroup.class);
+            if (group.getMembers() != null) {
+                for (ScimGroupMember member : group.getMembers()) {
+                    member.setMemberId(resolve(member.getMemberId()));
+                }
+            }
+            return group;
+        }
+
+        /**
+         * @return the id of the resource created with the bulk id that the
+         *         value refers to, or the value if it does not refer to one
+         */
+        private String resolve(String value) {
+            if (value == null || !value.startsWith(BULK_ID_PREFIX)) {
+                return value;
+            }
+            String id = ids.get(value.substring(BULK_ID_PREFIX.length()));
+            if (id == null) {
+                throw new ScimException("Unresolved reference: " + value, HttpStatus.CONFLICT);
+            }
+            return id;
+        }
+
+        private ScimBulkOperation succeeded(ScimBulkOperation operation, HttpStatus status, String path, String id, Integer version) {
+            if (operation.getBulkId() != null) {
+                ids.put(operation.getBulkId(), id);
+            }
+            ScimBulkOperation result = newResult(operation);
+            result.setLocation(baseUrl + path + id);
+            result.setVersion(version == null ? null : "\"" + version + "\"");
+            result.setStatus(new ScimBulkOperation.Status(String.valueOf(status.value()), null));
+            results.add(result);
+            return result;
+        }
+
+        private void failed(ScimBulkOperation operation, ScimException e) {
+            errors++;
+            ScimBulkOperation result = newResult(operation);
+            result.setStatus(new ScimBulkOperation.Status(String.valueOf(e.getStatus().value()), e.getMessage()));
+            results.add(result);
+        }
+
+        private ScimBulkOperation newResult(ScimBulkOperation operation) {
+            ScimBulkOperation result = new ScimBulkOperation();
+            result.setMethod(operation.getMethod());
+            result.setBulkId(operation.getBulkId());
+            return result;
+        }
+    }
+
+    private <T> T readData(ScimBulkOperation operation, Class<T> type) {
+        if (operation.getData() == null) {
+            throw new ScimException("Missing data", HttpStatus.BAD_REQUEST);
+        }
+        try {
+            return JsonUtils.convertValue(operation.getData(), type);
+        } catch (JsonUtils.JsonUtilException e) {
+            throw new ScimException("Invalid data: " + e.getMessage(), HttpStatus.BAD_REQUEST);
+        }
+    }
+
+    private ScimException getScimException(Exception t) {
+        if (t instanceof ScimException) {
+            return (ScimException) t;
+        }
+        Class<?> clazz = t.getClass();
+        for (Class<?> key : statuses.keySet()) {
+            if (key.isAssignableFrom(clazz)) {
+                return new ScimException(t.getMessage(), t, statuses.get(key));
+            }
+        }
+        logger.error("Unexpected error in SCIM bulk operation", t);
+        return new ScimException("Unexpected error", t, HttpStatus.INTERNAL_SERVER_ERROR);
+    }
+
+    @ExceptionHandler
+    public View handleException(Exception t, HttpServletRequest request) throws ScimException {
+        ScimException e = getScimException(t);
+        // User can supply trace=true or just trace (unspecified) to get stack
+        // traces
+        boolean trace = request.getParameter("trace") != null && !request.getParameter("trace").equals("false");
+        return new ConvertingExceptionView(new ResponseEntity<ExceptionReport>(new ExceptionReport(e, trace),
+                        e.getStatus()), messageConverters);
+    }
+
+    /**
+     * @param maxOperations the maximum number of operations in one request
+     *            (default 1000)
+     */
+    public void setMaxOperations(int maxOperations) {
+        this.maxOperations = maxOperations;
+    }
+
+    /**
+     * @param batchSize the number of users created in one transaction
+     *            (default 100)
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Map from exception type to Http status.
+     */
+    public void setStatuses(Map<Class<? extends Exception>, HttpStatus> statuses) {
+        this.statuses = statuses;
+    }
+
+    /**
+     * Set the message body converters to use for error responses.
+     */
+    public void setMessageConverters(HttpMessageConverter<?>[] messageConverters) {
+        this.messageConverters = messageConverters;
+    }
+}
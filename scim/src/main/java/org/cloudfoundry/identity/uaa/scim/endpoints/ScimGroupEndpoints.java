@@ -17,6 +17,7 @@ import org.apache.commons.logging.LogFactory;
 import org.cloudfoundry.identity.uaa.authentication.Origin;
 import org.cloudfoundry.identity.uaa.error.ConvertingExceptionView;
 import org.cloudfoundry.identity.uaa.error.ExceptionReport;
+import org.cloudfoundry.identity.uaa.rest.CursorPage;
 import org.cloudfoundry.identity.uaa.rest.SearchResults;
 import org.cloudfoundry.identity.uaa.rest.SearchResultsFactory;
 import org.cloudfoundry.identity.uaa.scim.ScimCore;
@@ -57,6 +58,7 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -122,30 +124,32 @@ public class ScimGroupEndpoints {
         return false;
     }
 
-    private boolean isReaderMember(ScimGroup group, String userId) {
-        return isMember(group, userId, ScimGroupMember.Role.READER);
+    /**
+     * Sets the members of all groups on the page with one query.
+     */
+    private List<ScimGroup> syncMembers(List<ScimGroup> groups) {
+        List<String> groupIds = new ArrayList<String>(groups.size());
+        for (ScimGroup group : groups) {
+            groupIds.add(group.getId());
+        }
+        Map<String, List<ScimGroupMember>> members = groupIds.isEmpty() ?
+                        Collections.<String, List<ScimGroupMember>> emptyMap() : membershipManager.getMembers(groupIds);
+        for (ScimGroup group : groups) {
+            List<ScimGroupMember> groupMembers = members.get(group.getId());
+            group.setMembers(groupMembers == null ? new ArrayList<ScimGroupMember>() : groupMembers);
+        }
+        return groups;
     }
 
-    private List<ScimGroup> filterForCurrentUser(List<ScimGroup> input, int startIndex, int count, String userId) {
-        List<ScimGroup> response = new ArrayList<ScimGroup>();
-        int expectedResponseSize = Math.min(count, input.size());
-        boolean needMore = response.size() < expectedResponseSize;
-        while (needMore && startIndex <= input.size()) {
-            for (ScimGroup group : UaaPagingUtils.subList(input, startIndex, count)) {
-                group.setMembers(membershipManager.getMembers(group.getId()));
-                if (isReaderMember(group, userId)) {
-                    response.add(group);
-                    needMore = response.size() < expectedResponseSize;
-                }
-                if (!needMore) {
-                    break;
-                }
-            }
-            startIndex += count;
-        }
-        return response;
+    public SearchResults<?> listGroups(String attributesCommaSeparated, String filter, String sortBy, String sortOrder,
+                    int startIndex, int count) {
+        return listGroups(attributesCommaSeparated, filter, sortBy, sortOrder, startIndex, count, null);
     }
 
+    /**
+     * Lists groups, with a <code>cursor</code> parameter one page after the
+     * other like {@link ScimUserEndpoints#findUsers(String, String, String, String, int, int, String)}.
+     */
     @RequestMapping(value = { "/Groups" }, method = RequestMethod.GET)
     @ResponseBody
     public SearchResults<?> listGroups(
@@ -154,31 +158,51 @@ public class ScimGroupEndpoints {
                     @RequestParam(required = false, defaultValue = "created") String sortBy,
                     @RequestParam(required = false, defaultValue = "ascending") String sortOrder,
                     @RequestParam(required = false, defaultValue = "1") int startIndex,
-                    @RequestParam(required = false, defaultValue = "100") int count) {
+                    @RequestParam(required = false, defaultValue = "100") int count,
+                    @RequestParam(required = false) String cursor) {
+
+        if (cursor != null) {
+            startIndex = 1;
+        }
 
-        List<ScimGroup> result;
+        boolean ascending = "ascending".equalsIgnoreCase(sortOrder);
+        List<ScimGroup> input;
+        int totalResults;
+        String nextCursor = null;
         try {
-            result = dao.query(filter, sortBy, "ascending".equalsIgnoreCase(sortOrder));
+            // users only see the groups they can read, filtered in the database
+            if (cursor == null) {
+                List<ScimGroup> result = securityContextAccessor.isUser() ?
+                                dao.queryReadableBy(securityContextAccessor.getUserId(), filter, sortBy, ascending)
+                                : dao.query(filter, sortBy, ascending);
+                input = syncMembers(new ArrayList<ScimGroup>(UaaPagingUtils.subList(result, startIndex, count)));
+                totalResults = result.size();
+            } else {
+                CursorPage<ScimGroup> page = securityContextAccessor.isUser() ?
+                                dao.queryPageReadableBy(securityContextAccessor.getUserId(), filter, sortBy, ascending, cursor, Math.max(count, 1))
+                                : dao.queryPage(filter, sortBy, ascending, cursor, Math.max(count, 1));
+                input = syncMembers(new ArrayList<ScimGroup>(page.getResources()));
+                nextCursor = page.getNextCursor();
+                totalResults = -1;
+            }
         } catch (IllegalArgumentException e) {
             throw new ScimException("Invalid filter expression: [" + filter + "]", HttpStatus.BAD_REQUEST);
         }
 
-        List<ScimGroup> input = securityContextAccessor.isUser() ?
-                        filterForCurrentUser(result, startIndex, count, securityContextAccessor.getUserId())
-                        : filterForCurrentUser(result, startIndex, count, null);
-
+        SearchResults<?> results;
         if (!StringUtils.hasLength(attributesCommaSeparated)) {
-            return new SearchResults<>(Arrays.asList(ScimCore.SCHEMAS), input, startIndex, count,
-                            result.size());
-        }
-
-        String[] attributes = attributesCommaSeparated.split(",");
-        try {
-            return SearchResultsFactory.buildSearchResultFrom(input, startIndex, count, result.size(), attributes,
-                            Arrays.asList(ScimCore.SCHEMAS));
-        } catch (ExpressionException e) {
-            throw new ScimException("Invalid attributes: [" + attributesCommaSeparated + "]", HttpStatus.BAD_REQUEST);
+            results = new SearchResults<>(Arrays.asList(ScimCore.SCHEMAS), input, startIndex, count, totalResults);
+        } else {
+            String[] attributes = attributesCommaSeparated.split(",");
+            try {
+                results = SearchResultsFactory.buildSearchResultFrom(input, startIndex, count, totalResults, attributes,
+                                Arrays.asList(ScimCore.SCHEMAS));
+            } catch (ExpressionException e) {
+                throw new ScimException("Invalid attributes: [" + attributesCommaSeparated + "]", HttpStatus.BAD_REQUEST);
+            }
         }
+        results.setNextCursor(nextCursor);
+        return results;
     }
 
     @RequestMapping(value = { "/Groups/External/list" }, method = RequestMethod.GET)
@@ -334,18 +358,17 @@ public class ScimGroupEndpoints {
     public ScimGroup createGroup(@RequestBody ScimGroup group, HttpServletResponse httpServletResponse) {
         group.setZoneId(IdentityZoneHolder.get().getId());
         ScimGroup created = dao.create(group);
-        if (group.getMembers() != null) {
-            for (ScimGroupMember member : group.getMembers()) {
-                try {
-                    membershipManager.addMember(created.getId(), member);
-                } catch (ScimException ex) {
-                    logger.warn("Attempt to add invalid member: " + member.getMemberId() + " to group: " + created.getId(), ex);
-                    dao.delete(created.getId(), created.getVersion());
-                    throw new InvalidScimResourceException("Invalid group member: " + member.getMemberId());
-                }
+        if (group.getMembers() != null && !group.getMembers().isEmpty()) {
+            try {
+                created.setMembers(membershipManager.addMembers(created.getId(), group.getMembers()));
+            } catch (ScimException ex) {
+                logger.warn("Attempt to add invalid members to group: " + created.getId(), ex);
+                dao.delete(created.getId(), created.getVersion());
+                throw new InvalidScimResourceException("Invalid group member: " + ex.getMessage());
             }
+        } else {
+            created.setMembers(membershipManager.getMembers(created.getId()));
         }
-        created.setMembers(membershipManager.getMembers(created.getId()));
         addETagHeader(httpServletResponse, created);
         return created;
     }
@@ -19,6 +19,7 @@ import org.cloudfoundry.identity.uaa.error.ExceptionReport;
 import org.cloudfoundry.identity.uaa.oauth.approval.Approval;
 import org.cloudfoundry.identity.uaa.oauth.approval.ApprovalStore;
 import org.cloudfoundry.identity.uaa.rest.AttributeNameMapper;
+import org.cloudfoundry.identity.uaa.rest.CursorPage;
 import org.cloudfoundry.identity.uaa.rest.ResourceMonitor;
 import org.cloudfoundry.identity.uaa.rest.SearchResults;
 import org.cloudfoundry.identity.uaa.rest.SearchResultsFactory;
@@ -31,6 +32,7 @@ import org.cloudfoundry.identity.uaa.scim.ScimUserProvisioning;
 import org.cloudfoundry.identity.uaa.scim.exception.ScimException;
 import org.cloudfoundry.identity.uaa.scim.exception.ScimResourceConflictException;
 import org.cloudfoundry.identity.uaa.scim.validate.PasswordValidator;
+import org.cloudfoundry.identity.uaa.util.JsonUtils;
 import org.cloudfoundry.identity.uaa.util.UaaPagingUtils;
 import org.cloudfoundry.identity.uaa.util.UaaStringUtils;
 import org.cloudfoundry.identity.uaa.zone.IdentityZoneHolder;
@@ -62,9 +64,13 @@ import org.springframework.web.servlet.View;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -74,6 +80,7 @@ import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 /**
  * User provisioning and query endpoints. Implements the core API from the
@@ -118,6 +125,10 @@ public class ScimUserEndpoints implements InitializingBean {
 
     private PasswordValidator passwordValidator;
 
+    private int exportFetchSize = 500;
+
+    private static final String NDJSON_CONTENT_TYPE = "application/x-ndjson";
+
     /**
      * Set the message body converters to use.
      * <p>
@@ -193,6 +204,36 @@ public class ScimUserEndpoints implements InitializingBean {
         return scimUser;
     }
 
+    /**
+     * Creates several users, either all of them or none, with a batch insert
+     * in one transaction. Used by the bulk endpoint, which stores their
+     * approvals with {@link #addApprovals(String, Collection)} once the users
+     * are committed.
+     */
+    public List<ScimUser> createUsers(List<ScimUser> users) {
+        for (ScimUser user : users) {
+            if (user.getPassword() == null) {
+                user.setPassword(generatePassword());
+            } else {
+                passwordValidator.validate(user.getPassword());
+            }
+        }
+        return dao.createUsers(users);
+    }
+
+    /**
+     * Stores the approvals of a user that has been created.
+     */
+    public void addApprovals(String userId, Collection<Approval> approvals) {
+        if (approvals == null) {
+            return;
+        }
+        for (Approval approval : approvals) {
+            approval.setUserId(userId);
+            approvalStore.addApproval(approval);
+        }
+    }
+
     @RequestMapping(value = "/Users/{userId}", method = RequestMethod.PUT)
     @ResponseBody
     public ScimUser updateUser(@RequestBody ScimUser user, @PathVariable String userId,
@@ -258,6 +299,17 @@ public class ScimUserEndpoints implements InitializingBean {
         }
     }
 
+    public SearchResults<?> findUsers(String attributesCommaSeparated, String filter, String sortBy, String sortOrder,
+                    int startIndex, int count) {
+        return findUsers(attributesCommaSeparated, filter, sortBy, sortOrder, startIndex, count, null);
+    }
+
+    /**
+     * Lists users. With a <code>cursor</code> parameter, empty for the first
+     * page, pages are read by seeking past the previous page rather than by
+     * <code>startIndex</code>, the response holds the cursor of the next page
+     * and the users are not counted, <code>totalResults</code> is -1.
+     */
     @RequestMapping(value = "/Users", method = RequestMethod.GET)
     @ResponseBody
     public SearchResults<?> findUsers(
@@ -266,47 +318,164 @@ public class ScimUserEndpoints implements InitializingBean {
                     @RequestParam(required = false, defaultValue = "created") String sortBy,
                     @RequestParam(required = false, defaultValue = "ascending") String sortOrder,
                     @RequestParam(required = false, defaultValue = "1") int startIndex,
-                    @RequestParam(required = false, defaultValue = "100") int count) {
+                    @RequestParam(required = false, defaultValue = "100") int count,
+                    @RequestParam(required = false) String cursor) {
 
-        if (startIndex < 1) {
+        if (startIndex < 1 || cursor != null) {
             startIndex = 1;
         }
 
         List<ScimUser> input = new ArrayList<ScimUser>();
-        List<ScimUser> result;
+        int totalResults;
+        String nextCursor = null;
         try {
-            result = dao.query(filter, sortBy, sortOrder.equals("ascending"));
-            for (ScimUser user : UaaPagingUtils.subList(result, startIndex, count)) {
-                if(attributesCommaSeparated == null || attributesCommaSeparated.matches("(?i)groups") || attributesCommaSeparated.isEmpty()) {
-                    syncGroups(user);
-                }
-                if(attributesCommaSeparated == null || attributesCommaSeparated.matches("(?i)approvals") || attributesCommaSeparated.isEmpty()) {
-                    syncApprovals(user);
-                }
-                input.add(user);
+            if (cursor == null) {
+                List<ScimUser> result = dao.query(filter, sortBy, sortOrder.equals("ascending"));
+                input.addAll(UaaPagingUtils.subList(result, startIndex, count));
+                totalResults = result.size();
+            } else {
+                CursorPage<ScimUser> page = dao.queryPage(filter, sortBy, sortOrder.equals("ascending"), cursor, Math.max(count, 1));
+                input.addAll(page.getResources());
+                nextCursor = page.getNextCursor();
+                totalResults = -1;
+            }
+            if (isAttributeRequested(attributesCommaSeparated, "groups")) {
+                syncGroups(input);
+            }
+            if (isAttributeRequested(attributesCommaSeparated, "approvals")) {
+                syncApprovals(input);
             }
         } catch (IllegalArgumentException e) {
             throw new ScimException("Invalid filter expression: [" + filter + "]", HttpStatus.BAD_REQUEST);
         }
 
+        SearchResults<?> results;
         if (!StringUtils.hasLength(attributesCommaSeparated)) {
             // Return all user data
-            return new SearchResults<ScimUser>(Arrays.asList(ScimCore.SCHEMAS), input, startIndex, count, result.size());
+            results = new SearchResults<ScimUser>(Arrays.asList(ScimCore.SCHEMAS), input, startIndex, count, totalResults);
+        } else {
+            String[] attributes = attributesCommaSeparated.split(",");
+            try {
+                results = SearchResultsFactory.buildSearchResultFrom(input, startIndex, count, totalResults, attributes,
+                                getAttributeNameMapper(), Arrays.asList(ScimCore.SCHEMAS));
+            } catch (SpelParseException e) {
+                throw new ScimException("Invalid attributes: [" + attributesCommaSeparated + "]", HttpStatus.BAD_REQUEST);
+            } catch (SpelEvaluationException e) {
+                throw new ScimException("Invalid attributes: [" + attributesCommaSeparated + "]", HttpStatus.BAD_REQUEST);
+            }
+        }
+        results.setNextCursor(nextCursor);
+        return results;
+    }
+
+    /**
+     * Exports the users matching the filter as newline delimited JSON, one
+     * user per line. Users are written as they are read from the database
+     * rather than a page at a time, their groups and approvals are looked up
+     * for <code>exportFetchSize</code> users at once.
+     */
+    @RequestMapping(value = "/Users/export", method = RequestMethod.GET)
+    public void exportUsers(
+                    @RequestParam(value = "attributes", required = false) String attributesCommaSeparated,
+                    @RequestParam(required = false, defaultValue = "id pr") String filter,
+                    @RequestParam(required = false, defaultValue = "created") String sortBy,
+                    @RequestParam(required = false, defaultValue = "ascending") String sortOrder,
+                    HttpServletResponse response) throws IOException {
+
+        String[] attributes = null;
+        if (StringUtils.hasLength(attributesCommaSeparated)) {
+            attributes = attributesCommaSeparated.split(",");
+            try {
+                //fail before anything is written if the attributes cannot be parsed
+                SearchResultsFactory.buildSearchResultFrom(Collections.emptyList(), 1, 0, 0, attributes,
+                                getAttributeNameMapper(), Arrays.asList(ScimCore.SCHEMAS));
+            } catch (SpelParseException e) {
+                throw new ScimException("Invalid attributes: [" + attributesCommaSeparated + "]", HttpStatus.BAD_REQUEST);
+            }
         }
 
-        AttributeNameMapper mapper = new SimpleAttributeNameMapper(Collections.<String, String> singletonMap(
-                        "emails\\.(.*)", "emails.![$1]"));
-        String[] attributes = attributesCommaSeparated.split(",");
+        response.setContentType(NDJSON_CONTENT_TYPE);
+        UserExporter exporter = new UserExporter(response.getOutputStream(), attributesCommaSeparated, attributes);
         try {
-            return SearchResultsFactory.buildSearchResultFrom(input, startIndex, count, result.size(), attributes,
-                            mapper, Arrays.asList(ScimCore.SCHEMAS));
-        } catch (SpelParseException e) {
-            throw new ScimException("Invalid attributes: [" + attributesCommaSeparated + "]", HttpStatus.BAD_REQUEST);
-        } catch (SpelEvaluationException e) {
-            throw new ScimException("Invalid attributes: [" + attributesCommaSeparated + "]", HttpStatus.BAD_REQUEST);
+            dao.stream(filter, sortBy, sortOrder.equals("ascending"), exportFetchSize, exporter);
+            exporter.flush();
+        } catch (IllegalArgumentException e) {
+            throw new ScimException("Invalid filter expression: [" + filter + "]", HttpStatus.BAD_REQUEST);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
         }
     }
 
+    /**
+     * Collects exported users and writes them once there are
+     * <code>exportFetchSize</code> of them.
+     */
+    private class UserExporter implements Consumer<ScimUser> {
+        private final OutputStream out;
+        private final String attributesCommaSeparated;
+        private final String[] attributes;
+        private final List<ScimUser> users = new ArrayList<ScimUser>();
+
+        private UserExporter(OutputStream out, String attributesCommaSeparated, String[] attributes) {
+            this.out = out;
+            this.attributesCommaSeparated = attributesCommaSeparated;
+            this.attributes = attributes;
+        }
+
+        @Override
+        public void accept(ScimUser user) {
+            users.add(user);
+            if (users.size() >= exportFetchSize) {
+                try {
+                    flush();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }
+
+        private void flush() throws IOException {
+            if (isAttributeRequested(attributesCommaSeparated, "groups")) {
+                syncGroups(users);
+            }
+            if (isAttributeRequested(attributesCommaSeparated, "approvals")) {
+                syncApprovals(users);
+            }
+            Collection<?> resources = users;
+            if (attributes != null) {
+                resources = SearchResultsFactory.buildSearchResultFrom(users, 1, users.size(), users.size(), attributes,
+                                getAttributeNameMapper(), Arrays.asList(ScimCore.SCHEMAS)).getResources();
+            }
+            for (Object resource : resources) {
+                out.write(JsonUtils.writeValueAsBytes(resource));
+                out.write('\n');
+            }
+            out.flush();
+            users.clear();
+        }
+    }
+
+    private AttributeNameMapper getAttributeNameMapper() {
+        return new SimpleAttributeNameMapper(Collections.<String, String> singletonMap("emails\\.(.*)", "emails.![$1]"));
+    }
+
+    /**
+     * @return true if the attributes are not restricted, or one of them is
+     *         the given attribute or one of its sub-attributes
+     */
+    private boolean isAttributeRequested(String attributesCommaSeparated, String attribute) {
+        if (!StringUtils.hasLength(attributesCommaSeparated)) {
+            return true;
+        }
+        for (String requested : attributesCommaSeparated.split(",")) {
+            requested = requested.trim().toLowerCase();
+            if (requested.equals(attribute) || requested.startsWith(attribute + ".")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private ScimUser syncGroups(ScimUser user) {
         if (user == null) {
             return user;
@@ -314,33 +483,82 @@ public class ScimUserEndpoints implements InitializingBean {
 
         Set<ScimGroup> directGroups = membershipManager.getGroupsWithMember(user.getId(), false);
         Set<ScimGroup> indirectGroups = membershipManager.getGroupsWithMember(user.getId(),true);
-        indirectGroups.removeAll(directGroups);
-        Set<ScimUser.Group> groups = new HashSet<ScimUser.Group>();
-        for (ScimGroup group : directGroups) {
-            groups.add(new ScimUser.Group(group.getId(), group.getDisplayName(), ScimUser.Group.Type.DIRECT));
+        setGroups(user, directGroups, indirectGroups);
+        return user;
+    }
+
+    /**
+     * Looks up the groups of a whole page of users at once rather than one
+     * user at a time.
+     */
+    private void syncGroups(List<ScimUser> users) {
+        if (users.isEmpty()) {
+            return;
         }
-        for (ScimGroup group : indirectGroups) {
-            groups.add(new ScimUser.Group(group.getId(), group.getDisplayName(), ScimUser.Group.Type.INDIRECT));
+        List<String> userIds = getIds(users);
+        Map<String, Set<ScimGroup>> directGroups = membershipManager.getGroupsWithMembers(userIds, false);
+        Map<String, Set<ScimGroup>> indirectGroups = membershipManager.getGroupsWithMembers(userIds, true);
+        for (ScimUser user : users) {
+            setGroups(user, directGroups.get(user.getId()), indirectGroups.get(user.getId()));
         }
+    }
 
+    private void setGroups(ScimUser user, Set<ScimGroup> directGroups, Set<ScimGroup> indirectGroups) {
+        Set<ScimUser.Group> groups = new HashSet<ScimUser.Group>();
+        if (directGroups != null) {
+            for (ScimGroup group : directGroups) {
+                groups.add(new ScimUser.Group(group.getId(), group.getDisplayName(), ScimUser.Group.Type.DIRECT));
+            }
+        }
+        if (indirectGroups != null) {
+            for (ScimGroup group : indirectGroups) {
+                if (directGroups == null || !directGroups.contains(group)) {
+                    groups.add(new ScimUser.Group(group.getId(), group.getDisplayName(), ScimUser.Group.Type.INDIRECT));
+                }
+            }
+        }
         user.setGroups(groups);
-        return user;
     }
 
     private ScimUser syncApprovals(ScimUser user) {
         if (user == null || approvalStore == null) {
             return user;
         }
-        Set<Approval> approvals = new HashSet<Approval>(
-            approvalStore.getApprovals(String.format(USER_APPROVALS_FILTER_TEMPLATE, user.getId())));
-        Set<Approval> active = new HashSet<Approval>(approvals);
+        setApprovals(user, approvalStore.getApprovals(String.format(USER_APPROVALS_FILTER_TEMPLATE, user.getId())));
+        return user;
+    }
+
+    /**
+     * Looks up the approvals of a whole page of users at once rather than one
+     * user at a time.
+     */
+    private void syncApprovals(List<ScimUser> users) {
+        if (users.isEmpty() || approvalStore == null) {
+            return;
+        }
+        Map<String, List<Approval>> approvals = approvalStore.getApprovalsForUsers(getIds(users));
+        for (ScimUser user : users) {
+            List<Approval> userApprovals = approvals.get(user.getId());
+            setApprovals(user, userApprovals == null ? Collections.<Approval> emptyList() : userApprovals);
+        }
+    }
+
+    private void setApprovals(ScimUser user, Collection<Approval> approvals) {
+        Set<Approval> active = new HashSet<Approval>();
         for (Approval approval : approvals) {
-            if (!approval.isCurrentlyActive()) {
-                active.remove(approval);
+            if (approval.isCurrentlyActive()) {
+                active.add(approval);
             }
         }
         user.setApprovals(active);
-        return user;
+    }
+
+    private List<String> getIds(List<ScimUser> users) {
+        List<String> ids = new ArrayList<String>(users.size());
+        for (ScimUser user : users) {
+            ids.add(user.getId());
+        }
+        return ids;
     }
 
     @ExceptionHandler
@@ -408,6 +626,14 @@ public class ScimUserEndpoints implements InitializingBean {
         this.scimUserResourceMonitor = scimUserResourceMonitor;
     }
 
+    /**
+     * @param exportFetchSize the number of users fetched from the database
+     *            and written at a time by the export (default 500)
+     */
+    public void setExportFetchSize(int exportFetchSize) {
+        this.exportFetchSize = exportFetchSize;
+    }
+
     public void setPasswordValidator(PasswordValidator passwordValidator) {
         this.passwordValidator = passwordValidator;
     }
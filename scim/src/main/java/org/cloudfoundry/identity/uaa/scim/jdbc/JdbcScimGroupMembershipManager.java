@@ -17,9 +17,12 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -46,11 +49,17 @@ import org.springframework.dao.DataAccessException;
 import org.springframework.dao.DuplicateKeyException;
 import org.springframework.dao.EmptyResultDataAccessException;
 import org.springframework.dao.IncorrectResultSizeDataAccessException;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.PreparedStatementSetter;
+import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.jdbc.core.RowMapper;
-import org.springframework.jdbc.core.SingleColumnRowMapper;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
 import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.util.Assert;
 import org.springframework.util.StringUtils;
 
@@ -58,6 +67,8 @@ public class JdbcScimGroupMembershipManager extends AbstractQueryable<ScimGroupM
 
     private JdbcTemplate jdbcTemplate;
 
+    private final TransactionTemplate transactionTemplate;
+
     private final Log logger = LogFactory.getLog(getClass());
 
     public static final String MEMBERSHIP_FIELDS = "group_id,member_id,member_type,authorities,added,origin";
@@ -72,8 +83,18 @@ public class JdbcScimGroupMembershipManager extends AbstractQueryable<ScimGroupM
 
     public static final String GET_MEMBERS_SQL = String.format("select %s from %s where group_id in (select id from groups where id=? and identity_zone_id=?)", MEMBERSHIP_FIELDS, MEMBERSHIP_TABLE);
 
+    public static final String GET_MEMBERS_OF_GROUPS_SQL = String.format("select %s from %s where group_id in (select id from groups where id in (:ids) and identity_zone_id=:zoneId)", MEMBERSHIP_FIELDS, MEMBERSHIP_TABLE);
+
     public static final String GET_GROUPS_BY_MEMBER_SQL = String.format("select distinct(group_id) from %s where member_id=? and group_id in (select id from groups where identity_zone_id=?)", MEMBERSHIP_TABLE);
 
+    public static final String GET_GROUPS_BY_MEMBERS_SQL = String.format("select distinct(group_id) from %s where member_id in (:ids) and group_id in (select id from groups where identity_zone_id=:zoneId)", MEMBERSHIP_TABLE);
+
+    public static final String GET_MEMBERSHIPS_BY_MEMBERS_SQL = String.format("select member_id, group_id from %s where member_id in (:ids) and group_id in (select id from groups where identity_zone_id=:zoneId)", MEMBERSHIP_TABLE);
+
+    public static final String GET_USERS_BY_IDS_SQL = "select id from users where id in (:ids)";
+
+    public static final String GET_USER_ZONES_BY_IDS_SQL = "select id, identity_zone_id from users where id in (:ids)";
+
     public static final String GET_MEMBERS_WITH_AUTHORITY_SQL = String.format("select %s from %s where group_id=? and lower(authorities) like ?", MEMBERSHIP_FIELDS,MEMBERSHIP_TABLE);
 
     public static final String GET_MEMBER_SQL = String.format("select %s from %s where member_id=? and group_id in (select id from groups where id=? and identity_zone_id=?)",MEMBERSHIP_FIELDS, MEMBERSHIP_TABLE);
@@ -129,6 +150,7 @@ public class JdbcScimGroupMembershipManager extends AbstractQueryable<ScimGroupM
         super(jdbcTemplate,pagingListFactory,new ScimGroupMemberRowMapper());
         Assert.notNull(jdbcTemplate);
         this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(jdbcTemplate.getDataSource()));
     }
 
     @Override
@@ -212,6 +234,45 @@ public class JdbcScimGroupMembershipManager extends AbstractQueryable<ScimGroupM
         return getMemberById(groupId, member.getMemberId());
     }
 
+    @Override
+    public List<ScimGroupMember> addMembers(final String groupId, final List<ScimGroupMember> members)
+                    throws ScimResourceNotFoundException, MemberAlreadyExistsException {
+
+        if (isDefaultGroup(groupId)) {
+            throw new MemberAlreadyExistsException("Trying to add member to default group");
+        }
+        validateRequest(groupId, members);
+        final Timestamp added = new Timestamp(new Date().getTime());
+        try {
+            logger.debug("Associating group:" + groupId + " with " + members.size() + " members");
+            transactionTemplate.execute(new TransactionCallbackWithoutResult() {
+                @Override
+                protected void doInTransactionWithoutResult(TransactionStatus status) {
+                    jdbcTemplate.batchUpdate(ADD_MEMBER_SQL, new BatchPreparedStatementSetter() {
+                        @Override
+                        public void setValues(PreparedStatement ps, int i) throws SQLException {
+                            ScimGroupMember member = members.get(i);
+                            ps.setString(1, groupId);
+                            ps.setString(2, member.getMemberId());
+                            ps.setString(3, (member.getType() == null ? ScimGroupMember.Type.USER : member.getType()).toString());
+                            ps.setString(4, getGroupAuthorities(member));
+                            ps.setTimestamp(5, added);
+                            ps.setString(6, member.getOrigin());
+                        }
+
+                        @Override
+                        public int getBatchSize() {
+                            return members.size();
+                        }
+                    });
+                }
+            });
+        } catch (DuplicateKeyException e) {
+            throw new MemberAlreadyExistsException("A member is already part of the group: " + groupId);
+        }
+        return getMembers(groupId);
+    }
+
     @Override
     public List<ScimGroupMember> getMembers(final String groupId) throws ScimResourceNotFoundException {
         List<ScimGroupMember> result = jdbcTemplate.query(GET_MEMBERS_SQL, new PreparedStatementSetter() {
@@ -224,51 +285,165 @@ public class JdbcScimGroupMembershipManager extends AbstractQueryable<ScimGroupM
         return result;
     }
 
+    @Override
+    public Map<String, List<ScimGroupMember>> getMembers(Collection<String> groupIds) {
+        List<String> idList = new ArrayList<>(groupIds);
+        final Map<String, List<ScimGroupMember>> members = new HashMap<>();
+        for (String groupId : idList) {
+            members.put(groupId, new ArrayList<ScimGroupMember>());
+        }
+        NamedParameterJdbcTemplate template = new NamedParameterJdbcTemplate(jdbcTemplate);
+        for (int i = 0; i < idList.size(); i += JdbcScimGroupProvisioning.MAX_IDS_PER_QUERY) {
+            MapSqlParameterSource params = new MapSqlParameterSource()
+                .addValue("ids", idList.subList(i, Math.min(i + JdbcScimGroupProvisioning.MAX_IDS_PER_QUERY, idList.size())))
+                .addValue("zoneId", IdentityZoneHolder.get().getId());
+            template.query(GET_MEMBERS_OF_GROUPS_SQL, params, new RowCallbackHandler() {
+                @Override
+                public void processRow(ResultSet rs) throws SQLException {
+                    members.get(rs.getString(1)).add(rowMapper.mapRow(rs, 0));
+                }
+            });
+        }
+        return members;
+    }
+
     @Override
     public Set<ScimGroup> getGroupsWithMember(final String memberId, boolean transitive)
                     throws ScimResourceNotFoundException {
-        List<ScimGroup> results = new ArrayList<>();
-        getGroupsWithMember(results, memberId, transitive);
+        Set<ScimGroup> results = new HashSet<>(groupProvisioning.retrieveByIds(getGroupIdsWithMember(memberId, transitive)));
         if (isUser(memberId)) {
             results.addAll(getDefaultUserGroups(IdentityZoneHolder.get()));
         }
-        return new HashSet<>(results);
+        return results;
     }
 
-    private void getGroupsWithMember(List<ScimGroup> results, final String memberId, boolean transitive) {
-        if (results == null) {
-            return;
+    /**
+     * Resolves the groups a member belongs to breadth first, with one query
+     * for each level of nesting rather than one for each group. Groups that
+     * were already found are not followed again, which also stops at cycles
+     * in the group hierarchy.
+     */
+    private Set<String> getGroupIdsWithMember(String memberId, boolean transitive) {
+        Set<String> groupIds = new LinkedHashSet<>();
+        List<String> memberIds = Collections.singletonList(memberId);
+        while (!memberIds.isEmpty()) {
+            List<String> parentIds = new ArrayList<>();
+            for (String groupId : getGroupIdsWithMembers(memberIds)) {
+                if (groupIds.add(groupId)) {
+                    parentIds.add(groupId);
+                }
+            }
+            if (!transitive) {
+                break;
+            }
+            memberIds = parentIds;
         }
-        List<String> groupIds;
-        try {
-            groupIds = jdbcTemplate.query(GET_GROUPS_BY_MEMBER_SQL, new PreparedStatementSetter() {
-                @Override
-                public void setValues(PreparedStatement ps) throws SQLException {
-                    ps.setString(1, memberId);
-                    ps.setString(2, IdentityZoneHolder.get().getId());
+        return groupIds;
+    }
+
+    private List<String> getGroupIdsWithMembers(List<String> memberIds) {
+        List<String> groupIds = new ArrayList<>();
+        NamedParameterJdbcTemplate template = new NamedParameterJdbcTemplate(jdbcTemplate);
+        for (int i = 0; i < memberIds.size(); i += JdbcScimGroupProvisioning.MAX_IDS_PER_QUERY) {
+            MapSqlParameterSource params = new MapSqlParameterSource()
+                .addValue("ids", memberIds.subList(i, Math.min(i + JdbcScimGroupProvisioning.MAX_IDS_PER_QUERY, memberIds.size())))
+                .addValue("zoneId", IdentityZoneHolder.get().getId());
+            groupIds.addAll(template.queryForList(GET_GROUPS_BY_MEMBERS_SQL, params, String.class));
+        }
+        return groupIds;
+    }
+
+    /**
+     * Resolves the groups of all members together, with the same number of
+     * queries as for a single member: the memberships of each level of nesting
+     * are read for all members at once, and every group found is retrieved
+     * with one query.
+     */
+    @Override
+    public Map<String, Set<ScimGroup>> getGroupsWithMembers(Collection<String> memberIds, boolean transitive) {
+        Map<String, Set<String>> parents = new HashMap<>();
+        List<String> ids = new ArrayList<>(new LinkedHashSet<>(memberIds));
+        while (!ids.isEmpty()) {
+            for (String id : ids) {
+                parents.put(id, new HashSet<String>());
+            }
+            Set<String> parentIds = new LinkedHashSet<>();
+            for (String[] membership : getMembershipsOfMembers(ids)) {
+                parents.get(membership[0]).add(membership[1]);
+                if (!parents.containsKey(membership[1])) {
+                    parentIds.add(membership[1]);
                 }
-            }, new SingleColumnRowMapper<>(String.class));
-        } catch (EmptyResultDataAccessException ex) {
-            groupIds = Collections.EMPTY_LIST;
+            }
+            if (!transitive) {
+                break;
+            }
+            ids = new ArrayList<>(parentIds);
         }
 
-        for (String groupId : groupIds) {
-            ScimGroup group;
-            try {
-                group = groupProvisioning.retrieve(groupId);
-            } catch (ScimResourceNotFoundException ex) {
-                continue;
+        Map<String, Set<String>> groupIdsByMember = new HashMap<>();
+        Set<String> groupIds = new HashSet<>();
+        for (String memberId : memberIds) {
+            Set<String> memberGroupIds = new LinkedHashSet<>();
+            List<String> pending = new ArrayList<>(parents.get(memberId));
+            while (!pending.isEmpty()) {
+                String groupId = pending.remove(pending.size() - 1);
+                if (memberGroupIds.add(groupId) && transitive) {
+                    pending.addAll(parents.get(groupId));
+                }
             }
-            if (!results.contains(group)) { // to ensure we don't go into
-                                            // infinite recursion caused by
-                                            // nested group cycles
-                results.add(group);
-                if (transitive) {
-                    getGroupsWithMember(results, groupId, transitive);
+            groupIdsByMember.put(memberId, memberGroupIds);
+            groupIds.addAll(memberGroupIds);
+        }
+
+        Map<String, ScimGroup> groups = new HashMap<>();
+        for (ScimGroup group : groupProvisioning.retrieveByIds(groupIds)) {
+            groups.put(group.getId(), group);
+        }
+        Set<String> userIds = getUserIds(groupIdsByMember.keySet());
+        Map<String, Set<ScimGroup>> results = new HashMap<>();
+        for (Map.Entry<String, Set<String>> entry : groupIdsByMember.entrySet()) {
+            Set<ScimGroup> memberGroups = new HashSet<>();
+            for (String groupId : entry.getValue()) {
+                ScimGroup group = groups.get(groupId);
+                if (group != null) {
+                    memberGroups.add(group);
                 }
             }
+            if (userIds.contains(entry.getKey())) {
+                memberGroups.addAll(getDefaultUserGroups(IdentityZoneHolder.get()));
+            }
+            results.put(entry.getKey(), memberGroups);
+        }
+        return results;
+    }
+
+    private List<String[]> getMembershipsOfMembers(List<String> memberIds) {
+        List<String[]> memberships = new ArrayList<>();
+        NamedParameterJdbcTemplate template = new NamedParameterJdbcTemplate(jdbcTemplate);
+        for (int i = 0; i < memberIds.size(); i += JdbcScimGroupProvisioning.MAX_IDS_PER_QUERY) {
+            MapSqlParameterSource params = new MapSqlParameterSource()
+                .addValue("ids", memberIds.subList(i, Math.min(i + JdbcScimGroupProvisioning.MAX_IDS_PER_QUERY, memberIds.size())))
+                .addValue("zoneId", IdentityZoneHolder.get().getId());
+            memberships.addAll(template.query(GET_MEMBERSHIPS_BY_MEMBERS_SQL, params, new RowMapper<String[]>() {
+                @Override
+                public String[] mapRow(ResultSet rs, int rowNum) throws SQLException {
+                    return new String[] {rs.getString(1), rs.getString(2)};
+                }
+            }));
         }
+        return memberships;
+    }
 
+    private Set<String> getUserIds(Collection<String> memberIds) {
+        List<String> idList = new ArrayList<>(memberIds);
+        Set<String> userIds = new HashSet<>();
+        NamedParameterJdbcTemplate template = new NamedParameterJdbcTemplate(jdbcTemplate);
+        for (int i = 0; i < idList.size(); i += JdbcScimGroupProvisioning.MAX_IDS_PER_QUERY) {
+            MapSqlParameterSource params = new MapSqlParameterSource()
+                .addValue("ids", idList.subList(i, Math.min(i + JdbcScimGroupProvisioning.MAX_IDS_PER_QUERY, idList.size())));
+            userIds.addAll(template.queryForList(GET_USERS_BY_IDS_SQL, params, String.class));
+        }
+        return userIds;
     }
 
     @Override
@@ -453,6 +628,73 @@ public class JdbcScimGroupMembershipManager extends AbstractQueryable<ScimGroupM
         }
     }
 
+    /**
+     * Validates several new members of a group with a few queries instead of
+     * two per member.
+     */
+    private void validateRequest(String groupId, List<ScimGroupMember> members) {
+        Set<String> userIds = new HashSet<>();
+        Set<String> groupIds = new HashSet<>();
+        for (ScimGroupMember member : members) {
+            if (!StringUtils.hasText(groupId) ||
+                !StringUtils.hasText(member.getMemberId()) ||
+                !StringUtils.hasText(member.getOrigin())) {
+                throw new InvalidScimResourceException("group-id, member-id, origin and member-type must be non-empty");
+            }
+            if (groupId.equals(member.getMemberId())) { // oops! cycle detected
+                throw new InvalidScimResourceException("trying to nest group within itself, aborting");
+            }
+            if (member.getType() == ScimGroupMember.Type.GROUP) {
+                groupIds.add(member.getMemberId());
+            } else {
+                userIds.add(member.getMemberId());
+            }
+        }
+
+        // this will throw a ScimException if the group does not exist
+        ScimGroup group = groupProvisioning.retrieve(groupId);
+        Map<String, String> memberZoneIds = new HashMap<>();
+        for (ScimGroup memberGroup : groupProvisioning.retrieveByIds(groupIds)) {
+            memberZoneIds.put(memberGroup.getId(), memberGroup.getZoneId());
+        }
+        for (String id : groupIds) {
+            if (!memberZoneIds.containsKey(id)) {
+                throw new ScimResourceNotFoundException("Group " + id + " does not exist");
+            }
+        }
+        memberZoneIds.putAll(getUserZoneIds(userIds));
+        for (String id : userIds) {
+            if (!memberZoneIds.containsKey(id)) {
+                throw new ScimResourceNotFoundException("User " + id + " does not exist");
+            }
+        }
+        for (String memberZoneId : memberZoneIds.values()) {
+            if (!memberZoneId.equals(group.getZoneId())) {
+                throw new ScimResourceConstraintFailedException("The zone of the group and the member must be the same.");
+            }
+            if (!memberZoneId.equals(IdentityZoneHolder.get().getId())) {
+                throw new ScimResourceConstraintFailedException("Unable to make membership changes in a different zone");
+            }
+        }
+    }
+
+    private Map<String, String> getUserZoneIds(Collection<String> userIds) {
+        List<String> idList = new ArrayList<>(userIds);
+        final Map<String, String> zoneIds = new HashMap<>();
+        NamedParameterJdbcTemplate template = new NamedParameterJdbcTemplate(jdbcTemplate);
+        for (int i = 0; i < idList.size(); i += JdbcScimGroupProvisioning.MAX_IDS_PER_QUERY) {
+            MapSqlParameterSource params = new MapSqlParameterSource()
+                .addValue("ids", idList.subList(i, Math.min(i + JdbcScimGroupProvisioning.MAX_IDS_PER_QUERY, idList.size())));
+            template.query(GET_USER_ZONES_BY_IDS_SQL, params, new RowCallbackHandler() {
+                @Override
+                public void processRow(ResultSet rs) throws SQLException {
+                    zoneIds.put(rs.getString(1), rs.getString(2));
+                }
+            });
+        }
+        return zoneIds;
+    }
+
     private String getGroupAuthorities(ScimGroupMember member) {
         if (member.getRoles() != null && !member.getRoles().isEmpty()) {
             return StringUtils.collectionToCommaDelimitedString(member.getRoles());
@@ -16,12 +16,17 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.cloudfoundry.identity.uaa.rest.CursorPage;
 import org.cloudfoundry.identity.uaa.rest.jdbc.AbstractQueryable;
 import org.cloudfoundry.identity.uaa.rest.jdbc.JdbcPagingListFactory;
 import org.cloudfoundry.identity.uaa.rest.jdbc.SearchQueryConverter;
@@ -33,12 +38,15 @@ import org.cloudfoundry.identity.uaa.scim.exception.ScimResourceAlreadyExistsExc
 import org.cloudfoundry.identity.uaa.scim.exception.ScimResourceConstraintFailedException;
 import org.cloudfoundry.identity.uaa.scim.exception.ScimResourceNotFoundException;
 import org.cloudfoundry.identity.uaa.zone.IdentityZoneHolder;
+import org.springframework.dao.DataAccessException;
 import org.springframework.dao.DuplicateKeyException;
 import org.springframework.dao.EmptyResultDataAccessException;
 import org.springframework.dao.IncorrectResultSizeDataAccessException;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.PreparedStatementSetter;
 import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
 import org.springframework.util.Assert;
 import org.springframework.util.StringUtils;
 
@@ -62,6 +70,14 @@ public class JdbcScimGroupProvisioning extends AbstractQueryable<ScimGroup> impl
 
     public static final String GET_GROUP_SQL = String.format("select %s from %s where id=? and identity_zone_id=?", GROUP_FIELDS, GROUP_TABLE);
 
+    public static final String GET_GROUPS_BY_IDS_SQL = String.format("select %s from %s where id in (:ids) and identity_zone_id=:zoneId", GROUP_FIELDS, GROUP_TABLE);
+
+    //keeps the in clause well below the limits of the databases we support
+    public static final int MAX_IDS_PER_QUERY = 500;
+
+    //the parameters are lower case because the paging list lower cases the whole query to count
+    public static final String READER_FILTER_SQL = "id in (select group_id from group_membership where member_id=:reader_id and lower(authorities) like :reader_role)";
+
     public static final String DELETE_GROUP_SQL = String.format("delete from %s where id=? and identity_zone_id=?", GROUP_TABLE);
 
     private final RowMapper<ScimGroup> rowMapper = new ScimGroupRowMapper();
@@ -107,6 +123,52 @@ public class JdbcScimGroupProvisioning extends AbstractQueryable<ScimGroup> impl
         }
     }
 
+    @Override
+    public List<ScimGroup> retrieveByIds(Collection<String> ids) {
+        List<String> idList = new ArrayList<>(ids);
+        List<ScimGroup> groups = new ArrayList<>(idList.size());
+        NamedParameterJdbcTemplate template = new NamedParameterJdbcTemplate(jdbcTemplate);
+        for (int i = 0; i < idList.size(); i += MAX_IDS_PER_QUERY) {
+            MapSqlParameterSource params = new MapSqlParameterSource()
+                .addValue("ids", idList.subList(i, Math.min(i + MAX_IDS_PER_QUERY, idList.size())))
+                .addValue("zoneId", IdentityZoneHolder.get().getId());
+            groups.addAll(template.query(GET_GROUPS_BY_IDS_SQL, params, rowMapper));
+        }
+        return groups;
+    }
+
+    @Override
+    public List<ScimGroup> queryReadableBy(String memberId, String filter, String sortBy, boolean ascending) {
+        String sql = getBaseSqlQuery() + " and " + READER_FILTER_SQL;
+        Map<String, Object> params = getReaderParams(memberId);
+        //without a filter the converter still maps the sort attribute
+        String converted = StringUtils.hasText(filter) ? filter : StringUtils.hasText(sortBy) ? getIdColumn() + " pr" : null;
+        if (converted != null) {
+            SearchQueryConverter.ProcessedFilter where = getQueryConverter().convert(converted, sortBy, ascending);
+            sql += " and " + where.getSql();
+            params.putAll(where.getParams());
+        }
+        try {
+            return query(sql, params);
+        } catch (DataAccessException e) {
+            logger.debug("Filter '" + filter + "' generated invalid SQL", e);
+            throw new IllegalArgumentException("Invalid filter: " + filter);
+        }
+    }
+
+    @Override
+    public CursorPage<ScimGroup> queryPageReadableBy(String memberId, String filter, String sortBy, boolean ascending, String cursor, int count) {
+        return queryPage(filter, sortBy, ascending, cursor, count, READER_FILTER_SQL, getReaderParams(memberId));
+    }
+
+    private Map<String, Object> getReaderParams(String memberId) {
+        Map<String, Object> params = new HashMap<>();
+        params.put("reader_id", memberId);
+        //matches the old READ authority too
+        params.put("reader_role", "%read%");
+        return params;
+    }
+
     @Override
     public ScimGroup create(final ScimGroup group) throws InvalidScimResourceException {
         final String id = UUID.randomUUID().toString();
@@ -15,6 +15,7 @@ package org.cloudfoundry.identity.uaa.scim.jdbc;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.cloudfoundry.identity.uaa.authentication.Origin;
+import org.cloudfoundry.identity.uaa.rest.CursorPage;
 import org.cloudfoundry.identity.uaa.rest.ResourceMonitor;
 import org.cloudfoundry.identity.uaa.rest.jdbc.AbstractQueryable;
 import org.cloudfoundry.identity.uaa.rest.jdbc.JdbcPagingListFactory;
@@ -28,16 +29,23 @@ import org.cloudfoundry.identity.uaa.scim.exception.ScimResourceAlreadyExistsExc
 import org.cloudfoundry.identity.uaa.scim.exception.ScimResourceConstraintFailedException;
 import org.cloudfoundry.identity.uaa.scim.exception.ScimResourceNotFoundException;
 import org.cloudfoundry.identity.uaa.zone.IdentityZoneHolder;
+import org.springframework.core.task.AsyncTaskExecutor;
 import org.springframework.dao.DuplicateKeyException;
 import org.springframework.dao.EmptyResultDataAccessException;
 import org.springframework.dao.IncorrectResultSizeDataAccessException;
 import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.PreparedStatementSetter;
 import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
 import org.springframework.security.authentication.BadCredentialsException;
 import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
 import org.springframework.security.crypto.password.PasswordEncoder;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.util.Assert;
 import org.springframework.util.StringUtils;
 
@@ -46,13 +54,19 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.sql.Types;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
 import java.util.GregorianCalendar;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
 import java.util.regex.Pattern;
 
 /**
@@ -84,10 +98,16 @@ public class JdbcScimUserProvisioning extends AbstractQueryable<ScimUser> implem
 
     public static final String ALL_USERS = "select " + USER_FIELDS + " from users";
 
+    public static final String USERS_BY_IDS_QUERY = "select " + USER_FIELDS + " from users where id in (:ids)";
+
     protected final JdbcTemplate jdbcTemplate;
 
+    private final TransactionTemplate transactionTemplate;
+
     private PasswordEncoder passwordEncoder = new BCryptPasswordEncoder();
 
+    private AsyncTaskExecutor passwordEncodingExecutor;
+
     private boolean deactivateOnDelete = true;
 
     private final RowMapper<ScimUser> mapper = new ScimUserRowMapper();
@@ -98,6 +118,7 @@ public class JdbcScimUserProvisioning extends AbstractQueryable<ScimUser> implem
         super(jdbcTemplate, pagingListFactory, new ScimUserRowMapper());
         Assert.notNull(jdbcTemplate);
         this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(jdbcTemplate.getDataSource()));
         setQueryConverter(new ScimSearchQueryConverter());
     }
 
@@ -128,11 +149,26 @@ public class JdbcScimUserProvisioning extends AbstractQueryable<ScimUser> implem
 
     @Override
     public List<ScimUser> query(String filter, String sortBy, boolean ascending) {
+        return super.query(addZoneFilter(filter), sortBy, ascending);
+    }
+
+    @Override
+    public CursorPage<ScimUser> queryPage(String filter, String sortBy, boolean ascending, String cursor, int count) {
+        return super.queryPage(addZoneFilter(filter), sortBy, ascending, cursor, count);
+    }
+
+    @Override
+    public void stream(String filter, String sortBy, boolean ascending, int fetchSize, Consumer<ScimUser> handler) {
+        super.stream(addZoneFilter(filter), sortBy, ascending, fetchSize, handler);
+    }
+
+    private String addZoneFilter(String filter) {
         if (StringUtils.hasText(filter)) {
             filter += " and";
+        } else {
+            filter = "";
         }
-        filter += " identity_zone_id eq \""+IdentityZoneHolder.get().getId()+"\"";
-        return super.query(filter, sortBy, ascending);
+        return filter + " identity_zone_id eq \""+IdentityZoneHolder.get().getId()+"\"";
     }
 
     @Override
@@ -148,33 +184,8 @@ public class JdbcScimUserProvisioning extends AbstractQueryable<ScimUser> implem
             jdbcTemplate.update(CREATE_USER_SQL, new PreparedStatementSetter() {
                 @Override
                 public void setValues(PreparedStatement ps) throws SQLException {
-                    Timestamp t = new Timestamp(new Date().getTime());
-                    ps.setString(1, id);
-                    ps.setInt(2, user.getVersion());
-                    ps.setTimestamp(3, t);
-                    ps.setTimestamp(4, t);
-                    ps.setString(5, user.getUserName());
-                    ps.setString(6, user.getPrimaryEmail());
-                    if (user.getName() == null) {
-                        ps.setString(7, null);
-                        ps.setString(8, null);
-                    }
-                    else {
-                        ps.setString(7, user.getName().getGivenName());
-                        ps.setString(8, user.getName().getFamilyName());
-                    }
-                    ps.setBoolean(9, user.isActive());
-                    String phoneNumber = extractPhoneNumber(user);
-                    ps.setString(10, phoneNumber);
-                    ps.setBoolean(11, user.isVerified());
-                    ps.setString(12, origin);
-                    ps.setString(13, StringUtils.hasText(user.getExternalId())?user.getExternalId():null);
-                    ps.setString(14, identityZoneId);
-                    ps.setString(15, user.getSalt());
-                    ps.setTimestamp(16, getPasswordLastModifiedTimestamp(t));
-                    ps.setString(17, user.getPassword());
+                    setCreateValues(ps, user, id, identityZoneId, origin, user.getPassword(), new Timestamp(new Date().getTime()));
                 }
-
             });
         } catch (DuplicateKeyException e) {
             ScimUser existingUser = query("userName eq \"" + user.getUserName() + "\" and origin eq \"" + (StringUtils.hasText(user.getOrigin())? user.getOrigin() : Origin.UAA) + "\"").get(0);
@@ -187,6 +198,129 @@ public class JdbcScimUserProvisioning extends AbstractQueryable<ScimUser> implem
         return retrieve(id);
     }
 
+    /**
+     * Creates the users with one batch insert in one transaction. The
+     * passwords are encoded in parallel if there is a password encoding
+     * executor.
+     */
+    @Override
+    public List<ScimUser> createUsers(final List<ScimUser> users) throws InvalidPasswordException,
+                    InvalidScimResourceException {
+        for (ScimUser user : users) {
+            validate(user);
+        }
+        logger.debug("Creating " + users.size() + " new users");
+        final List<String> passwords = encodePasswords(users);
+        final List<String> ids = new ArrayList<String>(users.size());
+        for (int i = 0; i < users.size(); i++) {
+            ids.add(UUID.randomUUID().toString());
+        }
+        final String identityZoneId = IdentityZoneHolder.get().getId();
+        final Timestamp t = new Timestamp(new Date().getTime());
+
+        try {
+            //the users are read back in the transaction, so an exception always means none were created
+            return transactionTemplate.execute(new TransactionCallback<List<ScimUser>>() {
+                @Override
+                public List<ScimUser> doInTransaction(TransactionStatus status) {
+                    jdbcTemplate.batchUpdate(CREATE_USER_SQL, new BatchPreparedStatementSetter() {
+                        @Override
+                        public void setValues(PreparedStatement ps, int i) throws SQLException {
+                            ScimUser user = users.get(i);
+                            String origin = StringUtils.hasText(user.getOrigin()) ? user.getOrigin() : Origin.UAA;
+                            setCreateValues(ps, user, ids.get(i), identityZoneId, origin, passwords.get(i), t);
+                        }
+
+                        @Override
+                        public int getBatchSize() {
+                            return users.size();
+                        }
+                    });
+                    return retrieveByIds(ids);
+                }
+            });
+        } catch (DuplicateKeyException e) {
+            throw new ScimResourceAlreadyExistsException("A username is already in use");
+        }
+    }
+
+    private List<String> encodePasswords(List<ScimUser> users) {
+        List<String> encoded = new ArrayList<String>(users.size());
+        if (passwordEncodingExecutor == null) {
+            for (ScimUser user : users) {
+                encoded.add(passwordEncoder.encode(user.getPassword()));
+            }
+            return encoded;
+        }
+        List<Future<String>> futures = new ArrayList<Future<String>>(users.size());
+        for (final ScimUser user : users) {
+            futures.add(passwordEncodingExecutor.submit(new Callable<String>() {
+                @Override
+                public String call() {
+                    return passwordEncoder.encode(user.getPassword());
+                }
+            }));
+        }
+        try {
+            for (Future<String> future : futures) {
+                encoded.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while encoding passwords", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("Unable to encode password", e.getCause());
+        }
+        return encoded;
+    }
+
+    private List<ScimUser> retrieveByIds(List<String> ids) {
+        Map<String, ScimUser> users = new HashMap<String, ScimUser>();
+        NamedParameterJdbcTemplate template = new NamedParameterJdbcTemplate(jdbcTemplate);
+        for (int i = 0; i < ids.size(); i += JdbcScimGroupProvisioning.MAX_IDS_PER_QUERY) {
+            List<String> chunk = ids.subList(i, Math.min(i + JdbcScimGroupProvisioning.MAX_IDS_PER_QUERY, ids.size()));
+            for (ScimUser user : template.query(USERS_BY_IDS_QUERY, Collections.singletonMap("ids", chunk), mapper)) {
+                users.put(user.getId(), user);
+            }
+        }
+        List<ScimUser> result = new ArrayList<ScimUser>(ids.size());
+        for (String id : ids) {
+            result.add(users.get(id));
+        }
+        return result;
+    }
+
+    private void setCreateValues(PreparedStatement ps, ScimUser user, String id, String identityZoneId, String origin,
+                    String password, Timestamp t) throws SQLException {
+        ps.setString(1, id);
+        ps.setInt(2, user.getVersion());
+        ps.setTimestamp(3, t);
+        ps.setTimestamp(4, t);
+        ps.setString(5, user.getUserName());
+        ps.setString(6, user.getPrimaryEmail());
+        if (user.getName() == null) {
+            ps.setString(7, null);
+            ps.setString(8, null);
+        }
+        else {
+            ps.setString(7, user.getName().getGivenName());
+            ps.setString(8, user.getName().getFamilyName());
+        }
+        ps.setBoolean(9, user.isActive());
+        String phoneNumber = extractPhoneNumber(user);
+        ps.setString(10, phoneNumber);
+        ps.setBoolean(11, user.isVerified());
+        ps.setString(12, origin);
+        ps.setString(13, StringUtils.hasText(user.getExternalId())?user.getExternalId():null);
+        ps.setString(14, identityZoneId);
+        ps.setString(15, user.getSalt());
+        ps.setTimestamp(16, getPasswordLastModifiedTimestamp(t));
+        ps.setString(17, password);
+    }
+
     protected Timestamp getPasswordLastModifiedTimestamp(Timestamp t) {
         Calendar cal = new GregorianCalendar();
         cal.set(Calendar.MILLISECOND, 0);
@@ -381,6 +515,14 @@ public class JdbcScimUserProvisioning extends AbstractQueryable<ScimUser> implem
         this.passwordEncoder = passwordEncoder;
     }
 
+    /**
+     * The executor that encodes the passwords of users created together in
+     * parallel. Without one they are encoded one after the other.
+     */
+    public void setPasswordEncodingExecutor(AsyncTaskExecutor passwordEncodingExecutor) {
+        this.passwordEncodingExecutor = passwordEncodingExecutor;
+    }
+
     /**
      * Sets the regular expression which will be used to validate the username.
      */
@@ -101,4 +101,29 @@ public class ScimGroupBootstrapTests extends JdbcTestBase {
         assertEquals(3, bootstrap.getGroup("org1.engg").getMembers().size());
         assertEquals(2, mDB.getMembers(bootstrap.getGroup("org1.dev").getId(), ScimGroupMember.Role.WRITER).size());
     }
+
+    @Test
+    public void canAddMembersInBatches() throws Exception {
+        bootstrap.setBatchSize(2);
+        bootstrap.setGroupMembers(Arrays.asList(
+                        "org1.dev|dev1,dev2,dev3",
+                        "org1.dev|hr1,mgr1|write",
+                        "org1.qa|qa1,qa2,qa3",
+                        "org1.mgr|mgr1",
+                        "org1.hr|hr1",
+                        "org1.engg|org1.dev,org1.qa,org1.mgr"
+                        ));
+        bootstrap.afterPropertiesSet();
+
+        assertEquals(5, gDB.retrieveAll().size());
+        assertEquals(7, uDB.retrieveAll().size());
+        assertEquals(2, bootstrap.getGroup("org1.qa").getMembers().size());
+        assertEquals(1, bootstrap.getGroup("org1.hr").getMembers().size());
+        assertEquals(3, bootstrap.getGroup("org1.engg").getMembers().size());
+        assertEquals(5, bootstrap.getGroup("org1.dev").getMembers().size());
+        assertEquals(2, mDB.getMembers(bootstrap.getGroup("org1.dev").getId(), ScimGroupMember.Role.WRITER).size());
+
+        bootstrap.afterPropertiesSet();
+        assertEquals(5, bootstrap.getGroup("org1.dev").getMembers().size());
+    }
 }
@@ -34,6 +34,7 @@ import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
 import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
 import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 import org.springframework.security.core.GrantedAuthority;
 import org.springframework.security.core.authority.AuthorityUtils;
 import org.springframework.security.core.authority.SimpleGrantedAuthority;
@@ -263,6 +264,59 @@ public class ScimUserBootstrapTests {
         assertEquals("User", users.iterator().next().getFamilyName());
     }
 
+    @Test
+    public void canAddUsersInBatches() throws Exception {
+        UaaUser joe = new UaaUser("joe", "password", "joe@test.org", "Joe", "User");
+        joe = joe.authorities(AuthorityUtils.commaSeparatedStringToAuthorityList("openid,read"));
+        UaaUser mabel = new UaaUser("mabel", "password", "mabel@blah.com", "Mabel", "User");
+        mabel = mabel.authorities(AuthorityUtils.commaSeparatedStringToAuthorityList("openid,write"));
+        UaaUser bob = new UaaUser("bob", "password", "bob@blah.com", "Bob", "User");
+        bob = bob.authorities(AuthorityUtils.commaSeparatedStringToAuthorityList("openid,read"));
+        ScimUserBootstrap bootstrap = new ScimUserBootstrap(db, gdb, mdb, Arrays.asList(joe, mabel, bob));
+        bootstrap.setBatchSize(2);
+        bootstrap.afterPropertiesSet();
+
+        assertEquals(3, db.retrieveAll().size());
+        for (String userName : Arrays.asList("joe", "mabel", "bob")) {
+            String id = db.query("userName eq \"" + userName + "\"").get(0).getId();
+            // uaa.user is always added
+            assertEquals(3, userEndpoints.getUser(id, new MockHttpServletResponse()).getGroups().size());
+        }
+        assertEquals(2, mdb.getMembers(gdb.query("displayName eq \"read\"").get(0).getId()).size());
+    }
+
+    @Test
+    public void canOverrideUsersInBatches() throws Exception {
+        UaaUser joe = new UaaUser("joe", "password", "joe@test.org", "Joe", "User");
+        joe = joe.authorities(AuthorityUtils.commaSeparatedStringToAuthorityList("openid,read"));
+        UaaUser mabel = new UaaUser("mabel", "password", "mabel@blah.com", "Mabel", "User");
+        ScimUserBootstrap bootstrap = new ScimUserBootstrap(db, gdb, mdb, Arrays.asList(joe));
+        bootstrap.afterPropertiesSet();
+        String passwordHash = jdbcTemplate.queryForObject("select password from users where username='joe'", new Object[0], String.class);
+
+        joe = new UaaUser("joe", "new", "joe@test.org", "Joe", "Bloggs");
+        joe = joe.authorities(AuthorityUtils.commaSeparatedStringToAuthorityList("openid,read,write"));
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(2);
+        executor.initialize();
+        try {
+            bootstrap = new ScimUserBootstrap(db, gdb, mdb, Arrays.asList(joe, mabel));
+            bootstrap.setOverride(true);
+            bootstrap.setBatchSize(10);
+            bootstrap.setExecutor(executor);
+            bootstrap.afterPropertiesSet();
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals(2, db.retrieveAll().size());
+        ScimUser user = db.query("userName eq \"joe\"").get(0);
+        assertEquals("Bloggs", user.getFamilyName());
+        assertNotEquals(passwordHash, jdbcTemplate.queryForObject("select password from users where username='joe'", new Object[0], String.class));
+        // uaa.user is always added
+        assertEquals(4, userEndpoints.getUser(user.getId(), new MockHttpServletResponse()).getGroups().size());
+    }
+
     @Test
     public void canAddNonExistentGroupThroughEvent() throws Exception {
         nonExistentGroupThroughEvent(true);
@@ -0,0 +1,250 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.scim.endpoints;
+
+import org.cloudfoundry.identity.uaa.oauth.approval.Approval;
+import org.cloudfoundry.identity.uaa.oauth.approval.ApprovalStore;
+import org.cloudfoundry.identity.uaa.oauth.approval.JdbcApprovalStore;
+import org.cloudfoundry.identity.uaa.rest.jdbc.DefaultLimitSqlAdapter;
+import org.cloudfoundry.identity.uaa.rest.jdbc.JdbcPagingListFactory;
+import org.cloudfoundry.identity.uaa.scim.ScimBulkOperation;
+import org.cloudfoundry.identity.uaa.scim.ScimBulkRequest;
+import org.cloudfoundry.identity.uaa.scim.ScimBulkResponse;
+import org.cloudfoundry.identity.uaa.scim.ScimGroup;
+import org.cloudfoundry.identity.uaa.scim.ScimGroupMember;
+import org.cloudfoundry.identity.uaa.scim.ScimUser;
+import org.cloudfoundry.identity.uaa.scim.exception.ScimException;
+import org.cloudfoundry.identity.uaa.scim.jdbc.JdbcScimGroupMembershipManager;
+import org.cloudfoundry.identity.uaa.scim.jdbc.JdbcScimGroupProvisioning;
+import org.cloudfoundry.identity.uaa.scim.jdbc.JdbcScimUserProvisioning;
+import org.cloudfoundry.identity.uaa.scim.jdbc.ScimSearchQueryConverter;
+import org.cloudfoundry.identity.uaa.scim.test.TestUtils;
+import org.cloudfoundry.identity.uaa.scim.validate.PasswordValidator;
+import org.cloudfoundry.identity.uaa.util.JsonUtils;
+import org.cloudfoundry.identity.uaa.zone.IdentityZoneHolder;
+import org.flywaydb.core.Flyway;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.http.HttpStatus;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.crypto.password.NoOpPasswordEncoder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ScimBulkEndpointsTests {
+
+    private static EmbeddedDatabase database;
+
+    private ScimBulkEndpoints endpoints;
+
+    private JdbcScimUserProvisioning userProvisioning;
+
+    private JdbcScimGroupMembershipManager membershipManager;
+
+    private ScimUserEndpoints userEndpoints;
+
+    @BeforeClass
+    public static void setUpDatabase() throws Exception {
+        EmbeddedDatabaseBuilder builder = new EmbeddedDatabaseBuilder();
+        database = builder.build();
+        Flyway flyway = new Flyway();
+        flyway.setInitVersion("1.5.2");
+        flyway.setLocations("classpath:/org/cloudfoundry/identity/uaa/db/hsqldb/");
+        flyway.setDataSource(database);
+        flyway.migrate();
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        if (database != null) {
+            database.shutdown();
+        }
+    }
+
+    @Before
+    public void setUp() {
+        IdentityZoneHolder.clear();
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(database);
+        JdbcPagingListFactory pagingListFactory = new JdbcPagingListFactory(jdbcTemplate, new DefaultLimitSqlAdapter());
+        userProvisioning = new JdbcScimUserProvisioning(jdbcTemplate, pagingListFactory);
+        userProvisioning.setPasswordEncoder(NoOpPasswordEncoder.getInstance());
+        JdbcScimGroupProvisioning groupProvisioning = new JdbcScimGroupProvisioning(jdbcTemplate, pagingListFactory);
+        membershipManager = new JdbcScimGroupMembershipManager(jdbcTemplate, pagingListFactory);
+        membershipManager.setScimUserProvisioning(userProvisioning);
+        membershipManager.setScimGroupProvisioning(groupProvisioning);
+        membershipManager.setDefaultUserGroups(Collections.singleton("uaa.user"));
+
+        userEndpoints = new ScimUserEndpoints();
+        userEndpoints.setScimUserProvisioning(userProvisioning);
+        userEndpoints.setScimGroupMembershipManager(membershipManager);
+        userEndpoints.setApprovalStore(new JdbcApprovalStore(jdbcTemplate, pagingListFactory, new ScimSearchQueryConverter()));
+        userEndpoints.setPasswordValidator(mock(PasswordValidator.class));
+        ScimGroupEndpoints groupEndpoints = new ScimGroupEndpoints(groupProvisioning, membershipManager);
+
+        endpoints = new ScimBulkEndpoints(userEndpoints, groupEndpoints);
+        endpoints.setBatchSize(2);
+        endpoints.setMaxOperations(10);
+    }
+
+    @After
+    public void cleanUp() throws Exception {
+        TestUtils.deleteFrom(database, "group_membership", "users", "groups", "authz_approvals");
+        IdentityZoneHolder.clear();
+    }
+
+    @Test
+    public void testCreateUsersAndGroupWithMembers() {
+        ScimGroup group = new ScimGroup(null, "bulk.group", IdentityZoneHolder.get().getId());
+        group.setMembers(Arrays.asList(
+                        new ScimGroupMember("bulkId:u1", ScimGroupMember.Type.USER, ScimGroupMember.GROUP_MEMBER),
+                        new ScimGroupMember("bulkId:u3", ScimGroupMember.Type.USER, ScimGroupMember.GROUP_MEMBER)));
+
+        ScimBulkResponse response = bulk(null,
+                        operation("POST", "/Users", "u1", newUser("bulk1")),
+                        operation("POST", "/Users", "u2", newUser("bulk2")),
+                        operation("POST", "/Users", "u3", newUser("bulk3")),
+                        operation("POST", "/Groups", "g1", group));
+
+        assertEquals(4, response.getOperations().size());
+        for (ScimBulkOperation result : response.getOperations()) {
+            assertEquals("201", result.getStatus().getCode());
+        }
+        ScimBulkOperation groupResult = response.getOperations().get(3);
+        assertEquals("g1", groupResult.getBulkId());
+        String groupId = groupResult.getLocation().substring("http://localhost/Groups/".length());
+        List<String> memberIds = new ArrayList<>();
+        for (ScimGroupMember member : membershipManager.getMembers(groupId)) {
+            memberIds.add(member.getMemberId());
+        }
+        assertEquals(new HashSet<>(Arrays.asList(getId(response, 0), getId(response, 2))), new HashSet<>(memberIds));
+        assertEquals("bulk2", userProvisioning.retrieve(getId(response, 1)).getUserName());
+    }
+
+    @Test
+    public void testReportsErrorOfEachUserInFailedBatch() {
+        ScimBulkResponse response = bulk(null,
+                        operation("POST", "/Users", "u1", newUser("bulk1")),
+                        operation("POST", "/Users", "u2", newUser("bulk1")),
+                        operation("POST", "/Users", "u3", newUser("bulk3")));
+
+        assertEquals("201", response.getOperations().get(0).getStatus().getCode());
+        assertEquals("409", response.getOperations().get(1).getStatus().getCode());
+        assertNull(response.getOperations().get(1).getLocation());
+        assertEquals("201", response.getOperations().get(2).getStatus().getCode());
+        assertEquals(2, userProvisioning.query("userName sw \"bulk\"").size());
+    }
+
+    @Test
+    public void testReportsUsersAsCreatedWhenTheirApprovalsFail() {
+        ApprovalStore approvalStore = mock(ApprovalStore.class);
+        when(approvalStore.addApproval(any(Approval.class))).thenThrow(new DataIntegrityViolationException("approval insert failed"));
+        userEndpoints.setApprovalStore(approvalStore);
+        ScimUser withApproval = newUser("bulk2");
+        withApproval.setApprovals(Collections.singleton(new Approval(null, "c1", "openid", 6000, Approval.ApprovalStatus.APPROVED)));
+
+        ScimBulkResponse response = bulk(null,
+                        operation("POST", "/Users", "u1", newUser("bulk1")),
+                        operation("POST", "/Users", "u2", withApproval));
+
+        assertEquals(2, response.getOperations().size());
+        assertEquals("201", response.getOperations().get(0).getStatus().getCode());
+        assertNull(response.getOperations().get(0).getStatus().getDescription());
+        //the committed users are not created a second time
+        assertEquals("201", response.getOperations().get(1).getStatus().getCode());
+        assertTrue(response.getOperations().get(1).getStatus().getDescription().contains("approvals were not stored"));
+        assertEquals("bulk2", userProvisioning.retrieve(getId(response, 1)).getUserName());
+        assertEquals(2, userProvisioning.query("userName sw \"bulk\"").size());
+    }
+
+    @Test
+    public void testStopsAfterFailOnErrors() {
+        ScimBulkResponse response = bulk(1,
+                        operation("POST", "/Users", "u1", newUser("bulk1")),
+                        operation("DELETE", "/Users/bulkId:unknown", null, null),
+                        operation("POST", "/Users", "u3", newUser("bulk3")));
+
+        assertEquals(2, response.getOperations().size());
+        assertEquals("201", response.getOperations().get(0).getStatus().getCode());
+        assertEquals("409", response.getOperations().get(1).getStatus().getCode());
+        assertEquals(1, userProvisioning.query("userName sw \"bulk\"").size());
+    }
+
+    @Test
+    public void testUnsupportedOperation() {
+        ScimBulkResponse response = bulk(null, operation("PATCH", "/Users/foo", null, newUser("bulk1")));
+        assertEquals("400", response.getOperations().get(0).getStatus().getCode());
+    }
+
+    @Test
+    public void testTooManyOperations() {
+        ScimBulkOperation[] operations = new ScimBulkOperation[11];
+        for (int i = 0; i < operations.length; i++) {
+            operations[i] = operation("POST", "/Users", "u" + i, newUser("bulk" + i));
+        }
+        try {
+            bulk(null, operations);
+            fail("must have thrown exception");
+        } catch (ScimException e) {
+            assertEquals(HttpStatus.REQUEST_ENTITY_TOO_LARGE, e.getStatus());
+        }
+    }
+
+    private ScimBulkResponse bulk(Integer failOnErrors, ScimBulkOperation... operations) {
+        ScimBulkRequest request = new ScimBulkRequest();
+        request.setFailOnErrors(failOnErrors);
+        request.setOperations(Arrays.asList(operations));
+        return endpoints.bulk(request, new MockHttpServletRequest("POST", "/Bulk"), new MockHttpServletResponse());
+    }
+
+    private ScimBulkOperation operation(String method, String path, String bulkId, Object data) {
+        ScimBulkOperation operation = new ScimBulkOperation();
+        operation.setMethod(method);
+        operation.setPath(path);
+        operation.setBulkId(bulkId);
+        if (data != null) {
+            operation.setData(JsonUtils.readTree(JsonUtils.writeValueAsString(data)));
+        }
+        return operation;
+    }
+
+    private ScimUser newUser(String userName) {
+        ScimUser user = new ScimUser(null, userName, "Bulk", "User");
+        user.addEmail(userName + "@example.com");
+        user.setPassword("password");
+        return user;
+    }
+
+    private String getId(ScimBulkResponse response, int index) {
+        return response.getOperations().get(index).getLocation().substring("http://localhost/Users/".length());
+    }
+}
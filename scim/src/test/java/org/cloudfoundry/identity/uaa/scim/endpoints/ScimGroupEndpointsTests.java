@@ -693,6 +693,24 @@ public class ScimGroupEndpointsTests extends JdbcTestBase {
         }
     }
 
+    @Test
+    public void testListGroupsAsUserPagesThroughReadableGroupsOnly() {
+        mm.addMember(groupIds.get(1), new ScimGroupMember(userIds.get(0), ScimGroupMember.Type.USER, Arrays.asList(ScimGroupMember.Role.READER)));
+        endpoints.setSecurityContextAccessor(mockSecurityContextAccessor(userIds.get(0)));
+        try {
+            SearchResults<?> results = endpoints.listGroups(null, "id pr", "created", "ascending", 2, 1);
+            assertEquals(2, results.getTotalResults());
+            assertEquals(1, results.getResources().size());
+            ScimGroup group = (ScimGroup) results.getResources().iterator().next();
+            assertEquals(groupIds.get(1), group.getId());
+            assertEquals(1, group.getMembers().size());
+
+            validateSearchResults(endpoints.listGroups("id", "displayName eq \"uaa.none\"", "created", "ascending", 1, 100), 0);
+        } finally {
+            endpoints.setSecurityContextAccessor(null);
+        }
+    }
+
     private void validateView(View view, HttpStatus status) {
         MockHttpServletResponse response = new MockHttpServletResponse();
         try {
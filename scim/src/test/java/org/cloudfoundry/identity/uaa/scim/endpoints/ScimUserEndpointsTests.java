@@ -37,6 +37,7 @@ import org.cloudfoundry.identity.uaa.scim.jdbc.JdbcScimUserProvisioning;
 import org.cloudfoundry.identity.uaa.scim.jdbc.ScimSearchQueryConverter;
 import org.cloudfoundry.identity.uaa.scim.test.TestUtils;
 import org.cloudfoundry.identity.uaa.scim.validate.PasswordValidator;
+import org.cloudfoundry.identity.uaa.util.JsonUtils;
 import org.cloudfoundry.identity.uaa.zone.IdentityZone;
 import org.cloudfoundry.identity.uaa.zone.IdentityZoneHolder;
 import org.flywaydb.core.Flyway;
@@ -80,6 +81,7 @@ import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyCollection;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.doThrow;
@@ -488,6 +490,58 @@ public class ScimUserEndpointsTests {
         assertEquals(0, results.getResources().size());
     }
 
+    @Test
+    public void testFindUsersWithCursor() {
+        SearchResults<?> results = endpoints.findUsers("id", "id pr", "userName", "ascending", 1, 1, "");
+        assertEquals(-1, results.getTotalResults());
+        assertEquals(1, results.getResources().size());
+        assertNotNull(results.getNextCursor());
+        Collection<Object> ids = getSetFromMaps(results.getResources(), "id");
+
+        results = endpoints.findUsers("id", "id pr", "userName", "ascending", 1, 1, results.getNextCursor());
+        assertEquals(1, results.getResources().size());
+        assertNull(results.getNextCursor());
+        ids.addAll(getSetFromMaps(results.getResources(), "id"));
+        assertTrue(ids.contains(joel.getId()));
+        assertTrue(ids.contains(dale.getId()));
+    }
+
+    @Test
+    public void testFindUsersWithInvalidCursor() {
+        expected.expect(ScimException.class);
+        endpoints.findUsers("id", "id pr", "userName", "ascending", 1, 1, "not-a-cursor");
+    }
+
+    @Test
+    public void testExportUsers() throws Exception {
+        endpoints.setExportFetchSize(1);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        endpoints.exportUsers(null, "id pr", "userName", "ascending", response);
+        assertEquals("application/x-ndjson", response.getContentType());
+        String[] lines = response.getContentAsString().split("\n");
+        assertEquals(2, lines.length);
+        ScimUser first = JsonUtils.readValue(lines[0], ScimUser.class);
+        assertEquals(joel.getId(), first.getId());
+        assertEquals(endpoints.getUser(joel.getId(), new MockHttpServletResponse()).getGroups().size(), first.getGroups().size());
+        assertEquals(dale.getId(), JsonUtils.readValue(lines[1], ScimUser.class).getId());
+    }
+
+    @Test
+    public void testExportUsersWithAttributes() throws Exception {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        endpoints.exportUsers("id,emails.value", "userName eq \"olds\"", "created", "ascending", response);
+        Map<String, Object> exported = JsonUtils.readValue(response.getContentAsString().trim(), Map.class);
+        assertEquals(dale.getId(), exported.get("id"));
+        assertEquals(Arrays.asList("olds@vmware.com"), exported.get("emails.value"));
+        assertEquals(2, exported.size());
+    }
+
+    @Test
+    public void testExportUsersWithInvalidFilter() throws Exception {
+        expected.expect(ScimException.class);
+        endpoints.exportUsers(null, "userName qq \"olds\"", "created", "ascending", new MockHttpServletResponse());
+    }
+
     @Test
     public void testFindAllEmails() {
         SearchResults<?> results = endpoints.findUsers("emails.value", "id pr", null, "ascending", 1, 100);
@@ -501,7 +555,7 @@ public class ScimUserEndpointsTests {
         endpoints.setScimGroupMembershipManager(mockgroupMembershipManager);
 
         endpoints.findUsers("", "id pr", null, "ascending", 1, 100);
-        verify(mockgroupMembershipManager, atLeastOnce()).getGroupsWithMember(anyString(), anyBoolean());
+        verify(mockgroupMembershipManager, atLeastOnce()).getGroupsWithMembers(anyCollection(), anyBoolean());
 
         endpoints.setScimGroupMembershipManager(mm);
     }
@@ -512,9 +566,46 @@ public class ScimUserEndpointsTests {
         endpoints.setScimGroupMembershipManager(mockgroupMembershipManager);
 
         endpoints.findUsers("groups", "id pr", null, "ascending", 1, 100);
-        verify(mockgroupMembershipManager, atLeastOnce()).getGroupsWithMember(anyString(), anyBoolean());
+        verify(mockgroupMembershipManager, atLeastOnce()).getGroupsWithMembers(anyCollection(), anyBoolean());
+
+        endpoints.setScimGroupMembershipManager(mm);
+    }
+
+    @Test
+    public void testFindUsersGroupsSyncedIfIncludedWithOtherAttributes() throws Exception {
+        ScimGroupMembershipManager mockgroupMembershipManager = mock(ScimGroupMembershipManager.class);
+        endpoints.setScimGroupMembershipManager(mockgroupMembershipManager);
+        ApprovalStore mockApprovalStore = mock(ApprovalStore.class);
+        endpoints.setApprovalStore(mockApprovalStore);
+
+        endpoints.findUsers("userName,groups.display", "id pr", null, "ascending", 1, 100);
+        verify(mockgroupMembershipManager, atLeastOnce()).getGroupsWithMembers(anyCollection(), anyBoolean());
+        verify(mockgroupMembershipManager, never()).getGroupsWithMember(anyString(), anyBoolean());
+        verifyZeroInteractions(mockApprovalStore);
 
         endpoints.setScimGroupMembershipManager(mm);
+        endpoints.setApprovalStore(am);
+    }
+
+    @Test
+    public void testFindUsersSyncsSameGroupsAndApprovalsAsGetUser() throws Exception {
+        ScimGroup direct = new ScimGroup(null, "test.direct", IdentityZoneHolder.get().getId());
+        direct.setMembers(Arrays.asList(new ScimGroupMember(joel.getId())));
+        direct = groupEndpoints.createGroup(direct, new MockHttpServletResponse());
+        ScimGroup indirect = new ScimGroup(null, "test.indirect", IdentityZoneHolder.get().getId());
+        indirect.setMembers(Arrays.asList(new ScimGroupMember(direct.getId(), ScimGroupMember.Type.GROUP, ScimGroupMember.GROUP_MEMBER)));
+        groupEndpoints.createGroup(indirect, new MockHttpServletResponse());
+        am.addApproval(new Approval(joel.getId(), "c1", "s1", 6000, Approval.ApprovalStatus.APPROVED));
+
+        SearchResults<?> results = endpoints.findUsers("", "id pr", null, "ascending", 1, 100);
+        assertEquals(2, results.getResources().size());
+        for (Object resource : results.getResources()) {
+            ScimUser found = (ScimUser) resource;
+            ScimUser retrieved = endpoints.getUser(found.getId(), new MockHttpServletResponse());
+            assertEquals(retrieved.getGroups(), found.getGroups());
+            assertEquals(retrieved.getApprovals(), found.getApprovals());
+        }
+        validateUserGroups(endpoints.getUser(joel.getId(), new MockHttpServletResponse()), "test.direct", "test.indirect");
     }
 
     @Test
@@ -534,7 +625,7 @@ public class ScimUserEndpointsTests {
         endpoints.setApprovalStore(mockApprovalStore);
 
         endpoints.findUsers("", "id pr", null, "ascending", 1, 100);
-        verify(mockApprovalStore, atLeastOnce()).getApprovals(anyString());
+        verify(mockApprovalStore, atLeastOnce()).getApprovalsForUsers(anyCollection());
 
         endpoints.setApprovalStore(am);
     }
@@ -545,7 +636,7 @@ public class ScimUserEndpointsTests {
         endpoints.setApprovalStore(mockApprovalStore);
 
         endpoints.findUsers("approvals", "id pr", null, "ascending", 1, 100);
-        verify(mockApprovalStore, atLeastOnce()).getApprovals(anyString());
+        verify(mockApprovalStore, atLeastOnce()).getApprovalsForUsers(anyCollection());
 
         endpoints.setApprovalStore(am);
     }
@@ -29,6 +29,9 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.PreparedStatementCreator;
+import org.springframework.jdbc.core.PreparedStatementSetter;
+import org.springframework.jdbc.core.ResultSetExtractor;
 import org.springframework.security.oauth2.common.util.RandomValueStringGenerator;
 
 import java.util.ArrayList;
@@ -36,7 +39,9 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
@@ -232,6 +237,67 @@ public class JdbcScimGroupMembershipManagerTests extends JdbcTestBase {
         assertEquals(4, groups.size());
     }
 
+    @Test
+    public void canGetGroupsForSeveralMembersAtOnce() {
+        addMembers();
+        addMember("g3", "g1", "GROUP", "READER");
+        addMember("g1", "g3", "GROUP", "READER");
+        List<String> memberIds = Arrays.asList("m1", "m2", "m3", "g2", "unknown");
+
+        for (boolean transitive : new boolean[] {false, true}) {
+            Map<String, Set<ScimGroup>> groups = dao.getGroupsWithMembers(memberIds, transitive);
+            assertEquals(memberIds.size(), groups.size());
+            for (String memberId : memberIds) {
+                assertEquals(dao.getGroupsWithMember(memberId, transitive), groups.get(memberId));
+            }
+        }
+        assertEquals(1, dao.getGroupsWithMembers(memberIds, false).get("m1").size());
+        assertEquals(4, dao.getGroupsWithMembers(memberIds, true).get("m3").size());
+        assertEquals(0, dao.getGroupsWithMembers(memberIds, true).get("unknown").size());
+    }
+
+    @Test
+    public void canGetGroupsForMemberInDeepHierarchyWithOneQueryPerLevel() {
+        int levels = 50;
+        int width = 10;
+        List<Object[]> groups = new ArrayList<>();
+        List<Object[]> members = new ArrayList<>();
+        for (int level = 0; level < levels; level++) {
+            for (int i = 0; i < width; i++) {
+                groups.add(new Object[] {"deep-" + level + "-" + i, "deep" + level + "." + i, IdentityZone.getUaa().getId()});
+                if (level == 0) {
+                    members.add(new Object[] {"deep-0-" + i, "m1", "USER", "READER", Origin.UAA});
+                } else {
+                    //every group is a member of every group one level up
+                    for (int j = 0; j < width; j++) {
+                        members.add(new Object[] {"deep-" + level + "-" + i, "deep-" + (level - 1) + "-" + j, "GROUP", "READER", Origin.UAA});
+                    }
+                }
+            }
+        }
+        jdbcTemplate.batchUpdate("insert into groups (id, displayName, identity_zone_id) values (?,?,?)", groups);
+        jdbcTemplate.batchUpdate("insert into group_membership (group_id, member_id, member_type, authorities, origin) values (?,?,?,?,?)", members);
+
+        final AtomicInteger queries = new AtomicInteger();
+        JdbcTemplate countingTemplate = new JdbcTemplate(dataSource) {
+            @Override
+            public <T> T query(PreparedStatementCreator psc, PreparedStatementSetter pss, ResultSetExtractor<T> rse) {
+                queries.incrementAndGet();
+                return super.query(psc, pss, rse);
+            }
+        };
+        JdbcPagingListFactory pagingListFactory = new JdbcPagingListFactory(countingTemplate, limitSqlAdapter);
+        JdbcScimGroupMembershipManager countingDao = new JdbcScimGroupMembershipManager(countingTemplate, pagingListFactory);
+        countingDao.setScimGroupProvisioning(new JdbcScimGroupProvisioning(countingTemplate, pagingListFactory));
+        countingDao.setScimUserProvisioning(new JdbcScimUserProvisioning(countingTemplate, pagingListFactory));
+
+        assertEquals(width, countingDao.getGroupsWithMember("m1", false).size());
+        queries.set(0);
+        assertEquals(levels * width, countingDao.getGroupsWithMember("m1", true).size());
+        //one query per level and one for the last level's empty parents, one to fetch the groups, one to look up the user
+        assertEquals(levels + 1 + 1 + 1, queries.get());
+    }
+
     @Test
     public void canAddMember() throws Exception {
         validateCount(0);
@@ -299,6 +365,18 @@ public class JdbcScimGroupMembershipManagerTests extends JdbcTestBase {
 
     }
 
+    @Test
+    public void canGetMembersOfSeveralGroups() throws Exception {
+        addMembers();
+        Map<String, List<ScimGroupMember>> members = dao.getMembers(Arrays.asList("g1", "g2", "g3", "unknown"));
+        assertEquals(4, members.size());
+        for (String groupId : Arrays.asList("g1", "g2", "g3")) {
+            assertEquals(new HashSet<>(dao.getMembers(groupId)), new HashSet<>(members.get(groupId)));
+        }
+        assertEquals(2, members.get("g1").size());
+        assertEquals(0, members.get("unknown").size());
+    }
+
     @Test
     public void canGetMembers_Fails_In_Other_Zone() throws Exception {
         addMember("g1", "m1", "USER", "READER");
@@ -18,6 +18,8 @@ import java.util.List;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import org.cloudfoundry.identity.uaa.rest.CursorPage;
 import org.cloudfoundry.identity.uaa.rest.jdbc.JdbcPagingListFactory;
 import org.cloudfoundry.identity.uaa.scim.ScimGroup;
 import org.cloudfoundry.identity.uaa.scim.ScimGroupMember;
@@ -95,6 +97,44 @@ public class JdbcScimGroupProvisioningTests extends JdbcTestBase {
         assertEquals(1, dao.query("id co \"2\"", "displayName", false).size());
     }
 
+    @Test
+    public void canPageThroughGroupsWithoutFilter() {
+        CursorPage<ScimGroup> page = dao.queryPage(null, "displayName", false, null, 2);
+        assertEquals(Arrays.asList("uaa.user", "uaa.admin"), Arrays.asList(page.getResources().get(0).getDisplayName(), page.getResources().get(1).getDisplayName()));
+        assertNotNull(page.getNextCursor());
+        page = dao.queryPage(null, "displayName", false, page.getNextCursor(), 2);
+        assertEquals(1, page.getResources().size());
+        assertEquals("openid", page.getResources().get(0).getDisplayName());
+        assertNull(page.getNextCursor());
+    }
+
+    @Test
+    public void canRetrieveGroupsReadableByMember() {
+        String addMember = "insert into group_membership (group_id, member_id, member_type, authorities) values (?,?,?,?)";
+        jdbcTemplate.update(addMember, "g1", "m1", "USER", "READER,WRITER");
+        jdbcTemplate.update(addMember, "g2", "m1", "USER", "READ");
+        jdbcTemplate.update(addMember, "g3", "m1", "USER", "MEMBER");
+        jdbcTemplate.update(addMember, "g3", "m2", "USER", "READER");
+
+        assertEquals(2, dao.queryReadableBy("m1", "id pr", "created", true).size());
+        assertEquals(2, dao.queryReadableBy("m1", null, null, true).size());
+        assertEquals(1, dao.queryReadableBy("m1", "displayName eq \"uaa.admin\" or displayName eq \"openid\"", "id", false).size());
+        assertEquals(1, dao.queryReadableBy("m2", "id pr", "created", true).size());
+        assertEquals(0, dao.queryReadableBy("m3", "id pr", "created", true).size());
+    }
+
+    @Test
+    public void canSortGroupsReadableByMemberWithoutFilter() {
+        String addMember = "insert into group_membership (group_id, member_id, member_type, authorities) values (?,?,?,?)";
+        jdbcTemplate.update(addMember, "g1", "m1", "USER", "READER");
+        jdbcTemplate.update(addMember, "g2", "m1", "USER", "READER");
+
+        List<ScimGroup> groups = dao.queryReadableBy("m1", null, "displayName", true);
+        assertEquals(Arrays.asList("uaa.admin", "uaa.user"), Arrays.asList(groups.get(0).getDisplayName(), groups.get(1).getDisplayName()));
+        groups = dao.queryReadableBy("m1", null, "displayName", false);
+        assertEquals(Arrays.asList("uaa.user", "uaa.admin"), Arrays.asList(groups.get(0).getDisplayName(), groups.get(1).getDisplayName()));
+    }
+
     @Test(expected = IllegalArgumentException.class)
     public void cannotRetrieveGroupsWithIllegalQuotesFilter() {
         assertEquals(1, dao.query("displayName eq \"bar").size());
@@ -13,6 +13,7 @@
 package org.cloudfoundry.identity.uaa.scim.jdbc;
 
 import org.cloudfoundry.identity.uaa.authentication.Origin;
+import org.cloudfoundry.identity.uaa.rest.CursorPage;
 import org.cloudfoundry.identity.uaa.rest.SimpleAttributeNameMapper;
 import org.cloudfoundry.identity.uaa.rest.jdbc.JdbcPagingListFactory;
 import org.cloudfoundry.identity.uaa.scim.ScimUser;
@@ -32,17 +33,26 @@ import org.cloudfoundry.identity.uaa.zone.IdentityZoneHolder;
 import org.cloudfoundry.identity.uaa.zone.JdbcIdentityProviderProvisioning;
 import org.cloudfoundry.identity.uaa.zone.JdbcIdentityZoneProvisioning;
 import org.cloudfoundry.identity.uaa.zone.MultitenancyFixture;
+import org.cloudfoundry.identity.uaa.rest.jdbc.SearchQueryConverter.ProcessedFilter;
 import org.junit.After;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Test;
 import org.springframework.dao.DuplicateKeyException;
 import org.springframework.dao.OptimisticLockingFailureException;
 import org.springframework.http.HttpStatus;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.datasource.SingleConnectionDataSource;
 import org.springframework.security.authentication.BadCredentialsException;
 import org.springframework.security.crypto.bcrypt.BCrypt;
 import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
 import org.springframework.security.oauth2.common.util.RandomValueStringGenerator;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
+import java.sql.Connection;
+import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -51,13 +61,16 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.function.Consumer;
 
+import static org.hamcrest.Matchers.containsString;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -98,6 +111,7 @@ public class JdbcScimUserProvisioningTests extends JdbcTestBase {
         replaceWith.put("groups\\.display", "authorities");
         replaceWith.put("phoneNumbers\\.value", "phoneNumber");
         filterConverter.setAttributeNameMapper(new SimpleAttributeNameMapper(replaceWith));
+        filterConverter.setPlatform(webApplicationContext.getBean("platform", String.class));
         db.setQueryConverter(filterConverter);
         BCryptPasswordEncoder pe = new BCryptPasswordEncoder(4);
 
@@ -669,6 +683,95 @@ public class JdbcScimUserProvisioningTests extends JdbcTestBase {
         assertTrue(2 <= db.retrieveAll().size());
     }
 
+    @Test
+    public void canPageThroughUsersWithCursor() {
+        for (int i = 0; i < 5; i++) {
+            ScimUser user = new ScimUser(null, "pager" + i + "@foo.com", "Jo", "User");
+            user.addEmail("pager" + i + "@foo.com");
+            db.createUser(user, "j7hyqpassX");
+        }
+        for (String sortBy : Arrays.asList("userName", "created", null)) {
+            for (boolean ascending : new boolean[] {true, false}) {
+                List<String> ids = new ArrayList<>();
+                String cursor = null;
+                do {
+                    CursorPage<ScimUser> page = db.queryPage("id pr", sortBy, ascending, cursor, 2);
+                    assertTrue(page.getResources().size() <= 2);
+                    for (ScimUser user : page.getResources()) {
+                        ids.add(user.getId());
+                    }
+                    cursor = page.getNextCursor();
+                } while (cursor != null);
+
+                List<String> expected = new ArrayList<>();
+                for (ScimUser user : db.query("id pr", sortBy == null ? "id" : sortBy, ascending)) {
+                    expected.add(user.getId());
+                }
+                if ("created".equals(sortBy)) {
+                    //users created in the same millisecond may be in any order
+                    Collections.sort(ids);
+                    Collections.sort(expected);
+                }
+                assertEquals(expected, ids);
+            }
+        }
+    }
+
+    @Test
+    public void canStreamUsers() {
+        for (int i = 0; i < 5; i++) {
+            ScimUser user = new ScimUser(null, "streamer" + i + "@foo.com", "Jo", "User");
+            user.addEmail("streamer" + i + "@foo.com");
+            db.createUser(user, "j7hyqpassX");
+        }
+        final List<String> streamed = new ArrayList<>();
+        db.stream("userName sw \"streamer\"", "userName", false, 2, new Consumer<ScimUser>() {
+            @Override
+            public void accept(ScimUser user) {
+                streamed.add(user.getUserName());
+            }
+        });
+        assertEquals(Arrays.asList("streamer4@foo.com", "streamer3@foo.com", "streamer2@foo.com", "streamer1@foo.com",
+                        "streamer0@foo.com"), streamed);
+    }
+
+    @Test
+    public void streamedRowsCanBeJoinedOnTheSameConnection() {
+        final List<Boolean> bound = new ArrayList<>();
+        db.stream("id pr", "userName", true, 1, new Consumer<ScimUser>() {
+            @Override
+            public void accept(ScimUser user) {
+                //lookups made while streaming use the streaming connection
+                bound.add(TransactionSynchronizationManager.hasResource(dataSource));
+                jdbcTemplate.queryForList("select id from users where id=?", user.getId());
+            }
+        });
+        assertFalse(bound.isEmpty());
+        assertFalse(bound.contains(false));
+        assertFalse(TransactionSynchronizationManager.hasResource(dataSource));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void cannotStreamWithInvalidFilter() {
+        db.stream("userName sw \"streamer\" and nonexistent eq \"x\"", "userName", true, 2, new Consumer<ScimUser>() {
+            @Override
+            public void accept(ScimUser user) {
+            }
+        });
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void cannotPageWithInvalidCursor() {
+        db.queryPage("id pr", "userName", true, "not-a-cursor", 2);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void cannotPageWithCursorOfAnotherSortOrder() {
+        String cursor = db.queryPage("id pr", "userName", true, null, 1).getNextCursor();
+        assertNotNull(cursor);
+        db.queryPage("id pr", "created", true, cursor, 1);
+    }
+
     @Test
     public void canRetrieveUsersWithFilterExists() {
         assertTrue(2 <= db.query("username pr").size());
@@ -712,6 +815,52 @@ public class JdbcScimUserProvisioningTests extends JdbcTestBase {
         assertEquals(1, db.query("username sw \"joe\"").size());
     }
 
+    @Test
+    public void filtersOnUsernameAndEmailUseIndexes() {
+        String platform = webApplicationContext.getBean("platform", String.class);
+        //hsqldb has no indexes on expressions like LOWER(username)
+        Assume.assumeTrue("postgresql".equals(platform) || "mysql".equals(platform));
+        //on postgresql only the text_pattern_ops indexes serve sw filters
+        String suffix = "postgresql".equals(platform) ? "_pattern" : "";
+        assertThat(explain("username eq \"joe\"", platform), containsString("user_perf_username"));
+        assertThat(explain("username sw \"joe\"", platform), containsString("user_perf_username" + suffix));
+        assertThat(explain("emails.value eq \"joe@joe.com\"", platform), containsString("user_perf_email"));
+        assertThat(explain("emails.value sw \"joe\"", platform), containsString("user_perf_email" + suffix));
+        if ("postgresql".equals(platform) && jdbcTemplate.queryForObject("select count(*) from pg_indexes where indexname = 'user_perf_username_trgm'", Integer.class) > 0) {
+            assertThat(explain("username co \"joe\"", platform), containsString("user_perf_username_trgm"));
+            assertThat(explain("emails.value co \"joe\"", platform), containsString("user_perf_email_trgm"));
+        }
+    }
+
+    /**
+     * @return the plan of a query of the filter, with sequential scans
+     * turned off on postgresql so that the few test users don't decide it
+     */
+    private String explain(String filter, final String platform) {
+        ScimSearchQueryConverter converter = new ScimSearchQueryConverter();
+        converter.setAttributeNameMapper(new SimpleAttributeNameMapper(Collections.singletonMap("emails\\.value", "email")));
+        converter.setPlatform(platform);
+        converter.setDbCaseInsensitive("mysql".equals(platform));
+        final ProcessedFilter where = converter.convert(filter, null, false);
+        return jdbcTemplate.execute(new ConnectionCallback<String>() {
+            @Override
+            public String doInConnection(Connection con) throws SQLException {
+                JdbcTemplate template = new JdbcTemplate(new SingleConnectionDataSource(con, true));
+                if ("postgresql".equals(platform)) {
+                    template.execute("SET enable_seqscan = off");
+                }
+                try {
+                    return new NamedParameterJdbcTemplate(template).queryForList(
+                                    "EXPLAIN SELECT id FROM users WHERE " + where.getSql(), where.getParams()).toString();
+                } finally {
+                    if ("postgresql".equals(platform)) {
+                        template.execute("RESET enable_seqscan");
+                    }
+                }
+            }
+        });
+    }
+
     @Test
     public void canRetrieveUsersWithFilterGreater() {
         assertEquals(1 + existingUserCount, db.query("username gt \"joe\"").size());
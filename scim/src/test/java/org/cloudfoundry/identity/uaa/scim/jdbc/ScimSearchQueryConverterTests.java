@@ -17,6 +17,7 @@ import org.cloudfoundry.identity.uaa.rest.jdbc.SearchQueryConverter.ProcessedFil
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -141,6 +142,63 @@ public class ScimSearchQueryConverterTests {
         validate(filterProcessor.convert("username pr", "emails.value", true), "username IS NOT NULL ORDER BY email ASC", 0);
     }
 
+    @Test
+    public void reusesPlanOfFilterWithSameShape() {
+        ProcessedFilter first = filterProcessor.convert("username eq \"joe\" or emails.value co \".com\"", "username", true);
+        ProcessedFilter second = filterProcessor.convert("username eq \"Mabel\" or emails.value co \".org\"", "username", true);
+        assertEquals(first.getSql(), second.getSql());
+        assertEquals("Mabel", second.getParams().get(second.getParamPrefix() + "0"));
+        assertEquals("%.org%", second.getParams().get(second.getParamPrefix() + "1"));
+        assertEquals("joe", first.getParams().get(first.getParamPrefix() + "0"));
+
+        second = filterProcessor.convert("username eq 'Mabel' and meta.version eq 3", null, false);
+        second = filterProcessor.convert("username eq 'Bob' and meta.version eq 4", null, false);
+        validate(second, "(LOWER(username) = LOWER(:__value_0) AND version = :__value_1)", 2, String.class, Double.class);
+        assertEquals("Bob", second.getParams().get(second.getParamPrefix() + "0"));
+        assertEquals(4.0, second.getParams().get(second.getParamPrefix() + "1"));
+    }
+
+    @Test
+    public void datesAndStringsDoNotShareAPlan() {
+        validate(filterProcessor.convert("meta.created gt \"joe\"", null, false), "LOWER(created) > LOWER(:__value_0)", 1, String.class);
+        validate(filterProcessor.convert("meta.created gt \"1970-01-01T00:00:00.000Z\"", null, false), "created > :__value_0", 1, Date.class);
+        validate(filterProcessor.convert("meta.created gt \"bob\"", null, false), "LOWER(created) > LOWER(:__value_0)", 1, String.class);
+    }
+
+    @Test
+    public void convertsWithoutPlans() {
+        filterProcessor.setMaxPlans(0);
+        validate(filterProcessor.convert("username eq \"joe\"", null, false), "LOWER(username) = LOWER(:__value_0)", 1);
+        validate(filterProcessor.convert("username eq \"bob\"", null, false), "LOWER(username) = LOWER(:__value_0)", 1);
+    }
+
+    @Test
+    public void startsWithGetsPrefixRangeOnPostgresql() {
+        filterProcessor.setPlatform("postgresql");
+        ProcessedFilter filter = filterProcessor.convert("username sw \"Mar\" and emails.value sw \"joe@\"", null, false);
+        validate(filter, "((LOWER(username) LIKE LOWER(:__value_0) AND LOWER(username) ~>=~ LOWER(:__value_1) AND LOWER(username) ~<~ LOWER(:__value_2)) AND LOWER(email) LIKE LOWER(:__value_3))", 4);
+        assertEquals("Mar%", filter.getParams().get(filter.getParamPrefix() + "0"));
+        assertEquals("Mar", filter.getParams().get(filter.getParamPrefix() + "1"));
+        assertEquals("Mas", filter.getParams().get(filter.getParamPrefix() + "2"));
+        assertEquals("joe@%", filter.getParams().get(filter.getParamPrefix() + "3"));
+
+        filter = filterProcessor.convert("username sw \"bob9\" and emails.value sw \"bob@\"", null, false);
+        assertEquals("bob9%", filter.getParams().get(filter.getParamPrefix() + "0"));
+        assertEquals("bob9", filter.getParams().get(filter.getParamPrefix() + "1"));
+        assertEquals("bob:", filter.getParams().get(filter.getParamPrefix() + "2"));
+
+        validate(filterProcessor.convert("username sw \"MAR\" and emails.value sw \"joe@\"", null, false), "(LOWER(username) LIKE LOWER(:__value_0) AND LOWER(email) LIKE LOWER(:__value_1))", 2);
+        validate(filterProcessor.convert("username sw \"m_r\"", null, false), "LOWER(username) LIKE LOWER(:__value_0)", 1);
+        filterProcessor.setPlatform("hsqldb");
+        validate(filterProcessor.convert("username sw \"mar\"", null, false), "LOWER(username) LIKE LOWER(:__value_0)", 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testIllegalUnquotedValueInFilterWithKnownShape() throws Exception {
+        filterProcessor.convert("username eq \"joe\"", null, false);
+        filterProcessor.convert("username eq joe", null, false);
+    }
+
     private void validate(ProcessedFilter filter, String expectedSql, int expectedParamCount, Class... types) {
         assertNotNull(filter);
         expectedSql = expectedSql.replaceAll("__value_", filter.getParamPrefix());
@@ -58,7 +58,7 @@ public class ResetPasswordControllerMockMvcTests extends InjectedMockContextTest
 
     @Before
     public void initResetPasswordTest() throws Exception {
-        codeStore = getWebApplicationContext().getBean(ExpiringCodeStore.class);
+        codeStore = getWebApplicationContext().getBean("codeStore", ExpiringCodeStore.class);
     }
 
     @Test
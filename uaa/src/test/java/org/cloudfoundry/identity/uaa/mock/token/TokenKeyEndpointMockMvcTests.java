@@ -31,6 +31,7 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 public class TokenKeyEndpointMockMvcTests extends InjectedMockContextTest {
@@ -161,6 +162,25 @@ public class TokenKeyEndpointMockMvcTests extends InjectedMockContextTest {
         validateKeys(keys);
     }
 
+    @Test
+    public void checkTokenKeysAreCacheable() throws Exception {
+        MvcResult result = getMockMvc().perform(
+                get("/token_keys")
+                        .accept(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk())
+                .andExpect(header().string("Cache-Control", "public, max-age=300"))
+                .andReturn();
+        String etag = result.getResponse().getHeader("ETag");
+        assertNotNull(etag);
+
+        getMockMvc().perform(
+                get("/token_keys")
+                        .accept(MediaType.APPLICATION_JSON)
+                        .header("If-None-Match", etag))
+                .andExpect(status().isNotModified())
+                .andExpect(header().string("ETag", etag));
+    }
+
     public void validateKey(Map<String,Object> key) {
         Object kty = key.get("kty");
         assertNotNull(kty);
@@ -28,6 +28,8 @@ import org.cloudfoundry.identity.uaa.zone.IdentityProvider;
 import org.cloudfoundry.identity.uaa.zone.IdentityProviderProvisioning;
 import org.cloudfoundry.identity.uaa.zone.IdentityZone;
 import org.cloudfoundry.identity.uaa.zone.IdentityZoneSwitchingFilter;
+import org.cloudfoundry.identity.uaa.zone.JdbcIdentityProviderProvisioning;
+import org.cloudfoundry.identity.uaa.zone.MultitenantJdbcClientDetailsService;
 import org.cloudfoundry.identity.uaa.zone.MultitenancyFixture;
 import org.cloudfoundry.identity.uaa.zone.event.IdentityProviderModifiedEvent;
 import org.junit.After;
@@ -83,6 +85,7 @@ public class IdentityProviderEndpointsMockMvcTests extends InjectedMockContextTe
     @After
     public void clearUaaConfig() throws Exception {
         getWebApplicationContext().getBean(JdbcTemplate.class).update("UPDATE identity_provider SET config=null WHERE origin_key='uaa'");
+        getWebApplicationContext().getBean(JdbcIdentityProviderProvisioning.class).clearCache();
         mockMvcUtils.removeEventListener(getWebApplicationContext(), eventListener);
     }
 
@@ -403,6 +406,7 @@ public class IdentityProviderEndpointsMockMvcTests extends InjectedMockContextTe
         }
         if (update) {
             assertEquals(1, template.update("UPDATE oauth_client_details SET scope=? WHERE identity_zone_id='uaa' AND client_id='identity'", scopes));
+            getWebApplicationContext().getBean(MultitenantJdbcClientDetailsService.class).clearCache();
         }
     }
 